@@ -0,0 +1,46 @@
+package com.jp2p.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks of the peer, taking the usual JMH command line options.
+ * Unless another result format is asked with -rf, the results are written as JSON in {@link BenchmarkMain#DEFAULT_RESULT_FILE},
+ * so that the results of two releases can be compared by a script or a JMH visualizer.
+ */
+public class BenchmarkMain {
+    /**
+     * The file in which the results are written when no result file is given.
+     */
+    public static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine;
+        try {
+            commandLine = new CommandLineOptions(args);
+        } catch (CommandLineOptionException e) {
+            System.err.println("Error parsing the command line: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        // The help and the listings are printed by the JMH launcher
+        if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListWithParams()
+                || commandLine.shouldListProfilers() || commandLine.shouldListResultFormats()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.parent(commandLine);
+        if (!commandLine.getResultFormat().hasValue())
+            builder.resultFormat(ResultFormatType.JSON);
+        if (!commandLine.getResult().hasValue())
+            builder.result(DEFAULT_RESULT_FILE);
+
+        new Runner(builder.build()).run();
+    }
+}
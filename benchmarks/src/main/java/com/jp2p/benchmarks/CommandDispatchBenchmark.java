@@ -0,0 +1,62 @@
+package com.jp2p.benchmarks;
+
+import com.jp2p.core.commands.CommandExecutor;
+import com.jp2p.core.commands.CommandType;
+import com.jp2p.core.commands.ICommand;
+import com.jp2p.core.metrics.PeerMetrics;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.EnumMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the dispatch of the commands by the {@link CommandExecutor}, with commands doing nothing so that only the lookup of the command
+ * and the recording of its time in the {@link PeerMetrics} are measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandDispatchBenchmark {
+    @Param({"false", "true"})
+    public boolean metrics;
+
+    /**
+     * The executor holding a command of every type.
+     */
+    private CommandExecutor executor;
+
+    /**
+     * The command types dispatched in turn.
+     */
+    private CommandType[] types;
+
+    /**
+     * The index of the next command type dispatched.
+     */
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        types = CommandType.values();
+        EnumMap<CommandType, ICommand> commands = new EnumMap<>(CommandType.class);
+        for (CommandType type : types) {
+            commands.put(type, args -> type);
+        }
+        executor = new CommandExecutor(commands, metrics ? new PeerMetrics() : null);
+    }
+
+    /**
+     * Dispatches the next command type with a few arguments.
+     *
+     * @return The result of the command.
+     */
+    @Benchmark
+    public Object dispatch() {
+        CommandType type = types[next];
+        next = (next + 1) % types.length;
+        return executor.executeCommand(type, "holiday-photos", 3, 45673);
+    }
+}
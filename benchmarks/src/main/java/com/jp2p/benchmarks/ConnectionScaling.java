@@ -0,0 +1,242 @@
+package com.jp2p.benchmarks;
+
+import com.jp2p.core.commands.CommandType;
+import com.jp2p.core.peer.PeerRunner;
+import com.jp2p.core.peer.PeerSettings;
+import com.jp2p.core.peer.ServerMode;
+import com.jp2p.core.protocol.Message;
+import com.jp2p.core.protocol.ProtocolStream;
+import com.jp2p.core.protocol.WireProtocol;
+import com.jp2p.database.DatabaseConnection;
+import com.jp2p.database.FileHashesTable;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures how the server of a peer scales with the number of connections open at the same time, for each {@link ServerMode}.
+ * For each mode a peer is started on the loopback interface, then for each connection count that many clients connect to it on their own thread,
+ * wait for every client to be connected, and send name messages one after the other on their connection, which is closed once they are done.
+ * It reports the latency of the messages by connection count, from the moment the client is ready to send until the reply is read,
+ * and the clients that could not connect or got no reply within the timeout, so that the fixed pool of slaves can be compared with the selector and the virtual threads.
+ * <p>
+ * The options are given on the command line as name=value arguments:
+ * <pre>
+ * modes=pool,selector,virtual connections=10,100,1000 requests=20 protocol=binary|legacy timeout=30000
+ * </pre>
+ * Every connection takes a file descriptor on both sides, the limit of open files of the shell must be above twice the largest connection count.
+ * Run from the benchmarks folder with: java -cp target/benchmarks.jar com.jp2p.benchmarks.ConnectionScaling connections=100,1000,5000
+ */
+public class ConnectionScaling {
+    /**
+     * The options of the benchmark.
+     *
+     * @param modes          The {@link ServerMode}s compared.
+     * @param connections    The connection counts, a round being run for each.
+     * @param requests       The number of messages sent on each connection.
+     * @param binaryProtocol True for the binary wire protocol, false for the legacy protocol.
+     * @param timeout        The time in milliseconds after which a client that could not connect or got no reply gives up.
+     */
+    private record Options(ServerMode[] modes, int[] connections, int requests, boolean binaryProtocol, int timeout) {
+        /**
+         * Parses the options given as name=value arguments, the missing options taking their default value.
+         *
+         * @param args The arguments.
+         * @return The options.
+         * @throws IllegalArgumentException If an argument is unknown or malformed.
+         */
+        static Options parse(String[] args) {
+            Map<String, String> values = new HashMap<>();
+            for (String arg : args) {
+                int equals = arg.indexOf('=');
+                if (equals <= 0)
+                    throw new IllegalArgumentException("Expected name=value, got " + arg);
+                values.put(arg.substring(0, equals), arg.substring(equals + 1));
+            }
+
+            Options options = new Options(
+                    Arrays.stream(values.getOrDefault("modes", "pool,selector,virtual").split(",")).map(ServerMode::fromConfiguration).toArray(ServerMode[]::new),
+                    Arrays.stream(values.getOrDefault("connections", "10,100,1000").split(",")).mapToInt(Integer::parseInt).toArray(),
+                    Integer.parseInt(values.getOrDefault("requests", "20")),
+                    values.getOrDefault("protocol", "binary").equals("binary"),
+                    Integer.parseInt(values.getOrDefault("timeout", "30000")));
+
+            values.keySet().removeAll(Set.of("modes", "connections", "requests", "protocol", "timeout"));
+            if (!values.isEmpty())
+                throw new IllegalArgumentException("Unknown options " + values.keySet());
+
+            return options;
+        }
+    }
+
+    /**
+     * The options of the benchmark.
+     */
+    private final Options options;
+
+    /**
+     * The temporary folder of the peers.
+     */
+    private final Path folder;
+
+    /**
+     * Constructs a new {@link ConnectionScaling} with the given options.
+     *
+     * @param options The options of the benchmark.
+     * @throws IOException If the temporary folder cannot be created.
+     */
+    private ConnectionScaling(Options options) throws IOException {
+        this.options = options;
+        this.folder = Files.createTempDirectory("jp2p-connections");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        ConnectionScaling benchmark = new ConnectionScaling(options);
+        benchmark.setUp();
+        for (ServerMode mode : options.modes) {
+            PeerRunner peer = benchmark.startPeer(mode);
+            System.out.printf("%s server, %s protocol, %d messages per connection%n", mode, options.binaryProtocol ? "binary" : "legacy", options.requests);
+            for (int connections : options.connections) {
+                benchmark.round(peer, connections);
+            }
+            System.out.println();
+        }
+
+        // The peers have no way to be stopped, they end with the JVM
+        System.exit(0);
+    }
+
+    /**
+     * Keeps the hashes of the shared files, of which there are none, in a database of the temporary folder.
+     *
+     * @throws SQLException If the database cannot be created.
+     */
+    private void setUp() throws SQLException {
+        DatabaseConnection.connect("jdbc:sqlite:" + folder.resolve("connections.db"));
+        FileHashesTable.createTableIfNotExists();
+    }
+
+    /**
+     * Starts a peer sharing no file with the given {@link ServerMode}, on a free port of the loopback interface.
+     *
+     * @param mode The {@link ServerMode} of the peer.
+     * @return The peer.
+     * @throws IOException If the peer cannot be started.
+     */
+    private PeerRunner startPeer(ServerMode mode) throws IOException {
+        Path files = Files.createDirectories(folder.resolve(mode.name()).resolve("files"));
+        Path downloads = Files.createDirectories(folder.resolve(mode.name()).resolve("downloads"));
+        PeerSettings seeded = PeerSettings.fromSeed();
+        PeerSettings settings = new PeerSettings("connections-" + mode.name().toLowerCase(), InetAddress.getLoopbackAddress().getHostAddress(), 0, seeded.maxPeers(),
+                options.binaryProtocol, mode, seeded.pathCaching(), seeded.compression(),
+                seeded.uploadLimit(), seeded.downloadLimit(), seeded.peerUploadLimit(), seeded.peerDownloadLimit(), seeded.uploadSlots(), seeded.downloads(),
+                files + File.separator, downloads + File.separator, false);
+
+        PeerRunner peer = new PeerRunner(settings);
+        Thread thread = new Thread(peer, "peer-" + mode.name().toLowerCase());
+        thread.setDaemon(true);
+        thread.start();
+        return peer;
+    }
+
+    /**
+     * Opens the given number of connections to a peer at the same time, sends {@link Options#requests} name messages on each, and prints the latency of the messages.
+     *
+     * @param peer        The peer.
+     * @param connections The number of connections.
+     */
+    private void round(PeerRunner peer, int connections) throws InterruptedException {
+        InetSocketAddress address = new InetSocketAddress(peer.getPeer().getAddress(), peer.getPeer().getPort());
+        long[][] latencies = new long[connections][];
+        AtomicInteger failed = new AtomicInteger();
+        CountDownLatch ready = new CountDownLatch(connections);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> clients = new ArrayList<>(connections);
+
+        for (int i = 0; i < connections; i++) {
+            int client = i;
+            Thread thread = new Thread(() -> latencies[client] = client(address, ready, go, failed), "client-" + i);
+            thread.setDaemon(true);
+            clients.add(thread);
+            thread.start();
+        }
+
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        for (Thread client : clients) {
+            client.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long[] sorted = Arrays.stream(latencies).filter(l -> l != null).flatMapToLong(Arrays::stream).sorted().toArray();
+        System.out.printf("  %6d connections: %.2f s, %.0f messages/s, %d failed  latency ms  p50 %.2f  p90 %.2f  p99 %.2f  max %.2f%n",
+                connections, elapsed / 1e9, sorted.length / (elapsed / 1e9), failed.get(),
+                LoadTest.percentile(sorted, 50), LoadTest.percentile(sorted, 90), LoadTest.percentile(sorted, 99), LoadTest.percentile(sorted, 100));
+    }
+
+    /**
+     * Connects to a peer, waits for every client of the round to be connected, then sends the name messages one after the other and closes the connection.
+     *
+     * @param address The address of the peer.
+     * @param ready   Counted down once the client is connected, or could not connect.
+     * @param go      Released once every client is connected.
+     * @param failed  The number of clients that could not connect or got no reply.
+     * @return The latency of each message in nanoseconds, or null if the client failed.
+     */
+    private long[] client(InetSocketAddress address, CountDownLatch ready, CountDownLatch go, AtomicInteger failed) {
+        Socket socket = new Socket();
+        try (socket) {
+            ProtocolStream stream;
+            try {
+                socket.connect(address, options.timeout);
+                socket.setSoTimeout(options.timeout);
+                socket.setTcpNoDelay(true);
+                stream = WireProtocol.connect(socket, options.binaryProtocol);
+            } finally {
+                ready.countDown();
+            }
+
+            go.await();
+            // The time a slave takes to pick the connection up is counted in the first message
+            long[] latencies = new long[options.requests];
+            for (int i = 0; i < latencies.length; i++) {
+                long start = System.nanoTime();
+                stream.writeMessage(new Message(CommandType.NAME));
+                stream.readReply();
+                latencies[i] = System.nanoTime() - start;
+            }
+
+            return latencies;
+        } catch (IOException e) {
+            failed.incrementAndGet();
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+}
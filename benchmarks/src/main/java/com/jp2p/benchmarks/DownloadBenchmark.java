@@ -0,0 +1,119 @@
+package com.jp2p.benchmarks;
+
+import com.jp2p.core.commands.CommandType;
+import com.jp2p.core.commands.DownloadCommand;
+import com.jp2p.core.file.FolderManger;
+import com.jp2p.core.metrics.PeerMetrics;
+import com.jp2p.core.peer.BandwidthLimiter;
+import com.jp2p.core.peer.UploadScheduler;
+import com.jp2p.core.protocol.BodyEncoding;
+import com.jp2p.core.protocol.Message;
+import com.jp2p.core.protocol.ProtocolStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks a whole file downloaded over a loopback connection, the server sending it with the {@link DownloadCommand} of a peer
+ * from a temporary folder, without limit of bandwidth nor of upload slots. The client reads the file like a peer but discards its content,
+ * so that the disk of the client is not measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DownloadBenchmark {
+    /**
+     * The name of the file downloaded.
+     */
+    private static final String FILE_NAME = "download.bin";
+
+    /**
+     * The size of the file in KiB.
+     */
+    @Param({"64", "1024", "65536"})
+    public int sizeKiB;
+
+    @Param({"legacy", "binary"})
+    public String protocol;
+
+    /**
+     * The temporary folder of the file.
+     */
+    private Path folder;
+
+    /**
+     * The server sending the file.
+     */
+    private LoopbackServer server;
+
+    /**
+     * The connection to the server.
+     */
+    private ProtocolStream stream;
+
+    /**
+     * The buffer the content of the file is read in.
+     */
+    private final byte[] data = new byte[64 * 1024];
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("jp2p-download");
+        byte[] content = new byte[sizeKiB * 1024];
+        new Random(42).nextBytes(content);
+        Files.write(folder.resolve(FILE_NAME), content);
+
+        DownloadCommand command = new DownloadCommand(new FolderManger(folder + File.separator), new BandwidthLimiter(0, 0, 0, 0), new UploadScheduler(0), new PeerMetrics());
+        server = new LoopbackServer((received, connection) -> {
+            // The optional arguments are read like a peer does, the legacy protocol does not send them
+            Object[] args = received.args();
+            command.execute(args[0], args[1], args.length > 2 ? args[2] : null, connection, args.length > 3 ? args[3] : null, args.length > 4 ? args[4] : null);
+        });
+        stream = server.connect(protocol.equals("binary"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        stream.close();
+        server.close();
+        try (Stream<Path> paths = Files.walk(folder)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * Downloads the whole file.
+     *
+     * @return The number of bytes read.
+     * @throws IOException If the connection fails.
+     */
+    @Benchmark
+    public long download() throws IOException {
+        stream.writeMessage(new Message(CommandType.DOWNLOAD, FILE_NAME, 0L, null, BodyEncoding.RAW, true));
+        long size = stream.readFileSize();
+        if (size < 0)
+            throw new IOException("The server does not find " + FILE_NAME);
+
+        InputStream body = stream.getBodyInputStream();
+        long read = 0;
+        while (read < size) {
+            int count = body.read(data, 0, (int) Math.min(data.length, size - read));
+            if (count < 0)
+                throw new IOException("The connection was closed after " + read + " bytes");
+            read += count;
+        }
+
+        return read;
+    }
+}
@@ -0,0 +1,100 @@
+package com.jp2p.benchmarks;
+
+import com.jp2p.core.file.FileIndex;
+import com.jp2p.core.file.FolderManger;
+import com.jp2p.core.file.SharedFile;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the searches of the shared files, {@link FolderManger#getFiles(String)} looking the search criteria up in the {@link FileIndex} of the folder.
+ * The index is built over generated names rather than a folder on disk, so that a million names are searched without creating a million files.
+ * The search is compared with a scan of every name, which is how the folder was searched before it was indexed.
+ * <p>
+ * The criteria are a name matching a single file, a word found in one name out of eight, a word found in no name and a criteria shorter than a trigram.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class FileIndexBenchmark {
+    /**
+     * The words the generated names are made of.
+     */
+    private static final String[] WORDS = {"holiday", "report", "invoice", "lecture", "concert", "backup", "draft", "scan"};
+
+    /**
+     * The extensions of the generated names.
+     */
+    private static final String[] EXTENSIONS = {".jpg", ".pdf", ".mp4", ".zip", ".txt"};
+
+    @Param({"10000", "1000000"})
+    public int files;
+
+    @Param({"single", "common", "missing", "short"})
+    public String criteria;
+
+    /**
+     * The index of the generated names.
+     */
+    private FileIndex index;
+
+    /**
+     * The generated files.
+     */
+    private SharedFile[] shared;
+
+    /**
+     * The search criteria.
+     */
+    private String match;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        shared = new SharedFile[files];
+        for (int i = 0; i < files; i++) {
+            String name = String.format("%s-%s-%07d%s", WORDS[i % WORDS.length], WORDS[(i / WORDS.length) % WORDS.length], i, EXTENSIONS[i % EXTENSIONS.length]);
+            shared[i] = new SharedFile(name, new File(name), 1024L * i, 0);
+        }
+
+        index = new FileIndex(shared);
+        match = switch (criteria) {
+            case "single" -> String.format("%07d", files / 2);
+            case "common" -> "concert-scan";
+            case "missing" -> "quarterly";
+            case "short" -> "zz";
+            default -> throw new IllegalArgumentException("Unknown criteria " + criteria);
+        };
+    }
+
+    /**
+     * Searches the criteria in the index.
+     *
+     * @return The files found.
+     */
+    @Benchmark
+    public ArrayList<SharedFile> search() {
+        return index.search(match);
+    }
+
+    /**
+     * Searches the criteria by scanning every name.
+     *
+     * @return The files found.
+     */
+    @Benchmark
+    public ArrayList<SharedFile> scan() {
+        ArrayList<SharedFile> found = new ArrayList<>();
+        for (SharedFile file : shared) {
+            if (file.name().contains(match))
+                found.add(file);
+        }
+
+        return found;
+    }
+}
@@ -0,0 +1,75 @@
+package com.jp2p.benchmarks;
+
+import com.jp2p.core.file.FileManager;
+import com.jp2p.core.file.PeerFile;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the ingestion of the files found by the searches in the {@link FileManager}, as the voila messages of many peers arrive.
+ * Each invocation adds a whole batch of files: new files from distinct peers, the same files seen again, or more files than the store holds so that it is trimmed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FileManagerBenchmark {
+    /**
+     * The number of files added by each invocation.
+     */
+    private static final int BATCH = 100_000;
+
+    /**
+     * The number of peers the files are found on.
+     */
+    private static final int PEERS = 50;
+
+    @Param({"new", "seen", "trimmed"})
+    public String workload;
+
+    /**
+     * The files added.
+     */
+    private PeerFile[] found;
+
+    /**
+     * The store the files are added to.
+     */
+    private FileManager manager;
+
+    @Setup(Level.Trial)
+    public void setUpFiles() {
+        found = new PeerFile[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            found[i] = new PeerFile("peer-" + i % PEERS, String.format("holiday-%06d.jpg", i / PEERS), 3_500_000L + i / PEERS);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpStore() {
+        manager = workload.equals("trimmed") ? new FileManager(BATCH / 4, FileManager.TTL) : new FileManager();
+        if (workload.equals("seen")) {
+            for (PeerFile file : found) {
+                manager.addFile(file);
+            }
+        }
+    }
+
+    /**
+     * Adds the batch of files to the store.
+     *
+     * @return The store.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public FileManager addFiles() {
+        for (PeerFile file : found) {
+            manager.addFile(file);
+        }
+
+        return manager;
+    }
+}
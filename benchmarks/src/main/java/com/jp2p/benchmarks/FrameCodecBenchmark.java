@@ -0,0 +1,73 @@
+package com.jp2p.benchmarks;
+
+import com.jp2p.core.protocol.FrameCodec;
+import com.jp2p.core.protocol.Message;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the encoding and the decoding of the frames of the binary protocol in memory, apart from the network.
+ *
+ * @see Messages
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameCodecBenchmark {
+    @Param({"name", "file", "voila", "download"})
+    public String message;
+
+    /**
+     * The message encoded.
+     */
+    private Message sent;
+
+    /**
+     * The buffer in which the frame is encoded.
+     */
+    private ByteBuffer frame;
+
+    /**
+     * The encoded frame, decoded by {@link FrameCodecBenchmark#decode()}.
+     */
+    private ByteBuffer encoded;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        sent = Messages.of(message);
+        frame = ByteBuffer.allocate(64 * 1024);
+        encoded = ByteBuffer.allocate(64 * 1024);
+        FrameCodec.encodeMessage(encoded, sent);
+        encoded.flip();
+    }
+
+    /**
+     * Encodes the message in a frame.
+     *
+     * @return The buffer holding the frame.
+     */
+    @Benchmark
+    public ByteBuffer encode() {
+        frame.clear();
+        FrameCodec.encodeMessage(frame, sent);
+        return frame;
+    }
+
+    /**
+     * Decodes the frame of the message.
+     *
+     * @return The decoded {@link Message}.
+     * @throws IOException If the frame is malformed.
+     */
+    @Benchmark
+    public Message decode() throws IOException {
+        encoded.rewind();
+        return FrameCodec.decodeMessage(encoded);
+    }
+}
@@ -0,0 +1,486 @@
+package com.jp2p.benchmarks;
+
+import com.jp2p.core.commands.CommandType;
+import com.jp2p.core.exceptions.NoKnownPeersException;
+import com.jp2p.core.exceptions.PeerOverflowException;
+import com.jp2p.core.file.FolderManger;
+import com.jp2p.core.file.PeerFile;
+import com.jp2p.core.peer.DownloadManager;
+import com.jp2p.core.peer.PeerRunner;
+import com.jp2p.core.peer.PeerSettings;
+import com.jp2p.core.peer.ServerMode;
+import com.jp2p.database.DatabaseConnection;
+import com.jp2p.database.FileHashesTable;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Starts several peers on the loopback interface in this JVM, links them in a {@link Topology} and runs a workload on them:
+ * searches started by random peers for a file shared by another random peer, with each of the given bounce counts, then downloads of the files found.
+ * It reports the latency of the searches until the file is found, the messages handled by all the peers for a search and the throughput of the downloads,
+ * so that a change to the forwarding of the searches or to the threading of the server can be measured before it is deployed.
+ * <p>
+ * Each peer shares and downloads in its own folders of a temporary folder, whose files are deleted at the end, listens on a free port and keeps the progress of its downloads in memory.
+ * The hashes of the shared files are cached in a database of the temporary folder, the database of the peer is not touched.
+ * The other settings are the ones of the seed file, some of which can be given on the command line as name=value arguments:
+ * <pre>
+ * peers=16 topology=ring|mesh|star degree=4 files=10 fileSize=1048576 queries=200 concurrency=8 bounces=1,2,3 downloads=20
+ * mode=pool|selector|virtual protocol=binary|legacy pathCache=true compression=true timeout=5000 seed=42
+ * </pre>
+ * Run from the benchmarks folder with: java -cp target/benchmarks.jar com.jp2p.benchmarks.LoadTest peers=32 topology=mesh
+ */
+public class LoadTest {
+    /**
+     * The time in milliseconds between two looks at the files found by a search, or at the downloads.
+     */
+    private static final long POLL_INTERVAL = 1;
+
+    /**
+     * The time in milliseconds without any message handled after which the searches of a round are over.
+     */
+    private static final long QUIET_PERIOD = 500;
+
+    /**
+     * The options of a load test.
+     *
+     * @param peers          The number of peers.
+     * @param topology       The {@link Topology} of the peers.
+     * @param degree         The number of peers each peer knows in a {@link Topology#MESH}.
+     * @param files          The number of files shared by each peer.
+     * @param fileSize       The size of the shared files in bytes.
+     * @param queries        The number of searches of each round.
+     * @param concurrency    The number of searches running at the same time.
+     * @param bounces        The bounce counts of the searches, a round of searches being run for each.
+     * @param downloads      The number of files found that are downloaded.
+     * @param serverMode     The way the peers serve the connections they accept, or null for the seed file.
+     * @param binaryProtocol True for the binary wire protocol, false for the legacy protocol, or null for the seed file.
+     * @param pathCaching    True to cache the files found by the forwarded searches, or null for the seed file.
+     * @param compression    True to download the files compressed, or null for the seed file.
+     * @param timeout        The time in milliseconds after which a search that found nothing is given up.
+     * @param seed           The seed of the draws of the topology and of the searches.
+     */
+    private record Options(int peers, Topology topology, int degree, int files, int fileSize, int queries, int concurrency, int[] bounces, int downloads,
+                           ServerMode serverMode, Boolean binaryProtocol, Boolean pathCaching, Boolean compression, long timeout, long seed) {
+        /**
+         * Parses the options given as name=value arguments, the missing options taking their default value.
+         *
+         * @param args The arguments.
+         * @return The options.
+         * @throws IllegalArgumentException If an argument is unknown or malformed.
+         */
+        static Options parse(String[] args) {
+            Map<String, String> values = new HashMap<>();
+            for (String arg : args) {
+                int equals = arg.indexOf('=');
+                if (equals <= 0)
+                    throw new IllegalArgumentException("Expected name=value, got " + arg);
+                values.put(arg.substring(0, equals), arg.substring(equals + 1));
+            }
+
+            Options options = new Options(
+                    Integer.parseInt(values.getOrDefault("peers", "16")),
+                    Topology.fromName(values.getOrDefault("topology", "ring")),
+                    Integer.parseInt(values.getOrDefault("degree", "4")),
+                    Integer.parseInt(values.getOrDefault("files", "10")),
+                    Integer.parseInt(values.getOrDefault("fileSize", "1048576")),
+                    Integer.parseInt(values.getOrDefault("queries", "200")),
+                    Integer.parseInt(values.getOrDefault("concurrency", "8")),
+                    Arrays.stream(values.getOrDefault("bounces", "1,2,3").split(",")).mapToInt(Integer::parseInt).toArray(),
+                    Integer.parseInt(values.getOrDefault("downloads", "20")),
+                    values.containsKey("mode") ? ServerMode.fromConfiguration(values.get("mode")) : null,
+                    values.containsKey("protocol") ? values.get("protocol").equals("binary") : null,
+                    values.containsKey("pathCache") ? Boolean.parseBoolean(values.get("pathCache")) : null,
+                    values.containsKey("compression") ? Boolean.parseBoolean(values.get("compression")) : null,
+                    Long.parseLong(values.getOrDefault("timeout", "5000")),
+                    Long.parseLong(values.getOrDefault("seed", "42")));
+
+            values.keySet().removeAll(Set.of("peers", "topology", "degree", "files", "fileSize", "queries", "concurrency", "bounces", "downloads",
+                    "mode", "protocol", "pathCache", "compression", "timeout", "seed"));
+            if (!values.isEmpty())
+                throw new IllegalArgumentException("Unknown options " + values.keySet());
+            if (options.peers < 2)
+                throw new IllegalArgumentException("At least 2 peers are needed");
+
+            return options;
+        }
+    }
+
+    /**
+     * A search of a round: the peer starting it and the file it looks for.
+     *
+     * @param origin   The index of the peer starting the search.
+     * @param fileName The name of the file looked for, shared by another peer.
+     */
+    private record Query(int origin, String fileName) {
+    }
+
+    /**
+     * A file found by a search.
+     *
+     * @param origin The index of the peer that found the file.
+     * @param file   The {@link PeerFile} found.
+     */
+    private record Found(int origin, PeerFile file) {
+    }
+
+    /**
+     * The options of the load test.
+     */
+    private final Options options;
+
+    /**
+     * The {@link Random} of the draws of the topology and of the searches.
+     */
+    private final Random random;
+
+    /**
+     * The temporary folder of the peers.
+     */
+    private final Path folder;
+
+    /**
+     * The peers.
+     */
+    private final List<PeerRunner> peers;
+
+    /**
+     * The indexes of the peers by name.
+     */
+    private final Map<String, Integer> indexes;
+
+    /**
+     * The searches already run, so that no peer looks for a file it already found.
+     */
+    private final Set<Query> queried;
+
+    /**
+     * The files found by the searches.
+     */
+    private final List<Found> found;
+
+    /**
+     * Constructs a new {@link LoadTest} with the given options, the peers being started by {@link LoadTest#setUp()}.
+     *
+     * @param options The options of the load test.
+     * @throws IOException If the temporary folder cannot be created.
+     */
+    private LoadTest(Options options) throws IOException {
+        this.options = options;
+        this.random = new Random(options.seed);
+        this.folder = Files.createTempDirectory("jp2p-load");
+        this.peers = new ArrayList<>();
+        this.indexes = new HashMap<>();
+        this.queried = new HashSet<>();
+        this.found = new ArrayList<>();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        LoadTest test = new LoadTest(options);
+        test.setUp();
+        for (int bounces : options.bounces) {
+            test.searches(bounces);
+        }
+        test.downloads();
+        test.deleteFolder();
+
+        // The peers have no way to be stopped, they end with the JVM
+        System.exit(0);
+    }
+
+    /**
+     * Starts the peers with their shared files, waits for the files to be hashed and links the peers.
+     *
+     * @throws IOException  If a peer cannot be started or linked.
+     * @throws SQLException If the database of the hashes cannot be created.
+     */
+    private void setUp() throws IOException, SQLException, InterruptedException {
+        DatabaseConnection.connect("jdbc:sqlite:" + folder.resolve("load.db"));
+        FileHashesTable.createTableIfNotExists();
+
+        PeerSettings seeded = PeerSettings.fromSeed();
+        PeerSettings defaults = new PeerSettings(seeded.name(), InetAddress.getLoopbackAddress().getHostAddress(), 0, options.peers,
+                options.binaryProtocol != null ? options.binaryProtocol : seeded.binaryProtocol(),
+                options.serverMode != null ? options.serverMode : seeded.serverMode(),
+                options.pathCaching != null ? options.pathCaching : seeded.pathCaching(),
+                options.compression != null ? options.compression : seeded.compression(),
+                seeded.uploadLimit(), seeded.downloadLimit(), seeded.peerUploadLimit(), seeded.peerDownloadLimit(), seeded.uploadSlots(), seeded.downloads(),
+                seeded.filesPath(), seeded.downloadsPath(), false);
+        System.out.printf("Starting %d peers in %s, %s topology, %s server, %s protocol, path cache %s, compression %s%n", options.peers, folder,
+                options.topology, defaults.serverMode(), defaults.binaryProtocol() ? "binary" : "legacy", defaults.pathCaching(), defaults.compression());
+
+        byte[] content = new byte[options.fileSize];
+        random.nextBytes(content);
+        for (int i = 0; i < options.peers; i++) {
+            Path files = Files.createDirectories(folder.resolve("peer-" + i).resolve("files"));
+            Path downloads = Files.createDirectories(folder.resolve("peer-" + i).resolve("downloads"));
+            for (int j = 0; j < options.files; j++) {
+                Files.write(files.resolve(fileName(i, j)), content);
+            }
+
+            PeerSettings settings = defaults.withPeer("load-" + i, defaults.address(), 0).withFolders(files + File.separator, downloads + File.separator);
+            PeerRunner peer = new PeerRunner(settings);
+            Thread thread = new Thread(peer, "peer-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            peers.add(peer);
+            indexes.put(settings.name(), i);
+        }
+
+        awaitHashes();
+
+        List<int[]> links = options.topology.links(options.peers, options.degree, random);
+        for (int[] link : links) {
+            PeerRunner a = peers.get(link[0]);
+            PeerRunner b = peers.get(link[1]);
+            try {
+                a.getPeerContainer().addPeer(b.getPeer());
+            } catch (PeerOverflowException e) {
+                throw new IllegalStateException("The peers know at most as many peers as there are", e);
+            }
+            a.sendItsMe(b.getPeer());
+        }
+        System.out.printf("%d links, %d files of %d bytes per peer%n%n", links.size(), options.files, options.fileSize);
+    }
+
+    /**
+     * Waits for every peer to have hashed its shared files, so that the searches find them with their Merkle root.
+     */
+    private void awaitHashes() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + options.timeout * 10;
+        for (int i = 0; i < options.peers; i++) {
+            FolderManger folderManger = peers.get(i).getFilesFolderManager();
+            for (int j = 0; j < options.files; j++) {
+                while (true) {
+                    try {
+                        if (folderManger.getManifest(folderManger.getFile(fileName(i, j))) != null)
+                            break;
+                    } catch (FileNotFoundException ignored) {
+                        // The file is not looked up yet
+                    }
+
+                    if (System.currentTimeMillis() > deadline) {
+                        System.out.println("The shared files are still being hashed, the searches start anyway.");
+                        return;
+                    }
+                    Thread.sleep(POLL_INTERVAL * 10);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs a round of searches with the given bounce count, {@link Options#concurrency} at a time, and prints their latency,
+     * the number of them that found the file and the number of file and voila messages handled by all the peers for each.
+     *
+     * @param bounces The bounce count of the searches.
+     */
+    private void searches(int bounces) throws Exception {
+        List<Query> round = new ArrayList<>(options.queries);
+        for (int attempt = 0; round.size() < options.queries && attempt < options.queries * 10; attempt++) {
+            int origin = random.nextInt(options.peers);
+            int holder = (origin + 1 + random.nextInt(options.peers - 1)) % options.peers;
+            Query query = new Query(origin, fileName(holder, random.nextInt(options.files)));
+            if (queried.add(query))
+                round.add(query);
+        }
+
+        long messagesBefore = messages();
+        ExecutorService pool = Executors.newFixedThreadPool(options.concurrency);
+        List<Future<Long>> results = new ArrayList<>(round.size());
+        long start = System.nanoTime();
+        for (Query query : round) {
+            results.add(pool.submit(() -> search(query, bounces)));
+        }
+
+        long[] latencies = new long[round.size()];
+        int hits = 0;
+        for (Future<Long> result : results) {
+            long latency = result.get();
+            if (latency >= 0)
+                latencies[hits++] = latency;
+        }
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+
+        // The copies of the searches still travelling are counted as well
+        long messages = awaitQuiet() - messagesBefore;
+
+        long[] sorted = Arrays.copyOf(latencies, hits);
+        Arrays.sort(sorted);
+        System.out.printf("Searches with %d bounces: %d run in %.1f s, %d found (%.1f%%)%n", bounces, round.size(), elapsed / 1e9, hits, 100.0 * hits / Math.max(1, round.size()));
+        System.out.printf("  latency ms  p50 %.2f  p90 %.2f  p99 %.2f  max %.2f%n", percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), percentile(sorted, 100));
+        System.out.printf("  messages    %.1f per search (file and voila, all peers)%n%n", (double) messages / Math.max(1, round.size()));
+    }
+
+    /**
+     * Runs a search and waits for its file to be found.
+     *
+     * @param query   The {@link Query}.
+     * @param bounces The bounce count of the search.
+     * @return The time in nanoseconds until the file was found, or -1 if it was not found within {@link Options#timeout}.
+     */
+    private long search(Query query, int bounces) throws IOException, InterruptedException {
+        PeerRunner origin = peers.get(query.origin());
+        long start = System.nanoTime();
+        try {
+            origin.sendFindFile(query.fileName(), bounces);
+        } catch (NoKnownPeersException e) {
+            return -1;
+        }
+
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(options.timeout);
+        while (System.nanoTime() < deadline) {
+            for (PeerFile file : origin.getFilesFoundManager().getFilesFound()) {
+                if (file.getFileName().equals(query.fileName())) {
+                    long latency = System.nanoTime() - start;
+                    synchronized (found) {
+                        found.add(new Found(query.origin(), file));
+                    }
+                    return latency;
+                }
+            }
+            Thread.sleep(POLL_INTERVAL);
+        }
+
+        return -1;
+    }
+
+    /**
+     * Downloads {@link Options#downloads} of the files found at the same time, each peer downloading with its {@link DownloadManager}
+     * from the peer that has the file, and prints the throughput of the downloads.
+     */
+    private void downloads() throws InterruptedException {
+        List<Found> picked = new ArrayList<>(found);
+        Collections.shuffle(picked, random);
+        picked = picked.subList(0, Math.min(options.downloads, picked.size()));
+        if (picked.isEmpty()) {
+            System.out.println("No file was found, nothing to download.");
+            return;
+        }
+
+        long start = System.nanoTime();
+        List<int[]> transfers = new ArrayList<>();
+        for (Found file : picked) {
+            PeerRunner holder = peers.get(indexes.get(file.file().getPeerName()));
+            int id = peers.get(file.origin()).getDownloadManager().submit(file.file(), holder.getPeer(), 0);
+            if (id >= 0)
+                transfers.add(new int[]{file.origin(), id});
+        }
+
+        long bytes = 0;
+        int failed = 0;
+        for (int[] transfer : transfers) {
+            DownloadManager manager = peers.get(transfer[0]).getDownloadManager();
+            DownloadManager.Status status = manager.getTransfer(transfer[1]);
+            while (!status.state().isFinished()) {
+                Thread.sleep(POLL_INTERVAL);
+                status = manager.getTransfer(transfer[1]);
+            }
+
+            if (status.state() == DownloadManager.State.DONE)
+                bytes += status.fileSize();
+            else
+                failed++;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf("Downloads: %d in %.2f s, %d failed%n", transfers.size(), elapsed / 1e9, failed);
+        System.out.printf("  throughput  %.1f MiB/s%n", bytes / 1048576.0 / (elapsed / 1e9));
+    }
+
+    /**
+     * Deletes the files of the temporary folder of the peers.
+     * The empty folders are left, the folders watched by the peers still running cannot be removed without the peers complaining.
+     */
+    private void deleteFolder() throws IOException {
+        try (Stream<Path> paths = Files.walk(folder)) {
+            paths.filter(Files::isRegularFile).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * Waits until no peer handled a file or voila message for {@link LoadTest#QUIET_PERIOD}.
+     *
+     * @return The number of file and voila messages handled by all the peers.
+     */
+    private long awaitQuiet() throws InterruptedException {
+        long messages = messages();
+        while (true) {
+            Thread.sleep(QUIET_PERIOD);
+            long now = messages();
+            if (now == messages)
+                return now;
+            messages = now;
+        }
+    }
+
+    /**
+     * Returns the number of file and voila messages handled by all the peers so far.
+     *
+     * @return The number of messages.
+     */
+    private long messages() {
+        long messages = 0;
+        for (PeerRunner peer : peers) {
+            Map<String, Long> counts = peer.getMetrics().getCommandCounts();
+            messages += counts.getOrDefault(CommandType.FILE.name(), 0L) + counts.getOrDefault(CommandType.VOILA.name(), 0L);
+        }
+
+        return messages;
+    }
+
+    /**
+     * Returns a percentile of sorted durations.
+     *
+     * @param sorted     The durations in nanoseconds, sorted.
+     * @param percentile The percentile, between 0 and 100.
+     * @return The duration in milliseconds, 0 if there is none.
+     */
+    static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0)
+            return 0;
+
+        int rank = (int) Math.ceil(sorted.length * percentile / 100);
+        return sorted[Math.max(0, rank - 1)] / 1e6;
+    }
+
+    /**
+     * Returns the name of a shared file.
+     *
+     * @param peer The index of the peer sharing the file.
+     * @param file The index of the file.
+     * @return The name of the file.
+     */
+    private static String fileName(int peer, int file) {
+        return String.format("load-%03d-%03d.bin", peer, file);
+    }
+}
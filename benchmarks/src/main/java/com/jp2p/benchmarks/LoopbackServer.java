@@ -0,0 +1,102 @@
+package com.jp2p.benchmarks;
+
+import com.jp2p.core.protocol.Message;
+import com.jp2p.core.protocol.ProtocolStream;
+import com.jp2p.core.protocol.WireProtocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A server on the loopback interface that serves every connection on its own thread, negotiating the wire protocol like a peer does
+ * and handing each message received to a {@link Handler}. The accepted sockets are backed by a {@link SocketChannel}, as the ones of a peer.
+ */
+final class LoopbackServer implements Closeable {
+    /**
+     * Handles a message received on a connection.
+     */
+    @FunctionalInterface
+    interface Handler {
+        /**
+         * Handles a message, writing its reply if it has one.
+         *
+         * @param message The {@link Message} received.
+         * @param stream  The {@link ProtocolStream} of the connection.
+         * @throws IOException If the reply cannot be written.
+         */
+        void handle(Message message, ProtocolStream stream) throws IOException;
+    }
+
+    /**
+     * The {@link ServerSocketChannel} on which the connections are accepted.
+     */
+    private final ServerSocketChannel server;
+
+    /**
+     * Starts a server on an ephemeral port of the loopback interface.
+     *
+     * @param handler The {@link Handler} of the messages received.
+     * @throws IOException If the server cannot be bound.
+     */
+    LoopbackServer(Handler handler) throws IOException {
+        this.server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        Thread acceptor = new Thread(() -> {
+            while (server.isOpen()) {
+                try {
+                    Socket socket = server.accept().socket();
+                    Thread thread = new Thread(() -> serve(socket, handler), "loopback-connection");
+                    thread.setDaemon(true);
+                    thread.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }, "loopback-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Opens a connection to the server speaking the given protocol.
+     *
+     * @param binary True for the binary protocol, false for the legacy protocol.
+     * @return The {@link ProtocolStream} of the connection.
+     * @throws IOException If the connection cannot be opened.
+     */
+    ProtocolStream connect(boolean binary) throws IOException {
+        Socket socket = SocketChannel.open(server.getLocalAddress()).socket();
+        socket.setTcpNoDelay(true);
+        return WireProtocol.connect(socket, binary);
+    }
+
+    /**
+     * Serves a connection until it is closed.
+     *
+     * @param socket  The {@link Socket} of the connection.
+     * @param handler The {@link Handler} of the messages received.
+     */
+    private static void serve(Socket socket, Handler handler) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            ProtocolStream stream = WireProtocol.accept(socket);
+            while (true) {
+                Message message = stream.readMessage();
+                if (message != null)
+                    handler.handle(message, stream);
+            }
+        } catch (IOException | IllegalArgumentException ignored) {
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+}
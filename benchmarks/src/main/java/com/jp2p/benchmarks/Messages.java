@@ -0,0 +1,54 @@
+package com.jp2p.benchmarks;
+
+import com.jp2p.core.commands.CommandType;
+import com.jp2p.core.peer.FileQuery;
+import com.jp2p.core.peer.PathCache.CachedFile;
+import com.jp2p.core.protocol.BodyEncoding;
+import com.jp2p.core.protocol.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The messages a peer exchanges most, shared by the protocol benchmarks: the name request, the file search, a voila message of {@link Messages#VOILA_FILES} files and a download request.
+ */
+final class Messages {
+    /**
+     * The number of files of the voila message.
+     */
+    static final int VOILA_FILES = 20;
+
+    private Messages() {
+    }
+
+    /**
+     * Returns a message of the given kind.
+     *
+     * @param kind One of name, file, voila or download.
+     * @return The {@link Message}.
+     */
+    static Message of(String kind) {
+        return switch (kind) {
+            case "name" -> new Message(CommandType.NAME);
+            case "file" -> FileQuery.start("holiday-photos", 3, "192.168.1.20", 45673).toMessage();
+            case "voila" -> voila();
+            case "download" -> new Message(CommandType.DOWNLOAD, "holiday-photos-0042.jpg", 1_048_576L, 1_048_576L, BodyEncoding.DEFLATE, true, "peer-17");
+            default -> throw new IllegalArgumentException("Unknown message " + kind);
+        };
+    }
+
+    /**
+     * Builds a voila message of {@link Messages#VOILA_FILES} files with their Merkle roots.
+     *
+     * @return The voila {@link Message}.
+     */
+    private static Message voila() {
+        List<CachedFile> files = new ArrayList<>(VOILA_FILES);
+        for (int i = 0; i < VOILA_FILES; i++) {
+            files.add(new CachedFile("peer-7", String.format("holiday-photos-%04d.jpg", i), 3_500_000L + i, "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08"));
+        }
+
+        return new Message(CommandType.VOILA, "peer-7", files);
+    }
+
+}
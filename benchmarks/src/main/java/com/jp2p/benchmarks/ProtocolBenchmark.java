@@ -0,0 +1,68 @@
+package com.jp2p.benchmarks;
+
+import com.jp2p.core.protocol.Message;
+import com.jp2p.core.protocol.ProtocolStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks a message sent over a loopback connection and its reply, with the legacy protocol whose Java-serialized command strings are split into their arguments
+ * by the receiving peer, and with the binary protocol.
+ *
+ * @see Messages
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ProtocolBenchmark {
+    @Param({"name", "file", "voila", "download"})
+    public String message;
+
+    @Param({"legacy", "binary"})
+    public String protocol;
+
+    /**
+     * The message sent.
+     */
+    private Message sent;
+
+    /**
+     * The server answering every message with a short reply.
+     */
+    private LoopbackServer server;
+
+    /**
+     * The connection to the server.
+     */
+    private ProtocolStream stream;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        sent = Messages.of(message);
+        server = new LoopbackServer((received, connection) -> connection.writeReply("ok"));
+        stream = server.connect(protocol.equals("binary"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        stream.close();
+        server.close();
+    }
+
+    /**
+     * Sends the message on the loopback connection and reads the reply.
+     *
+     * @return The reply.
+     * @throws IOException If the connection fails.
+     */
+    @Benchmark
+    public String roundTrip() throws IOException {
+        stream.writeMessage(sent);
+        return stream.readReply();
+    }
+}
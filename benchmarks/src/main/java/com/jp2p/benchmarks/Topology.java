@@ -0,0 +1,103 @@
+package com.jp2p.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * The ways the peers of a {@link LoadTest} know each other. Every link is known both ways, as after an it's me message answered by one.
+ */
+public enum Topology {
+    /**
+     * Each peer knows the peer before it and the peer after it.
+     */
+    RING,
+    /**
+     * The peers form a ring, then each peer gets random links until it knows the given number of peers, so that the mesh is connected whatever the draw.
+     */
+    MESH,
+    /**
+     * The first peer knows every other peer, which only know the first peer.
+     */
+    STAR;
+
+    /**
+     * Returns the links between the peers, each link once as the indexes of its two peers.
+     *
+     * @param peers  The number of peers.
+     * @param degree The number of peers each peer knows in a {@link Topology#MESH}, ignored otherwise.
+     * @param random The {@link Random} drawing the links of a {@link Topology#MESH}.
+     * @return The links.
+     */
+    public List<int[]> links(int peers, int degree, Random random) {
+        Set<Long> seen = new HashSet<>();
+        List<int[]> links = new ArrayList<>();
+
+        switch (this) {
+            case RING -> {
+                for (int i = 0; i < peers; i++) {
+                    link(i, (i + 1) % peers, peers, seen, links);
+                }
+            }
+            case MESH -> {
+                int[] known = new int[peers];
+                for (int i = 0; i < peers; i++) {
+                    if (link(i, (i + 1) % peers, peers, seen, links)) {
+                        known[i]++;
+                        known[(i + 1) % peers]++;
+                    }
+                }
+
+                int wanted = Math.min(degree, peers - 1);
+                for (int i = 0; i < peers; i++) {
+                    // The draws are bounded, a peer whose neighbours are all full keeps fewer links
+                    for (int attempt = 0; known[i] < wanted && attempt < peers * 4; attempt++) {
+                        int other = random.nextInt(peers);
+                        if (known[other] < wanted && link(i, other, peers, seen, links)) {
+                            known[i]++;
+                            known[other]++;
+                        }
+                    }
+                }
+            }
+            case STAR -> {
+                for (int i = 1; i < peers; i++) {
+                    link(0, i, peers, seen, links);
+                }
+            }
+        }
+
+        return links;
+    }
+
+    /**
+     * Adds a link between two peers unless they are the same peer or already linked.
+     *
+     * @param a     The index of a peer.
+     * @param b     The index of the other peer.
+     * @param peers The number of peers.
+     * @param seen  The links already added, by their key.
+     * @param links The links.
+     * @return true if the link was added, false otherwise.
+     */
+    private static boolean link(int a, int b, int peers, Set<Long> seen, List<int[]> links) {
+        if (a == b || !seen.add((long) Math.min(a, b) * peers + Math.max(a, b)))
+            return false;
+
+        links.add(new int[]{a, b});
+        return true;
+    }
+
+    /**
+     * Returns the topology of the given name, case-insensitively.
+     *
+     * @param name The name of the topology.
+     * @return The topology.
+     * @throws IllegalArgumentException If no topology has this name.
+     */
+    public static Topology fromName(String name) {
+        return valueOf(name.toUpperCase());
+    }
+}
@@ -0,0 +1,30 @@
+package com.jp2p.core.commands;
+
+/**
+ * Utility methods to read the arguments passed to an {@link ICommand}.
+ * The numeric arguments are {@link Number}s when the message was received with the binary protocol and {@link String}s when it was received with the legacy protocol.
+ */
+public final class Arguments {
+    private Arguments() {
+    }
+
+    /**
+     * Returns the value of an integer argument.
+     *
+     * @param arg The argument, either a {@link Number} or a {@link String}.
+     * @return The value of the argument as an int.
+     */
+    public static int asInt(Object arg) {
+        return arg instanceof Number number ? number.intValue() : Integer.parseInt((String) arg);
+    }
+
+    /**
+     * Returns the value of a long argument.
+     *
+     * @param arg The argument, either a {@link Number} or a {@link String}.
+     * @return The value of the argument as a long.
+     */
+    public static long asLong(Object arg) {
+        return arg instanceof Number number ? number.longValue() : Long.parseLong((String) arg);
+    }
+}
@@ -4,7 +4,6 @@ import com.jp2p.core.peer.Peer;
 import com.jp2p.core.peer.PeerRunner;
 
 import java.io.IOException;
-import java.net.Socket;
 
 
 /**
@@ -17,8 +16,8 @@ public record ByeCommand(PeerRunner peerRunner) implements ICommand {
         boolean deleted = peerRunner.getPeerContainer().removePeer((String) args[0]);
         for (Peer p : peerRunner.getPeerContainer().getPeers()) {
             try {
-                peerRunner.sendBye(new Socket(p.getAddress(), p.getPort()));
-            } catch (IOException | ClassNotFoundException e) {
+                peerRunner.sendBye(p);
+            } catch (IOException e) {
                 e.printStackTrace();
             }
         }
@@ -1,31 +1,45 @@
 package com.jp2p.core.commands;
 
-import java.util.HashMap;
+import com.jp2p.core.metrics.PeerMetrics;
+
+import java.util.EnumMap;
+import java.util.Map;
 
 /**
  * The {@link CommandExecutor} stores a Map of {@link ICommand}s and their {@link CommandType} and executes an {@link ICommand} given its {@link CommandType}.
+ * The time taken by each execution is recorded by the {@link PeerMetrics} of the peer, if any.
+ * The commands are given once when it is created and never change, so that a single {@link CommandExecutor} is shared by all the connections of a peer.
  */
 public class CommandExecutor {
     /**
      * The map of {@link ICommand}s and their {@link CommandType} stored by the {@link CommandExecutor}.
      */
-    private final HashMap<CommandType, ICommand> commandsDictionary;
+    private final EnumMap<CommandType, ICommand> commandsDictionary;
+
+    /**
+     * The {@link PeerMetrics} recording the time taken by the executions, or null if they are not recorded.
+     */
+    private final PeerMetrics metrics;
 
     /**
-     * Creates an empty {@link CommandExecutor}.
+     * Creates a {@link CommandExecutor} holding the given {@link ICommand}s.
+     *
+     * @param commands The {@link ICommand}s by {@link CommandType}, they are copied.
      */
-    public CommandExecutor() {
-        commandsDictionary = new HashMap<>();
+    public CommandExecutor(Map<CommandType, ICommand> commands) {
+        this(commands, null);
     }
 
     /**
-     * Adds an {@link ICommand} to the {@link CommandExecutor#commandsDictionary}.
+     * Creates a {@link CommandExecutor} holding the given {@link ICommand}s and recording the time taken by the executions.
      *
-     * @param type    The {@link CommandType} of the {@link ICommand} to add.
-     * @param command The reference to a class or a record that implements {@link ICommand}.
+     * @param commands The {@link ICommand}s by {@link CommandType}, they are copied.
+     * @param metrics  The {@link PeerMetrics} recording the time taken by the executions, or null to not record them.
      */
-    public void addCommand(CommandType type, ICommand command) {
-        commandsDictionary.put(type, command);
+    public CommandExecutor(Map<CommandType, ICommand> commands, PeerMetrics metrics) {
+        this.commandsDictionary = new EnumMap<>(CommandType.class);
+        this.commandsDictionary.putAll(commands);
+        this.metrics = metrics;
     }
 
     /**
@@ -36,6 +50,14 @@ public class CommandExecutor {
      * @return The result of the {@link ICommand} execution.
      */
     public Object executeCommand(CommandType type, Object... args) {
-        return commandsDictionary.get(type).execute(args);
+        if (metrics == null)
+            return commandsDictionary.get(type).execute(args);
+
+        long start = System.nanoTime();
+        try {
+            return commandsDictionary.get(type).execute(args);
+        } finally {
+            metrics.recordCommand(type, System.nanoTime() - start);
+        }
     }
 }
@@ -2,13 +2,59 @@ package com.jp2p.core.commands;
 
 /**
  * An enumeration of the different types of commands available in the system.
+ * Each type has the opcode that identifies its messages in the binary wire protocol.
  */
 public enum CommandType {
-    NAME,
-    KNOWN_PEERS,
-    ITS_ME,
-    FILE,
-    VOILA,
-    DOWNLOAD,
-    BYE
+    NAME((byte) 0x01),
+    KNOWN_PEERS((byte) 0x02),
+    ITS_ME((byte) 0x03),
+    FILE((byte) 0x04),
+    VOILA((byte) 0x05),
+    DOWNLOAD((byte) 0x06),
+    BYE((byte) 0x07),
+    MANIFEST((byte) 0x08);
+
+    /**
+     * The {@link CommandType}s indexed by their opcode.
+     */
+    private static final CommandType[] BY_OPCODE = new CommandType[128];
+
+    static {
+        for (CommandType type : values()) {
+            BY_OPCODE[type.opcode] = type;
+        }
+    }
+
+    /**
+     * The opcode of the messages of this type in the binary wire protocol.
+     */
+    private final byte opcode;
+
+    /**
+     * Constructs a {@link CommandType} with the given opcode.
+     *
+     * @param opcode The opcode of the messages of this type.
+     */
+    CommandType(byte opcode) {
+        this.opcode = opcode;
+    }
+
+    /**
+     * Returns the opcode of the messages of this type in the binary wire protocol.
+     *
+     * @return The opcode of the messages of this type.
+     */
+    public byte getOpcode() {
+        return opcode;
+    }
+
+    /**
+     * Returns the {@link CommandType} of a given opcode.
+     *
+     * @param opcode The opcode of a message.
+     * @return The {@link CommandType} of the opcode, or null if the opcode is unknown.
+     */
+    public static CommandType fromOpcode(byte opcode) {
+        return opcode >= 0 ? BY_OPCODE[opcode] : null;
+    }
 }
@@ -1,44 +1,197 @@
 package com.jp2p.core.commands;
 
+import com.jp2p.core.file.CompressedBlockCache;
 import com.jp2p.core.file.FolderManger;
+import com.jp2p.core.file.SharedFile;
+import com.jp2p.core.metrics.PeerMetrics;
+import com.jp2p.core.peer.BandwidthLimiter;
+import com.jp2p.core.peer.UploadScheduler;
+import com.jp2p.core.protocol.BodyEncoding;
+import com.jp2p.core.protocol.ReplyStream;
 
-import java.io.*;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * The command to download a file from a remote peer.
  * The implementation of the download message.
- * The message received is in this format: download [file name] [skip bytes]
+ * The message received is in this format: download [file name] [skip bytes] [length] [accepted encoding] [queueing] [peer name]
+ * The length is optional, when it is missing the file is sent from the skipped bytes up to its end. Multi-source downloads use it to request a single range of the file.
+ * The size of the file is written on the {@link ReplyStream} of the connection, the content of the file is then written raw on the channel of the connection
+ * using {@link FileChannel#transferTo(long, long, WritableByteChannel)} so that the bytes go from the disk to the network without being copied in the application.
+ * If the file is not found, the size -1 is written instead.
+ * <p>
+ * When the downloading peer accepts the {@link BodyEncoding#DEFLATE} encoding and the protocol can tell it, the content is sent by blocks compressed through the {@link CompressedBlockCache}
+ * of the folder. A block that does not shrink is sent raw with {@link FileChannel#transferTo(long, long, WritableByteChannel)}, and once {@link DownloadCommand#MAX_INCOMPRESSIBLE_BLOCKS}
+ * blocks in a row did not shrink the rest of the file is sent raw without trying to compress it, since the file is most likely already compressed.
+ * <p>
+ * When the uploads are limited by the {@link BandwidthLimiter}, the content is sent by slices of at most {@link BandwidthLimiter#QUANTUM} bytes, each waiting for its bytes first,
+ * so that the uploads to several peers take turns. The bytes counted are the ones sent on the connection, a compressed block costing its compressed bytes.
+ * <p>
+ * The file is only sent once the {@link UploadScheduler} gave an upload slot to the downloading peer. A peer that said it can wait in the queue is told its position instead
+ * of the size of the file and asks again later, the other peers wait for a slot on the thread serving the download. The downloading peer is identified by the name it sent,
+ * so that the peers behind the same address get their own slot and their own upload limit, or by its address if it did not send it.
+ * The bytes of the file sent are counted for that peer by the {@link PeerMetrics} of the peer once the upload is done.
  */
-@SuppressWarnings("ResultOfMethodCallIgnored")
-public record DownloadCommand(FolderManger fileManager) implements ICommand {
+public record DownloadCommand(FolderManger fileManager, BandwidthLimiter limiter, UploadScheduler scheduler, PeerMetrics metrics) implements ICommand {
+    /**
+     * The number of blocks in a row that don't shrink after which the rest of the file is no longer compressed.
+     */
+    public static final int MAX_INCOMPRESSIBLE_BLOCKS = 4;
+
     @Override
     public Object execute(Object... args) {
         String fileName = (String) args[0];
-        int skipBytes = Integer.parseInt((String) args[1]);
-        ObjectOutputStream out = (ObjectOutputStream) args[2];
+        long skipBytes = Arguments.asLong(args[1]);
+        long length = args[2] != null ? Arguments.asLong(args[2]) : Long.MAX_VALUE;
+        ReplyStream stream = (ReplyStream) args[3];
+        boolean deflate = args.length > 4 && args[4] == BodyEncoding.DEFLATE && stream.supportsBodyEncoding() && fileManager.getCompressedBlockCache() != null;
+        boolean queueing = args.length > 5 && Boolean.TRUE.equals(args[5]);
+        String address = stream.getSocket().getInetAddress().getHostAddress();
+        String peer = args.length > 6 && args[6] != null ? (String) args[6] : address;
+        long sent = 0;
 
         try {
-            File file = fileManager.getFile(fileName);
-            out.writeLong(file.length());
-            out.flush();
-
-            BufferedInputStream stream = fileManager.getAsInStream(fileName);
-            stream.skip(skipBytes);
-            int read;
-            byte[] bytes = new byte[2048];
-
-            while ((read = stream.read(bytes)) > 0) {
-                out.write(bytes, 0, read);
-                out.flush();
+            SharedFile file;
+            try {
+                file = fileManager.getFile(fileName);
+            } catch (FileNotFoundException e) {
+                stream.writeFileSize(ReplyStream.FILE_NOT_FOUND);
+                return "File not found";
+            }
+
+            if (queueing) {
+                int position = scheduler.admit(peer);
+                if (position > 0) {
+                    stream.writeQueuePosition(position);
+                    return "Queued at position " + position;
+                }
+            } else {
+                try {
+                    scheduler.await(peer);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return "Interrupted while waiting for an upload slot";
+                }
             }
 
-            stream.close();
-        } catch (FileNotFoundException e) {
-            return "File not found";
+            try (FileChannel fileChannel = fileManager.getAsChannel(file)) {
+                // The size was read when the file was added to the catalog of the folder, and is kept up to date when the file changes
+                long size = file.size();
+                if (deflate)
+                    stream.writeFileSize(size, BodyEncoding.DEFLATE);
+                else
+                    stream.writeFileSize(size);
+
+                // Sockets accepted by the PeerRunner are backed by a SocketChannel, the stream is only a fallback for plain sockets
+                WritableByteChannel target = stream.getBodyChannel();
+                long position = Math.min(skipBytes, size);
+                long end = position + Math.min(length, size - position);
+
+                if (deflate) {
+                    sendBlocks(file, fileChannel, target, peer, position, end);
+                    sent = end - position;
+                } else {
+                    sent = transfer(fileChannel, target, peer, position, end) - position;
+                }
+            } finally {
+                scheduler.release(peer, sent);
+                metrics.recordBytesOut(peer, sent);
+            }
         } catch (IOException e) {
             return "Error reading file";
         }
 
         return "done";
     }
+
+    /**
+     * Sends a part of a file raw, from the disk to the network.
+     *
+     * @param fileChannel The {@link FileChannel} of the file.
+     * @param target      The channel of the connection.
+     * @param peer        The name of the peer downloading the file, or its address if it did not send its name.
+     * @param position    The position of the first byte to send.
+     * @param end         The position after the last byte to send.
+     * @return The position after the last byte sent, before the end if the file was truncated while being sent.
+     * @throws IOException If the file cannot be read or the connection fails.
+     */
+    private long transfer(FileChannel fileChannel, WritableByteChannel target, String peer, long position, long end) throws IOException {
+        boolean limited = limiter.limitsUploads();
+
+        while (position < end) {
+            long count = end - position;
+            if (limited) {
+                count = Math.min(count, BandwidthLimiter.QUANTUM);
+                limiter.acquireUpload(peer, count);
+            }
+
+            long sent = fileChannel.transferTo(position, count, target);
+            if (sent <= 0) {
+                // The file was truncated while being sent
+                break;
+            }
+            position += sent;
+        }
+
+        return position;
+    }
+
+    /**
+     * Sends a part of a file by blocks, each compressed if it shrinks and raw otherwise.
+     * The first block ends at the next multiple of {@link BodyEncoding#BLOCK_SIZE} so that the next blocks are the ones kept by the {@link CompressedBlockCache}.
+     *
+     * @param file        The {@link SharedFile} sent.
+     * @param fileChannel The {@link FileChannel} of the file.
+     * @param target      The channel of the connection.
+     * @param peer        The name of the peer downloading the file, or its address if it did not send its name.
+     * @param position    The position of the first byte to send.
+     * @param end         The position after the last byte to send.
+     * @throws IOException If the file cannot be read or the connection fails.
+     */
+    private void sendBlocks(SharedFile file, FileChannel fileChannel, WritableByteChannel target, String peer, long position, long end) throws IOException {
+        CompressedBlockCache cache = fileManager.getCompressedBlockCache();
+        ByteBuffer header = ByteBuffer.allocate(BodyEncoding.BLOCK_HEADER_LENGTH);
+        int incompressible = 0;
+
+        while (position < end) {
+            int length = (int) Math.min(end - position, BodyEncoding.BLOCK_SIZE - position % BodyEncoding.BLOCK_SIZE);
+            byte[] compressed = incompressible < MAX_INCOMPRESSIBLE_BLOCKS ? cache.compress(file, fileChannel, position, length) : null;
+            incompressible = compressed == null ? incompressible + 1 : 0;
+
+            header.clear();
+            header.put(compressed != null ? BodyEncoding.DEFLATE.getCode() : BodyEncoding.RAW.getCode());
+            header.putInt(length);
+            header.putInt(compressed != null ? compressed.length : length);
+
+            if (compressed != null) {
+                if (limiter.limitsUploads())
+                    limiter.acquireUpload(peer, header.position() + compressed.length);
+                writeFully(target, header.flip());
+                writeFully(target, ByteBuffer.wrap(compressed));
+            } else {
+                writeFully(target, header.flip());
+                if (transfer(fileChannel, target, peer, position, position + length) < position + length)
+                    throw new IOException("The file was truncated while being sent.");
+            }
+
+            position += length;
+        }
+    }
+
+    /**
+     * Writes a whole buffer on a channel.
+     *
+     * @param target The channel of the connection.
+     * @param buffer The buffer to write.
+     * @throws IOException If the connection fails.
+     */
+    private static void writeFully(WritableByteChannel target, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
 }
@@ -1,38 +1,69 @@
 package com.jp2p.core.commands;
 
 import com.jp2p.core.exceptions.NoKnownPeersException;
+import com.jp2p.core.file.SharedFile;
+import com.jp2p.core.peer.FileQuery;
+import com.jp2p.core.peer.PathCache;
+import com.jp2p.core.peer.PathCache.CachedFile;
+import com.jp2p.core.peer.Peer;
 import com.jp2p.core.peer.PeerRunner;
 
-import java.io.File;
-import java.net.Socket;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * The command to look for a file in the network of peers.
  * The implementation of the file message.
+ * A search already handled by this peer is dropped before the shared folder is scanned, so that the searches flooded through the cycles of the network are handled once per peer.
+ * The searches received from the peers that don't identify them are always handled.
+ * <p>
+ * When the peer caches the paths, a search whose files were found recently through this peer is answered from its {@link PathCache} instead of being forwarded again.
  */
 public record FileCommand(PeerRunner peerRunner) implements ICommand {
     @Override
     public Object execute(Object... args) {
-        String fileName = (String) args[0];
-        int bounces = Integer.parseInt((String) args[1]);
-        int outputPort = Integer.parseInt((String) args[2]);
-        String outputAddress = (String) args[3];
+        return execute((FileQuery) args[0]);
+    }
+
+    /**
+     * Handles a search received from another peer.
+     *
+     * @param query The {@link FileQuery} carried by the file message.
+     * @return "failed" if the search has no bounce left, "done" otherwise.
+     */
+    public String execute(FileQuery query) {
+        if (query.bounces() <= 0)
+            return "failed";
+
+        if (query.id() != FileQuery.NO_ID && !peerRunner.getSeenQueries().markSeen(query.id()))
+            return "done";
 
         try {
-            if (bounces > 0) {
-                ArrayList<File> files = peerRunner.getFilesFolderManager().getFiles(fileName);
+            ArrayList<SharedFile> files = peerRunner.getFilesFolderManager().getFiles(query.fileName());
+            Peer origin = new Peer(String.format("%s:%s", query.originAddress(), query.originPort()), query.originAddress(), query.originPort());
 
-                if (!files.isEmpty()) {
-                    peerRunner.sendVoila(new Socket(outputAddress, outputPort), files);
-                    return "done";
+            if (!files.isEmpty()) {
+                peerRunner.sendVoila(origin, files);
+                return "done";
+            }
+
+            PathCache pathCache = peerRunner.getPathCache();
+            List<CachedFile> cached = pathCache != null ? pathCache.lookup(query.fileName()) : List.of();
+            if (!cached.isEmpty()) {
+                Map<String, List<CachedFile>> byPeer = new LinkedHashMap<>();
+                for (CachedFile file : cached) {
+                    byPeer.computeIfAbsent(file.peerName(), k -> new ArrayList<>()).add(file);
                 }
 
-                bounces--;
-                peerRunner.sendFindFile(fileName, bounces);
-            } else {
-                return "failed";
+                for (Map.Entry<String, List<CachedFile>> entry : byPeer.entrySet()) {
+                    peerRunner.sendVoila(origin, entry.getKey(), entry.getValue());
+                }
+                return "done";
             }
+
+            peerRunner.forwardFindFile(query);
         } catch (Exception | NoKnownPeersException ignored) {
             // ignored, we don't care because it will be handled by the caller
         }
@@ -3,6 +3,8 @@ package com.jp2p.core.commands;
 import com.jp2p.core.peer.Peer;
 import com.jp2p.core.peer.PeerContainer;
 
+import java.util.List;
+
 /**
  * The command to ask a given peer to send its list of known peers.
  * The implementation of the known peers message.
@@ -12,14 +14,16 @@ public record KnownPeersCommand(PeerContainer peerContainer) implements ICommand
     @Override
     public Object execute(Object... args) {
         StringBuilder builder = new StringBuilder();
+        // A single snapshot so that the count and the list match even if peers come and go meanwhile
+        List<Peer> peers = peerContainer.getPeers();
 
-        if (peerContainer.getPeers().isEmpty()) {
+        if (peers.isEmpty()) {
             return "I have no known peers";
         }
 
-        builder.append(String.format("I know %s peers :\n", peerContainer.getPeers().size()));
+        builder.append(String.format("I know %s peers :\n", peers.size()));
         builder.append("Name \tAddress \tPort \n");
-        for (Peer p : peerContainer.getPeers()) {
+        for (Peer p : peers) {
             builder.append(String.format("%s \t%s \t%s\n", p.getName(), p.getAddress(), p.getPort()));
         }
 
@@ -0,0 +1,40 @@
+package com.jp2p.core.commands;
+
+import com.jp2p.core.file.ChunkManifest;
+import com.jp2p.core.file.FolderManger;
+import com.jp2p.core.file.SharedFile;
+
+import java.io.FileNotFoundException;
+
+/**
+ * The command to get the chunk hashes of a shared file, to verify the chunks of a download as they are received.
+ * The implementation of the manifest message.
+ * The message received is in this format: manifest [file name] [merkle root] [first chunk] [number of chunks]
+ * The hashes are replied as an hexadecimal {@link String}, by pages of at most {@link ManifestCommand#MAX_CHUNKS} chunks so that the reply of a very large file fits in a frame.
+ * An empty reply is sent if the file is not found, not hashed yet, or if its Merkle root is not the requested one because the file changed since it was advertised.
+ */
+public record ManifestCommand(FolderManger fileManager) implements ICommand {
+    /**
+     * The maximum number of chunk hashes sent in a reply.
+     */
+    public static final int MAX_CHUNKS = 4096;
+
+    @Override
+    public Object execute(Object... args) {
+        String fileName = (String) args[0];
+        String root = (String) args[1];
+        int first = Arguments.asInt(args[2]);
+        int count = Math.min(Arguments.asInt(args[3]), MAX_CHUNKS);
+
+        try {
+            SharedFile file = fileManager.getFile(fileName);
+            ChunkManifest manifest = fileManager.getManifest(file);
+            if (manifest == null || first < 0 || count < 0 || !manifest.getRootHex().equals(root))
+                return "";
+
+            return manifest.getHashesHex(first, count);
+        } catch (FileNotFoundException e) {
+            return "";
+        }
+    }
+}
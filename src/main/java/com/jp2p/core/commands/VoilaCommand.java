@@ -1,27 +1,71 @@
 package com.jp2p.core.commands;
 
+import com.jp2p.core.file.ChunkManifest;
 import com.jp2p.core.file.FileManager;
 import com.jp2p.core.file.PeerFile;
+import com.jp2p.core.peer.PathCache;
+import com.jp2p.core.peer.PathCache.CachedFile;
+import com.jp2p.core.peer.PeerRunner;
+
+import java.io.IOException;
+import java.util.List;
 
 /**
  * The command to add a file and the peer that has it to the list of files discovered in the network (To be downloaded later).
  * The implementation of the voila message.
- * The voila message receives the message in this format : [peer name] [number of files found] [file name 1] [file size1] [file name 2] [file size2]...
+ * The voila message receives the message in this format : [peer name] [number of files found] [file name 1] [file size1] [file name 2] [file size2]... [root 1] [root 2]...
+ * The Merkle roots of the files come after all the names and sizes so that the peers that don't know them ignore them, they are missing when the message comes from such a peer.
+ * A root is {@link ChunkManifest#NO_ROOT} when the file was not hashed yet by the peer that has it.
+ * The message is read into the name of the peer and its {@link CachedFile}s by the protocol, so the command receives them typed.
+ * <p>
+ * When the peer caches the paths, the files found by the searches it forwarded are cached and relayed to the peers that sent it the searches,
+ * and only the files found by its own searches are added to its {@link FileManager}.
+ *
+ * @see PathCache
  */
-public record VoilaCommand(FileManager fileManager) implements ICommand {
+public record VoilaCommand(PeerRunner peerRunner) implements ICommand {
     @Override
+    @SuppressWarnings("unchecked")
     public Object execute(Object... args) {
-        String peerName = (String) args[0];
-        int numberOfFilesFound = Integer.parseInt((String) args[1]);
+        return execute((String) args[0], (List<CachedFile>) args[1]);
+    }
+
+    /**
+     * Handles the files found on a peer, read from the voila message by the {@link com.jp2p.core.protocol.ProtocolStream}.
+     *
+     * @param peerName The name of the peer that has the files.
+     * @param files    The files found, their root being null when the peer did not hash them yet.
+     * @return "done".
+     */
+    public String execute(String peerName, List<CachedFile> files) {
+        PathCache pathCache = peerRunner.getPathCache();
+        if (pathCache == null) {
+            addFiles(files);
+            return "done";
+        }
 
-        // Since the format is [peer name] [number of files found] [file name 1] [file size1} [file name 2] [file size2]...
-        // For each file I need to read the name and the size there for the step is 2 and there are total of 2 * args (after the removal of the peer name and the number of files found)
-        for (int i = 0; i < numberOfFilesFound * 2; i += 2) {
-            String fileName = (String) args[i + 2];
-            int fileSize = Integer.parseInt((String) args[i + 3]);
-            fileManager.addFile(new PeerFile(peerName, fileName, fileSize));
+        PathCache.Routes routes = pathCache.observe(files);
+        addFiles(routes.local());
+        for (PathCache.Relay relay : routes.relayed()) {
+            try {
+                peerRunner.sendVoila(relay.origin(), peerName, relay.files());
+            } catch (IOException ignored) {
+                // The peer that sent the search left, the files stay cached for the next one
+            }
         }
 
         return "done";
     }
+
+    /**
+     * Adds files to the files found by this peer.
+     *
+     * @param files The files found.
+     */
+    private void addFiles(List<CachedFile> files) {
+        FileManager fileManager = peerRunner.getFilesFoundManager();
+        for (CachedFile file : files) {
+            fileManager.addFile(new PeerFile(file.peerName(), file.fileName(), file.fileSize(), file.root()));
+        }
+    }
 }
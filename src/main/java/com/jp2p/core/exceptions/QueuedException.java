@@ -0,0 +1,33 @@
+package com.jp2p.core.exceptions;
+
+import java.io.IOException;
+
+/**
+ * This exception is thrown when a peer answers a download message with a position in its queue of uploads instead of the file.
+ * The download can be asked again later on the same connection, since no content follows the position.
+ */
+public class QueuedException extends IOException {
+    /**
+     * The position in the queue, starting at 1.
+     */
+    private final int position;
+
+    /**
+     * Constructs a new {@link QueuedException}.
+     *
+     * @param position The position in the queue, starting at 1.
+     */
+    public QueuedException(int position) {
+        super("Queued at position " + position);
+        this.position = position;
+    }
+
+    /**
+     * Returns the position in the queue.
+     *
+     * @return The position in the queue, starting at 1.
+     */
+    public int getPosition() {
+        return position;
+    }
+}
@@ -0,0 +1,199 @@
+package com.jp2p.core.file;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+/**
+ * The hashes of the chunks of a file, used to verify each chunk of a download as soon as it is received and to download again only the chunks that are corrupted.
+ * A file is split in chunks of {@link ChunkManifest#CHUNK_SIZE} bytes, the last one being shorter, each hashed with {@link ChunkManifest#HASH_ALGORITHM}.
+ * The chunk hashes are the leaves of a Merkle tree whose root identifies the content of the whole file, it is advertised in the voila message
+ * so that the manifest fetched from any peer can be checked against it.
+ * <p>
+ * A node of the tree is the hash of the concatenation of its two children, a node without a sibling is moved up a level unchanged.
+ * The root of an empty file is the hash of no bytes.
+ */
+public class ChunkManifest {
+    /**
+     * The size in bytes of the chunks the files are split in.
+     */
+    public static final int CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * The algorithm used to hash the chunks and the nodes of the Merkle tree.
+     */
+    public static final String HASH_ALGORITHM = "SHA-256";
+
+    /**
+     * The length in bytes of a hash.
+     */
+    public static final int HASH_LENGTH = 32;
+
+    /**
+     * The value sent in place of a Merkle root for the files that are not hashed yet.
+     */
+    public static final String NO_ROOT = "-";
+
+    /**
+     * The hashes of the chunks, one after the other.
+     */
+    private final byte[] hashes;
+
+    /**
+     * The Merkle root of the chunk hashes.
+     */
+    private final byte[] root;
+
+    /**
+     * Constructs a new {@link ChunkManifest} from the hashes of the chunks of a file.
+     *
+     * @param hashes The hashes of the chunks, one after the other.
+     * @throws IllegalArgumentException If the length of the hashes is not a multiple of {@link ChunkManifest#HASH_LENGTH}.
+     */
+    public ChunkManifest(byte[] hashes) throws IllegalArgumentException {
+        if (hashes.length % HASH_LENGTH != 0)
+            throw new IllegalArgumentException("Truncated chunk hashes.");
+
+        this.hashes = hashes;
+        this.root = merkleRoot(hashes);
+    }
+
+    /**
+     * Returns the number of chunks of a file.
+     *
+     * @param size The size of the file in bytes.
+     * @return The number of chunks of the file.
+     */
+    public static int chunkCount(long size) {
+        return (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    /**
+     * Returns the number of chunks of the file.
+     *
+     * @return The number of chunks of the file.
+     */
+    public int getChunkCount() {
+        return hashes.length / HASH_LENGTH;
+    }
+
+    /**
+     * Returns the hashes of the chunks, one after the other.
+     *
+     * @return A copy of the hashes of the chunks.
+     */
+    public byte[] getHashes() {
+        return hashes.clone();
+    }
+
+    /**
+     * Returns the hashes of a range of chunks as an hexadecimal {@link String}.
+     *
+     * @param first The index of the first chunk.
+     * @param count The maximum number of chunks.
+     * @return The hexadecimal hashes of the chunks, shorter if the range goes past the last chunk.
+     */
+    public String getHashesHex(int first, int count) {
+        int from = Math.min(first, getChunkCount()) * HASH_LENGTH;
+        int to = (int) Math.min((long) first + count, getChunkCount()) * HASH_LENGTH;
+        return HexFormat.of().formatHex(hashes, from, Math.max(from, to));
+    }
+
+    /**
+     * Returns the Merkle root of the file as an hexadecimal {@link String}.
+     *
+     * @return The hexadecimal Merkle root.
+     */
+    public String getRootHex() {
+        return HexFormat.of().formatHex(root);
+    }
+
+    /**
+     * Checks the hash of a chunk.
+     *
+     * @param chunk The index of the chunk.
+     * @param hash  The hash of the bytes received for the chunk.
+     * @return True if the hash is the one of the chunk.
+     */
+    public boolean verify(int chunk, byte[] hash) {
+        return chunk >= 0 && chunk < getChunkCount()
+               && Arrays.equals(hashes, chunk * HASH_LENGTH, (chunk + 1) * HASH_LENGTH, hash, 0, hash.length);
+    }
+
+    /**
+     * Returns a new {@link MessageDigest} of the {@link ChunkManifest#HASH_ALGORITHM}.
+     *
+     * @return The new {@link MessageDigest}.
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads and hashes a chunk of a file.
+     *
+     * @param channel The {@link FileChannel} of the file, read at the position of the chunk without moving its position.
+     * @param chunk   The index of the chunk.
+     * @param size    The size of the file in bytes.
+     * @param buffer  A buffer of at least {@link ChunkManifest#CHUNK_SIZE} bytes.
+     * @param digest  The {@link MessageDigest} to use.
+     * @return The hash of the chunk.
+     * @throws IOException If the chunk cannot be read, or the file is shorter than its size.
+     */
+    public static byte[] hashChunk(FileChannel channel, int chunk, long size, ByteBuffer buffer, MessageDigest digest) throws IOException {
+        long position = (long) chunk * CHUNK_SIZE;
+        buffer.clear().limit((int) Math.min(CHUNK_SIZE, size - position));
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("The file is shorter than " + size + " bytes.");
+        }
+
+        buffer.flip();
+        digest.reset();
+        digest.update(buffer);
+        return digest.digest();
+    }
+
+    /**
+     * Computes the Merkle root of chunk hashes.
+     *
+     * @param hashes The hashes of the chunks, one after the other.
+     * @return The Merkle root.
+     */
+    private static byte[] merkleRoot(byte[] hashes) {
+        MessageDigest digest = newDigest();
+        if (hashes.length == 0)
+            return digest.digest();
+
+        byte[] level = hashes;
+        while (level.length > HASH_LENGTH) {
+            int nodes = level.length / HASH_LENGTH;
+            byte[] parents = new byte[(nodes + 1) / 2 * HASH_LENGTH];
+
+            for (int i = 0; i < nodes; i += 2) {
+                if (i + 1 == nodes) {
+                    System.arraycopy(level, i * HASH_LENGTH, parents, i / 2 * HASH_LENGTH, HASH_LENGTH);
+                    break;
+                }
+
+                digest.update(level, i * HASH_LENGTH, 2 * HASH_LENGTH);
+                System.arraycopy(digest.digest(), 0, parents, i / 2 * HASH_LENGTH, HASH_LENGTH);
+            }
+
+            level = parents;
+        }
+
+        return level;
+    }
+}
@@ -0,0 +1,173 @@
+package com.jp2p.core.file;
+
+import com.jp2p.core.protocol.BodyEncoding;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the blocks of the shared files sent with the {@link BodyEncoding#DEFLATE} encoding, and keeps the compressed blocks of the files downloaded often.
+ * The blocks aligned on the multiples of {@link BodyEncoding#BLOCK_SIZE} are cached by file version and position, at most about {@link CompressedBlockCache#MAX_BYTES} bytes of them,
+ * the least recently used ones being evicted first. The blocks that don't shrink are remembered too, so that they are not compressed again in vain.
+ * A block is cached for a version of a file, identified by its size and its modification time, so a changed file is never sent from the blocks of its previous version.
+ * <p>
+ * The {@link Deflater} and the buffers are kept per thread, each download being sent by its own thread.
+ */
+public class CompressedBlockCache {
+    /**
+     * The maximum number of bytes of compressed blocks kept.
+     */
+    public static final long MAX_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * The number of bytes counted for each cached block on top of its compressed bytes, so that the blocks that don't shrink are bounded too.
+     */
+    public static final int ENTRY_OVERHEAD = 64;
+
+    /**
+     * The compression level, the fastest one since the blocks missing from the cache are compressed on the thread sending them while the downloading peer waits.
+     * It still shrinks the text files most of what the default level does, at several times its speed.
+     */
+    public static final int LEVEL = Deflater.BEST_SPEED;
+
+    /**
+     * Cached in place of the compressed bytes of a block that does not shrink.
+     */
+    private static final byte[] INCOMPRESSIBLE = new byte[0];
+
+    /**
+     * The {@link Deflater} of each thread, reset for every block.
+     */
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(LEVEL));
+
+    /**
+     * The buffer of each thread holding the bytes of the block read from the file.
+     */
+    private static final ThreadLocal<byte[]> RAW_BUFFERS = ThreadLocal.withInitial(() -> new byte[BodyEncoding.BLOCK_SIZE]);
+
+    /**
+     * The buffer of each thread holding the compressed bytes of the block, a block is only sent compressed if it fits in less than the bytes of the file it holds.
+     */
+    private static final ThreadLocal<byte[]> COMPRESSED_BUFFERS = ThreadLocal.withInitial(() -> new byte[BodyEncoding.BLOCK_SIZE]);
+
+    /**
+     * The key of a cached block.
+     *
+     * @param name         The name of the file.
+     * @param size         The size of the file.
+     * @param lastModified The modification time of the file.
+     * @param position     The position of the block in the file.
+     */
+    private record Key(String name, long size, long lastModified, long position) {
+    }
+
+    /**
+     * The compressed blocks, the least recently used first.
+     */
+    private final LinkedHashMap<Key, byte[]> blocks;
+
+    /**
+     * The number of bytes of compressed blocks kept.
+     */
+    private long bytes;
+
+    /**
+     * Constructs a new empty {@link CompressedBlockCache}.
+     */
+    public CompressedBlockCache() {
+        this.blocks = new LinkedHashMap<>(16, 0.75f, true);
+        this.bytes = 0;
+    }
+
+    /**
+     * Returns the compressed bytes of a block of a file, compressing it if it is not cached.
+     *
+     * @param file     The {@link SharedFile} the block belongs to.
+     * @param channel  The {@link FileChannel} of the file, read if the block is not cached.
+     * @param position The position of the block in the file.
+     * @param length   The number of bytes of the block, at most {@link BodyEncoding#BLOCK_SIZE}.
+     * @return The compressed bytes of the block, or null if the block does not shrink once compressed and must be sent raw.
+     * @throws IOException If the file cannot be read.
+     */
+    public byte[] compress(SharedFile file, FileChannel channel, long position, int length) throws IOException {
+        // Only whole blocks are cached, the first block of a download resumed in the middle of a block is not requested again
+        boolean cacheable = position % BodyEncoding.BLOCK_SIZE == 0 && (length == BodyEncoding.BLOCK_SIZE || position + length == file.size());
+        Key key = new Key(file.name(), file.size(), file.lastModified(), position);
+
+        if (cacheable) {
+            byte[] cached = get(key);
+            if (cached != null)
+                return cached == INCOMPRESSIBLE ? null : cached;
+        }
+
+        byte[] raw = RAW_BUFFERS.get();
+        ByteBuffer buffer = ByteBuffer.wrap(raw, 0, length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("The file was truncated while being sent.");
+        }
+
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(raw, 0, length);
+        deflater.finish();
+
+        // The output is limited to one byte less than the input, a block that does not fit does not shrink
+        byte[] compressed = COMPRESSED_BUFFERS.get();
+        int compressedLength = 0;
+        while (!deflater.finished() && compressedLength < length - 1) {
+            compressedLength += deflater.deflate(compressed, compressedLength, length - 1 - compressedLength);
+        }
+
+        byte[] result = deflater.finished() ? Arrays.copyOf(compressed, compressedLength) : null;
+        if (cacheable)
+            put(key, result == null ? INCOMPRESSIBLE : result);
+
+        return result;
+    }
+
+    /**
+     * Returns the number of bytes of compressed blocks kept, including the {@link CompressedBlockCache#ENTRY_OVERHEAD} of each block.
+     *
+     * @return The number of bytes cached.
+     */
+    public synchronized long size() {
+        return bytes;
+    }
+
+    /**
+     * Returns a cached block and marks it as the most recently used.
+     *
+     * @param key The key of the block.
+     * @return The compressed bytes of the block, {@link CompressedBlockCache#INCOMPRESSIBLE} if it does not shrink, or null if it is not cached.
+     */
+    private synchronized byte[] get(Key key) {
+        return blocks.get(key);
+    }
+
+    /**
+     * Caches a block, evicting the least recently used blocks until the cache holds at most {@link CompressedBlockCache#MAX_BYTES} bytes.
+     *
+     * @param key        The key of the block.
+     * @param compressed The compressed bytes of the block, or {@link CompressedBlockCache#INCOMPRESSIBLE}.
+     */
+    private synchronized void put(Key key, byte[] compressed) {
+        byte[] previous = blocks.put(key, compressed);
+        if (previous != null)
+            bytes -= previous.length + ENTRY_OVERHEAD;
+        bytes += compressed.length + ENTRY_OVERHEAD;
+
+        Iterator<Map.Entry<Key, byte[]>> eldest = blocks.entrySet().iterator();
+        while (bytes > MAX_BYTES && eldest.hasNext()) {
+            bytes -= eldest.next().getValue().length + ENTRY_OVERHEAD;
+            eldest.remove();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.jp2p.core.file;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable index of the names of the {@link SharedFile}s of a folder, so that a search doesn't scan every name of the folder.
+ * The exact names are looked up in a hash map, and the substrings of the names through the trigrams (the sequences of 3 characters) they contain:
+ * for each trigram the index keeps the sorted list of the files whose name contains it, and a search only checks the files of the rarest trigram of the search criteria.
+ * <p>
+ * The index is never modified once built, so it can be read by any number of threads without locking while a new index is built to replace it.
+ * The changes of the folder are applied with {@link FileIndex#withChanges(Map)}, which shares the trigram index with the new index and only copies the changes made since it was built,
+ * the trigram index being built again once the changes are more than {@link FileIndex#MAX_CHANGES_RATIO} of the files.
+ */
+public final class FileIndex {
+    /**
+     * The length of the sequences of characters indexed. The searches shorter than this scan every name.
+     */
+    public static final int GRAM_LENGTH = 3;
+
+    /**
+     * The part of the files that can be changed before the trigram index is built again.
+     */
+    public static final double MAX_CHANGES_RATIO = 0.125;
+
+    /**
+     * The number of changes always allowed before the trigram index is built again, whatever the number of files.
+     */
+    public static final int MIN_MAX_CHANGES = 1024;
+
+    /**
+     * An index of no files.
+     */
+    public static final FileIndex EMPTY = new FileIndex(new SharedFile[0]);
+
+    /**
+     * The {@link SharedFile}s of the trigram index, the position of a file being its identifier in the posting lists.
+     */
+    private final SharedFile[] files;
+
+    /**
+     * The {@link SharedFile}s of the trigram index by their exact name.
+     */
+    private final Map<String, SharedFile> byName;
+
+    /**
+     * The sorted identifiers of the files whose name contains each trigram, by trigram.
+     *
+     * @see FileIndex#trigram(String, int)
+     */
+    private final Map<Long, int[]> postings;
+
+    /**
+     * The files added, changed or removed since the trigram index was built, by name. A removed file is mapped to null.
+     * They take precedence over the files of the trigram index with the same name.
+     */
+    private final Map<String, SharedFile> changes;
+
+    /**
+     * Builds the index of the given {@link SharedFile}s.
+     *
+     * @param files The {@link SharedFile}s to index.
+     */
+    public FileIndex(SharedFile[] files) {
+        this.files = files.clone();
+        this.byName = new HashMap<>(files.length * 2);
+        this.postings = new HashMap<>();
+        this.changes = Collections.emptyMap();
+
+        // Each posting list is grown as needed, its first cell holding its size until it is trimmed
+        for (int id = 0; id < files.length; id++) {
+            String name = files[id].name();
+            byName.put(name, files[id]);
+
+            for (int i = 0; i + GRAM_LENGTH <= name.length(); i++) {
+                long trigram = trigram(name, i);
+                int[] posting = postings.get(trigram);
+                if (posting == null) {
+                    posting = new int[4];
+                    postings.put(trigram, posting);
+                }
+
+                int size = posting[0];
+                if (size > 0 && posting[size] == id)
+                    continue; // the trigram appears several times in the name
+
+                if (size + 1 == posting.length) {
+                    posting = Arrays.copyOf(posting, posting.length * 2);
+                    postings.put(trigram, posting);
+                }
+
+                posting[size + 1] = id;
+                posting[0] = size + 1;
+            }
+        }
+
+        postings.replaceAll((trigram, posting) -> Arrays.copyOfRange(posting, 1, posting[0] + 1));
+    }
+
+    /**
+     * Constructs an index sharing the trigram index of another one, with other changes.
+     *
+     * @param index   The index whose trigram index is shared.
+     * @param changes The changes made since the trigram index was built.
+     */
+    private FileIndex(FileIndex index, Map<String, SharedFile> changes) {
+        this.files = index.files;
+        this.byName = index.byName;
+        this.postings = index.postings;
+        this.changes = changes;
+    }
+
+    /**
+     * Returns a new index with the given changes applied.
+     *
+     * @param changed The files added or changed by name, the removed files being mapped to null.
+     * @return The new index.
+     */
+    public FileIndex withChanges(Map<String, SharedFile> changed) {
+        Map<String, SharedFile> merged = new HashMap<>(changes);
+        merged.putAll(changed);
+
+        FileIndex index = new FileIndex(this, merged);
+        if (merged.size() > Math.max(MIN_MAX_CHANGES, files.length * MAX_CHANGES_RATIO))
+            return new FileIndex(index.getFiles().toArray(new SharedFile[0]));
+
+        return index;
+    }
+
+    /**
+     * Returns the indexed {@link SharedFile} with the exact given name.
+     *
+     * @param name The name of the file.
+     * @return The {@link SharedFile}, or null if no file has this name.
+     */
+    public SharedFile get(String name) {
+        if (changes.containsKey(name))
+            return changes.get(name);
+
+        return byName.get(name);
+    }
+
+    /**
+     * Returns the indexed {@link SharedFile}s whose name contains the search criteria.
+     *
+     * @param match The search criteria.
+     * @return The {@link SharedFile}s whose name contains the search criteria.
+     */
+    public ArrayList<SharedFile> search(String match) {
+        ArrayList<SharedFile> res = new ArrayList<>();
+
+        if (match.length() < GRAM_LENGTH) {
+            for (SharedFile file : files) {
+                if (file.name().contains(match) && !changes.containsKey(file.name()))
+                    res.add(file);
+            }
+        } else {
+            // A name containing the criteria contains all its trigrams, so only the files of the rarest one are candidates
+            int[] candidates = null;
+            for (int i = 0; i + GRAM_LENGTH <= match.length(); i++) {
+                int[] posting = postings.get(trigram(match, i));
+                if (posting == null) {
+                    candidates = new int[0];
+                    break;
+                }
+
+                if (candidates == null || posting.length < candidates.length)
+                    candidates = posting;
+            }
+
+            for (int id : candidates) {
+                if (files[id].name().contains(match) && !changes.containsKey(files[id].name()))
+                    res.add(files[id]);
+            }
+        }
+
+        for (SharedFile file : changes.values()) {
+            if (file != null && file.name().contains(match))
+                res.add(file);
+        }
+
+        return res;
+    }
+
+    /**
+     * Returns all the indexed {@link SharedFile}s.
+     *
+     * @return The indexed {@link SharedFile}s.
+     */
+    public ArrayList<SharedFile> getFiles() {
+        ArrayList<SharedFile> res = new ArrayList<>(files.length + changes.size());
+
+        for (SharedFile file : files) {
+            if (!changes.containsKey(file.name()))
+                res.add(file);
+        }
+
+        for (SharedFile file : changes.values()) {
+            if (file != null)
+                res.add(file);
+        }
+
+        return res;
+    }
+
+    /**
+     * Packs the 3 characters of a {@link String} starting at the given position in a long.
+     *
+     * @param s     The {@link String}.
+     * @param start The position of the first character.
+     * @return The trigram packed in a long.
+     */
+    private static long trigram(String s, int start) {
+        return ((long) s.charAt(start) << 32) | ((long) s.charAt(start + 1) << 16) | s.charAt(start + 2);
+    }
+}
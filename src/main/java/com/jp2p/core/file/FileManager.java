@@ -1,60 +1,340 @@
 package com.jp2p.core.file;
 
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * The file manager is a container for files that have been discovered with the file message by the peer.
- * It stores them as a list of {@link PeerFile}s. And provides utility methods to interact with the list.
+ * It stores them as {@link PeerFile}s keyed by the name of the file and the name of the peer that has it, so that adding the answer of a peer doesn't scan the files already found.
+ * The files with the same name, size and Merkle root are also grouped across the peers that have them, to find the sources of a swarm download directly.
+ * <p>
+ * The store is bounded: a file that was not seen again for {@link FileManager#ttl} milliseconds expires,
+ * and once more than {@link FileManager#maxFiles} files are stored the least recently used ones are evicted, so that broad searches don't make it grow forever.
+ * The voila messages are handled by several threads at once, the store is therefore made of concurrent maps and the lists it returns are snapshots that are never modified.
  */
 public class FileManager {
     /**
-     * The list of {@link PeerFile} that have been discovered by the peer.
+     * The default maximum number of files stored.
      */
-    private final ArrayList<PeerFile> filesFound;
+    public static final int MAX_FILES = 100_000;
 
     /**
-     * Constructs an empty {@link FileManager}.
+     * The default time in milliseconds after which a file that was not seen again expires.
+     */
+    public static final long TTL = 30 * 60 * 1000;
+
+    /**
+     * The part of {@link FileManager#maxFiles} the store is brought back to when it is full, so that it is not trimmed again for every file added.
+     */
+    public static final double LOW_WATER_RATIO = 0.9;
+
+    /**
+     * The key of a file found: the name of the file and the name of the peer that has it.
+     *
+     * @param fileName The name of the file.
+     * @param peerName The name of the peer that has the file.
+     */
+    private record Key(String fileName, String peerName) {
+    }
+
+    /**
+     * The key of a group of identical files found on different peers: the name, the size and the Merkle root of the file.
+     *
+     * @param fileName The name of the file.
+     * @param fileSize The size of the file in bytes.
+     * @param root     The hexadecimal Merkle root of the file, or null if it is unknown.
+     */
+    private record GroupKey(String fileName, long fileSize, String root) {
+        /**
+         * Returns the key of the group of a file.
+         *
+         * @param file The {@link PeerFile}.
+         * @return The key of the group the file belongs to.
+         */
+        static GroupKey of(PeerFile file) {
+            return new GroupKey(file.getFileName(), file.getFileSize(), file.getRoot());
+        }
+    }
+
+    /**
+     * A stored file and the times it was seen and used.
+     */
+    private static final class Entry {
+        /**
+         * The file found.
+         */
+        final PeerFile file;
+
+        /**
+         * The order in which the file was added, so that the snapshots list the files in the order they were found.
+         */
+        final long sequence;
+
+        /**
+         * The last time in milliseconds the file was advertised by its peer, from which it expires.
+         */
+        volatile long lastSeen;
+
+        /**
+         * The last time in milliseconds the file was advertised or chosen, from which the least recently used files are evicted.
+         */
+        volatile long lastUsed;
+
+        /**
+         * Constructs a new {@link Entry} seen now.
+         *
+         * @param file     The file found.
+         * @param sequence The order in which the file was added.
+         * @param now      The current time in milliseconds.
+         */
+        Entry(PeerFile file, long sequence, long now) {
+            this.file = file;
+            this.sequence = sequence;
+            this.lastSeen = now;
+            this.lastUsed = now;
+        }
+    }
+
+    /**
+     * The files that have been discovered by the peer, by name of file and name of peer.
+     */
+    private final Map<Key, Entry> filesFound;
+
+    /**
+     * The files that have been discovered by the peer, grouped across the peers that have the same file.
+     * A group is only modified while the file it holds is being added or removed from {@link FileManager#filesFound}.
+     */
+    private final Map<GroupKey, Set<PeerFile>> groups;
+
+    /**
+     * The order of the next file added.
+     */
+    private final AtomicLong sequence;
+
+    /**
+     * Taken by the thread trimming the store, so that the other threads adding files don't trim it at the same time.
+     */
+    private final ReentrantLock trimLock;
+
+    /**
+     * The maximum number of files stored.
+     */
+    private final int maxFiles;
+
+    /**
+     * The time in milliseconds after which a file that was not seen again expires.
+     */
+    private final long ttl;
+
+    /**
+     * Constructs an empty {@link FileManager} holding at most {@link FileManager#MAX_FILES} files for {@link FileManager#TTL} milliseconds.
      */
     public FileManager() {
-        filesFound = new ArrayList<>();
+        this(MAX_FILES, TTL);
+    }
+
+    /**
+     * Constructs an empty {@link FileManager}.
+     *
+     * @param maxFiles The maximum number of files stored.
+     * @param ttl      The time in milliseconds after which a file that was not seen again expires.
+     */
+    public FileManager(int maxFiles, long ttl) {
+        this.filesFound = new ConcurrentHashMap<>();
+        this.groups = new ConcurrentHashMap<>();
+        this.sequence = new AtomicLong();
+        this.trimLock = new ReentrantLock();
+        this.maxFiles = maxFiles;
+        this.ttl = ttl;
     }
 
     /**
-     * Adds a {@link PeerFile} to the list.
-     * If a file with the same name and peer is already in the list, it is not added again.
-     * This method is synchronized to avoid concurrent access to the list of {@link FileManager#filesFound}.
+     * Adds a {@link PeerFile} to the store.
+     * If a file with the same name and peer is already stored, it is kept and is only marked as seen again, unless its size or its Merkle root changed in which case it is replaced.
+     * The store is trimmed if it holds more than {@link FileManager#maxFiles} files.
      *
      * @param file The {@link PeerFile} to add to {@link FileManager#filesFound}.
      */
-    public synchronized void addFile(PeerFile file) {
-        for (PeerFile f : filesFound) {
-            // Prevent duplicates
-            if (f.getFileName().equals(file.getFileName()) && f.getPeerName().equals(file.getPeerName())) {
+    public void addFile(PeerFile file) {
+        long now = System.currentTimeMillis();
+
+        filesFound.compute(new Key(file.getFileName(), file.getPeerName()), (key, entry) -> {
+            if (entry != null && sameVersion(entry.file, file)) {
+                entry.lastSeen = now;
+                entry.lastUsed = now;
+                return entry;
+            }
+
+            if (entry != null)
+                leaveGroup(entry.file);
+            joinGroup(file);
+            return new Entry(file, sequence.getAndIncrement(), now);
+        });
+
+        if (filesFound.size() > maxFiles)
+            trim(now);
+    }
+
+    /**
+     * Returns the {@link PeerFile}s of every peer that has the same file as the given one, that is a file of the same name, size and Merkle root.
+     * The files are marked as used, so that the files being downloaded are the last ones evicted.
+     *
+     * @param file The {@link PeerFile} whose sources are returned, it does not need to be stored.
+     * @return A snapshot of the stored {@link PeerFile}s identical to the file, possibly empty.
+     */
+    public List<PeerFile> getSources(PeerFile file) {
+        long now = System.currentTimeMillis();
+        Set<PeerFile> group = groups.get(GroupKey.of(file));
+        if (group == null)
+            return List.of();
+
+        List<PeerFile> sources = new ArrayList<>(group.size());
+        for (PeerFile source : group) {
+            Entry entry = filesFound.get(new Key(source.getFileName(), source.getPeerName()));
+            if (entry == null || entry.file != source || isExpired(entry, now))
+                continue;
+
+            entry.lastUsed = now;
+            sources.add(source);
+        }
+
+        return List.copyOf(sources);
+    }
+
+    /**
+     * Returns a snapshot of the {@link PeerFile}s found, in the order they were found. The expired files are removed first.
+     * The snapshot is not modified by the files added later, so its indexes can be shown to the user and used to pick a file.
+     *
+     * @return An unmodifiable list of the {@link PeerFile}s in {@link FileManager}.
+     */
+    public List<PeerFile> getFilesFound() {
+        long now = System.currentTimeMillis();
+        List<Entry> entries = new ArrayList<>(filesFound.size());
+        filesFound.forEach((key, entry) -> {
+            if (isExpired(entry, now))
+                remove(key, entry);
+            else
+                entries.add(entry);
+        });
+
+        entries.sort(Comparator.comparingLong(entry -> entry.sequence));
+        List<PeerFile> files = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            files.add(entry.file);
+        }
+
+        return List.copyOf(files);
+    }
+
+    /**
+     * Returns the number of files stored, the expired files that were not removed yet included.
+     *
+     * @return The number of files in {@link FileManager#filesFound}.
+     */
+    public int size() {
+        return filesFound.size();
+    }
+
+    /**
+     * Removes the expired files, then the least recently used files until the store holds {@link FileManager#LOW_WATER_RATIO} of {@link FileManager#maxFiles} files.
+     * Only one thread trims the store at a time, the others keep adding files meanwhile.
+     *
+     * @param now The current time in milliseconds.
+     */
+    private void trim(long now) {
+        if (!trimLock.tryLock())
+            return;
+
+        try {
+            List<Map.Entry<Key, Entry>> entries = new ArrayList<>(filesFound.size());
+            for (Map.Entry<Key, Entry> e : filesFound.entrySet()) {
+                if (isExpired(e.getValue(), now))
+                    remove(e.getKey(), e.getValue());
+                else
+                    entries.add(Map.entry(e.getKey(), e.getValue()));
+            }
+
+            int excess = filesFound.size() - (int) (maxFiles * LOW_WATER_RATIO);
+            if (excess <= 0)
                 return;
+
+            entries.sort(Comparator.comparingLong(e -> e.getValue().lastUsed));
+            for (int i = 0; i < excess && i < entries.size(); i++) {
+                remove(entries.get(i).getKey(), entries.get(i).getValue());
             }
+        } finally {
+            trimLock.unlock();
         }
+    }
 
-        filesFound.add(file);
+    /**
+     * Removes a file from the store and from its group, unless it was replaced meanwhile.
+     *
+     * @param key   The key of the file.
+     * @param entry The entry of the file to remove.
+     */
+    private void remove(Key key, Entry entry) {
+        filesFound.computeIfPresent(key, (k, current) -> {
+            if (current != entry)
+                return current;
+
+            leaveGroup(current.file);
+            return null;
+        });
+    }
+
+    /**
+     * Adds a file to the group of the identical files.
+     *
+     * @param file The {@link PeerFile} to add.
+     */
+    private void joinGroup(PeerFile file) {
+        groups.compute(GroupKey.of(file), (key, group) -> {
+            if (group == null)
+                group = ConcurrentHashMap.newKeySet();
+            group.add(file);
+            return group;
+        });
+    }
+
+    /**
+     * Removes a file from the group of the identical files, and the group once it is empty.
+     *
+     * @param file The {@link PeerFile} to remove.
+     */
+    private void leaveGroup(PeerFile file) {
+        groups.computeIfPresent(GroupKey.of(file), (key, group) -> {
+            group.remove(file);
+            return group.isEmpty() ? null : group;
+        });
     }
 
     /**
-     * Returns the {@link PeerFile} at the given index in the {@link FileManager#filesFound}.
-     * This method is synchronized to avoid concurrent access to the list of {@link FileManager#filesFound}.
+     * Returns whether a file expired.
      *
-     * @param index The index of the {@link PeerFile} to return.
-     * @return The {@link PeerFile} at the given index in the {@link FileManager#filesFound}.
+     * @param entry The entry of the file.
+     * @param now   The current time in milliseconds.
+     * @return True if the file was not seen again for {@link FileManager#ttl} milliseconds.
      */
-    public synchronized PeerFile getPeerNameAt(int index) {
-        return filesFound.get(index);
+    private boolean isExpired(Entry entry, long now) {
+        return now - entry.lastSeen > ttl;
     }
 
     /**
-     * Returns the list of {@link PeerFile}s.
-     * This method is synchronized to avoid concurrent access to the list of {@link FileManager#filesFound}.
+     * Returns whether two files found are the same version of the same file.
      *
-     * @return The list of {@link PeerFile}s in {@link FileManager}.
+     * @param a A {@link PeerFile}.
+     * @param b Another {@link PeerFile}.
+     * @return True if the files have the same size and Merkle root.
      */
-    public synchronized ArrayList<PeerFile> getFilesFound() {
-        return filesFound;
+    private static boolean sameVersion(PeerFile a, PeerFile b) {
+        return a.getFileSize() == b.getFileSize() && Objects.equals(a.getRoot(), b.getRoot());
     }
 }
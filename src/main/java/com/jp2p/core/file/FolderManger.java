@@ -1,26 +1,59 @@
 package com.jp2p.core.file;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * This class is used to manage the folders of the peer.
  * It's used to find files in a folder and to create {@link java.util.stream.Stream}s to write and read files.
  * Manages the folder of the files shared by the peer of the network and the folder of the files that have been downloaded by the peer.
+ * The files of the folder are looked up once, then kept up to date from the events of a {@link WatchService} if the folder is shared.
+ * The files of a shared folder are also hashed in the background by a {@link ManifestStore}, so that their downloads can be verified,
+ * and the compressed blocks of the files sent compressed are kept by a {@link CompressedBlockCache}.
  */
+@SuppressWarnings("InfiniteLoopStatement")
 public class FolderManger {
 
+    /**
+     * The suffix of the name of the partial files of the downloads that are not complete.
+     */
+    public static final String PARTIAL_SUFFIX = ".part";
+
     /**
      * The path to the folder where the files are stored.
      */
     private final String path;
 
     /**
-     * The {@link File}s in the folder.
+     * The {@link FileIndex} of the {@link SharedFile}s in the folder.
+     * It is replaced as a whole when the folder changes, so that the searches read it without locking.
+     */
+    private volatile FileIndex index;
+
+    /**
+     * The {@link ManifestStore} of the files of the folder, or null if the folder is not shared.
      */
-    private File[] files;
+    private final ManifestStore manifests;
+
+    /**
+     * The {@link CompressedBlockCache} of the files of the folder sent compressed, or null if the folder is not shared.
+     */
+    private final CompressedBlockCache compressedBlocks;
 
     /**
      * Constructs a new {@link FolderManger} with the given path to a folder. And looks up the {@link File}s in the folder.
@@ -29,12 +62,44 @@ public class FolderManger {
      */
     public FolderManger(String path) {
         this.path = path;
+        this.manifests = null;
+        this.compressedBlocks = null;
+        lookupFiles();
+    }
+
+    /**
+     * Constructs a new {@link FolderManger} with the given path to a folder that keeps up to date with the files created, modified and deleted in the folder,
+     * so that they are shared without looking up the whole folder again, and hashes them in the background.
+     *
+     * @param path   The path to the folder.
+     * @param shared True to watch and hash the files of the folder, false to only look up the {@link File}s in the folder once.
+     * @throws IOException If the folder cannot be watched.
+     */
+    public FolderManger(String path, boolean shared) throws IOException {
+        this.path = path;
+        this.manifests = shared ? new ManifestStore() : null;
+        this.compressedBlocks = shared ? new CompressedBlockCache() : null;
+
+        if (!shared) {
+            lookupFiles();
+            return;
+        }
+
+        Path folder = Paths.get(path);
+        Files.createDirectories(folder);
+        WatchService watcher = FileSystems.getDefault().newWatchService();
+        // The folder is watched before being looked up so that no file created in the meantime is missed
+        folder.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
         lookupFiles();
+
+        Thread thread = new Thread(() -> watchFolder(watcher, folder), "folder-watcher");
+        thread.setDaemon(true);
+        thread.start();
     }
 
     /**
-     * Looks up the {@link File}s in the folder and adds them to the list of {@link FolderManger#files}.
-     * This method is synchronized to avoid concurrent access to the list of {@link FolderManger#files}.
+     * Looks up the regular {@link File}s in the folder and replaces the {@link FolderManger#index} by an index of them.
+     * This method is synchronized so that concurrent updates don't replace each other's index, the searches are not blocked meanwhile.
      */
     public synchronized void lookupFiles() {
         File curDir = new File(path);
@@ -45,7 +110,79 @@ public class FolderManger {
             e.printStackTrace();
         }
 
-        files = curDir.listFiles();
+        File[] files = curDir.listFiles(File::isFile);
+        if (files == null) {
+            index = FileIndex.EMPTY;
+            return;
+        }
+
+        SharedFile[] sharedFiles = new SharedFile[files.length];
+        for (int i = 0; i < files.length; i++) {
+            sharedFiles[i] = SharedFile.of(files[i]);
+            if (manifests != null)
+                manifests.update(sharedFiles[i]);
+        }
+
+        index = new FileIndex(sharedFiles);
+    }
+
+    /**
+     * Applies the events of the {@link WatchService} to the {@link FolderManger#index} until the folder can no longer be watched.
+     * The folder is looked up again when events were lost.
+     *
+     * @param watcher The {@link WatchService} on which the folder is registered.
+     * @param folder  The watched folder.
+     */
+    private void watchFolder(WatchService watcher, Path folder) {
+        try (watcher) {
+            while (true) {
+                WatchKey key = watcher.take();
+                Map<String, SharedFile> changes = new HashMap<>();
+                boolean overflow = false;
+
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        overflow = true;
+                        continue;
+                    }
+
+                    File file = folder.resolve((Path) event.context()).toFile();
+                    changes.put(file.getName(), file.isFile() ? SharedFile.of(file) : null);
+                }
+
+                if (overflow)
+                    lookupFiles();
+                else
+                    applyChanges(changes);
+
+                if (!key.reset()) {
+                    System.out.println("The folder " + path + " can no longer be watched.");
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Replaces the {@link FolderManger#index} by an index with the given changes, and schedules the hashing of the files created or modified.
+     *
+     * @param changes The files created or modified by name, the deleted files being mapped to null.
+     */
+    private synchronized void applyChanges(Map<String, SharedFile> changes) {
+        if (changes.isEmpty())
+            return;
+
+        index = index.withChanges(changes);
+        changes.forEach((name, file) -> {
+            if (file == null)
+                manifests.remove(name);
+            else
+                manifests.update(file);
+        });
     }
 
     /**
@@ -59,6 +196,78 @@ public class FolderManger {
         return new BufferedInputStream(new FileInputStream(path + fileName));
     }
 
+    /**
+     * Returns a read only {@link FileChannel} of a given file of the folder targeted by the {@link FolderManger#path}.
+     *
+     * @param file The file to read, as returned by {@link FolderManger#getFile(String)}.
+     * @return A {@link FileChannel} of the file to read.
+     * @throws IOException If the file cannot be opened.
+     */
+    public FileChannel getAsChannel(SharedFile file) throws IOException {
+        return FileChannel.open(file.file().toPath(), StandardOpenOption.READ);
+    }
+
+    /**
+     * Returns whether a partial file of a given file is in the folder targeted by the {@link FolderManger#path}, left by a download that did not complete.
+     *
+     * @param fileName The name of the downloaded file.
+     * @return True if the partial file exists.
+     * @see FolderManger#openPartial(String, long)
+     */
+    public boolean hasPartial(String fileName) {
+        return Files.isRegularFile(Paths.get(path + fileName + PARTIAL_SUFFIX));
+    }
+
+    /**
+     * Returns a {@link FileChannel} to read and write at any position the partial file of a given file being downloaded in the folder targeted by the {@link FolderManger#path}.
+     * The partial file is named after the file with the {@link FolderManger#PARTIAL_SUFFIX}, so that a file of the folder is always complete.
+     * It is created if it does not exist yet and its existing content is kept to resume a download. It is given the size of the file at once,
+     * as a sparse file where the file system supports it, so that the ranges of the file can be written in any order without growing the file.
+     *
+     * @param fileName The name of the downloaded file.
+     * @param size     The size of the file in bytes.
+     * @return A {@link FileChannel} of the partial file.
+     * @throws IOException If the partial file cannot be opened, created or sized.
+     * @see FolderManger#completePartial(String)
+     */
+    public FileChannel openPartial(String fileName, long size) throws IOException {
+        Files.createDirectories(Paths.get(path));
+        FileChannel channel = FileChannel.open(Paths.get(path + fileName + PARTIAL_SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.SPARSE);
+
+        try {
+            if (channel.size() > size)
+                channel.truncate(size);
+            else if (channel.size() < size)
+                // Writing the last byte extends the file without writing the bytes before it
+                channel.write(ByteBuffer.wrap(new byte[1]), size - 1);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        return channel;
+    }
+
+    /**
+     * Replaces a given file of the folder targeted by the {@link FolderManger#path} by its complete partial file, atomically where the file system supports it,
+     * so that the file is never seen half written.
+     *
+     * @param fileName The name of the downloaded file.
+     * @throws IOException If the partial file cannot be moved.
+     * @see FolderManger#openPartial(String, long)
+     */
+    public void completePartial(String fileName) throws IOException {
+        Path partial = Paths.get(path + fileName + PARTIAL_SUFFIX);
+        Path target = Paths.get(path + fileName);
+
+        try {
+            Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
     /**
      * Returns a {@link BufferedOutputStream} of a given file to write in the folder targeted by the {@link FolderManger#path}.
      *
@@ -71,39 +280,46 @@ public class FolderManger {
     }
 
     /**
-     * Returns the list of {@link File}s in the folder that match a search criteria.
-     * This method is synchronized to avoid concurrent access to the list of {@link FolderManger#files}.
+     * Returns the list of {@link SharedFile}s in the folder whose name contains a search criteria, looked up in the {@link FolderManger#index}.
      *
      * @param match The search criteria.
-     * @return The list of {@link File}s in the folder that match the search criteria.
+     * @return The list of {@link SharedFile}s in the folder that match the search criteria.
      */
-    public synchronized ArrayList<File> getFiles(String match) {
-        ArrayList<File> res = new ArrayList<>();
-
-        for (File file : files) {
-            if (file.getName().contains(match)) {
-                res.add(file);
-            }
-        }
-
-        return res;
+    public ArrayList<SharedFile> getFiles(String match) {
+        return index.search(match);
     }
 
     /**
-     * Returns the {@link File}s in the folder that match the exact same name passed.
-     * This method is synchronized to avoid concurrent access to the list of {@link FolderManger#files}.
+     * Returns the {@link SharedFile} in the folder that matches the exact same name passed, looked up in the {@link FolderManger#index}.
      *
      * @param fileName The name of the file to search.
-     * @return The {@link File}s in the folder that match the exact same name passed.
+     * @return The {@link SharedFile} in the folder that matches the exact same name passed.
      * @throws FileNotFoundException If the file is not found in the folder.
      */
-    public synchronized File getFile(String fileName) throws FileNotFoundException {
-        for (File f : files) {
-            if (f.getName().equals(fileName)) {
-                return f;
-            }
-        }
+    public SharedFile getFile(String fileName) throws FileNotFoundException {
+        SharedFile file = index.get(fileName);
+        if (file == null)
+            throw new FileNotFoundException("File not found: " + fileName);
 
-        throw new FileNotFoundException("File not found: " + fileName);
+        return file;
+    }
+
+    /**
+     * Returns the {@link ChunkManifest} of a {@link SharedFile} of the folder.
+     *
+     * @param file The file, as returned by {@link FolderManger#getFile(String)} or {@link FolderManger#getFiles(String)}.
+     * @return The {@link ChunkManifest} of this version of the file, or null if the folder is not shared or the file is not hashed yet.
+     */
+    public ChunkManifest getManifest(SharedFile file) {
+        return manifests == null ? null : manifests.get(file);
+    }
+
+    /**
+     * Returns the {@link CompressedBlockCache} of the files of the folder.
+     *
+     * @return The {@link CompressedBlockCache}, or null if the folder is not shared.
+     */
+    public CompressedBlockCache getCompressedBlockCache() {
+        return compressedBlocks;
     }
 }
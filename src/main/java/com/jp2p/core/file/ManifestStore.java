@@ -0,0 +1,205 @@
+package com.jp2p.core.file;
+
+import com.jp2p.database.FileHashesTable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keeps the {@link ChunkManifest}s of the files of a shared folder.
+ * The files are hashed in the background one after the other, the chunks of a file being hashed in parallel by {@link ManifestStore#HASHING_THREADS} threads.
+ * The hashes are cached in the FILE_HASHES table so that the files that didn't change are not hashed again when the peer restarts.
+ * A manifest is only returned for the version of the file it was computed for, identified by the size and last modification time of the file.
+ *
+ * @see FileHashesTable
+ */
+public class ManifestStore {
+    /**
+     * The number of threads hashing the chunks of a file.
+     */
+    public static final int HASHING_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * The buffer of each hashing thread, in which the chunks are read.
+     */
+    private static final ThreadLocal<ByteBuffer> BUFFERS = ThreadLocal.withInitial(() -> ByteBuffer.allocate(ChunkManifest.CHUNK_SIZE));
+
+    /**
+     * The {@link MessageDigest} of each hashing thread.
+     */
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(ChunkManifest::newDigest);
+
+    /**
+     * A manifest and the version of the file it was computed for.
+     *
+     * @param size         The size of the file in bytes.
+     * @param lastModified The last modification time of the file in milliseconds.
+     * @param manifest     The {@link ChunkManifest} of the file.
+     */
+    private record Entry(long size, long lastModified, ChunkManifest manifest) {
+    }
+
+    /**
+     * The manifests of the hashed files by name.
+     */
+    private final Map<String, Entry> manifests;
+
+    /**
+     * The latest version of the files waiting to be hashed by name.
+     */
+    private final Map<String, SharedFile> pending;
+
+    /**
+     * The {@link ExecutorService} that hashes the files one after the other.
+     */
+    private final ExecutorService scheduler;
+
+    /**
+     * The {@link ExecutorService} that hashes the chunks of a file in parallel.
+     */
+    private final ExecutorService hashers;
+
+    /**
+     * Constructs a new empty {@link ManifestStore}.
+     */
+    public ManifestStore() {
+        this.manifests = new ConcurrentHashMap<>();
+        this.pending = new ConcurrentHashMap<>();
+        this.scheduler = Executors.newSingleThreadExecutor(daemon("manifest-scheduler"));
+        this.hashers = Executors.newFixedThreadPool(HASHING_THREADS, daemon("manifest-hasher"));
+    }
+
+    /**
+     * Returns a {@link ThreadFactory} of daemon threads.
+     *
+     * @param name The name of the threads.
+     * @return The {@link ThreadFactory}.
+     */
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Returns the manifest of a file.
+     *
+     * @param file The {@link SharedFile}.
+     * @return The {@link ChunkManifest} of this version of the file, or null if it is not hashed yet.
+     */
+    public ChunkManifest get(SharedFile file) {
+        Entry entry = manifests.get(file.name());
+        if (entry == null || entry.size() != file.size() || entry.lastModified() != file.lastModified())
+            return null;
+
+        return entry.manifest();
+    }
+
+    /**
+     * Schedules the hashing of a file that was added or changed, unless this version of the file is already hashed.
+     * If an older version of the file is still waiting to be hashed, only the new version is hashed.
+     *
+     * @param file The {@link SharedFile}.
+     */
+    public void update(SharedFile file) {
+        if (get(file) != null)
+            return;
+
+        if (pending.put(file.name(), file) == null)
+            scheduler.execute(() -> hashPending(file.name()));
+    }
+
+    /**
+     * Forgets the manifest of a file that was removed.
+     *
+     * @param name The name of the file.
+     */
+    public void remove(String name) {
+        pending.remove(name);
+        manifests.remove(name);
+    }
+
+    /**
+     * Computes the manifest of the latest version of a file waiting to be hashed, or reads its hashes from the FILE_HASHES table.
+     *
+     * @param name The name of the file.
+     */
+    private void hashPending(String name) {
+        SharedFile file = pending.remove(name);
+        if (file == null || get(file) != null)
+            return;
+
+        String path = file.file().getAbsolutePath();
+        try {
+            byte[] hashes = FileHashesTable.getHashes(path, file.size(), file.lastModified());
+            if (hashes == null) {
+                hashes = hash(file);
+                FileHashesTable.putHashes(path, file.size(), file.lastModified(), hashes);
+            }
+
+            manifests.put(name, new Entry(file.size(), file.lastModified(), new ChunkManifest(hashes)));
+        } catch (IOException ignored) {
+            // The file changed or was removed while it was hashed, the new version is scheduled by its own event
+        } catch (SQLException | IllegalArgumentException e) {
+            System.out.println("Could not cache the hashes of " + name + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Hashes the chunks of a file in parallel, each hashing thread taking a contiguous slice of the chunks.
+     *
+     * @param file The {@link SharedFile}.
+     * @return The hashes of the chunks one after the other.
+     * @throws IOException If the file cannot be read or changed while it was hashed.
+     */
+    private byte[] hash(SharedFile file) throws IOException {
+        int chunks = ChunkManifest.chunkCount(file.size());
+        byte[] hashes = new byte[chunks * ChunkManifest.HASH_LENGTH];
+
+        try (FileChannel channel = FileChannel.open(file.file().toPath(), StandardOpenOption.READ)) {
+            int slices = Math.min(HASHING_THREADS, chunks);
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int slice = 0; slice < slices; slice++) {
+                int first = (int) ((long) chunks * slice / slices);
+                int last = (int) ((long) chunks * (slice + 1) / slices);
+                tasks.add(() -> {
+                    for (int chunk = first; chunk < last; chunk++) {
+                        byte[] hash = ChunkManifest.hashChunk(channel, chunk, file.size(), BUFFERS.get(), DIGESTS.get());
+                        System.arraycopy(hash, 0, hashes, chunk * ChunkManifest.HASH_LENGTH, ChunkManifest.HASH_LENGTH);
+                    }
+                    return null;
+                });
+            }
+
+            for (Future<Void> hashed : hashers.invokeAll(tasks)) {
+                hashed.get();
+            }
+
+            if (channel.size() != file.size() || file.file().lastModified() != file.lastModified())
+                throw new IOException("The file changed while it was hashed.");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while hashing.", e);
+        }
+
+        return hashes;
+    }
+}
@@ -17,18 +17,27 @@ public class PeerFile {
 
     /**
      * Was the file downloaded by the peer at some point?
+     * Volatile as the file is downloaded in the background while the user reads its status.
      */
-    private boolean wasDownloaded;
+    private volatile boolean wasDownloaded;
 
     /**
      * The size of the file in bytes.
      */
-    private final int fileSize;
+    private final long fileSize;
+
+    /**
+     * The hexadecimal Merkle root of the chunk hashes of the file, or null if the peer that has the file did not advertise it.
+     *
+     * @see ChunkManifest
+     */
+    private final String root;
 
     /**
      * The number of bytes downloaded by the peer following a download command.
+     * Volatile as the file is downloaded in the background while the user reads its progress.
      */
-    private int downloadedSize;
+    private volatile long downloadedSize;
 
     /**
      * Constructs a new {@link PeerFile}.
@@ -37,10 +46,23 @@ public class PeerFile {
      * @param fileName The name of the discovered file.
      * @param fileSize The size of the file in bytes.
      */
-    public PeerFile(String peerName, String fileName, int fileSize) {
+    public PeerFile(String peerName, String fileName, long fileSize) {
+        this(peerName, fileName, fileSize, null);
+    }
+
+    /**
+     * Constructs a new {@link PeerFile} whose content can be verified.
+     *
+     * @param peerName The name of the peer that has the discovered file.
+     * @param fileName The name of the discovered file.
+     * @param fileSize The size of the file in bytes.
+     * @param root     The hexadecimal Merkle root of the chunk hashes of the file, or null if it is unknown.
+     */
+    public PeerFile(String peerName, String fileName, long fileSize, String root) {
         this.peerName = peerName;
         this.fileName = fileName;
         this.fileSize = fileSize;
+        this.root = root;
         this.downloadedSize = 0;
         this.wasDownloaded = false;
     }
@@ -63,6 +85,15 @@ public class PeerFile {
         return peerName;
     }
 
+    /**
+     * A getter for the Merkle root of the chunk hashes of the file.
+     *
+     * @return The hexadecimal Merkle root, or null if the peer that has the file did not advertise it.
+     */
+    public String getRoot() {
+        return root;
+    }
+
     /**
      * A getter for the status of the file.
      *
@@ -95,7 +126,7 @@ public class PeerFile {
      *
      * @param downloadedSize The number of bytes downloaded by the peer following a download command.
      */
-    public void setDownloadedSize(int downloadedSize) {
+    public void setDownloadedSize(long downloadedSize) {
         this.downloadedSize = downloadedSize;
     }
 
@@ -104,7 +135,7 @@ public class PeerFile {
      *
      * @return The number of bytes downloaded by the peer following a download command.
      */
-    public int getDownloadedSize() {
+    public long getDownloadedSize() {
         return downloadedSize;
     }
 }
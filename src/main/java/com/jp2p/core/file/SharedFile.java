@@ -0,0 +1,24 @@
+package com.jp2p.core.file;
+
+import java.io.File;
+
+/**
+ * A file of a folder managed by a {@link FolderManger}, with its metadata read once when the file was looked up or changed,
+ * so that the searches and the downloads don't ask the file system for them.
+ *
+ * @param name         The name of the file.
+ * @param file         The {@link File}.
+ * @param size         The size of the file in bytes.
+ * @param lastModified The time in milliseconds at which the file was last modified.
+ */
+public record SharedFile(String name, File file, long size, long lastModified) {
+    /**
+     * Reads the metadata of a {@link File}.
+     *
+     * @param file The {@link File}.
+     * @return The {@link SharedFile} of the file.
+     */
+    public static SharedFile of(File file) {
+        return new SharedFile(file.getName(), file, file.length(), file.lastModified());
+    }
+}
@@ -0,0 +1,117 @@
+package com.jp2p.core.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations with one bucket per power of two microseconds, from under 1 microsecond to over half an hour.
+ * Recording a duration only adds to two {@link LongAdder}s and a {@link LongAccumulator}, so that the threads recording at the same time don't contend,
+ * the percentiles being estimated from the buckets when they are read.
+ */
+public class LatencyHistogram {
+    /**
+     * The number of buckets, the last one holding all the longer durations.
+     */
+    public static final int BUCKETS = 32;
+
+    /**
+     * The number of durations in each bucket, bucket i holding the durations of less than 2^i microseconds not held by the previous buckets.
+     */
+    private final LongAdder[] buckets;
+
+    /**
+     * The sum of the durations in nanoseconds.
+     */
+    private final LongAdder total;
+
+    /**
+     * The longest duration in nanoseconds.
+     */
+    private final LongAccumulator max;
+
+    /**
+     * Constructs an empty {@link LatencyHistogram}.
+     */
+    public LatencyHistogram() {
+        this.buckets = new LongAdder[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+
+        this.total = new LongAdder();
+        this.max = new LongAccumulator(Math::max, 0);
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos The duration in nanoseconds.
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos) / 1000;
+        buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros))].increment();
+        total.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    /**
+     * Returns the number of durations recorded.
+     *
+     * @return The number of durations recorded.
+     */
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+
+        return count;
+    }
+
+    /**
+     * Returns the mean of the durations recorded.
+     *
+     * @return The mean duration in milliseconds, 0 if none was recorded.
+     */
+    public double getMeanMillis() {
+        long count = getCount();
+        return count == 0 ? 0 : total.sum() / 1e6 / count;
+    }
+
+    /**
+     * Returns the longest duration recorded.
+     *
+     * @return The longest duration in milliseconds.
+     */
+    public double getMaxMillis() {
+        return max.get() / 1e6;
+    }
+
+    /**
+     * Returns an estimate of a percentile of the durations recorded, the upper bound of the bucket holding it.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @return The estimated duration in milliseconds, never more than the longest duration recorded, 0 if none was recorded.
+     */
+    public double getPercentileMillis(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            count += counts[i];
+        }
+
+        if (count == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && i < BUCKETS - 1)
+                return Math.min((1L << i) / 1000.0, getMaxMillis());
+        }
+
+        return getMaxMillis();
+    }
+}
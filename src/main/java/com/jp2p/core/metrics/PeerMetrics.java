@@ -0,0 +1,415 @@
+package com.jp2p.core.metrics;
+
+import com.jp2p.core.commands.CommandType;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Collects the metrics of a peer: the time taken by the commands it executes and the messages it sends, the bytes of files exchanged with each peer,
+ * the connections it serves, the depth of the queue of its slaves and the fan-outs of its searches.
+ * <p>
+ * The metrics are cheap enough to be always on: the counters are {@link LongAdder}s and the durations go to {@link LatencyHistogram}s created once per {@link CommandType},
+ * so that recording never takes a lock. The bytes are counted for at most {@link PeerMetrics#MAX_PEERS} peers, the other peers being counted together.
+ * A peer is identified by its name, so that the peers behind the same address are counted apart, or by its address if it did not send its name.
+ * <p>
+ * The metrics are read through {@link PeerMetrics#format()} for the stats command, or through JMX once {@link PeerMetrics#register(String)} was called.
+ */
+public class PeerMetrics implements PeerMetricsMXBean {
+    /**
+     * The maximum number of peers whose bytes are counted apart.
+     */
+    public static final int MAX_PEERS = 1024;
+
+    /**
+     * The key under which the bytes of the peers over {@link PeerMetrics#MAX_PEERS} are counted.
+     */
+    public static final String OTHER_PEERS = "other";
+
+    /**
+     * The time taken to execute the commands received, by {@link CommandType}.
+     */
+    private final Map<CommandType, LatencyHistogram> commands;
+
+    /**
+     * The time taken to send the messages and read their reply, by {@link CommandType}.
+     */
+    private final Map<CommandType, LatencyHistogram> requests;
+
+    /**
+     * The number of messages sent that failed, by {@link CommandType}.
+     */
+    private final Map<CommandType, LongAdder> requestFailures;
+
+    /**
+     * The bytes of files received, by peer.
+     */
+    private final Map<String, LongAdder> bytesIn;
+
+    /**
+     * The bytes of files sent, by peer.
+     */
+    private final Map<String, LongAdder> bytesOut;
+
+    /**
+     * The number of open connections accepted by the peer.
+     */
+    private final AtomicInteger activeConnections;
+
+    /**
+     * The number of fan-outs.
+     */
+    private final LongAdder fanOuts;
+
+    /**
+     * The number of peers targeted by the fan-outs.
+     */
+    private final LongAdder fanOutTargets;
+
+    /**
+     * The number of peers reached by the fan-outs.
+     */
+    private final LongAdder fanOutReached;
+
+    /**
+     * The time in milliseconds at which the metrics were started.
+     */
+    private final long started;
+
+    /**
+     * Reads the number of tasks waiting for a slave of the server.
+     */
+    private volatile IntSupplier slaveQueueDepth;
+
+    /**
+     * Constructs a new {@link PeerMetrics} with every metric at 0.
+     */
+    public PeerMetrics() {
+        this.commands = new EnumMap<>(CommandType.class);
+        this.requests = new EnumMap<>(CommandType.class);
+        this.requestFailures = new EnumMap<>(CommandType.class);
+        for (CommandType type : CommandType.values()) {
+            commands.put(type, new LatencyHistogram());
+            requests.put(type, new LatencyHistogram());
+            requestFailures.put(type, new LongAdder());
+        }
+
+        this.bytesIn = new ConcurrentHashMap<>();
+        this.bytesOut = new ConcurrentHashMap<>();
+        this.activeConnections = new AtomicInteger();
+        this.fanOuts = new LongAdder();
+        this.fanOutTargets = new LongAdder();
+        this.fanOutReached = new LongAdder();
+        this.started = System.currentTimeMillis();
+        this.slaveQueueDepth = () -> 0;
+    }
+
+    /**
+     * Registers the metrics on the platform MBean server, under the name com.jp2p:type=PeerMetrics,name=[peer name].
+     * A peer whose metrics cannot be registered keeps them for the stats command only.
+     *
+     * @param peerName The name of the peer.
+     */
+    public void register(String peerName) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, new ObjectName("com.jp2p:type=PeerMetrics,name=" + ObjectName.quote(peerName)));
+        } catch (InstanceAlreadyExistsException ignored) {
+            // Another peer of the same name runs in this JVM, its metrics are the ones exposed
+        } catch (JMException | SecurityException e) {
+            System.out.println("Could not expose the metrics through JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sets how the number of tasks waiting for a slave of the server is read.
+     *
+     * @param slaveQueueDepth Returns the number of queued tasks.
+     */
+    public void setSlaveQueueDepth(IntSupplier slaveQueueDepth) {
+        this.slaveQueueDepth = slaveQueueDepth;
+    }
+
+    /**
+     * Records the execution of a command received.
+     *
+     * @param type  The {@link CommandType} of the command.
+     * @param nanos The time taken in nanoseconds.
+     */
+    public void recordCommand(CommandType type, long nanos) {
+        commands.get(type).record(nanos);
+    }
+
+    /**
+     * Records a message sent, with its reply if it has one.
+     *
+     * @param type    The {@link CommandType} of the message.
+     * @param nanos   The time taken in nanoseconds.
+     * @param success False if the message could not be sent or its reply could not be read.
+     */
+    public void recordRequest(CommandType type, long nanos, boolean success) {
+        requests.get(type).record(nanos);
+        if (!success)
+            requestFailures.get(type).increment();
+    }
+
+    /**
+     * Records bytes of a file received from a peer.
+     *
+     * @param peer  The name of the peer, or its address if it did not send its name.
+     * @param bytes The number of bytes.
+     */
+    public void recordBytesIn(String peer, long bytes) {
+        if (bytes > 0)
+            counter(bytesIn, peer).add(bytes);
+    }
+
+    /**
+     * Records bytes of a file sent to a peer.
+     *
+     * @param peer  The name of the peer, or its address if it did not send its name.
+     * @param bytes The number of bytes.
+     */
+    public void recordBytesOut(String peer, long bytes) {
+        if (bytes > 0)
+            counter(bytesOut, peer).add(bytes);
+    }
+
+    /**
+     * Records a connection accepted by the peer.
+     */
+    public void connectionOpened() {
+        activeConnections.incrementAndGet();
+    }
+
+    /**
+     * Records a connection accepted by the peer that was closed.
+     */
+    public void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    /**
+     * Records a message sent to several peers at once.
+     *
+     * @param targets The number of peers the message was sent to.
+     * @param reached The number of peers reached before the deadline.
+     */
+    public void recordFanOut(int targets, int reached) {
+        fanOuts.increment();
+        fanOutTargets.add(targets);
+        fanOutReached.add(reached);
+    }
+
+    @Override
+    public Map<String, Long> getCommandCounts() {
+        return counts(commands);
+    }
+
+    @Override
+    public Map<String, Double> getCommandMeanMillis() {
+        return byType(commands, LatencyHistogram::getMeanMillis);
+    }
+
+    @Override
+    public Map<String, Double> getCommandP99Millis() {
+        return byType(commands, h -> h.getPercentileMillis(99));
+    }
+
+    @Override
+    public Map<String, Long> getRequestCounts() {
+        return counts(requests);
+    }
+
+    @Override
+    public Map<String, Long> getRequestFailures() {
+        Map<String, Long> failures = new TreeMap<>();
+        requestFailures.forEach((type, count) -> failures.put(type.name(), count.sum()));
+        return failures;
+    }
+
+    @Override
+    public Map<String, Double> getRequestMeanMillis() {
+        return byType(requests, LatencyHistogram::getMeanMillis);
+    }
+
+    @Override
+    public Map<String, Double> getRequestP99Millis() {
+        return byType(requests, h -> h.getPercentileMillis(99));
+    }
+
+    @Override
+    public Map<String, Long> getBytesInByPeer() {
+        return sums(bytesIn);
+    }
+
+    @Override
+    public Map<String, Long> getBytesOutByPeer() {
+        return sums(bytesOut);
+    }
+
+    @Override
+    public long getBytesIn() {
+        return total(bytesIn);
+    }
+
+    @Override
+    public long getBytesOut() {
+        return total(bytesOut);
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    @Override
+    public int getSlaveQueueDepth() {
+        return slaveQueueDepth.getAsInt();
+    }
+
+    @Override
+    public long getFanOuts() {
+        return fanOuts.sum();
+    }
+
+    @Override
+    public long getFanOutTargets() {
+        return fanOutTargets.sum();
+    }
+
+    @Override
+    public long getFanOutReached() {
+        return fanOutReached.sum();
+    }
+
+    @Override
+    public long getUptimeSeconds() {
+        return (System.currentTimeMillis() - started) / 1000;
+    }
+
+    /**
+     * Formats the metrics for the stats command, leaving out the command types that were never used.
+     *
+     * @return The metrics as text.
+     */
+    public String format() {
+        long uptime = Math.max(1, getUptimeSeconds());
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("Up for %s s, %s open connections, %s tasks waiting for a slave.\n", uptime, getActiveConnections(), getSlaveQueueDepth()));
+        builder.append(String.format("Files: %s bytes in (%.1f KiB/s), %s bytes out (%.1f KiB/s).\n",
+                getBytesIn(), getBytesIn() / 1024.0 / uptime, getBytesOut(), getBytesOut() / 1024.0 / uptime));
+        builder.append(String.format("Fan-outs: %s, %s of %s peers reached.\n", getFanOuts(), getFanOutReached(), getFanOutTargets()));
+
+        builder.append("\tCommand\t \tReceived\t \tMean ms\t \tp50 ms\t \tp99 ms\t \tMax ms\t \tSent\t \tFailed\t \tMean ms\t \tp99 ms\t \n");
+        for (CommandType type : CommandType.values()) {
+            LatencyHistogram executed = commands.get(type);
+            LatencyHistogram sent = requests.get(type);
+            if (executed.getCount() == 0 && sent.getCount() == 0)
+                continue;
+
+            builder.append(String.format("\t%s\t \t%s\t \t%.3f\t \t%.3f\t \t%.3f\t \t%.3f\t \t%s\t \t%s\t \t%.3f\t \t%.3f\t \n",
+                    type,
+                    executed.getCount(),
+                    executed.getMeanMillis(),
+                    executed.getPercentileMillis(50),
+                    executed.getPercentileMillis(99),
+                    executed.getMaxMillis(),
+                    sent.getCount(),
+                    requestFailures.get(type).sum(),
+                    sent.getMeanMillis(),
+                    sent.getPercentileMillis(99)));
+        }
+
+        Map<String, Long> in = getBytesInByPeer();
+        Map<String, Long> out = getBytesOutByPeer();
+        if (!in.isEmpty() || !out.isEmpty()) {
+            builder.append("\tPeer\t \tBytes in\t \tBytes out\t \n");
+            TreeMap<String, Long> peers = new TreeMap<>(in);
+            out.keySet().forEach(peer -> peers.putIfAbsent(peer, 0L));
+            for (String peer : peers.keySet()) {
+                builder.append(String.format("\t%s\t \t%s\t \t%s\t \n", peer, in.getOrDefault(peer, 0L), out.getOrDefault(peer, 0L)));
+            }
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Returns the counter of a peer, the peers over {@link PeerMetrics#MAX_PEERS} sharing the {@link PeerMetrics#OTHER_PEERS} counter.
+     *
+     * @param counters The counters by peer.
+     * @param peer     The name of the peer, or its address if it did not send its name.
+     * @return The counter of the peer.
+     */
+    private static LongAdder counter(Map<String, LongAdder> counters, String peer) {
+        LongAdder counter = counters.get(peer);
+        if (counter != null)
+            return counter;
+
+        return counters.computeIfAbsent(counters.size() < MAX_PEERS ? peer : OTHER_PEERS, k -> new LongAdder());
+    }
+
+    /**
+     * Reads the number of durations of each histogram by command type name.
+     *
+     * @param histograms The histograms by {@link CommandType}.
+     * @return The counts by command type name.
+     */
+    private static Map<String, Long> counts(Map<CommandType, LatencyHistogram> histograms) {
+        Map<String, Long> counts = new TreeMap<>();
+        histograms.forEach((type, histogram) -> counts.put(type.name(), histogram.getCount()));
+        return counts;
+    }
+
+    /**
+     * Reads a value of each histogram by command type name.
+     *
+     * @param histograms The histograms by {@link CommandType}.
+     * @param value      The value to read.
+     * @return The values by command type name.
+     */
+    private static Map<String, Double> byType(Map<CommandType, LatencyHistogram> histograms, ToDoubleFunction<LatencyHistogram> value) {
+        Map<String, Double> values = new TreeMap<>();
+        histograms.forEach((type, histogram) -> values.put(type.name(), value.applyAsDouble(histogram)));
+        return values;
+    }
+
+    /**
+     * Reads the counters by peer.
+     *
+     * @param counters The counters by peer.
+     * @return The sums of the counters by peer.
+     */
+    private static Map<String, Long> sums(Map<String, LongAdder> counters) {
+        Map<String, Long> sums = new TreeMap<>();
+        counters.forEach((peer, counter) -> sums.put(peer, counter.sum()));
+        return sums;
+    }
+
+    /**
+     * Sums the counters of all the peers.
+     *
+     * @param counters The counters by peer.
+     * @return The sum of the counters.
+     */
+    private static long total(Map<String, LongAdder> counters) {
+        long total = 0;
+        for (LongAdder counter : counters.values()) {
+            total += counter.sum();
+        }
+
+        return total;
+    }
+}
@@ -0,0 +1,128 @@
+package com.jp2p.core.metrics;
+
+import java.util.Map;
+
+/**
+ * The management interface of the {@link PeerMetrics} of a peer, registered on the platform MBean server so that the metrics are read with JConsole or any JMX client.
+ * The maps are keyed by {@link com.jp2p.core.commands.CommandType} name or by peer name, the address of a peer standing for its name when it did not send it.
+ */
+public interface PeerMetricsMXBean {
+    /**
+     * Returns the number of commands executed for the other peers, by command type.
+     *
+     * @return The number of commands executed.
+     */
+    Map<String, Long> getCommandCounts();
+
+    /**
+     * Returns the mean time taken to execute the commands for the other peers, by command type.
+     *
+     * @return The mean execution time in milliseconds.
+     */
+    Map<String, Double> getCommandMeanMillis();
+
+    /**
+     * Returns the estimated 99th percentile of the time taken to execute the commands for the other peers, by command type.
+     *
+     * @return The 99th percentile of the execution time in milliseconds.
+     */
+    Map<String, Double> getCommandP99Millis();
+
+    /**
+     * Returns the number of messages sent by this peer, by command type.
+     *
+     * @return The number of messages sent.
+     */
+    Map<String, Long> getRequestCounts();
+
+    /**
+     * Returns the number of messages sent by this peer that failed, by command type.
+     *
+     * @return The number of messages that failed.
+     */
+    Map<String, Long> getRequestFailures();
+
+    /**
+     * Returns the mean time taken to send the messages of this peer and read their reply, by command type.
+     *
+     * @return The mean time in milliseconds.
+     */
+    Map<String, Double> getRequestMeanMillis();
+
+    /**
+     * Returns the estimated 99th percentile of the time taken to send the messages of this peer and read their reply, by command type.
+     *
+     * @return The 99th percentile of the time in milliseconds.
+     */
+    Map<String, Double> getRequestP99Millis();
+
+    /**
+     * Returns the number of bytes of files downloaded from the other peers, by peer.
+     *
+     * @return The number of bytes received.
+     */
+    Map<String, Long> getBytesInByPeer();
+
+    /**
+     * Returns the number of bytes of files uploaded to the other peers, by peer.
+     *
+     * @return The number of bytes sent.
+     */
+    Map<String, Long> getBytesOutByPeer();
+
+    /**
+     * Returns the number of bytes of files downloaded from all the peers.
+     *
+     * @return The number of bytes received.
+     */
+    long getBytesIn();
+
+    /**
+     * Returns the number of bytes of files uploaded to all the peers.
+     *
+     * @return The number of bytes sent.
+     */
+    long getBytesOut();
+
+    /**
+     * Returns the number of connections accepted by this peer that are open.
+     *
+     * @return The number of open connections.
+     */
+    int getActiveConnections();
+
+    /**
+     * Returns the number of tasks waiting for a slave of the server.
+     *
+     * @return The number of queued tasks.
+     */
+    int getSlaveQueueDepth();
+
+    /**
+     * Returns the number of messages sent to all the known peers at once, such as the searches.
+     *
+     * @return The number of fan-outs.
+     */
+    long getFanOuts();
+
+    /**
+     * Returns the number of peers the fan-outs were sent to.
+     *
+     * @return The number of peers targeted by the fan-outs.
+     */
+    long getFanOutTargets();
+
+    /**
+     * Returns the number of peers the fan-outs reached before their deadline.
+     *
+     * @return The number of peers reached by the fan-outs.
+     */
+    long getFanOutReached();
+
+    /**
+     * Returns the number of seconds since the metrics were started.
+     *
+     * @return The uptime in seconds.
+     */
+    long getUptimeSeconds();
+}
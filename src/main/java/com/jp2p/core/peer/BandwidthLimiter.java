@@ -0,0 +1,196 @@
+package com.jp2p.core.peer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Limits the rate at which the content of the files is uploaded and downloaded by a {@link PeerRunner}, for all the peers together and for each peer.
+ * Every limit is a {@link TokenBucket}, a limit of 0 meaning that the flow is not limited. A peer is identified by its name, so the connections of a peer share its limit
+ * while the peers behind the same address each get their own, the same way as by the {@link UploadScheduler}. The peers that don't send their name are identified by their address.
+ * <p>
+ * Only the content of the files is limited, the messages that search the network and manage the peers are sent as soon as they are written,
+ * so the bandwidth left over by the limits stays free for them. A transfer reserves at most {@link BandwidthLimiter#QUANTUM} bytes at a time from the limit of its peer,
+ * then from the global limit, so that the concurrent transfers take turns and share the bandwidth equally instead of the first one taking all of it.
+ * <p>
+ * The limits of at most {@link BandwidthLimiter#MAX_PEERS} peers are kept, the peers that transferred nothing for the longest time are forgotten first.
+ */
+public class BandwidthLimiter {
+    /**
+     * The maximum number of bytes reserved at a time by a transfer.
+     */
+    public static final int QUANTUM = 64 * 1024;
+
+    /**
+     * The maximum number of peers whose limits are kept.
+     */
+    public static final int MAX_PEERS = 1024;
+
+    /**
+     * The limit of the uploads to all the peers, or null if they are not limited.
+     */
+    private final TokenBucket upload;
+
+    /**
+     * The limit of the downloads from all the peers, or null if they are not limited.
+     */
+    private final TokenBucket download;
+
+    /**
+     * The rate in bytes per second of the uploads to a single peer, 0 if it is not limited.
+     */
+    private final long peerUploadRate;
+
+    /**
+     * The rate in bytes per second of the downloads from a single peer, 0 if it is not limited.
+     */
+    private final long peerDownloadRate;
+
+    /**
+     * The limits of the uploads by peer, the least recently used first.
+     */
+    private final Map<String, TokenBucket> peerUploads;
+
+    /**
+     * The limits of the downloads by peer, the least recently used first.
+     */
+    private final Map<String, TokenBucket> peerDownloads;
+
+    /**
+     * Constructs a new {@link BandwidthLimiter}.
+     *
+     * @param uploadRate       The rate in bytes per second of the uploads to all the peers, 0 to not limit it.
+     * @param downloadRate     The rate in bytes per second of the downloads from all the peers, 0 to not limit it.
+     * @param peerUploadRate   The rate in bytes per second of the uploads to a single peer, 0 to not limit it.
+     * @param peerDownloadRate The rate in bytes per second of the downloads from a single peer, 0 to not limit it.
+     */
+    public BandwidthLimiter(long uploadRate, long downloadRate, long peerUploadRate, long peerDownloadRate) {
+        this.upload = uploadRate > 0 ? new TokenBucket(uploadRate) : null;
+        this.download = downloadRate > 0 ? new TokenBucket(downloadRate) : null;
+        this.peerUploadRate = Math.max(0, peerUploadRate);
+        this.peerDownloadRate = Math.max(0, peerDownloadRate);
+        this.peerUploads = newPeerBuckets();
+        this.peerDownloads = newPeerBuckets();
+    }
+
+    /**
+     * Creates a map keeping the limits of at most {@link BandwidthLimiter#MAX_PEERS} peers.
+     *
+     * @return The new empty map.
+     */
+    private static Map<String, TokenBucket> newPeerBuckets() {
+        return new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, TokenBucket> eldest) {
+                return size() > MAX_PEERS;
+            }
+        };
+    }
+
+    /**
+     * Checks if the uploads are limited, globally or for each peer.
+     *
+     * @return True if the uploads are limited.
+     */
+    public boolean limitsUploads() {
+        return upload != null || peerUploadRate > 0;
+    }
+
+    /**
+     * Checks if the downloads are limited, globally or for each peer.
+     *
+     * @return True if the downloads are limited.
+     */
+    public boolean limitsDownloads() {
+        return download != null || peerDownloadRate > 0;
+    }
+
+    /**
+     * Waits until bytes of a file can be uploaded to a peer, at most {@link BandwidthLimiter#QUANTUM} bytes being asked for at a time.
+     *
+     * @param peer    The name of the peer, or its address if it did not send its name.
+     * @param bytes   The number of bytes to upload.
+     * @throws InterruptedIOException If the thread is interrupted while waiting.
+     */
+    public void acquireUpload(String peer, long bytes) throws InterruptedIOException {
+        acquire(peerUploads, peerUploadRate, upload, peer, bytes);
+    }
+
+    /**
+     * Waits until the bytes of a file downloaded from a peer are paid for, at most {@link BandwidthLimiter#QUANTUM} bytes being asked for at a time.
+     *
+     * @param peer    The name of the peer, or its address if it did not send its name.
+     * @param bytes   The number of bytes downloaded.
+     * @throws InterruptedIOException If the thread is interrupted while waiting.
+     */
+    public void acquireDownload(String peer, long bytes) throws InterruptedIOException {
+        acquire(peerDownloads, peerDownloadRate, download, peer, bytes);
+    }
+
+    /**
+     * Limits the reading of the content of a file downloaded from a peer.
+     * The {@link TokenBucket}s are paid after the bytes are read, the peer sending the file being slowed down by the connection once its buffers are full.
+     *
+     * @param peer    The name of the peer, or its address if it did not send its name.
+     * @param in      The {@link InputStream} of the content of the file on the connection.
+     * @return The limited {@link InputStream}, or the given one if the downloads are not limited. Closing it does not close the given one.
+     */
+    public InputStream throttleDownload(String peer, InputStream in) {
+        if (!limitsDownloads())
+            return in;
+
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int read = super.read();
+                if (read >= 0)
+                    acquireDownload(peer, 1);
+                return read;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, Math.min(len, QUANTUM));
+                if (read > 0)
+                    acquireDownload(peer, read);
+                return read;
+            }
+
+            @Override
+            public void close() {
+                // The connection is kept open, it is reused for the next messages
+            }
+        };
+    }
+
+    /**
+     * Waits for bytes on the limit of a peer, then on the global limit.
+     *
+     * @param buckets  The limits by peer.
+     * @param peerRate The rate of the limit of a peer, 0 if it is not limited.
+     * @param global   The global limit, or null if it is not limited.
+     * @param peer     The name of the peer, or its address if it did not send its name.
+     * @param bytes    The number of bytes.
+     * @throws InterruptedIOException If the thread is interrupted while waiting.
+     */
+    private static void acquire(Map<String, TokenBucket> buckets, long peerRate, TokenBucket global, String peer, long bytes) throws InterruptedIOException {
+        try {
+            if (peerRate > 0) {
+                TokenBucket bucket;
+                synchronized (buckets) {
+                    bucket = buckets.computeIfAbsent(peer, k -> new TokenBucket(peerRate));
+                }
+                bucket.acquire(bytes);
+            }
+
+            if (global != null)
+                global.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for bandwidth.");
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package com.jp2p.core.peer;
+
+import com.jp2p.core.protocol.WireProtocol;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps long-lived connections to the {@link Peer}s so that messages don't pay for a new connection and a new protocol negotiation each time.
+ * A connection is taken with {@link ConnectionPool#acquire(Peer)} and given back with {@link ConnectionPool#release(PooledConnection)} once the exchange is done,
+ * or with {@link ConnectionPool#invalidate(PooledConnection)} if the exchange failed.
+ * At most {@link ConnectionPool#MAX_ACTIVE_PER_PEER} connections are handed out per peer at the same time, the next ones wait for one to be given back.
+ * At most {@link ConnectionPool#MAX_IDLE_PER_PEER} idle connections are kept per peer and {@link ConnectionPool#MAX_IDLE_CONNECTIONS} in total, the extra ones are closed when released.
+ * Idle connections are checked before being reused, and the ones that stayed idle for more than {@link ConnectionPool#IDLE_TIMEOUT} or were closed by the peer are evicted in the background.
+ */
+public class ConnectionPool {
+    /**
+     * The maximum number of connections to a single peer handed out at the same time.
+     */
+    public static final int MAX_ACTIVE_PER_PEER = 8;
+
+    /**
+     * The maximum number of idle connections kept for a single peer.
+     */
+    public static final int MAX_IDLE_PER_PEER = 2;
+
+    /**
+     * The maximum number of idle connections kept for all peers.
+     */
+    public static final int MAX_IDLE_CONNECTIONS = 64;
+
+    /**
+     * The time in milliseconds after which an idle connection is closed. It is shorter than {@link PeerTask#IDLE_TIMEOUT} so that the pool closes its connections before the peers do.
+     */
+    public static final long IDLE_TIMEOUT = 10_000;
+
+    /**
+     * The time in milliseconds after which an idle connection is checked before being reused.
+     */
+    public static final long HEALTH_CHECK_AFTER = 2_000;
+
+    /**
+     * The time in milliseconds to wait for a connection to a peer to be established.
+     */
+    public static final int CONNECT_TIMEOUT = 5_000;
+
+    /**
+     * True if the connections speak the binary wire protocol, false if they speak the legacy protocol.
+     */
+    private final boolean binaryProtocol;
+
+    /**
+     * The idle connections indexed by the address of their peer, the most recently used first.
+     */
+    private final Map<InetSocketAddress, Deque<PooledConnection>> idleConnections;
+
+    /**
+     * The permits to hand out a connection indexed by the address of their peer, {@link ConnectionPool#MAX_ACTIVE_PER_PEER} for each peer.
+     */
+    private final Map<InetSocketAddress, Semaphore> checkouts;
+
+    /**
+     * The total number of idle connections.
+     */
+    private final AtomicInteger idleCount;
+
+    /**
+     * The executor that evicts the expired and dead idle connections, and closes the connections on which a write timed out.
+     */
+    private final ScheduledExecutorService evictor;
+
+    /**
+     * Constructs a new empty {@link ConnectionPool}.
+     *
+     * @param binaryProtocol True if the connections speak the binary wire protocol, false if they speak the legacy protocol.
+     */
+    public ConnectionPool(boolean binaryProtocol) {
+        this.binaryProtocol = binaryProtocol;
+        this.idleConnections = new ConcurrentHashMap<>();
+        this.checkouts = new ConcurrentHashMap<>();
+        this.idleCount = new AtomicInteger();
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "connection-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.evictor.scheduleWithFixedDelay(this::evictIdleConnections, IDLE_TIMEOUT / 2, IDLE_TIMEOUT / 2, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns a connection to the given {@link Peer}, reusing an idle connection if there is a healthy one, or opening a new one otherwise.
+     *
+     * @param peer The {@link Peer} to connect to.
+     * @return A connection to the {@link Peer} that must be given back to the pool.
+     * @throws IOException If a new connection cannot be opened.
+     */
+    public PooledConnection acquire(Peer peer) throws IOException {
+        return acquire(peer, CONNECT_TIMEOUT);
+    }
+
+    /**
+     * Returns a connection to the given {@link Peer}, reusing an idle connection if there is a healthy one, or opening a new one otherwise within the given time.
+     * The same time is waited for at most when {@link ConnectionPool#MAX_ACTIVE_PER_PEER} connections to the peer are already handed out.
+     *
+     * @param peer           The {@link Peer} to connect to.
+     * @param connectTimeout The time in milliseconds to wait for a connection to be given back and for a new connection to be established.
+     * @return A connection to the {@link Peer} that must be given back to the pool.
+     * @throws IOException If no connection was given back in time or a new connection cannot be opened in time.
+     */
+    public PooledConnection acquire(Peer peer, int connectTimeout) throws IOException {
+        InetSocketAddress address = addressOf(peer);
+        Semaphore permits = checkOut(address, connectTimeout);
+
+        try {
+            Deque<PooledConnection> idle = idleConnections.get(address);
+            PooledConnection connection;
+
+            while (idle != null && (connection = idle.pollFirst()) != null) {
+                idleCount.decrementAndGet();
+                if (connection.checkOut() && (connection.getIdleTime() < HEALTH_CHECK_AFTER || connection.getStream().isAlive()))
+                    return connection;
+
+                close(connection);
+            }
+
+            return connect(peer, address, connectTimeout);
+        } catch (IOException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a new connection to the given {@link Peer} without looking for an idle one.
+     *
+     * @param peer The {@link Peer} to connect to.
+     * @return A new connection to the {@link Peer} that must be given back to the pool.
+     * @throws IOException If the connection cannot be opened.
+     */
+    public PooledConnection open(Peer peer) throws IOException {
+        return open(peer, CONNECT_TIMEOUT);
+    }
+
+    /**
+     * Opens a new connection to the given {@link Peer} within the given time, without looking for an idle one.
+     * The connection counts towards the {@link ConnectionPool#MAX_ACTIVE_PER_PEER} connections handed out, as described by {@link ConnectionPool#acquire(Peer, int)}.
+     *
+     * @param peer           The {@link Peer} to connect to.
+     * @param connectTimeout The time in milliseconds to wait for a connection to be given back and for the connection to be established.
+     * @return A new connection to the {@link Peer} that must be given back to the pool.
+     * @throws IOException If no connection was given back in time or the connection cannot be opened in time.
+     */
+    public PooledConnection open(Peer peer, int connectTimeout) throws IOException {
+        InetSocketAddress address = addressOf(peer);
+        Semaphore permits = checkOut(address, connectTimeout);
+
+        try {
+            return connect(peer, address, connectTimeout);
+        } catch (IOException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for a connection to a peer to be handed out.
+     *
+     * @param address The address of the peer.
+     * @param timeout The time in milliseconds to wait for a connection to be given back when enough are already handed out.
+     * @return The permits of the peer, one of which was taken.
+     * @throws IOException If no connection was given back in time or the thread was interrupted.
+     */
+    private Semaphore checkOut(InetSocketAddress address, int timeout) throws IOException {
+        Semaphore permits = checkouts.computeIfAbsent(address, a -> new Semaphore(MAX_ACTIVE_PER_PEER, true));
+
+        try {
+            if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+                throw new SocketTimeoutException("Too many connections to " + address);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a connection to " + address);
+        }
+
+        return permits;
+    }
+
+    /**
+     * Ends the lease of a connection, giving back its permit if it was still handed out.
+     *
+     * @param connection The connection given back.
+     * @return true if the connection was handed out, false if it was already given back.
+     */
+    private boolean checkIn(PooledConnection connection) {
+        if (!connection.checkIn())
+            return false;
+
+        checkouts.get(connection.getAddress()).release();
+        return true;
+    }
+
+    /**
+     * Opens a new connection to the given {@link Peer} within the given time.
+     *
+     * @param peer           The {@link Peer} to connect to.
+     * @param address        The key of the connections of the {@link Peer}.
+     * @param connectTimeout The time in milliseconds to wait for the connection to be established.
+     * @return A new connection to the {@link Peer}.
+     * @throws IOException If the connection cannot be opened in time.
+     */
+    private PooledConnection connect(Peer peer, InetSocketAddress address, int connectTimeout) throws IOException {
+        Socket socket = new Socket();
+
+        try {
+            socket.connect(new InetSocketAddress(peer.getAddress(), peer.getPort()), connectTimeout);
+            // The control messages are small, they must not wait to be coalesced
+            socket.setTcpNoDelay(true);
+            return new PooledConnection(address, WireProtocol.connect(socket, binaryProtocol));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gives back a connection after a successful exchange, it is kept idle for reuse unless there are already enough idle connections.
+     * A connection closed by {@link ConnectionPool#closeAfter(PooledConnection, long)} is never kept, nor a connection that was already given back.
+     *
+     * @param connection The connection to give back.
+     */
+    public void release(PooledConnection connection) {
+        if (!checkIn(connection) || connection.isClosed())
+            return;
+
+        Socket socket = connection.getStream().getSocket();
+
+        try {
+            socket.setSoTimeout(0);
+        } catch (IOException e) {
+            close(connection);
+            return;
+        }
+
+        Deque<PooledConnection> idle = idleConnections.computeIfAbsent(connection.getAddress(), a -> new ConcurrentLinkedDeque<>());
+        if (socket.isClosed() || idle.size() >= MAX_IDLE_PER_PEER) {
+            close(connection);
+            return;
+        }
+
+        if (idleCount.incrementAndGet() > MAX_IDLE_CONNECTIONS) {
+            idleCount.decrementAndGet();
+            close(connection);
+            return;
+        }
+
+        connection.markReleased();
+        idle.addFirst(connection);
+    }
+
+    /**
+     * Closes a connection after a failed exchange, it is not reused.
+     *
+     * @param connection The connection to close.
+     */
+    public void invalidate(PooledConnection connection) {
+        checkIn(connection);
+        close(connection);
+    }
+
+    /**
+     * Closes a connection if it is still in use after the given time, which makes a write blocked on it fail since a {@link Socket} has no write timeout of its own.
+     * The returned task should be cancelled once the write completed, it leaves the connection open anyway once it was given back.
+     *
+     * @param connection The connection in use.
+     * @param timeout    The time in milliseconds after which the connection is closed.
+     * @return The task closing the connection.
+     */
+    public ScheduledFuture<?> closeAfter(PooledConnection connection, long timeout) {
+        int lease = connection.getLease();
+        return evictor.schedule(() -> {
+            if (connection.markClosed(lease))
+                closeStream(connection);
+        }, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes the idle connections that expired or were closed by their peer.
+     */
+    private void evictIdleConnections() {
+        for (Deque<PooledConnection> idle : idleConnections.values()) {
+            for (PooledConnection connection : new ArrayList<>(idle)) {
+                // The connection is taken out of the pool while it is checked, unless it was acquired in the meantime
+                if (!idle.remove(connection))
+                    continue;
+
+                if (connection.getIdleTime() < IDLE_TIMEOUT && connection.getStream().isAlive()) {
+                    idle.addLast(connection);
+                    continue;
+                }
+
+                idleCount.decrementAndGet();
+                close(connection);
+            }
+        }
+    }
+
+    /**
+     * Returns the key of the connections of a {@link Peer}.
+     *
+     * @param peer The {@link Peer}.
+     * @return The unresolved address of the {@link Peer}.
+     */
+    private static InetSocketAddress addressOf(Peer peer) {
+        return InetSocketAddress.createUnresolved(peer.getAddress(), peer.getPort());
+    }
+
+    /**
+     * Closes a connection, ignoring the errors.
+     *
+     * @param connection The connection to close.
+     */
+    private static void close(PooledConnection connection) {
+        if (connection.markClosed())
+            closeStream(connection);
+    }
+
+    /**
+     * Closes the stream of a connection, ignoring the errors.
+     *
+     * @param connection The connection to close.
+     */
+    private static void closeStream(PooledConnection connection) {
+        try {
+            connection.getStream().close();
+        } catch (IOException ignored) {
+        }
+    }
+}
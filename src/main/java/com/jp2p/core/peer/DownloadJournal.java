@@ -0,0 +1,177 @@
+package com.jp2p.core.peer;
+
+import com.jp2p.database.DownloadsTable;
+import com.jp2p.database.DownloadsTable.Download;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the progress of the downloads of a peer in the DOWNLOADS table, so that they are resumed from where they stopped when the peer restarts.
+ * The downloads report their progress as often as they like, only the latest progress of each download is kept in memory
+ * and written every {@link DownloadJournal#CHECKPOINT_INTERVAL} in a single transaction, so that the database is not written for every buffer received.
+ * A download that is done is written at once.
+ * <p>
+ * A download only reports the bytes it wrote to the downloaded file, so the progress read back after a crash may be behind the file but never ahead of it.
+ * <p>
+ * A journal that is not persistent writes nothing, for the peers started side by side in the same JVM whose downloads of files of the same name would share the rows of the table.
+ * Their downloads start over instead of resuming.
+ *
+ * @see DownloadsTable
+ */
+public class DownloadJournal {
+    /**
+     * The time in milliseconds between two checkpoints of the progress of the downloads.
+     */
+    public static final int CHECKPOINT_INTERVAL = 1000;
+
+    /**
+     * The progress of a download not written yet.
+     *
+     * @param downloaded The number of bytes downloaded from the start of the file without a gap.
+     * @param ranges     The bitmap of the ranges downloaded, or null if the file is downloaded from its start only.
+     * @param done       True if the file was completely downloaded.
+     */
+    private record Progress(long downloaded, byte[] ranges, boolean done) {
+    }
+
+    /**
+     * The latest progress of the downloads not written yet, by file name.
+     */
+    private final Map<String, Progress> pending;
+
+    /**
+     * True if the progress is written in the DOWNLOADS table, false if nothing is written.
+     */
+    private final boolean persistent;
+
+    /**
+     * Constructs a new persistent {@link DownloadJournal} and starts checkpointing the progress of the downloads in the background.
+     */
+    public DownloadJournal() {
+        this(true);
+    }
+
+    /**
+     * Constructs a new {@link DownloadJournal}, that starts checkpointing the progress of the downloads in the background if it is persistent.
+     *
+     * @param persistent True to write the progress in the DOWNLOADS table, false to write nothing.
+     */
+    public DownloadJournal(boolean persistent) {
+        this.pending = new ConcurrentHashMap<>();
+        this.persistent = persistent;
+        if (!persistent)
+            return;
+
+        ScheduledExecutorService checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "download-checkpoints");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkpointer.scheduleWithFixedDelay(this::checkpoint, CHECKPOINT_INTERVAL, CHECKPOINT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records the start of a download and returns the progress of a previous download of the same version of the file.
+     *
+     * @param fileName The name of the downloaded file.
+     * @param source   The {@link Peer} the file is downloaded from, to be downloaded from again when the peer restarts.
+     * @param fileSize The size of the file in bytes.
+     * @param root     The hexadecimal Merkle root of the file, or null if it is unknown.
+     * @return The recorded download, holding the progress to resume from.
+     * @throws IOException If the download cannot be recorded.
+     */
+    public Download start(String fileName, Peer source, long fileSize, String root) throws IOException {
+        if (!persistent)
+            return new Download(fileName, source.getName(), source.getAddress(), source.getPort(), fileSize, root, 0, null, false);
+
+        // The progress of an earlier attempt is written first so that it is not written over the new one
+        checkpoint();
+
+        try {
+            return DownloadsTable.startDownload(fileName, source.getName(), source.getAddress(), source.getPort(), fileSize, root);
+        } catch (SQLException e) {
+            throw new IOException("Could not record the download of " + fileName, e);
+        }
+    }
+
+    /**
+     * Reports the progress of a download, it is written at the next checkpoint.
+     *
+     * @param fileName   The name of the downloaded file.
+     * @param downloaded The number of bytes written from the start of the file without a gap.
+     * @param ranges     The ranges written, or null if the file is downloaded from its start only. It is copied.
+     */
+    public void progress(String fileName, long downloaded, BitSet ranges) {
+        if (!persistent)
+            return;
+        pending.put(fileName, new Progress(downloaded, ranges == null ? null : ranges.toByteArray(), false));
+    }
+
+    /**
+     * Records that a download is done, at once.
+     *
+     * @param fileName The name of the downloaded file.
+     * @param fileSize The size of the file in bytes.
+     */
+    public void finish(String fileName, long fileSize) {
+        if (!persistent)
+            return;
+        pending.put(fileName, new Progress(fileSize, null, true));
+        checkpoint();
+    }
+
+    /**
+     * Returns the downloads that were not done when the peer stopped.
+     *
+     * @return The recorded downloads that are not done.
+     * @throws IOException If the downloads cannot be read.
+     */
+    public List<Download> getUnfinishedDownloads() throws IOException {
+        if (!persistent)
+            return List.of();
+
+        try {
+            return DownloadsTable.getUnfinishedDownloads();
+        } catch (SQLException e) {
+            throw new IOException("Could not read the unfinished downloads.", e);
+        }
+    }
+
+    /**
+     * Writes the progress reported since the last checkpoint in a single transaction.
+     * If it cannot be written, it is kept to be written at the next checkpoint unless a newer progress was reported meanwhile.
+     * This method is synchronized so that two checkpoints don't write the progress of a download out of order.
+     */
+    public synchronized void checkpoint() {
+        if (pending.isEmpty())
+            return;
+
+        Map<String, Progress> batch = new HashMap<>();
+        for (String fileName : pending.keySet()) {
+            Progress progress = pending.remove(fileName);
+            if (progress != null)
+                batch.put(fileName, progress);
+        }
+
+        List<Download> downloads = new ArrayList<>(batch.size());
+        batch.forEach((fileName, progress) ->
+                downloads.add(new Download(fileName, null, null, 0, 0, null, progress.downloaded(), progress.ranges(), progress.done())));
+
+        try {
+            DownloadsTable.checkpoint(downloads);
+        } catch (SQLException e) {
+            System.out.println("Could not save the progress of the downloads: " + e.getMessage());
+            batch.forEach(pending::putIfAbsent);
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package com.jp2p.core.peer;
+
+import com.jp2p.core.exceptions.PeerNotFoundException;
+import com.jp2p.core.file.PeerFile;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads the files queued by the user in the background, so that the console is not blocked during the transfers and several files are downloaded at the same time.
+ * <p>
+ * The queued {@link PeerFile}s wait in a priority queue, the highest priority first and the first queued first for the same priority.
+ * A fixed number of worker threads take the next file in the queue as soon as they are done with the previous one.
+ * <p>
+ * A download whose source drops is queued again after a backoff that doubles with every attempt, from {@link DownloadManager#RETRY_BACKOFF} up to {@link DownloadManager#MAX_RETRY_BACKOFF},
+ * and is given up after {@link DownloadManager#MAX_ATTEMPTS} attempts. Each attempt resumes from the progress kept by the {@link DownloadJournal}.
+ * A file that the source no longer shares is not retried.
+ * <p>
+ * The progress of the downloads is read through {@link DownloadManager#getTransfers()}, the transfers that are done being kept until {@link DownloadManager#clearFinished()} is called.
+ */
+public class DownloadManager {
+    /**
+     * The time in milliseconds before the first retry of a failed download.
+     */
+    public static final long RETRY_BACKOFF = 2_000;
+
+    /**
+     * The maximum time in milliseconds between two attempts of a download.
+     */
+    public static final long MAX_RETRY_BACKOFF = 60_000;
+
+    /**
+     * The number of attempts after which a download is given up.
+     */
+    public static final int MAX_ATTEMPTS = 5;
+
+    /**
+     * The state of a transfer.
+     */
+    public enum State {
+        /**
+         * Waiting in the queue for a worker.
+         */
+        QUEUED,
+        /**
+         * Being downloaded by a worker.
+         */
+        RUNNING,
+        /**
+         * Waiting for its backoff to end after a failed attempt.
+         */
+        RETRYING,
+        /**
+         * Completely downloaded.
+         */
+        DONE,
+        /**
+         * Given up after its last attempt failed.
+         */
+        FAILED,
+        /**
+         * Removed from the queue by the user.
+         */
+        CANCELLED;
+
+        /**
+         * Returns whether the transfer is over.
+         *
+         * @return true if the transfer will not be attempted again, false otherwise.
+         */
+        public boolean isFinished() {
+            return this == DONE || this == FAILED || this == CANCELLED;
+        }
+    }
+
+    /**
+     * The progress of a transfer at the time it was read.
+     *
+     * @param id         The id of the transfer.
+     * @param fileName   The name of the downloaded file.
+     * @param peerName   The name of the peer the file was found on.
+     * @param fileSize   The size of the file in bytes.
+     * @param downloaded The number of bytes downloaded.
+     * @param priority   The priority of the transfer, the highest first.
+     * @param swarm      True if the file is downloaded from every peer that has it, false if only from the peer it was found on.
+     * @param state      The {@link State} of the transfer.
+     * @param attempts   The number of attempts started.
+     * @param error      The reason the last attempt failed, or null if none did.
+     */
+    public record Status(int id, String fileName, String peerName, long fileSize, long downloaded, int priority, boolean swarm, State state, int attempts, String error) {
+    }
+
+    /**
+     * A file queued for download.
+     */
+    private static final class Transfer {
+        /**
+         * The id of the transfer, also the order in which the transfers were queued.
+         */
+        final int id;
+
+        /**
+         * The file to download.
+         */
+        final PeerFile peerFile;
+
+        /**
+         * The {@link Peer} the file is downloaded from, or null to find it in the known peers at each attempt.
+         */
+        final Peer source;
+
+        /**
+         * The priority of the transfer, the highest first.
+         */
+        final int priority;
+
+        /**
+         * True if the file is downloaded from every peer that has it.
+         */
+        final boolean swarm;
+
+        /**
+         * The state of the transfer.
+         */
+        volatile State state;
+
+        /**
+         * The number of attempts started.
+         */
+        volatile int attempts;
+
+        /**
+         * The reason the last attempt failed, or null if none did.
+         */
+        volatile String error;
+
+        Transfer(int id, PeerFile peerFile, Peer source, int priority, boolean swarm) {
+            this.id = id;
+            this.peerFile = peerFile;
+            this.source = source;
+            this.priority = priority;
+            this.swarm = swarm;
+            this.state = State.QUEUED;
+        }
+
+        Status toStatus() {
+            long downloaded = state == State.DONE ? peerFile.getFileSize() : peerFile.getDownloadedSize();
+            return new Status(id, peerFile.getFileName(), peerFile.getPeerName(), peerFile.getFileSize(), downloaded, priority, swarm, state, attempts, error);
+        }
+    }
+
+    /**
+     * The {@link PeerRunner} that downloads the files.
+     */
+    private final PeerRunner peerRunner;
+
+    /**
+     * The transfers waiting for a worker, the highest priority first then the first queued.
+     */
+    private final PriorityBlockingQueue<Transfer> queue;
+
+    /**
+     * The transfers by id, the first queued first.
+     */
+    private final Map<Integer, Transfer> transfers;
+
+    /**
+     * The id of the next transfer.
+     */
+    private final AtomicInteger nextId;
+
+    /**
+     * The {@link ScheduledExecutorService} that queues the failed transfers again once their backoff is over.
+     */
+    private final ScheduledExecutorService retries;
+
+    /**
+     * Constructs a new {@link DownloadManager} and starts its workers.
+     *
+     * @param peerRunner The {@link PeerRunner} that downloads the files.
+     * @param workers    The number of files downloaded at the same time.
+     */
+    public DownloadManager(PeerRunner peerRunner, int workers) {
+        this.peerRunner = peerRunner;
+        this.queue = new PriorityBlockingQueue<>(16, Comparator.<Transfer>comparingInt(t -> -t.priority).thenComparingInt(t -> t.id));
+        this.transfers = new LinkedHashMap<>();
+        this.nextId = new AtomicInteger();
+        this.retries = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "download-retries");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        for (int i = 0; i < Math.max(1, workers); i++) {
+            Thread thread = new Thread(this::work, "download-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Queues a discovered file for download from the peer it was found on, or from every peer that has it.
+     * A file already queued or being downloaded is not queued a second time, as both transfers would write the same partial file.
+     *
+     * @param peerFile The file to download, found in the files found of the {@link PeerRunner}.
+     * @param priority The priority of the transfer, the highest first.
+     * @param swarm    True to download the file from every peer that has it, false to download it only from the peer it was found on.
+     * @return The id of the transfer, or -1 if the file is already queued.
+     */
+    public int submit(PeerFile peerFile, int priority, boolean swarm) {
+        return submit(peerFile, null, priority, swarm);
+    }
+
+    /**
+     * Queues a file for download from a given {@link Peer}, known or not, as for the downloads resumed when the peer restarts.
+     *
+     * @param peerFile The file to download.
+     * @param source   The {@link Peer} that has the file.
+     * @param priority The priority of the transfer, the highest first.
+     * @return The id of the transfer, or -1 if the file is already queued.
+     */
+    public int submit(PeerFile peerFile, Peer source, int priority) {
+        return submit(peerFile, source, priority, false);
+    }
+
+    /**
+     * Removes a transfer from the queue. A transfer being downloaded cannot be cancelled.
+     *
+     * @param id The id of the transfer.
+     * @return true if the transfer was cancelled, false if it is unknown, already running or finished.
+     */
+    public synchronized boolean cancel(int id) {
+        Transfer transfer = transfers.get(id);
+        if (transfer == null || (transfer.state != State.QUEUED && transfer.state != State.RETRYING))
+            return false;
+
+        queue.remove(transfer);
+        transfer.state = State.CANCELLED;
+        return true;
+    }
+
+    /**
+     * Returns the progress of all the transfers, the first queued first.
+     *
+     * @return The {@link Status} of each transfer.
+     */
+    public synchronized List<Status> getTransfers() {
+        List<Status> statuses = new ArrayList<>(transfers.size());
+        for (Transfer transfer : transfers.values()) {
+            statuses.add(transfer.toStatus());
+        }
+
+        return statuses;
+    }
+
+    /**
+     * Returns the progress of a transfer.
+     *
+     * @param id The id of the transfer.
+     * @return The {@link Status} of the transfer, or null if it is unknown.
+     */
+    public synchronized Status getTransfer(int id) {
+        Transfer transfer = transfers.get(id);
+        return transfer != null ? transfer.toStatus() : null;
+    }
+
+    /**
+     * Returns the number of transfers waiting for a worker.
+     *
+     * @return The number of queued transfers.
+     */
+    public int getQueueLength() {
+        return queue.size();
+    }
+
+    /**
+     * Forgets the transfers that are over.
+     */
+    public synchronized void clearFinished() {
+        transfers.values().removeIf(transfer -> transfer.state.isFinished());
+    }
+
+    /**
+     * Queues a file for download.
+     *
+     * @param peerFile The file to download.
+     * @param source   The {@link Peer} that has the file, or null to find it in the known peers.
+     * @param priority The priority of the transfer.
+     * @param swarm    True to download the file from every peer that has it.
+     * @return The id of the transfer, or -1 if the file is already queued.
+     */
+    private synchronized int submit(PeerFile peerFile, Peer source, int priority, boolean swarm) {
+        for (Transfer transfer : transfers.values()) {
+            if (!transfer.state.isFinished() && transfer.peerFile.getFileName().equals(peerFile.getFileName()))
+                return -1;
+        }
+
+        Transfer transfer = new Transfer(nextId.getAndIncrement(), peerFile, source, priority, swarm);
+        transfers.put(transfer.id, transfer);
+        queue.add(transfer);
+        return transfer.id;
+    }
+
+    /**
+     * The loop of a worker, downloading the next transfer in the queue until the peer stops.
+     */
+    private void work() {
+        while (true) {
+            Transfer transfer;
+            try {
+                transfer = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            synchronized (this) {
+                // A transfer cancelled while a worker was taking it is skipped
+                if (transfer.state != State.QUEUED)
+                    continue;
+                transfer.state = State.RUNNING;
+                transfer.attempts++;
+            }
+
+            try {
+                if (download(transfer)) {
+                    transfer.state = State.DONE;
+                    System.out.printf("%nDownloaded %s (%d bytes).%n", transfer.peerFile.getFileName(), transfer.peerFile.getFileSize());
+                    continue;
+                }
+
+                retry(transfer, "The source stopped sending the file before the end.");
+            } catch (FileNotFoundException e) {
+                transfer.error = e.getMessage();
+                transfer.state = State.FAILED;
+                System.out.printf("%nDownload of %s failed: %s%n", transfer.peerFile.getFileName(), e.getMessage());
+            } catch (PeerNotFoundException e) {
+                retry(transfer, "The peer that has the file is not known.");
+            } catch (IOException | RuntimeException e) {
+                retry(transfer, e.getMessage() != null ? e.getMessage() : e.toString());
+            }
+        }
+    }
+
+    /**
+     * Runs a single attempt of a transfer.
+     *
+     * @param transfer The transfer to download.
+     * @return true if the file was completely downloaded, false otherwise.
+     * @throws IOException           If the file cannot be downloaded from its source.
+     * @throws PeerNotFoundException If the peer that has the file is not known.
+     */
+    private boolean download(Transfer transfer) throws IOException, PeerNotFoundException {
+        if (transfer.source != null)
+            return peerRunner.download(transfer.peerFile, transfer.source);
+
+        return transfer.swarm ? peerRunner.sendSwarmDownload(transfer.peerFile) : peerRunner.sendDownload(transfer.peerFile);
+    }
+
+    /**
+     * Queues a failed transfer again after its backoff, or gives it up if it was attempted {@link DownloadManager#MAX_ATTEMPTS} times.
+     *
+     * @param transfer The failed transfer.
+     * @param error    The reason the attempt failed.
+     */
+    private synchronized void retry(Transfer transfer, String error) {
+        transfer.error = error;
+        if (transfer.attempts >= MAX_ATTEMPTS) {
+            transfer.state = State.FAILED;
+            System.out.printf("%nDownload of %s failed after %d attempts: %s%n", transfer.peerFile.getFileName(), transfer.attempts, error);
+            return;
+        }
+
+        transfer.state = State.RETRYING;
+        long backoff = Math.min(MAX_RETRY_BACKOFF, RETRY_BACKOFF << (transfer.attempts - 1));
+        retries.schedule(() -> {
+            synchronized (this) {
+                if (transfer.state != State.RETRYING)
+                    return;
+                transfer.state = State.QUEUED;
+                queue.add(transfer);
+            }
+        }, backoff, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,74 @@
+package com.jp2p.core.peer;
+
+import com.jp2p.core.commands.CommandType;
+import com.jp2p.core.protocol.Message;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A search for a file flooded through the network by the file message.
+ * The search keeps the same identifier and origin while it is forwarded from peer to peer, only its number of bounces decreases,
+ * so that each peer handles it once and the files found are sent straight to the peer that started it.
+ *
+ * @param id            The identifier of the search, {@link FileQuery#NO_ID} if it was received from a peer that does not identify its searches.
+ * @param fileName      The search criteria.
+ * @param bounces       The number of bounces left.
+ * @param originAddress The IP address of the peer that started the search.
+ * @param originPort    The port of the peer that started the search.
+ * @see SeenQueryCache
+ */
+public record FileQuery(long id, String fileName, int bounces, String originAddress, int originPort) {
+    /**
+     * The identifier of the searches received from the peers that don't identify their searches, they cannot be told apart.
+     */
+    public static final long NO_ID = 0;
+
+    /**
+     * Starts a new search with a random identifier.
+     *
+     * @param fileName      The search criteria.
+     * @param bounces       The number of bounces to the known peers of known peers.
+     * @param originAddress The IP address of this peer.
+     * @param originPort    The port of this peer.
+     * @return The new {@link FileQuery}.
+     */
+    public static FileQuery start(String fileName, int bounces, String originAddress, int originPort) {
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (id == NO_ID);
+
+        return new FileQuery(id, fileName, bounces, originAddress, originPort);
+    }
+
+    /**
+     * Returns the search to forward to the known peers, with one bounce less.
+     *
+     * @return The forwarded {@link FileQuery}.
+     */
+    public FileQuery forwarded() {
+        return new FileQuery(id, fileName, bounces - 1, originAddress, originPort);
+    }
+
+    /**
+     * Returns the search to forward to the known peers with one bounce less, as if it was started by the peer forwarding it,
+     * so that the files found further away are sent to that peer which relays them to the origin.
+     *
+     * @param address The IP address of the peer forwarding the search.
+     * @param port    The port of the peer forwarding the search.
+     * @return The forwarded {@link FileQuery}.
+     * @see PathCache
+     */
+    public FileQuery relayedBy(String address, int port) {
+        return new FileQuery(id, fileName, bounces - 1, address, port);
+    }
+
+    /**
+     * Returns the file message carrying this search, sent as [file name] [bounces] [origin port] [origin address] [id].
+     *
+     * @return The file {@link Message}, whose only argument is this search.
+     */
+    public Message toMessage() {
+        return new Message(CommandType.FILE, this);
+    }
+}
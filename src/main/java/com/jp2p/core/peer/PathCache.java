@@ -0,0 +1,244 @@
+package com.jp2p.core.peer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches the files found by the searches this peer forwarded, so that a search repeated later is answered by this peer instead of being flooded again.
+ * <p>
+ * A peer caching the paths forwards a search as if it had started it, so that the voila messages of the peers that have the files come back to it,
+ * and it relays them to the peer that sent it the search. It remembers for {@link PathCache#RELAY_TTL} which peers wait for the files of each search criteria,
+ * and keeps the files it relays by search criteria for {@link PathCache#TTL}. At most {@link PathCache#MAX_SEARCHES} search criteria are cached,
+ * the least recently used ones are forgotten first, each with at most {@link PathCache#MAX_FILES_PER_SEARCH} files.
+ * <p>
+ * The voila message does not carry the search it answers, so its files are matched against the search criteria waiting for files, as the peer that has them matched them.
+ * The searches started by this peer are also remembered so that only their files are added to the files found, not the files relayed for the other peers.
+ */
+public class PathCache {
+    /**
+     * The maximum number of search criteria whose files are cached.
+     */
+    public static final int MAX_SEARCHES = 1024;
+
+    /**
+     * The maximum number of files cached for a search criteria.
+     */
+    public static final int MAX_FILES_PER_SEARCH = 128;
+
+    /**
+     * The time in milliseconds during which the files found are cached.
+     */
+    public static final long TTL = 5 * 60_000;
+
+    /**
+     * The maximum number of search criteria waiting for files.
+     */
+    public static final int MAX_RELAYS = 4096;
+
+    /**
+     * The time in milliseconds during which the files of a search are relayed, the same as the time during which the search is recognized as a repeat.
+     */
+    public static final long RELAY_TTL = SeenQueryCache.TTL;
+
+    /**
+     * A file found on a peer.
+     *
+     * @param peerName The name of the peer that has the file.
+     * @param fileName The name of the file.
+     * @param fileSize The size of the file in bytes.
+     * @param root     The hexadecimal Merkle root of the file, or null if it is unknown.
+     */
+    public record CachedFile(String peerName, String fileName, long fileSize, String root) {
+    }
+
+    /**
+     * Files to send to a peer that is waiting for them.
+     *
+     * @param origin The {@link Peer} that sent the search.
+     * @param files  The files that match its search.
+     */
+    public record Relay(Peer origin, List<CachedFile> files) {
+    }
+
+    /**
+     * Where the files of a voila message go.
+     *
+     * @param local   The files found by the searches of this peer, or by no search waiting for files at all.
+     * @param relayed The files to relay to the peers that forwarded a search to this peer.
+     */
+    public record Routes(List<CachedFile> local, List<Relay> relayed) {
+    }
+
+    /**
+     * The peers waiting for the files of a search criteria.
+     */
+    private static final class Waiting {
+        /**
+         * The time in milliseconds after which the files are not relayed anymore.
+         */
+        long expiration;
+
+        /**
+         * True if this peer started a search with this criteria.
+         */
+        boolean local;
+
+        /**
+         * The peers that forwarded a search with this criteria to this peer, by address and port.
+         */
+        final Map<String, Peer> origins = new LinkedHashMap<>();
+    }
+
+    /**
+     * The files found by search criteria, with the time in milliseconds at which each file expires, the least recently used criteria first.
+     */
+    private final LinkedHashMap<String, LinkedHashMap<CachedFile, Long>> results;
+
+    /**
+     * The peers waiting for files by search criteria, the criteria that expires first first.
+     */
+    private final LinkedHashMap<String, Waiting> waiting;
+
+    /**
+     * Constructs a new empty {@link PathCache}.
+     */
+    public PathCache() {
+        this.results = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, LinkedHashMap<CachedFile, Long>> eldest) {
+                return size() > MAX_SEARCHES;
+            }
+        };
+        this.waiting = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Waiting> eldest) {
+                return size() > MAX_RELAYS;
+            }
+        };
+    }
+
+    /**
+     * Remembers that a peer waits for the files matching a search criteria.
+     *
+     * @param criteria The search criteria.
+     * @param origin   The {@link Peer} that forwarded the search, or null if the search was started by this peer.
+     */
+    public synchronized void expect(String criteria, Peer origin) {
+        long now = System.currentTimeMillis();
+        expireWaiting(now);
+
+        // Moved to the end, since it is now the one that expires last
+        Waiting entry = waiting.remove(criteria);
+        if (entry == null)
+            entry = new Waiting();
+        entry.expiration = now + RELAY_TTL;
+        if (origin == null)
+            entry.local = true;
+        else
+            entry.origins.put(origin.getAddress() + ":" + origin.getPort(), origin);
+        waiting.put(criteria, entry);
+    }
+
+    /**
+     * Returns the files cached for a search criteria that did not expire.
+     *
+     * @param criteria The search criteria.
+     * @return The cached files, empty if the search was not seen recently.
+     */
+    public synchronized List<CachedFile> lookup(String criteria) {
+        LinkedHashMap<CachedFile, Long> files = results.get(criteria);
+        if (files == null)
+            return List.of();
+
+        long now = System.currentTimeMillis();
+        files.values().removeIf(expiration -> expiration <= now);
+        if (files.isEmpty()) {
+            results.remove(criteria);
+            return List.of();
+        }
+
+        return List.copyOf(files.keySet());
+    }
+
+    /**
+     * Caches the files of a voila message under every search criteria they match, and tells where they go.
+     *
+     * @param files The files of the voila message, all on the same peer.
+     * @return The files to add to the files found by this peer and the files to relay to the other peers.
+     */
+    public synchronized Routes observe(List<CachedFile> files) {
+        long now = System.currentTimeMillis();
+        expireWaiting(now);
+
+        List<CachedFile> local = new ArrayList<>();
+        Map<String, Relay> relayed = new LinkedHashMap<>();
+
+        for (CachedFile file : files) {
+            boolean matched = false;
+            boolean isLocal = false;
+
+            for (Map.Entry<String, Waiting> entry : waiting.entrySet()) {
+                if (!file.fileName().contains(entry.getKey()))
+                    continue;
+
+                matched = true;
+                isLocal |= entry.getValue().local;
+                // A file already cached was already relayed, so two searches crossing each other don't relay it back and forth
+                if (!cache(entry.getKey(), file, now))
+                    continue;
+
+                for (Map.Entry<String, Peer> origin : entry.getValue().origins.entrySet()) {
+                    relayed.computeIfAbsent(origin.getKey(), k -> new Relay(origin.getValue(), new ArrayList<>())).files().add(file);
+                }
+            }
+
+            // A file that answers no search is still kept, it may come from a peer that answered late or from a peer that does not cache the paths
+            if (isLocal || !matched)
+                local.add(file);
+        }
+
+        return new Routes(local, List.copyOf(relayed.values()));
+    }
+
+    /**
+     * Caches a file found under a search criteria, the file expiring in {@link PathCache#TTL}.
+     * A file already cached is not cached again, it expires at the time it was first cached.
+     *
+     * @param criteria The search criteria.
+     * @param file     The file found.
+     * @param now      The current time in milliseconds.
+     * @return True if the file was not cached yet or had expired.
+     */
+    private boolean cache(String criteria, CachedFile file, long now) {
+        LinkedHashMap<CachedFile, Long> files = results.computeIfAbsent(criteria, k -> new LinkedHashMap<>());
+        Long expiration = files.get(file);
+        if (expiration != null && expiration > now)
+            return false;
+
+        files.remove(file);
+        files.put(file, now + TTL);
+
+        Iterator<CachedFile> oldest = files.keySet().iterator();
+        while (files.size() > MAX_FILES_PER_SEARCH) {
+            oldest.next();
+            oldest.remove();
+        }
+
+        return true;
+    }
+
+    /**
+     * Forgets the search criteria that are not waiting for files anymore.
+     *
+     * @param now The current time in milliseconds.
+     */
+    private void expireWaiting(long now) {
+        Iterator<Waiting> oldest = waiting.values().iterator();
+        while (oldest.hasNext() && oldest.next().expiration <= now) {
+            oldest.remove();
+        }
+    }
+}
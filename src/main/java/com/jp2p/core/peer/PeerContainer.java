@@ -2,23 +2,55 @@ package com.jp2p.core.peer;
 
 import com.jp2p.core.exceptions.PeerOverflowException;
 
-import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This is a container for the known {@link Peer}s of a peer.
  * There can be a maximum number {@link PeerContainer#maxPeers} of peers.
- * Provides utility methods to interact with the list of known {@link Peer}s.
+ * Provides utility methods to interact with the known {@link Peer}s.
+ * <p>
+ * The peers are kept in a concurrent map by name so that they are looked up without scanning them nor taking a lock,
+ * and are listed as immutable snapshots so that a message can be sent to each of them while other threads add or remove peers.
+ * The snapshot is only copied again after the peers changed, so sending every search to the known peers doesn't copy them each time.
  */
 public class PeerContainer {
+    /**
+     * A list of the known peers and the version of the peers it was copied from.
+     *
+     * @param version The value of {@link PeerContainer#version} when the peers were copied.
+     * @param peers   The immutable list of the known peers.
+     */
+    private record Snapshot(long version, List<Peer> peers) {
+    }
+
     /**
      * The maximum number of {@link Peer}s that a peer can know of and thus that can be stored in the container.
      */
     private final int maxPeers;
 
     /**
-     * The list of known {@link Peer}s.
+     * The known {@link Peer}s by name.
+     */
+    private final Map<String, Peer> peers;
+
+    /**
+     * The number of known peers, including the peers being added, so that two peers added at the same time can't exceed {@link PeerContainer#maxPeers}.
      */
-    private final ArrayList<Peer> peers;
+    private final AtomicInteger count;
+
+    /**
+     * Incremented every time a peer is added or removed, to know whether the {@link PeerContainer#snapshot} is still up to date.
+     */
+    private final AtomicLong version;
+
+    /**
+     * The last snapshot of the known peers.
+     */
+    private volatile Snapshot snapshot;
 
     /**
      * Constructs a new {@link PeerContainer} with the given maximum number of {@link Peer}s that can be known of.
@@ -27,60 +59,97 @@ public class PeerContainer {
      */
     public PeerContainer(int maxPeers) {
         this.maxPeers = maxPeers;
-        this.peers = new ArrayList<>();
+        this.peers = new ConcurrentHashMap<>();
+        this.count = new AtomicInteger();
+        this.version = new AtomicLong();
+        this.snapshot = new Snapshot(0, List.of());
     }
 
     /**
      * Returns the {@link Peer} with the given name.
-     * This method is synchronized to avoid concurrent access to the list of {@link PeerContainer#peers}.
      *
      * @param name The name of the {@link Peer} to return.
-     * @return The {@link Peer} with the given name.
+     * @return The {@link Peer} with the given name, or null if it is not known.
      */
-    public synchronized Peer getPeer(String name) {
-        return peers.stream().filter(p -> p.getName().equals(name)).findFirst().orElse(null);
+    public Peer getPeer(String name) {
+        return peers.get(name);
     }
 
     /**
-     * Adds the given {@link Peer} to the list of known {@link PeerContainer#peers}.
-     * This method is synchronized to avoid concurrent access to the list of {@link PeerContainer#peers}.
+     * Adds the given {@link Peer} to the known {@link PeerContainer#peers}.
+     * A place is reserved first so that the container never holds more than {@link PeerContainer#maxPeers} peers, even while several peers are added at once.
      *
      * @param peer The {@link Peer} to add to {@link PeerContainer#peers}.
      * @return True if the {@link Peer} was added, false otherwise (Meaning a peer with the same name already exists).
      * @throws PeerOverflowException If the number of known {@link Peer}s exceeds {@link PeerContainer#maxPeers}.
      */
-    public synchronized boolean addPeer(Peer peer) throws PeerOverflowException {
-        if (peers.size() == maxPeers)
-            throw new PeerOverflowException("Peer overflow");
-
-        for (Peer p : peers) {
-            if (peer.getName().equals(p.getName())) {
-                return false;
-            }
+    public boolean addPeer(Peer peer) throws PeerOverflowException {
+        if (peers.containsKey(peer.getName()))
+            return false;
+
+        int known;
+        do {
+            known = count.get();
+            if (known >= maxPeers)
+                throw new PeerOverflowException("Peer overflow");
+        } while (!count.compareAndSet(known, known + 1));
+
+        if (peers.putIfAbsent(peer.getName(), peer) != null) {
+            count.decrementAndGet();
+            return false;
         }
 
-        peers.add(peer);
+        version.incrementAndGet();
         return true;
     }
 
     /**
-     * Removes a {@link Peer} from the list of known {@link PeerContainer#peers} given its name.
-     * This method is synchronized to avoid concurrent access to the list of {@link PeerContainer#peers}.
+     * Removes a {@link Peer} from the known {@link PeerContainer#peers} given its name.
      *
      * @param name The name of the {@link Peer} to remove.
      * @return True if the {@link Peer} with the given name was removed, false otherwise.
      */
-    public synchronized boolean removePeer(String name) {
-        return peers.removeIf(p -> p.getName().equals(name));
+    public boolean removePeer(String name) {
+        if (peers.remove(name) == null)
+            return false;
+
+        count.decrementAndGet();
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Returns a snapshot of the known {@link Peer}s, that is not modified when peers are added or removed afterwards.
+     *
+     * @return An unmodifiable list of the known {@link Peer}s.
+     */
+    public List<Peer> getPeers() {
+        // The version is read before the peers are copied, so a change made while copying makes the next call copy them again
+        long current = version.get();
+        Snapshot last = snapshot;
+        if (last.version() == current)
+            return last.peers();
+
+        List<Peer> copy = List.copyOf(peers.values());
+        snapshot = new Snapshot(current, copy);
+        return copy;
+    }
+
+    /**
+     * Returns the number of known {@link Peer}s.
+     *
+     * @return The number of {@link Peer}s in {@link PeerContainer#peers}.
+     */
+    public int size() {
+        return peers.size();
     }
 
     /**
-     * Returns the list of known {@link Peer}s.
-     * This method is synchronized to avoid concurrent access to the list of {@link PeerContainer#peers}.
+     * Returns whether no {@link Peer} is known.
      *
-     * @return The list of known {@link Peer}s.
+     * @return True if {@link PeerContainer#peers} is empty.
      */
-    public synchronized ArrayList<Peer> getPeers() {
-        return peers;
+    public boolean isEmpty() {
+        return peers.isEmpty();
     }
 }
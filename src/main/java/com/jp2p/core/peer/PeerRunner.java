@@ -1,22 +1,45 @@
 package com.jp2p.core.peer;
 
+import com.jp2p.core.commands.CommandExecutor;
+import com.jp2p.core.commands.CommandType;
+import com.jp2p.core.commands.ManifestCommand;
 import com.jp2p.core.exceptions.NoKnownPeersException;
 import com.jp2p.core.exceptions.PeerNotFoundException;
+import com.jp2p.core.file.ChunkManifest;
 import com.jp2p.core.file.FileManager;
 import com.jp2p.core.file.FolderManger;
 import com.jp2p.core.file.PeerFile;
-import com.jp2p.database.PeerConfigurationTable;
+import com.jp2p.core.file.SharedFile;
+import com.jp2p.core.metrics.PeerMetrics;
+import com.jp2p.core.protocol.BodyEncoding;
+import com.jp2p.core.protocol.Message;
+import com.jp2p.core.protocol.ProtocolStream;
+import com.jp2p.core.protocol.WireProtocol;
+import com.jp2p.database.DownloadsTable.Download;
 
 import java.io.*;
 import java.net.BindException;
-import java.net.Inet4Address;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class is responsible for the peer's main loop.
@@ -31,12 +54,12 @@ public class PeerRunner implements Runnable {
     private final Peer me;
 
     /**
-     * The path to the peer's folder that contains the files shared in the network.
+     * The default path to the peer's folder that contains the files shared in the network.
      */
     public static final String PEER_FILE_PATH = "./files/";
 
     /**
-     * The path to the peer's folder in which files will be downloaded.
+     * The default path to the peer's folder in which files will be downloaded.
      */
     public static final String PEER_DOWNLOADS_PATH = "./downloads/";
 
@@ -45,16 +68,55 @@ public class PeerRunner implements Runnable {
      */
     public static final int MAX_THREADS = 10;
 
+    /**
+     * The size of the buffer used to read the content of a downloaded file from the network.
+     */
+    public static final int DOWNLOAD_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The time in milliseconds after which a download is asked again to a peer that queued it.
+     * It is the time a freed slot is kept by its last peer, so a waiting peer asks again about when a slot may have become free.
+     */
+    public static final long QUEUE_RETRY = UploadScheduler.SLOT_LINGER;
+
+    /**
+     * The time in milliseconds to wait for a connection to a peer to be established when a message is sent to all known peers.
+     */
+    public static final int FAN_OUT_CONNECT_TIMEOUT = 2_000;
+
+    /**
+     * The time in milliseconds to wait for a message to be written to a peer when a message is sent to all known peers.
+     */
+    public static final long FAN_OUT_WRITE_TIMEOUT = 2_000;
+
+    /**
+     * The time in milliseconds after which the sending of a message to all known peers is given up for the peers not reached yet.
+     */
+    public static final long FAN_OUT_DEADLINE = 5_000;
+
     /**
      * The {@link ServerSocket} that will be used to listen for connections.
+     * It is backed by a {@link ServerSocketChannel} so that the accepted {@link Socket}s expose their channel to the {@link com.jp2p.core.commands.DownloadCommand}.
      */
     private final ServerSocket server;
 
     /**
      * The {@link ExecutorService} that will be used to execute the slaves.
+     * In the {@link ServerMode#SELECTOR} mode the slaves only execute the commands, the connections being multiplexed by the {@link SelectorServer}.
+     * In the {@link ServerMode#VIRTUAL} mode each slave runs on its own virtual thread.
      */
     private final ExecutorService slavePool;
 
+    /**
+     * The {@link ExecutorService} on which the messages sent to several peers are sent in parallel.
+     */
+    private final ExecutorService outboundPool;
+
+    /**
+     * The way the server serves the connections it accepts.
+     */
+    private final ServerMode serverMode;
+
     /**
      * The {@link PeerContainer} that will be used to store and interact with the list of known peers of this peer.
      */
@@ -76,24 +138,135 @@ public class PeerRunner implements Runnable {
     private final FileManager filesFoundManager;
 
     /**
-     * Constructs a new {@link PeerRunner} with the given parameters.
-     * This is a private constructor because the first peer to ever be created will have default values for the parameters (Port and IP Address).
-     * The subsequent peers will be created with the values given by the user.
-     * To get a new instance of {@link PeerRunner} use the {@link PeerRunner#startUp()} method which follows the flow described above.
+     * The {@link ConnectionPool} that keeps the connections opened by this peer to the other peers.
+     * The connections accepted by this peer speak the wire protocol chosen by the client.
      *
-     * @param name     The name of the peer.
-     * @param port     The port that the peer will be listening on.
-     * @param maxPeers The maximum number of peers that the peer will be able to know.
+     * @see WireProtocol
+     */
+    private final ConnectionPool connectionPool;
+
+    /**
+     * The {@link SeenQueryCache} that remembers the searches already handled by this peer.
+     */
+    private final SeenQueryCache seenQueries;
+
+    /**
+     * The {@link PathCache} that keeps the files found by the searches forwarded by this peer, or null if the searches are forwarded without caching their files.
+     */
+    private final PathCache pathCache;
+
+    /**
+     * The {@link BodyEncoding} accepted by this peer for the content of the files it downloads.
+     */
+    private final BodyEncoding acceptedEncoding;
+
+    /**
+     * The {@link BandwidthLimiter} that limits the rate of the uploads and the downloads of the content of the files.
+     */
+    private final BandwidthLimiter bandwidthLimiter;
+
+    /**
+     * The {@link UploadScheduler} that gives the upload slots to the peers downloading from this peer.
+     */
+    private final UploadScheduler uploadScheduler;
+
+    /**
+     * The {@link ExecutorService} on which the downloads served by the {@link SelectorServer} stream the content of the files, and on which its connections speaking the legacy protocol are served,
+     * apart from the {@link PeerRunner#slavePool} so that the other commands never wait for an upload to finish or for an idle legacy connection to time out. Null in the other modes.
+     */
+    private final ExecutorService transferPool;
+
+    /**
+     * The {@link DownloadJournal} that keeps the progress of the downloads of this peer, so that they are resumed when the peer restarts.
+     */
+    private final DownloadJournal downloadJournal;
+
+    /**
+     * The {@link DownloadManager} that downloads the files queued by the user in the background.
+     */
+    private final DownloadManager downloadManager;
+
+    /**
+     * The {@link PeerMetrics} of the commands, messages, transfers and connections of this peer.
+     */
+    private final PeerMetrics metrics;
+
+    /**
+     * The {@link CommandExecutor} shared by all the connections accepted by this peer.
+     */
+    private final CommandExecutor commandExecutor;
+
+    /**
+     * Constructs a new {@link PeerRunner} with the given {@link PeerSettings}.
+     * The CLI gets its instance from the {@link PeerRunner#startUp()} method, which reads the settings from the configuration and asks the user for a name and a port
+     * when the default port is taken. Several instances can be constructed in the same JVM as long as they are given their own folders and ports.
+     *
+     * @param settings The {@link PeerSettings} of the peer.
      * @throws IOException If an error occurs while creating the {@link ServerSocket}.
      */
-    private PeerRunner(String name, int port, int maxPeers) throws IOException {
-        this.me = new Peer(name, port);
-        this.peerContainer = new PeerContainer(maxPeers);
-        this.filesFolderManager = new FolderManger(PEER_FILE_PATH);
-        this.downloadsFolderManager = new FolderManger(PEER_DOWNLOADS_PATH);
+    public PeerRunner(PeerSettings settings) throws IOException {
+        // The server is opened first so that nothing is started when the port is taken, and so that a peer listening on any free port knows its port
+        this.server = openServerSocket(settings.port());
+        this.me = new Peer(settings.name(), settings.address(), server.getLocalPort());
+        this.metrics = new PeerMetrics();
+        this.peerContainer = new PeerContainer(settings.maxPeers());
+        this.filesFolderManager = new FolderManger(settings.filesPath(), true);
+        this.downloadsFolderManager = new FolderManger(settings.downloadsPath());
         this.filesFoundManager = new FileManager();
-        this.server = new ServerSocket(port);
-        this.slavePool = Executors.newFixedThreadPool(MAX_THREADS);
+        this.connectionPool = new ConnectionPool(settings.binaryProtocol());
+        this.seenQueries = new SeenQueryCache();
+        this.pathCache = settings.pathCaching() ? new PathCache() : null;
+        this.acceptedEncoding = settings.compression() ? BodyEncoding.DEFLATE : BodyEncoding.RAW;
+        this.bandwidthLimiter = new BandwidthLimiter(settings.uploadLimit(), settings.downloadLimit(), settings.peerUploadLimit(), settings.peerDownloadLimit());
+        this.uploadScheduler = new UploadScheduler(settings.uploadSlots());
+        this.downloadJournal = new DownloadJournal(settings.journaled());
+        this.downloadManager = new DownloadManager(this, settings.downloads());
+        this.serverMode = settings.serverMode();
+
+        if (serverMode == ServerMode.VIRTUAL) {
+            this.slavePool = VirtualThreads.newThreadPerTaskExecutor("slave");
+            this.outboundPool = VirtualThreads.newThreadPerTaskExecutor("outbound");
+        } else {
+            this.slavePool = Executors.newFixedThreadPool(MAX_THREADS);
+            this.outboundPool = Executors.newFixedThreadPool(MAX_THREADS, r -> {
+                Thread thread = new Thread(r, "outbound");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        this.transferPool = serverMode == ServerMode.SELECTOR ? Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "transfer");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+
+        // The virtual threads are started at once, only the fixed pool of slaves has a queue
+        if (slavePool instanceof ThreadPoolExecutor executor)
+            metrics.setSlaveQueueDepth(() -> executor.getQueue().size());
+        metrics.register(settings.name());
+
+        // The commands are created last, they read the folders, limiter and metrics of the peer
+        this.commandExecutor = PeerTask.createCommandExecutor(this);
+    }
+
+    /**
+     * Opens a {@link ServerSocketChannel} bound to the given port and returns its {@link ServerSocket}.
+     *
+     * @param port The port to listen on.
+     * @return The {@link ServerSocket} of the opened channel.
+     * @throws IOException If the channel cannot be opened or bound to the port.
+     */
+    private static ServerSocket openServerSocket(int port) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        return channel.socket();
     }
 
     /**
@@ -104,31 +277,36 @@ public class PeerRunner implements Runnable {
      */
     public static PeerRunner startUp() throws IOException, SQLException {
         PeerRunner peer;
-        String defaultName = PeerConfigurationTable.getConfiguration("default_name");
-        int maxPeers = Integer.parseInt(PeerConfigurationTable.getConfiguration("max_peers"));
-        int defaultPort = Integer.parseInt(PeerConfigurationTable.getConfiguration("default_port"));
+        PeerSettings settings = PeerSettings.fromConfiguration();
+        if (settings.serverMode() == ServerMode.VIRTUAL && !VirtualThreads.isAvailable())
+            System.out.println("Virtual threads are not available on this JDK, each connection will be served by a platform thread.");
 
         try {
-            peer = new PeerRunner(defaultName, defaultPort, maxPeers);
-            System.out.println("Because this is the first peer, It will always run on port " + defaultPort + " Go to the configuration file to change the default port.");
+            peer = new PeerRunner(settings);
+            System.out.println("Because this is the first peer, It will always run on port " + settings.port() + " Go to the configuration file to change the default port.");
         } catch (BindException e) {
             System.out.print("Choose a name for this peer (Must be unique across the network!): ");
             String name = new Scanner(System.in).nextLine();
             System.out.print("Choose an open port for this peer: ");
             int port = new Scanner(System.in).nextInt();
-            peer = new PeerRunner(name, port, maxPeers);
+            peer = new PeerRunner(settings.withPeer(name, settings.address(), port));
         }
 
         return peer;
     }
 
     /**
-     * Starts the {@link PeerRunner} and waits for connections.
+     * Starts the {@link PeerRunner} and waits for connections, served as chosen by the {@link PeerRunner#serverMode}.
      */
     @Override
     public void run() {
         System.out.printf("Peer [%s] up and listening for other peers on port [%s]...%n", me.getName(), me.getPort());
         try {
+            if (serverMode == ServerMode.SELECTOR) {
+                new SelectorServer(this, server.getChannel(), slavePool, transferPool).run();
+                return;
+            }
+
             while (true) {
                 this.slavePool.execute(new PeerTask(server.accept(), this));
             }
@@ -138,128 +316,455 @@ public class PeerRunner implements Runnable {
     }
 
     /**
-     * Sends the name message to the {@link PeerRunner} at a given {@link Socket} and awaits to read its name.
+     * Sends a message to a {@link Peer} on a pooled connection and awaits to read the text reply.
+     * If the pooled connection was closed by the peer while it was idle, the message is sent again on a new connection.
+     *
+     * @param peer    The {@link Peer} to send the message to.
+     * @param message The {@link Message} to send.
+     * @return The reply of the {@link Peer}.
+     * @throws IOException If an error occurs while writing the message or reading the response on the {@link ProtocolStream}.
+     */
+    private String request(Peer peer, Message message) throws IOException {
+        long start = System.nanoTime();
+        boolean success = false;
+
+        try {
+            PooledConnection connection = connectionPool.acquire(peer);
+            String reply;
+            try {
+                reply = request(connection, message);
+            } catch (IOException e) {
+                if (!connection.isReused())
+                    throw e;
+                reply = request(connectionPool.open(peer), message);
+            }
+
+            success = true;
+            return reply;
+        } finally {
+            metrics.recordRequest(message.type(), System.nanoTime() - start, success);
+        }
+    }
+
+    /**
+     * Sends a message on a connection and awaits to read the text reply, the connection is given back to the pool afterwards.
+     *
+     * @param connection The connection to send the message on.
+     * @param message    The {@link Message} to send.
+     * @return The reply of the {@link Peer}.
+     * @throws IOException If an error occurs while writing the message or reading the response on the {@link ProtocolStream}.
+     */
+    private String request(PooledConnection connection, Message message) throws IOException {
+        try {
+            connection.getStream().writeMessage(message);
+            String reply = connection.getStream().readReply();
+            connectionPool.release(connection);
+            return reply;
+        } catch (IOException e) {
+            connectionPool.invalidate(connection);
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a message that has no reply to a {@link Peer} on a pooled connection.
+     *
+     * @param peer    The {@link Peer} to send the message to.
+     * @param message The {@link Message} to send.
+     * @throws IOException If an error occurs while writing the message on the {@link ProtocolStream}.
+     */
+    private void send(Peer peer, Message message) throws IOException {
+        long start = System.nanoTime();
+        boolean success = false;
+        PooledConnection connection = null;
+
+        try {
+            connection = connectionPool.acquire(peer);
+            connection.getStream().writeMessage(message);
+            connectionPool.release(connection);
+            success = true;
+        } catch (IOException e) {
+            if (connection != null)
+                connectionPool.invalidate(connection);
+            throw e;
+        } finally {
+            metrics.recordRequest(message.type(), System.nanoTime() - start, success);
+        }
+    }
+
+    /**
+     * Sends the name message to a given {@link Peer} and awaits to read its name.
      *
-     * @param socket The {@link Socket} to send the message to.
+     * @param peer The {@link Peer} to send the message to.
      * @return The name of the {@link PeerRunner}.
-     * @throws IOException            If an error occurs while writing the message on the {@link ObjectOutputStream}.
-     * @throws ClassNotFoundException If an error occurs while reading the response from the {@link ObjectInputStream}.
+     * @throws IOException If an error occurs while writing the message or reading the response on the {@link ProtocolStream}.
      */
-    public String sendGetName(Socket socket) throws IOException, ClassNotFoundException {
-        ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-        ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-        out.writeObject("name?");
-        return (String) in.readObject();
+    public String sendGetName(Peer peer) throws IOException {
+        return request(peer, new Message(CommandType.NAME));
     }
 
     /**
-     * Sends the known peers message to the {@link PeerRunner} at a given {@link Socket} and awaits to read the list of the known peers.
+     * Sends the known peers message to a given {@link Peer} and awaits to read the list of the known peers.
      *
-     * @param socket The {@link Socket} to send the message to.
+     * @param peer The {@link Peer} to send the message to.
      * @return The list of known peers of the {@link PeerRunner}.
-     * @throws IOException            If an error occurs while writing the message on the {@link ObjectOutputStream}.
-     * @throws ClassNotFoundException If an error occurs while reading the response from the {@link ObjectInputStream}.
+     * @throws IOException If an error occurs while writing the message or reading the response on the {@link ProtocolStream}.
      */
-    public String sendGetKnownPeers(Socket socket) throws IOException, ClassNotFoundException {
-        ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-        ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-        out.writeObject("known peers?");
-        return (String) in.readObject();
+    public String sendGetKnownPeers(Peer peer) throws IOException {
+        return request(peer, new Message(CommandType.KNOWN_PEERS));
     }
 
     /**
-     * Sends the it's me message to the {@link PeerRunner} at a given {@link Socket} and awaits to read the response.
+     * Sends the it's me message to a given {@link Peer} and awaits to read the response.
      *
-     * @param socket The {@link Socket} to send the message to.
+     * @param peer The {@link Peer} to send the message to.
      * @return The response from the {@link PeerRunner}. The result tells if the peer was added to the list of known peers or there was an error.
-     * @throws IOException            If an error occurs while writing the message on the {@link ObjectOutputStream}.
-     * @throws ClassNotFoundException If an error occurs while reading the response from the {@link ObjectInputStream}.
+     * @throws IOException If an error occurs while writing the message or reading the response on the {@link ProtocolStream}.
      */
-    public String sendItsMe(Socket socket) throws IOException, ClassNotFoundException {
-        ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-        ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-        out.writeObject(String.format("it's me! %s %s %s", this.me.getName(), this.me.getAddress(), this.me.getPort()));
-        return (String) in.readObject();
+    public String sendItsMe(Peer peer) throws IOException {
+        return request(peer, new Message(CommandType.ITS_ME, this.me.getName(), this.me.getAddress(), this.me.getPort()));
     }
 
     /**
-     * Sends the file message to the {@link PeerRunner} at a given {@link Socket}. Unlike other messages, this message is asynchronous and doesn't wait for a response
+     * Starts a search for a file by sending the file message to the known peers. Unlike other messages, this message is asynchronous and doesn't wait for a response
      * Responses to this message are handled by the voila message.
+     * The search is given a new identifier, marked as seen so that it is not handled again when it comes back to this peer.
      *
      * @param fileName The search criteria to search for.
      * @param bounces  The number of bounces to the known peers of known peers.
-     * @throws IOException           If an error occurs while writing the message on the {@link ObjectOutputStream}.
+     * @return The known peers the search was sent to.
+     * @throws IOException           If the address of this peer cannot be found.
      * @throws NoKnownPeersException If no known peers are available.
      */
-    public void sendFindFile(String fileName, int bounces) throws IOException, NoKnownPeersException {
-        if (this.peerContainer.getPeers().size() == 0)
+    public List<Peer> sendFindFile(String fileName, int bounces) throws IOException, NoKnownPeersException {
+        FileQuery query = FileQuery.start(fileName, bounces, me.getAddress(), me.getPort());
+        seenQueries.markSeen(query.id());
+        if (pathCache != null)
+            pathCache.expect(fileName, null);
+        return sendFindFile(query);
+    }
+
+    /**
+     * Forwards a search received from another peer to the known peers.
+     * When the {@link PeerRunner#pathCache} is enabled, the search is forwarded as if this peer started it and the peer that sent it is remembered,
+     * so that the files found come back through this peer which caches them and relays them. Otherwise, the search is forwarded with its origin.
+     *
+     * @param query The {@link FileQuery} received.
+     * @return The known peers the search was forwarded to.
+     * @throws IOException           If the address of this peer cannot be found.
+     * @throws NoKnownPeersException If no known peers are available.
+     */
+    public List<Peer> forwardFindFile(FileQuery query) throws IOException, NoKnownPeersException {
+        if (pathCache == null)
+            return sendFindFile(query.forwarded());
+
+        pathCache.expect(query.fileName(), new Peer(String.format("%s:%s", query.originAddress(), query.originPort()), query.originAddress(), query.originPort()));
+        return sendFindFile(query.relayedBy(me.getAddress(), me.getPort()));
+    }
+
+    /**
+     * Sends the file message carrying a search to the known peers within {@link PeerRunner#FAN_OUT_DEADLINE}, used to start a search or to forward a search received from another peer with its origin.
+     *
+     * @param query The {@link FileQuery} to send.
+     * @return The known peers the search was sent to.
+     * @throws NoKnownPeersException If no known peers are available.
+     */
+    public List<Peer> sendFindFile(FileQuery query) throws NoKnownPeersException {
+        return sendFindFile(query, System.currentTimeMillis() + FAN_OUT_DEADLINE);
+    }
+
+    /**
+     * Sends the file message carrying a search to the known peers in parallel, each peer being given {@link PeerRunner#FAN_OUT_CONNECT_TIMEOUT} to accept the connection
+     * and {@link PeerRunner#FAN_OUT_WRITE_TIMEOUT} to take the message. The peers that were not reached by the deadline are given up, so that a dead or slow peer doesn't delay the others.
+     *
+     * @param query    The {@link FileQuery} to send.
+     * @param deadline The time in milliseconds after which the peers not reached yet are given up.
+     * @return The known peers the search was sent to.
+     * @throws NoKnownPeersException If no known peers are available.
+     */
+    public List<Peer> sendFindFile(FileQuery query, long deadline) throws NoKnownPeersException {
+        List<Peer> peers = this.peerContainer.getPeers();
+        if (peers.isEmpty())
             throw new NoKnownPeersException("No known peers to search for a file.");
 
-        for (Peer p : this.peerContainer.getPeers()) {
-            Socket socket = new Socket(p.getAddress(), p.getPort());
-            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-            out.writeObject(String.format("file? %s %s %s %s", fileName, bounces, this.server.getLocalPort(), Inet4Address.getLocalHost().getHostAddress()));
+        return sendToAll(peers, query.toMessage(), deadline);
+    }
+
+    /**
+     * Sends a message that has no reply to several {@link Peer}s in parallel on the {@link PeerRunner#outboundPool}.
+     *
+     * @param peers    The {@link Peer}s to send the message to.
+     * @param message  The {@link Message} to send.
+     * @param deadline The time in milliseconds after which the peers not reached yet are given up.
+     * @return The {@link Peer}s the message was sent to.
+     */
+    private List<Peer> sendToAll(Collection<Peer> peers, Message message, long deadline) {
+        List<Peer> targets = new ArrayList<>(peers);
+        List<Callable<Void>> sends = new ArrayList<>();
+        for (Peer p : targets) {
+            sends.add(() -> {
+                sendWithTimeouts(p, message);
+                return null;
+            });
         }
+
+        List<Peer> reached = new ArrayList<>();
+        try {
+            // The sends still running at the deadline are cancelled, they end at the latest with their own timeouts
+            List<Future<Void>> results = outboundPool.invokeAll(sends, Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    results.get(i).get();
+                    reached.add(targets.get(i));
+                } catch (ExecutionException | CancellationException ignored) {
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        metrics.recordFanOut(targets.size(), reached.size());
+        return reached;
     }
 
     /**
-     * Sends the download message to the {@link PeerRunner} at a given {@link Socket}.
-     * Reads the total number of bytes to be downloaded, then reads and saves them on the {@link PeerRunner#downloadsFolderManager}.
+     * Sends a message that has no reply to a {@link Peer} on a pooled connection, giving up if the connection is not established within {@link PeerRunner#FAN_OUT_CONNECT_TIMEOUT}
+     * or the message not written within {@link PeerRunner#FAN_OUT_WRITE_TIMEOUT}.
+     *
+     * @param peer    The {@link Peer} to send the message to.
+     * @param message The {@link Message} to send.
+     * @throws IOException If the message could not be sent in time.
+     */
+    private void sendWithTimeouts(Peer peer, Message message) throws IOException {
+        long start = System.nanoTime();
+        boolean success = false;
+
+        try {
+            PooledConnection connection = connectionPool.acquire(peer, FAN_OUT_CONNECT_TIMEOUT);
+            ScheduledFuture<?> writeTimeout = connectionPool.closeAfter(connection, FAN_OUT_WRITE_TIMEOUT);
+
+            try {
+                connection.getStream().writeMessage(message);
+            } catch (IOException e) {
+                connectionPool.invalidate(connection);
+                throw e;
+            } finally {
+                writeTimeout.cancel(false);
+            }
+
+            connectionPool.release(connection);
+            success = true;
+        } finally {
+            metrics.recordRequest(message.type(), System.nanoTime() - start, success);
+        }
+    }
+
+    /**
+     * Sends the download message to the {@link Peer} that has a discovered file.
+     * Reads the total number of bytes to be downloaded, then reads and saves them on the {@link PeerRunner#downloadsFolderManager},
+     * in a partial file that replaces the downloaded file once it is complete.
      * If a previous download of that file failed, the download will proceed from the last failed byte and continue on.
      * Otherwise, the download will start from the beginning.
      * This is done by sending the last successfully downloaded byte to the {@link PeerRunner}, the {@link PeerRunner} will skip the first byte and starts sending bytes from that point.
      * This ensures that if the connection is lost at some point, the download will resume instead of start over.
-     * The message is in this format: download? [file name] [skip bytes]
+     * The last successfully downloaded byte is kept by the {@link PeerRunner#downloadJournal}, so the download also resumes after the peer restarts.
+     * The message is in this format: download? [file name] [skip bytes] [length] [accepted encoding] [queueing] [peer name], the length being left out to download up to the end of the file.
+     * When the peer has no upload slot free, it answers with the position of this peer in its queue and the download is asked again later.
+     * The name of this peer identifies it in the queue and the credits of the peer, since several peers may share an address.
+     * When the {@link PeerRunner#acceptedEncoding} is {@link BodyEncoding#DEFLATE}, the peer compresses the blocks of the file that shrink if it knows the encodings and the protocol can tell them.
+     * The content is read as fast as the {@link PeerRunner#bandwidthLimiter} allows.
+     * <p>
+     * When the peer advertised the Merkle root of the file, its manifest is fetched and the file is downloaded by a {@link SwarmDownload} from this single peer instead,
+     * so that every chunk is verified, only the corrupted chunks are downloaded again and an interrupted download resumes from the verified chunks on disk.
      *
-     * @param index The index of the file to download in the {@link PeerRunner#filesFoundManager}.
+     * @param peerFile The file to download, found in the {@link PeerRunner#filesFoundManager}.
      * @return true if the file was completely downloaded, false otherwise.
-     * @throws IOException           If an error occurs while writing the message on the {@link ObjectOutputStream}.
+     * @throws IOException           If an error occurs while writing the message or reading the file on the {@link ProtocolStream}.
      * @throws PeerNotFoundException If the peer is not found.
      */
-    public boolean sendDownload(int index) throws IOException, PeerNotFoundException {
-        PeerFile peerFile = filesFoundManager.getPeerNameAt(index);
+    public boolean sendDownload(PeerFile peerFile) throws IOException, PeerNotFoundException {
         Peer peer = peerContainer.getPeer(peerFile.getPeerName());
 
         if (peer == null)
             throw new PeerNotFoundException();
 
-        if (peerFile.getDownloadedSize() == peerFile.getFileSize())
-            // If the downloaded size is equal to the file size, it means that the file was correctly downloaded previously and w are downloading it again so reset it to 0.
-            peerFile.setDownloadedSize(0);
-
-        Socket socket = new Socket(peer.getAddress(), peer.getPort());
-        ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-        ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-        out.writeObject(String.format("download? %s %s", peerFile.getFileName(), peerFile.getDownloadedSize()));
-        long size = in.readLong();
-
-        byte[] data = new byte[2048];
-        // if we previously failed to download the file, we will resume from the last successfully downloaded byte
-        // meaning we will append the data to the file instead of overwriting it
-        BufferedOutputStream bos = downloadsFolderManager.getAsOutStream(peerFile.getFileName(), !(peerFile.getDownloadedSize() == 0));
-        int read;
-        int total;
-
-        read = in.read(data, 0, data.length);
-        total = read;
-        peerFile.setDownloadedSize(peerFile.getDownloadedSize() + read);
-        bos.write(data, 0, read);
-
-
-        while (read > -1 && total < size) {
-            read = in.read(data, 0, data.length);
-            if (read > -1) {
-                total += read;
-                peerFile.setDownloadedSize(peerFile.getDownloadedSize() + read);
-                bos.write(data, 0, read);
+        return download(peerFile, peer);
+    }
+
+    /**
+     * Downloads a discovered file from a given {@link Peer}, as described by {@link PeerRunner#sendDownload(PeerFile)}.
+     *
+     * @param peerFile The discovered file.
+     * @param peer     The {@link Peer} that has the file.
+     * @return true if the file was completely downloaded, false otherwise.
+     * @throws IOException If an error occurs while writing the message or reading the file on the {@link ProtocolStream}.
+     */
+    boolean download(PeerFile peerFile, Peer peer) throws IOException {
+        if (peerFile.getRoot() != null) {
+            ChunkManifest manifest = fetchManifest(peer, peerFile.getFileName(), peerFile.getRoot(), peerFile.getFileSize());
+            if (new SwarmDownload(this, peerFile, List.of(peer), manifest).run()) {
+                peerFile.setDownloadedSize(peerFile.getFileSize());
+                peerFile.setWasDownloaded(true);
             }
+
+            return peerFile.getWasDownloaded();
         }
 
-        bos.flush();
-        bos.close();
+        // The journal starts over when the previous download of the file was done or of another version of the file
+        Download recorded = downloadJournal.start(peerFile.getFileName(), peer, peerFile.getFileSize(), null);
+        boolean resumed = downloadsFolderManager.hasPartial(peerFile.getFileName());
+        boolean complete = false;
+        PooledConnection connection = connectionPool.acquire(peer);
+        try (FileChannel target = downloadsFolderManager.openPartial(peerFile.getFileName(), peerFile.getFileSize())) {
+            // The bytes written after the last checkpoint are downloaded again
+            peerFile.setDownloadedSize(resumed ? recorded.downloaded() : 0);
+
+            ProtocolStream stream = connection.getStream();
+            long size = requestDownload(stream, new Message(CommandType.DOWNLOAD, peerFile.getFileName(), peerFile.getDownloadedSize(), null, acceptedEncoding, true, me.getName()), peer);
+
+            if (size < 0)
+                throw new FileNotFoundException("The peer no longer shares " + peerFile.getFileName());
+
+            // The content of the file is sent after its size, compressed by blocks if the peer can
+            long start = peerFile.getDownloadedSize();
+            InputStream body = stream.getDecodedBodyInputStream(in -> bandwidthLimiter.throttleDownload(peer.getName(), in));
+            byte[] data = new byte[DOWNLOAD_BUFFER_SIZE];
+            int read = 0;
+
+            while (read > -1 && peerFile.getDownloadedSize() < size) {
+                read = body.read(data, 0, (int) Math.min(data.length, size - peerFile.getDownloadedSize()));
+                if (read > -1) {
+                    ByteBuffer buffer = ByteBuffer.wrap(data, 0, read);
+                    while (buffer.hasRemaining()) {
+                        target.write(buffer, peerFile.getDownloadedSize() + buffer.position());
+                    }
+
+                    peerFile.setDownloadedSize(peerFile.getDownloadedSize() + read);
+                    downloadJournal.progress(peerFile.getFileName(), peerFile.getDownloadedSize(), null);
+                }
+            }
+
+            // The peers that upload to this peer are served first when they download from it
+            uploadScheduler.recordReceived(peer.getName(), peerFile.getDownloadedSize() - start);
+            metrics.recordBytesIn(peer.getName(), peerFile.getDownloadedSize() - start);
 
-        if (peerFile.getDownloadedSize() == size) {
             // if the total downloaded size is equal to the file size, it means that the file was correctly downloaded
+            complete = peerFile.getDownloadedSize() == size;
+            if (complete) {
+                // The file may have changed since it was found, the partial file was sized for the size that was advertised
+                target.truncate(size);
+                connectionPool.release(connection);
+            } else {
+                connectionPool.invalidate(connection);
+            }
+        } catch (IOException e) {
+            connectionPool.invalidate(connection);
+            throw e;
+        }
+
+        if (complete) {
+            downloadsFolderManager.completePartial(peerFile.getFileName());
+            downloadJournal.finish(peerFile.getFileName(), peerFile.getDownloadedSize());
+            peerFile.setWasDownloaded(true);
+        }
+
+        return peerFile.getWasDownloaded();
+    }
+
+    /**
+     * Sends a download message and reads the size of the file that precedes its content.
+     * While the peer answers with a position in its queue of uploads, the message is sent again every {@link PeerRunner#QUEUE_RETRY} on the same connection.
+     *
+     * @param stream  The {@link ProtocolStream} of the connection to the peer.
+     * @param message The download {@link Message}, saying that this peer can wait in the queue.
+     * @param peer    The {@link Peer} that has the file.
+     * @return The size of the file, negative if the file was not found.
+     * @throws IOException If the connection fails or the thread is interrupted while waiting.
+     */
+    private static long requestDownload(ProtocolStream stream, Message message, Peer peer) throws IOException {
+        int lastPosition = 0;
+        while (true) {
+            stream.writeMessage(message);
+            long size = stream.readFileSize();
+            int position = ProtocolStream.queuePosition(size);
+            if (position == 0)
+                return size;
+
+            if (position != lastPosition)
+                System.out.printf("%s is queued at position %d by %s, waiting for an upload slot...%n", message.args()[0], position, peer.getName());
+            lastPosition = position;
+
+            try {
+                Thread.sleep(QUEUE_RETRY);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while queued by " + peer.getName());
+            }
+        }
+    }
+
+    /**
+     * Resumes in the background the downloads that were not done when the peer stopped, from the progress kept by the {@link PeerRunner#downloadJournal}.
+     * The files are added back to the {@link PeerRunner#filesFoundManager} and queued in the {@link PeerRunner#downloadManager} to be downloaded from the {@link Peer}
+     * they were last downloaded from, whether it is a known peer or not.
+     */
+    public void resumeDownloads() {
+        List<Download> unfinished;
+        try {
+            unfinished = downloadJournal.getUnfinishedDownloads();
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+
+        for (Download recorded : unfinished) {
+            PeerFile peerFile = new PeerFile(recorded.peerName(), recorded.fileName(), recorded.fileSize(), recorded.root());
+            filesFoundManager.addFile(peerFile);
+            if (downloadManager.submit(peerFile, new Peer(recorded.peerName(), recorded.peerAddress(), recorded.peerPort()), 0) != -1)
+                System.out.printf("Resuming the download of %s from %s...%n", recorded.fileName(), recorded.peerName());
+        }
+    }
+
+    /**
+     * Downloads a file from every peer that has it at the same time using a {@link SwarmDownload}.
+     * The sources are the known peers that answered with a file of the same name, size and Merkle root in the {@link PeerRunner#filesFoundManager}.
+     * When the root is known, the manifest of the file is fetched from the first source that has it and every range is verified.
+     *
+     * @param peerFile The file to download, found in the {@link PeerRunner#filesFoundManager}.
+     * @return true if the file was completely downloaded, false otherwise.
+     * @throws IOException           If the downloaded file cannot be written.
+     * @throws PeerNotFoundException If none of the peers that have the file are known.
+     */
+    public boolean sendSwarmDownload(PeerFile peerFile) throws IOException, PeerNotFoundException {
+        ArrayList<Peer> sources = new ArrayList<>();
+
+        for (PeerFile f : filesFoundManager.getSources(peerFile)) {
+            Peer source = peerContainer.getPeer(f.getPeerName());
+            if (source != null)
+                sources.add(source);
+        }
+
+        if (sources.isEmpty())
+            throw new PeerNotFoundException();
+
+        ChunkManifest manifest = null;
+        if (peerFile.getRoot() != null) {
+            IOException failure = null;
+            for (Peer source : sources) {
+                try {
+                    manifest = fetchManifest(source, peerFile.getFileName(), peerFile.getRoot(), peerFile.getFileSize());
+                    break;
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+
+            if (manifest == null)
+                throw failure;
+        }
+
+        if (new SwarmDownload(this, peerFile, sources, manifest).run()) {
+            peerFile.setDownloadedSize(peerFile.getFileSize());
             peerFile.setWasDownloaded(true);
         }
 
@@ -267,39 +772,83 @@ public class PeerRunner implements Runnable {
     }
 
     /**
-     * Sends the voila message to the {@link PeerRunner} at a given {@link Socket}. The message is sent whenever the file message finds at least one file that matches the search criteria.
-     * The message is always in this format: "voila! [peer name] [number of files found] [file name 1] [file size1] [file name 2] [file size2]...".
+     * Fetches the chunk hashes of a file from a {@link Peer} by pages of {@link ManifestCommand#MAX_CHUNKS} chunks and checks them against the advertised Merkle root.
+     * The message is in this format: manifest? [file name] [merkle root] [first chunk] [number of chunks]
      *
-     * @param socket The {@link Socket} to send the message to.
-     * @param files  The list of files that were found through the file message.
-     * @throws IOException If an error occurs while writing the message on the {@link ObjectOutputStream}.
+     * @param peer     The {@link Peer} that has the file.
+     * @param fileName The name of the file.
+     * @param root     The hexadecimal Merkle root advertised for the file.
+     * @param size     The size of the file in bytes.
+     * @return The verified {@link ChunkManifest} of the file.
+     * @throws IOException If the peer does not have this version of the file, or its hashes don't match the root.
      */
-    public void sendVoila(Socket socket, ArrayList<File> files) throws IOException {
-        ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-        StringBuilder builder = new StringBuilder();
-        builder.append("voila! ").append(this.me.getName()).append(" ").append(files.size());
+    public ChunkManifest fetchManifest(Peer peer, String fileName, String root, long size) throws IOException {
+        int chunks = ChunkManifest.chunkCount(size);
+        byte[] hashes = new byte[chunks * ChunkManifest.HASH_LENGTH];
+
+        for (int first = 0; first < chunks; first += ManifestCommand.MAX_CHUNKS) {
+            int count = Math.min(ManifestCommand.MAX_CHUNKS, chunks - first);
+            String page = request(peer, new Message(CommandType.MANIFEST, fileName, root, first, count));
+            if (page.length() != count * ChunkManifest.HASH_LENGTH * 2)
+                throw new IOException(peer.getName() + " has no manifest of this version of " + fileName);
+
+            try {
+                System.arraycopy(HexFormat.of().parseHex(page), 0, hashes, first * ChunkManifest.HASH_LENGTH, count * ChunkManifest.HASH_LENGTH);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Malformed manifest of " + fileName, e);
+            }
+        }
+
+        ChunkManifest manifest = new ChunkManifest(hashes);
+        if (!manifest.getRootHex().equals(root))
+            throw new IOException("The manifest of " + fileName + " sent by " + peer.getName() + " does not match its root.");
+
+        return manifest;
+    }
 
-        for (File file : files) {
-            builder.append(" ").append(file.getName()).append(" ").append(file.length());
+    /**
+     * Sends the voila message to a given {@link Peer}. The message is sent whenever the file message finds at least one file that matches the search criteria.
+     * The message is always in this format: "voila! [peer name] [number of files found] [file name 1] [file size1] [file name 2] [file size2]... [root 1] [root 2]...".
+     * The Merkle roots come after the names and sizes so that the peers that don't verify the downloads ignore them, {@link ChunkManifest#NO_ROOT} is sent for the files not hashed yet.
+     *
+     * @param peer  The {@link Peer} to send the message to.
+     * @param files The list of files that were found through the file message.
+     * @throws IOException If an error occurs while writing the message on the {@link ProtocolStream}.
+     */
+    public void sendVoila(Peer peer, ArrayList<SharedFile> files) throws IOException {
+        List<PathCache.CachedFile> found = new ArrayList<>(files.size());
+        for (SharedFile file : files) {
+            ChunkManifest manifest = filesFolderManager.getManifest(file);
+            found.add(new PathCache.CachedFile(this.me.getName(), file.name(), file.size(), manifest != null ? manifest.getRootHex() : null));
         }
 
-        out.writeObject(builder.toString());
-        out.flush();
+        send(peer, new Message(CommandType.VOILA, this.me.getName(), found));
     }
 
+
+    /**
+     * Sends the voila message to a given {@link Peer} on behalf of the peer that has the files, to relay its files or to answer a search from the {@link PeerRunner#pathCache}.
+     * The message is in the same format as the one sent by {@link PeerRunner#sendVoila(Peer, ArrayList)}, with the name of the peer that has the files.
+     *
+     * @param peer     The {@link Peer} to send the message to.
+     * @param peerName The name of the peer that has the files.
+     * @param files    The files found on that peer.
+     * @throws IOException If an error occurs while writing the message on the {@link ProtocolStream}.
+     */
+    public void sendVoila(Peer peer, String peerName, List<PathCache.CachedFile> files) throws IOException {
+        send(peer, new Message(CommandType.VOILA, peerName, files));
+    }
+
+
     /**
-     * Sends the bye message to the {@link PeerRunner} at a given {@link Socket}. Awaits the response from the peer.
+     * Sends the bye message to a given {@link Peer}. Awaits the response from the peer.
      *
-     * @param socket The {@link Socket} to send the message to.
+     * @param peer The {@link Peer} to send the message to.
      * @return The response from the peer.
-     * @throws IOException            If an error occurs while writing the message on the {@link ObjectOutputStream}.
-     * @throws ClassNotFoundException If an error occurs while reading the message from the {@link ObjectInputStream}.
+     * @throws IOException If an error occurs while writing the message or reading the response on the {@link ProtocolStream}.
      */
-    public String sendBye(Socket socket) throws IOException, ClassNotFoundException {
-        ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-        ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-        out.writeObject(String.format("bye! %s", this.me.getName()));
-        return (String) in.readObject();
+    public String sendBye(Peer peer) throws IOException {
+        return request(peer, new Message(CommandType.BYE, this.me.getName()));
     }
 
 
@@ -321,6 +870,42 @@ public class PeerRunner implements Runnable {
         return peerContainer;
     }
 
+    /**
+     * Returns the {@link PeerRunner#downloadJournal} of the peer.
+     *
+     * @return the {@link DownloadJournal} that keeps the progress of the downloads of this peer.
+     */
+    public DownloadJournal getDownloadJournal() {
+        return downloadJournal;
+    }
+
+    /**
+     * Returns the {@link PeerRunner#downloadManager} of the peer.
+     *
+     * @return the {@link DownloadManager} that downloads the files queued by the user in the background.
+     */
+    public DownloadManager getDownloadManager() {
+        return downloadManager;
+    }
+
+    /**
+     * Returns the {@link PeerRunner#commandExecutor} of the peer.
+     *
+     * @return the {@link CommandExecutor} shared by all the connections of this peer.
+     */
+    public CommandExecutor getCommandExecutor() {
+        return commandExecutor;
+    }
+
+    /**
+     * Returns the {@link PeerRunner#metrics} of the peer.
+     *
+     * @return the {@link PeerMetrics} of this peer.
+     */
+    public PeerMetrics getMetrics() {
+        return metrics;
+    }
+
     /**
      * Returns the {@link PeerRunner#filesFolderManager} of the peer.
      *
@@ -330,6 +915,69 @@ public class PeerRunner implements Runnable {
         return filesFolderManager;
     }
 
+    /**
+     * Returns the {@link PeerRunner#connectionPool} of the peer.
+     *
+     * @return the {@link ConnectionPool} that keeps the connections opened by this peer.
+     */
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * Returns the {@link PeerRunner#acceptedEncoding} of the peer.
+     *
+     * @return the {@link BodyEncoding} accepted for the content of the files downloaded by this peer.
+     */
+    public BodyEncoding getAcceptedEncoding() {
+        return acceptedEncoding;
+    }
+
+    /**
+     * Returns the {@link PeerRunner#bandwidthLimiter} of the peer.
+     *
+     * @return the {@link BandwidthLimiter} of the uploads and the downloads of this peer.
+     */
+    public BandwidthLimiter getBandwidthLimiter() {
+        return bandwidthLimiter;
+    }
+
+    /**
+     * Returns the {@link PeerRunner#uploadScheduler} of the peer.
+     *
+     * @return the {@link UploadScheduler} of the uploads of this peer.
+     */
+    public UploadScheduler getUploadScheduler() {
+        return uploadScheduler;
+    }
+
+    /**
+     * Returns the {@link PeerRunner#pathCache} of the peer.
+     *
+     * @return the {@link PathCache} of the searches forwarded by this peer, or null if it is disabled.
+     */
+    public PathCache getPathCache() {
+        return pathCache;
+    }
+
+    /**
+     * Returns the {@link PeerRunner#seenQueries} of the peer.
+     *
+     * @return the {@link SeenQueryCache} that remembers the searches already handled by this peer.
+     */
+    public SeenQueryCache getSeenQueries() {
+        return seenQueries;
+    }
+
+    /**
+     * Returns the {@link PeerRunner#downloadsFolderManager} of the peer.
+     *
+     * @return the {@link FolderManger} that is used to store the files downloaded by this peer.
+     */
+    public FolderManger getDownloadsFolderManager() {
+        return downloadsFolderManager;
+    }
+
     /**
      * Returns the {@link PeerRunner#filesFoundManager} of the peer.
      *
@@ -0,0 +1,141 @@
+package com.jp2p.core.peer;
+
+import com.jp2p.database.PeerConfigurationTable;
+
+import java.net.Inet4Address;
+import java.net.UnknownHostException;
+import java.sql.SQLException;
+
+/**
+ * The settings a {@link PeerRunner} is started with. They are read from the PEER_CONFIGURATION table by {@link PeerSettings#fromConfiguration()},
+ * or straight from the seed file by {@link PeerSettings#fromSeed()} so that several peers can be started in the same JVM without sharing a database of settings.
+ * The folders are not configured, they default to {@link PeerRunner#PEER_FILE_PATH} and {@link PeerRunner#PEER_DOWNLOADS_PATH}.
+ *
+ * @param name              The name of the peer.
+ * @param address           The address the other peers reach this peer on.
+ * @param port              The port the peer listens on, 0 to listen on any free port.
+ * @param maxPeers          The maximum number of peers the peer knows.
+ * @param binaryProtocol    True if the connections opened by the peer speak the binary wire protocol, false for the legacy protocol.
+ * @param serverMode        The way the server serves the connections it accepts.
+ * @param pathCaching       True if the files found by the searches forwarded by the peer are cached and relayed, false if they are sent straight to the origin of the search.
+ * @param compression       True if the files downloaded by the peer may be sent compressed, false to always receive them raw.
+ * @param uploadLimit       The rate of all the uploads in bytes per second, 0 for no limit.
+ * @param downloadLimit     The rate of all the downloads in bytes per second, 0 for no limit.
+ * @param peerUploadLimit   The rate of the uploads to a single peer in bytes per second, 0 for no limit.
+ * @param peerDownloadLimit The rate of the downloads from a single peer in bytes per second, 0 for no limit.
+ * @param uploadSlots       The number of peers uploaded to at the same time, 0 to not limit it.
+ * @param downloads         The number of files downloaded at the same time in the background.
+ * @param filesPath         The path of the folder of the shared files, ending with a separator.
+ * @param downloadsPath     The path of the folder of the downloaded files, ending with a separator.
+ * @param journaled         True if the progress of the downloads is kept in the DOWNLOADS table to be resumed after a restart, false to keep it in memory only.
+ */
+public record PeerSettings(String name, String address, int port, int maxPeers, boolean binaryProtocol, ServerMode serverMode, boolean pathCaching, boolean compression,
+                           long uploadLimit, long downloadLimit, long peerUploadLimit, long peerDownloadLimit, int uploadSlots, int downloads,
+                           String filesPath, String downloadsPath, boolean journaled) {
+    /**
+     * Reads the value of a configuration parameter given its name.
+     */
+    @FunctionalInterface
+    private interface Configuration {
+        /**
+         * Reads the value of a configuration parameter.
+         *
+         * @param name The name of the configuration parameter.
+         * @return The value of the configuration parameter.
+         * @throws SQLException If the value could not be retrieved.
+         */
+        String get(String name) throws SQLException;
+    }
+
+    /**
+     * Reads the settings from the PEER_CONFIGURATION table, the peer being reached on the address of this host.
+     *
+     * @return The settings of the peer.
+     * @throws SQLException         If the configuration could not be read.
+     * @throws UnknownHostException If the address of this host cannot be found.
+     */
+    public static PeerSettings fromConfiguration() throws SQLException, UnknownHostException {
+        return read(PeerConfigurationTable::getConfiguration);
+    }
+
+    /**
+     * Reads the settings from the seed file without going through the database, the peer being reached on the address of this host.
+     *
+     * @return The settings of the peer.
+     * @throws UnknownHostException If the address of this host cannot be found.
+     */
+    public static PeerSettings fromSeed() throws UnknownHostException {
+        try {
+            return read(PeerConfigurationTable::getSeededConfiguration);
+        } catch (SQLException e) {
+            // The seed file is read without the database
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads the settings given the values of the configuration parameters.
+     *
+     * @param configuration The values of the configuration parameters.
+     * @return The settings of the peer.
+     * @throws SQLException         If the configuration could not be read.
+     * @throws UnknownHostException If the address of this host cannot be found.
+     */
+    private static PeerSettings read(Configuration configuration) throws SQLException, UnknownHostException {
+        // The limits are configured in KiB per second, 0 for no limit
+        return new PeerSettings(
+                configuration.get("default_name"),
+                Inet4Address.getLocalHost().getHostAddress(),
+                Integer.parseInt(configuration.get("default_port")),
+                Integer.parseInt(configuration.get("max_peers")),
+                configuration.get("wire_protocol").equals("binary"),
+                ServerMode.fromConfiguration(configuration.get("server_mode")),
+                Boolean.parseBoolean(configuration.get("path_cache")),
+                Boolean.parseBoolean(configuration.get("compression")),
+                Long.parseLong(configuration.get("upload_limit")) * 1024,
+                Long.parseLong(configuration.get("download_limit")) * 1024,
+                Long.parseLong(configuration.get("peer_upload_limit")) * 1024,
+                Long.parseLong(configuration.get("peer_download_limit")) * 1024,
+                Integer.parseInt(configuration.get("upload_slots")),
+                Integer.parseInt(configuration.get("concurrent_downloads")),
+                PeerRunner.PEER_FILE_PATH,
+                PeerRunner.PEER_DOWNLOADS_PATH,
+                true);
+    }
+
+    /**
+     * Returns these settings for another peer.
+     *
+     * @param name    The name of the peer.
+     * @param address The address the other peers reach the peer on.
+     * @param port    The port the peer listens on, 0 to listen on any free port.
+     * @return The new settings.
+     */
+    public PeerSettings withPeer(String name, String address, int port) {
+        return new PeerSettings(name, address, port, maxPeers, binaryProtocol, serverMode, pathCaching, compression,
+                uploadLimit, downloadLimit, peerUploadLimit, peerDownloadLimit, uploadSlots, downloads, filesPath, downloadsPath, journaled);
+    }
+
+    /**
+     * Returns these settings with other folders.
+     *
+     * @param filesPath     The path of the folder of the shared files, ending with a separator.
+     * @param downloadsPath The path of the folder of the downloaded files, ending with a separator.
+     * @return The new settings.
+     */
+    public PeerSettings withFolders(String filesPath, String downloadsPath) {
+        return new PeerSettings(name, address, port, maxPeers, binaryProtocol, serverMode, pathCaching, compression,
+                uploadLimit, downloadLimit, peerUploadLimit, peerDownloadLimit, uploadSlots, downloads, filesPath, downloadsPath, journaled);
+    }
+
+    /**
+     * Returns these settings with the progress of the downloads kept in the DOWNLOADS table or in memory only.
+     *
+     * @param journaled True to keep the progress in the DOWNLOADS table, false to keep it in memory only.
+     * @return The new settings.
+     */
+    public PeerSettings withJournal(boolean journaled) {
+        return new PeerSettings(name, address, port, maxPeers, binaryProtocol, serverMode, pathCaching, compression,
+                uploadLimit, downloadLimit, peerUploadLimit, peerDownloadLimit, uploadSlots, downloads, filesPath, downloadsPath, journaled);
+    }
+}
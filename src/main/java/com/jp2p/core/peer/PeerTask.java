@@ -1,12 +1,16 @@
 package com.jp2p.core.peer;
 
 import com.jp2p.core.commands.*;
-import javafx.util.Pair;
+import com.jp2p.core.metrics.PeerMetrics;
+import com.jp2p.core.protocol.Message;
+import com.jp2p.core.protocol.ProtocolStream;
+import com.jp2p.core.protocol.ReplyStream;
+import com.jp2p.core.protocol.WireProtocol;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
 import java.net.Socket;
+import java.util.EnumMap;
 
 /**
  * This is a slave of the {@link PeerRunner} class.
@@ -14,21 +18,31 @@ import java.net.Socket;
  */
 @SuppressWarnings({"InfiniteLoopStatement"})
 public class PeerTask implements Runnable {
+    /**
+     * The time in milliseconds after which a connection on which no message was received is closed, freeing the slave that serves it.
+     */
+    public static final int IDLE_TIMEOUT = 15_000;
+
     /**
      * The socket of the connection.
      */
     private final Socket client;
 
     /**
-     * The {@link PeerRunner} that created this task.
+     * The {@link InputStream} from which the protocol is negotiated when the connection is handed over by the {@link SelectorServer} with some bytes already received, null otherwise.
      */
-    private final PeerRunner me;
+    private final InputStream in;
 
     /**
-     * The {@link CommandExecutor} that will store and execute the {@link ICommand}s provided by the peer.
+     * The {@link CommandExecutor} of the peer, shared by all its connections, that executes the {@link ICommand}s.
      */
     private final CommandExecutor commandExecutor;
 
+    /**
+     * The {@link PeerMetrics} counting the connection while it is open.
+     */
+    private final PeerMetrics metrics;
+
     /**
      * Constructs a new {@link PeerTask} with the provided {@link Socket} and {@link PeerRunner}.
      *
@@ -36,88 +50,93 @@ public class PeerTask implements Runnable {
      * @param me     The master {@link PeerRunner} that created this task.
      */
     public PeerTask(Socket client, PeerRunner me) {
+        this(client, null, me);
+    }
+
+    /**
+     * Constructs a new {@link PeerTask} for a connection of which some bytes were already received.
+     *
+     * @param client The {@link Socket} of the connection.
+     * @param in     The {@link InputStream} of the connection starting with the bytes already received, or null to read from the {@link Socket}.
+     * @param me     The master {@link PeerRunner} that created this task.
+     */
+    PeerTask(Socket client, InputStream in, PeerRunner me) {
         this.client = client;
-        this.me = me;
-        commandExecutor = new CommandExecutor();
-        addCommands();
+        this.in = in;
+        this.commandExecutor = me.getCommandExecutor();
+        this.metrics = me.getMetrics();
     }
 
     /**
-     * Adds the commands that will be executed by the {@link PeerTask#commandExecutor} whenever a message is received from a Client.
+     * Creates the {@link CommandExecutor} holding the commands that are executed whenever a message is received from a Client.
+     * The commands hold no state of their own, so it is created once by the {@link PeerRunner} and serves all its connections at once.
      *
+     * @param me The {@link PeerRunner} on which the commands act.
+     * @return The new {@link CommandExecutor}.
      * @see CommandExecutor
      * @see CommandType
      * @see ICommand
      */
-    private void addCommands() {
-        commandExecutor.addCommand(CommandType.NAME, args -> me.getPeer().getName());
-        commandExecutor.addCommand(CommandType.KNOWN_PEERS, new KnownPeersCommand(me.getPeerContainer()));
-        commandExecutor.addCommand(CommandType.ITS_ME, new ItsMeCommand(me.getPeerContainer()));
-        commandExecutor.addCommand(CommandType.FILE, new FileCommand(me));
-        commandExecutor.addCommand(CommandType.DOWNLOAD, new DownloadCommand(me.getFilesFolderManager()));
-        commandExecutor.addCommand(CommandType.VOILA, new VoilaCommand(me.getFilesFoundManager()));
-        commandExecutor.addCommand(CommandType.BYE, new ByeCommand(me));
+    static CommandExecutor createCommandExecutor(PeerRunner me) {
+        EnumMap<CommandType, ICommand> commands = new EnumMap<>(CommandType.class);
+        commands.put(CommandType.NAME, args -> me.getPeer().getName());
+        commands.put(CommandType.KNOWN_PEERS, new KnownPeersCommand(me.getPeerContainer()));
+        commands.put(CommandType.ITS_ME, new ItsMeCommand(me.getPeerContainer()));
+        commands.put(CommandType.FILE, new FileCommand(me));
+        commands.put(CommandType.DOWNLOAD, new DownloadCommand(me.getFilesFolderManager(), me.getBandwidthLimiter(), me.getUploadScheduler(), me.getMetrics()));
+        commands.put(CommandType.VOILA, new VoilaCommand(me));
+        commands.put(CommandType.BYE, new ByeCommand(me));
+        commands.put(CommandType.MANIFEST, new ManifestCommand(me.getFilesFolderManager()));
+        return new CommandExecutor(commands, me.getMetrics());
     }
 
     /**
      * Runs the task.
-     * Receives the messages from the client and executes the commands.
-     * All commands received should follow the following format: [command](!|?) [arg1] [arg2] [arg3]...
+     * Negotiates the wire protocol spoken by the client, then receives the messages from the client and executes the commands until the client disconnects or stays idle for {@link PeerTask#IDLE_TIMEOUT}.
+     *
+     * @see WireProtocol
      */
     @Override
     public void run() {
-        ObjectInputStream in;
-        ObjectOutputStream out;
-        try {
-            in = new ObjectInputStream(client.getInputStream());
-            out = new ObjectOutputStream(client.getOutputStream());
+        metrics.connectionOpened();
+        try (client) {
+            client.setSoTimeout(IDLE_TIMEOUT);
+            ProtocolStream stream = in == null ? WireProtocol.accept(client) : WireProtocol.accept(client, in);
 
             while (true) {
-                String command = (String) in.readObject();
-                handleCommand(command, out);
+                Message message = stream.readMessage();
+                if (message != null) {
+                    handleCommand(commandExecutor, message, stream);
+                }
             }
-        } catch (IOException | ClassNotFoundException ignored) {
+        } catch (IOException | IllegalArgumentException ignored) {
+        } finally {
+            metrics.connectionClosed();
         }
     }
 
     /**
-     * Handles the command received from the client. It will execute the command using the {@link CommandExecutor} and send the result back to the client if required.
-     * All commands received should follow the following format: [command](!|?) [arg1] [arg2] [arg3]...
+     * Handles the message received from the client. It will execute the command using the {@link CommandExecutor} and send the result back to the client if required.
+     * The arguments of the file and voila messages are already typed by the {@link ProtocolStream}, they are handed to their command as they are.
      *
-     * @param command The command received from the client.
-     * @param out     The {@link ObjectOutputStream} that will be used to send the result back to the client.
-     * @throws IllegalArgumentException If the command is not valid, meaning the expected arguments or the expected form of the command aren't correct.
-     * @throws IOException              If the {@link ObjectOutputStream} fails to send the result back to the client.
+     * @param commandExecutor The {@link CommandExecutor} holding the commands.
+     * @param message         The {@link Message} received from the client.
+     * @param stream          The {@link ReplyStream} that will be used to send the result back to the client.
+     * @throws IllegalArgumentException If the message is not valid, meaning the expected arguments of the command aren't correct.
+     * @throws IOException              If the {@link ReplyStream} fails to send the result back to the client.
      */
-    private void handleCommand(String command, ObjectOutputStream out) throws IllegalArgumentException, IOException {
-        Pair<String, String[]> args = getArgs(command);
-        switch (args.getKey()) {
-            case "it's me" -> out.writeObject(commandExecutor.executeCommand(CommandType.ITS_ME, args.getValue()[0], args.getValue()[1], args.getValue()[2]));
-            case "known peers" -> out.writeObject(commandExecutor.executeCommand(CommandType.KNOWN_PEERS));
-            case "name" -> out.writeObject(commandExecutor.executeCommand(CommandType.NAME));
-            case "file" -> commandExecutor.executeCommand(CommandType.FILE, args.getValue()[0], args.getValue()[1], args.getValue()[2], args.getValue()[3]);
-            case "download" -> commandExecutor.executeCommand(CommandType.DOWNLOAD, args.getValue()[0], args.getValue()[1], out);
-            case "voila" -> commandExecutor.executeCommand(CommandType.VOILA, (Object[]) args.getValue());
-            case "bye" -> out.writeObject(commandExecutor.executeCommand(CommandType.BYE, args.getValue()[0]));
+    static void handleCommand(CommandExecutor commandExecutor, Message message, ReplyStream stream) throws IllegalArgumentException, IOException {
+        Object[] args = message.args();
+        switch (message.type()) {
+            case ITS_ME -> stream.writeReply((String) commandExecutor.executeCommand(CommandType.ITS_ME, args[0], args[1], args[2]));
+            case KNOWN_PEERS -> stream.writeReply((String) commandExecutor.executeCommand(CommandType.KNOWN_PEERS));
+            case NAME -> stream.writeReply((String) commandExecutor.executeCommand(CommandType.NAME));
+            case FILE -> commandExecutor.executeCommand(CommandType.FILE, args);
+            case DOWNLOAD -> commandExecutor.executeCommand(CommandType.DOWNLOAD, args[0], args[1], args.length > 2 ? args[2] : null, stream,
+                    args.length > 3 ? args[3] : null, args.length > 4 ? args[4] : null, args.length > 5 ? args[5] : null);
+            case VOILA -> commandExecutor.executeCommand(CommandType.VOILA, args);
+            case BYE -> stream.writeReply((String) commandExecutor.executeCommand(CommandType.BYE, args[0]));
+            case MANIFEST -> stream.writeReply((String) commandExecutor.executeCommand(CommandType.MANIFEST, args));
         }
     }
-
-    /**
-     * Splits the command the received from the client into the command and the arguments.
-     * The characters "!" and "?" are used to split the command and the arguments.
-     * All commands received should follow the following format: [command](!|?) [arg1] [arg2] [arg3]...
-     *
-     * @param command The command received from the client.
-     * @return A {@link Pair} containing the command and the arguments.
-     * @throws IllegalArgumentException If the command is not valid, meaning the expected arguments or the expected form for the command aren't correct.
-     */
-    private Pair<String, String[]> getArgs(String command) throws IllegalArgumentException {
-        if (command.contains("!") || command.contains("?")) {
-            command = command.replace("?", "!");
-            String[] split = command.split("!");
-
-            return split.length > 1 ? new Pair<>(split[0], split[1].trim().split(" ")) : new Pair<>(split[0], null);
-        } else
-            throw new IllegalArgumentException("Provided arguments don't match the format [messageName(?|!) arg1 arg2 ...]");
-    }
 }
@@ -0,0 +1,178 @@
+package com.jp2p.core.peer;
+
+import com.jp2p.core.protocol.ProtocolStream;
+
+import java.net.InetSocketAddress;
+
+/**
+ * A connection to a {@link Peer} handed out by the {@link ConnectionPool}.
+ * A connection is used by a single thread at a time, between {@link ConnectionPool#acquire(Peer)} and {@link ConnectionPool#release(PooledConnection)}.
+ * Each time it is handed out the connection starts a new lease, so that a write timeout set during a lease cannot close the connection once it was given back or handed out again.
+ */
+public class PooledConnection {
+    /**
+     * The address of the {@link Peer} the connection is opened to.
+     */
+    private final InetSocketAddress address;
+
+    /**
+     * The {@link ProtocolStream} of the connection.
+     */
+    private final ProtocolStream stream;
+
+    /**
+     * The time in milliseconds at which the connection was last released to the pool.
+     */
+    private long lastUsed;
+
+    /**
+     * True if the connection was already used before being handed out, meaning the peer may have closed it in the meantime.
+     */
+    private boolean reused;
+
+    /**
+     * True while the connection is handed out, false while it is idle in the pool or once it was given back.
+     */
+    private boolean inUse;
+
+    /**
+     * True once the connection was closed, it is then never put back in the pool.
+     */
+    private boolean closed;
+
+    /**
+     * The number of times the connection was handed out.
+     */
+    private int lease;
+
+    /**
+     * Constructs a new {@link PooledConnection}.
+     *
+     * @param address The address of the {@link Peer} the connection is opened to.
+     * @param stream  The {@link ProtocolStream} of the connection.
+     */
+    PooledConnection(InetSocketAddress address, ProtocolStream stream) {
+        this.address = address;
+        this.stream = stream;
+        this.lastUsed = System.currentTimeMillis();
+        this.reused = false;
+        this.inUse = true;
+        this.closed = false;
+        this.lease = 1;
+    }
+
+    /**
+     * Returns the {@link ProtocolStream} of the connection.
+     *
+     * @return The {@link ProtocolStream} of the connection.
+     */
+    public ProtocolStream getStream() {
+        return stream;
+    }
+
+    /**
+     * Returns true if the connection was already used before being handed out.
+     *
+     * @return true if the connection was already used before being handed out, false if it was just opened.
+     */
+    public boolean isReused() {
+        return reused;
+    }
+
+    /**
+     * Returns the address of the {@link Peer} the connection is opened to.
+     *
+     * @return The address of the {@link Peer}.
+     */
+    InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Returns the time in milliseconds since the connection was last released to the pool.
+     *
+     * @return The time in milliseconds the connection has been idle.
+     */
+    long getIdleTime() {
+        return System.currentTimeMillis() - lastUsed;
+    }
+
+    /**
+     * Marks the connection as released to the pool.
+     */
+    synchronized void markReleased() {
+        this.lastUsed = System.currentTimeMillis();
+        this.reused = true;
+    }
+
+    /**
+     * Hands out an idle connection, starting a new lease.
+     *
+     * @return true if the connection was handed out, false if it was closed in the meantime.
+     */
+    synchronized boolean checkOut() {
+        if (closed)
+            return false;
+
+        inUse = true;
+        lease++;
+        return true;
+    }
+
+    /**
+     * Ends the current lease of the connection.
+     *
+     * @return true if the connection was handed out, false if it was already given back.
+     */
+    synchronized boolean checkIn() {
+        if (!inUse)
+            return false;
+
+        inUse = false;
+        return true;
+    }
+
+    /**
+     * Returns the current lease of the connection.
+     *
+     * @return The number of times the connection was handed out.
+     */
+    synchronized int getLease() {
+        return lease;
+    }
+
+    /**
+     * Marks the connection as closed.
+     *
+     * @return true if the connection was open, false if it was already closed.
+     */
+    synchronized boolean markClosed() {
+        if (closed)
+            return false;
+
+        closed = true;
+        return true;
+    }
+
+    /**
+     * Marks the connection as closed if it is still handed out for the given lease.
+     *
+     * @param lease The lease during which the connection must be closed.
+     * @return true if the connection must be closed, false if it was given back, handed out again or already closed.
+     */
+    synchronized boolean markClosed(int lease) {
+        if (!inUse || this.lease != lease)
+            return false;
+
+        return markClosed();
+    }
+
+    /**
+     * Returns true if the connection was closed.
+     *
+     * @return true if the connection was closed, false otherwise.
+     */
+    synchronized boolean isClosed() {
+        return closed;
+    }
+}
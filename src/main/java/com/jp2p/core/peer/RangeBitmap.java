@@ -0,0 +1,117 @@
+package com.jp2p.core.peer;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size bitmap of the ranges of a download that were written, that several threads update without a shared lock.
+ * Each bit is set and cleared with a compare-and-set of the word that holds it, so the threads writing different ranges never wait for each other.
+ */
+public class RangeBitmap {
+    /**
+     * The words of the bitmap, the bit of a range being the bit {@code range % 64} of the word {@code range / 64}.
+     */
+    private final AtomicLongArray words;
+
+    /**
+     * The number of bits set.
+     */
+    private final AtomicInteger count;
+
+    /**
+     * Constructs a new {@link RangeBitmap} with no bits set.
+     *
+     * @param size The number of ranges.
+     */
+    public RangeBitmap(int size) {
+        this.words = new AtomicLongArray((size + Long.SIZE - 1) / Long.SIZE);
+        this.count = new AtomicInteger();
+    }
+
+    /**
+     * Sets the bit of a range.
+     *
+     * @param range The index of the range.
+     * @return True if the bit was not set before.
+     */
+    public boolean set(int range) {
+        long mask = 1L << range;
+        long word;
+        do {
+            word = words.get(range / Long.SIZE);
+            if ((word & mask) != 0)
+                return false;
+        } while (!words.compareAndSet(range / Long.SIZE, word, word | mask));
+
+        count.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Clears the bit of a range.
+     *
+     * @param range The index of the range.
+     * @return True if the bit was set before.
+     */
+    public boolean clear(int range) {
+        long mask = 1L << range;
+        long word;
+        do {
+            word = words.get(range / Long.SIZE);
+            if ((word & mask) == 0)
+                return false;
+        } while (!words.compareAndSet(range / Long.SIZE, word, word & ~mask));
+
+        count.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Returns whether the bit of a range is set.
+     *
+     * @param range The index of the range.
+     * @return True if the bit is set.
+     */
+    public boolean get(int range) {
+        return (words.get(range / Long.SIZE) & (1L << range)) != 0;
+    }
+
+    /**
+     * Returns the number of bits set.
+     *
+     * @return The number of ranges written.
+     */
+    public int count() {
+        return count.get();
+    }
+
+    /**
+     * Returns the index of the first range whose bit is not set, which is also the number of ranges written from the start of the file without a gap.
+     *
+     * @return The index of the first range not written.
+     */
+    public int nextClearBit() {
+        for (int i = 0; i < words.length(); i++) {
+            long word = words.get(i);
+            if (word != -1L)
+                return i * Long.SIZE + Long.numberOfTrailingZeros(~word);
+        }
+
+        return words.length() * Long.SIZE;
+    }
+
+    /**
+     * Returns a copy of the bitmap. The bits set while it is copied may or may not be in the copy.
+     *
+     * @return The copy of the bitmap as a {@link BitSet}.
+     */
+    public BitSet toBitSet() {
+        long[] copy = new long[words.length()];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = words.get(i);
+        }
+
+        return BitSet.valueOf(copy);
+    }
+}
@@ -0,0 +1,55 @@
+package com.jp2p.core.peer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the identifiers of the {@link FileQuery}s recently handled by a peer, so that a search reaching the peer again through a cycle of the network is dropped
+ * before the shared folder is scanned and the search forwarded.
+ * At most {@link SeenQueryCache#MAX_ENTRIES} identifiers are kept, each for {@link SeenQueryCache#TTL}.
+ */
+public class SeenQueryCache {
+    /**
+     * The maximum number of identifiers kept, the oldest ones are forgotten first.
+     */
+    public static final int MAX_ENTRIES = 4096;
+
+    /**
+     * The time in milliseconds during which an identifier is kept.
+     */
+    public static final long TTL = 60_000;
+
+    /**
+     * The time in milliseconds at which each identifier expires, in insertion order which is also the order of expiration.
+     */
+    private final LinkedHashMap<Long, Long> expirations;
+
+    /**
+     * Constructs a new empty {@link SeenQueryCache}.
+     */
+    public SeenQueryCache() {
+        this.expirations = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+    }
+
+    /**
+     * Marks a search as seen.
+     *
+     * @param id The identifier of the search.
+     * @return True if the search was not seen yet and must be handled, false if it is a repeat.
+     */
+    public synchronized boolean markSeen(long id) {
+        long now = System.currentTimeMillis();
+        Iterator<Long> oldest = expirations.values().iterator();
+        while (oldest.hasNext() && oldest.next() <= now) {
+            oldest.remove();
+        }
+
+        return expirations.putIfAbsent(id, now + TTL) == null;
+    }
+}
@@ -0,0 +1,408 @@
+package com.jp2p.core.peer;
+
+import com.jp2p.core.commands.CommandType;
+import com.jp2p.core.protocol.BodyEncoding;
+import com.jp2p.core.protocol.FrameCodec;
+import com.jp2p.core.protocol.Message;
+import com.jp2p.core.protocol.ReplyStream;
+import com.jp2p.core.protocol.WireProtocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A connection accepted by the {@link SelectorServer}, owned by a {@link SelectorLoop}.
+ * The loop reads the frames of the binary protocol as they come, and a frame is only decoded once it was fully received.
+ * The commands are executed by the workers one at a time per connection, so that the replies are sent in the order of the messages,
+ * and their replies are queued to be written by the loop.
+ * <p>
+ * A download is served by a thread of the transfers in blocking mode, the connection being registered again once the content of the file was sent.
+ * A connection speaking the legacy protocol is handed over for good to a blocking {@link PeerTask}, served by the transfers as well.
+ * The commands only reply on the connection, through its {@link ReplyStream} side.
+ */
+class SelectorConnection implements ReplyStream {
+    /**
+     * The initial size of the buffer in which the frames are read.
+     */
+    private static final int INITIAL_BUFFER_SIZE = 512;
+
+    /**
+     * The {@link SelectorServer} that accepted the connection.
+     */
+    private final SelectorServer server;
+
+    /**
+     * The {@link SelectorLoop} that owns the connection.
+     */
+    private final SelectorLoop loop;
+
+    /**
+     * The {@link SocketChannel} of the connection.
+     */
+    private final SocketChannel channel;
+
+    /**
+     * The frames waiting to be written, in order.
+     */
+    private final Queue<ByteBuffer> writeQueue;
+
+    /**
+     * The {@link SelectionKey} of the connection, replaced each time the connection is registered again.
+     */
+    private SelectionKey key;
+
+    /**
+     * The buffer in which the bytes received are accumulated until a whole frame was received, always ready to be written to.
+     */
+    private ByteBuffer readBuffer;
+
+    /**
+     * True once the client sent the {@link WireProtocol#VERSION} byte.
+     */
+    private boolean negotiated;
+
+    /**
+     * True while a command received on this connection is executed, no other message is read in the meantime.
+     */
+    private boolean busy;
+
+    /**
+     * The time in milliseconds at which a message was last received.
+     */
+    private long lastActivity;
+
+    /**
+     * Constructs a new {@link SelectorConnection}.
+     *
+     * @param server  The {@link SelectorServer} that accepted the connection.
+     * @param loop    The {@link SelectorLoop} that owns the connection.
+     * @param channel The non-blocking {@link SocketChannel} of the connection.
+     */
+    SelectorConnection(SelectorServer server, SelectorLoop loop, SocketChannel channel) {
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+        this.writeQueue = new ConcurrentLinkedQueue<>();
+        this.readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        this.lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * Sets the {@link SelectionKey} of the connection once it is registered.
+     *
+     * @param key The {@link SelectionKey} of the connection.
+     */
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Reads the bytes received and handles the frames that were fully received. Called by the loop.
+     */
+    void onReadable() {
+        int read;
+        try {
+            read = channel.read(readBuffer);
+        } catch (IOException e) {
+            closeConnection();
+            return;
+        }
+
+        if (read == -1) {
+            closeConnection();
+            return;
+        }
+
+        lastActivity = System.currentTimeMillis();
+        if (!negotiated && readBuffer.position() > 0) {
+            byte first = readBuffer.get(0);
+            if (first == WireProtocol.LEGACY_MAGIC) {
+                handOverLegacy();
+                return;
+            }
+
+            if (first != WireProtocol.VERSION) {
+                closeConnection();
+                return;
+            }
+
+            negotiated = true;
+            readBuffer.flip().get();
+            readBuffer.compact();
+            writeQueue.add(ByteBuffer.wrap(new byte[]{WireProtocol.VERSION}));
+            flush();
+        }
+
+        processFrames();
+    }
+
+    /**
+     * Writes the frames that could not be written at once. Called by the loop.
+     */
+    void onWritable() {
+        flush();
+    }
+
+    /**
+     * Returns true if the connection was closed, or if no message was received since the given time while no command is executed. Called by the loop.
+     *
+     * @param time The time in milliseconds.
+     * @return True if the connection can be closed.
+     */
+    boolean isIdleSince(long time) {
+        return !channel.isOpen() || (!busy && lastActivity < time);
+    }
+
+    /**
+     * Closes the connection and forgets it. Called by the loop.
+     */
+    void closeConnection() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+
+        loop.remove(this);
+    }
+
+    /**
+     * Decodes and dispatches the frames fully received, until a command is being executed.
+     * The buffer is grown when the frame being received does not fit in it.
+     */
+    private void processFrames() {
+        while (!busy && channel.isOpen()) {
+            readBuffer.flip();
+            if (readBuffer.remaining() < FrameCodec.LENGTH_PREFIX) {
+                readBuffer.compact();
+                return;
+            }
+
+            int length = readBuffer.getInt(readBuffer.position());
+            if (length < 1 || length > WireProtocol.MAX_FRAME_LENGTH) {
+                closeConnection();
+                return;
+            }
+
+            if (readBuffer.remaining() < FrameCodec.LENGTH_PREFIX + length) {
+                if (readBuffer.capacity() < FrameCodec.LENGTH_PREFIX + length) {
+                    ByteBuffer bigger = ByteBuffer.allocate(Math.max(FrameCodec.LENGTH_PREFIX + length, readBuffer.capacity() * 2));
+                    readBuffer = bigger.put(readBuffer);
+                } else
+                    readBuffer.compact();
+                return;
+            }
+
+            Message message;
+            try {
+                message = FrameCodec.decodeMessage(readBuffer.slice(readBuffer.position() + FrameCodec.LENGTH_PREFIX, length));
+            } catch (IOException e) {
+                closeConnection();
+                return;
+            }
+
+            readBuffer.position(readBuffer.position() + FrameCodec.LENGTH_PREFIX + length);
+            readBuffer.compact();
+
+            if (message != null)
+                dispatch(message);
+        }
+    }
+
+    /**
+     * Stops reading the connection and gives the command to a worker, or to a thread of the transfers in blocking mode for a download.
+     *
+     * @param message The {@link Message} received.
+     */
+    private void dispatch(Message message) {
+        busy = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+
+        if (message.type() != CommandType.DOWNLOAD) {
+            server.getWorkers().execute(() -> {
+                execute(message);
+                loop.execute(this::resume);
+            });
+            return;
+        }
+
+        // The content of the file is streamed with FileChannel.transferTo, which needs a blocking channel
+        loop.deregister(key, () -> {
+            try {
+                channel.configureBlocking(true);
+            } catch (IOException e) {
+                closeConnection();
+                return;
+            }
+
+            server.getTransfers().execute(() -> {
+                execute(message);
+                try {
+                    channel.configureBlocking(false);
+                    loop.execute(this::reregister);
+                } catch (IOException e) {
+                    loop.execute(this::closeConnection);
+                }
+            });
+        });
+    }
+
+    /**
+     * Executes a command on a worker, closing the connection if it fails.
+     *
+     * @param message The {@link Message} received.
+     */
+    private void execute(Message message) {
+        try {
+            if (channel.isBlocking()) {
+                // The frames queued before the connection was handed over are written first
+                ByteBuffer frame;
+                while ((frame = writeQueue.poll()) != null) {
+                    writeFully(frame);
+                }
+            }
+
+            PeerTask.handleCommand(server.getCommandExecutor(), message, this);
+        } catch (IOException | RuntimeException e) {
+            try {
+                close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Reads the connection again once a command was executed, and handles the frames received in the meantime. Called by the loop.
+     */
+    private void resume() {
+        busy = false;
+        if (!key.isValid()) {
+            loop.remove(this);
+            return;
+        }
+
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        processFrames();
+    }
+
+    /**
+     * Registers the connection again once a download was served. Called by the loop.
+     */
+    private void reregister() {
+        try {
+            key = loop.reregister(channel, this, SelectionKey.OP_READ | (writeQueue.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+        } catch (IOException e) {
+            closeConnection();
+            return;
+        }
+
+        busy = false;
+        lastActivity = System.currentTimeMillis();
+        processFrames();
+    }
+
+    /**
+     * Hands the connection over for good to a blocking {@link PeerTask}, with the bytes already received. Called by the loop.
+     * The task runs on the transfers rather than on the workers, an idle legacy connection holding its thread until it times out.
+     */
+    private void handOverLegacy() {
+        loop.remove(this);
+        loop.deregister(key, () -> {
+            byte[] received = new byte[readBuffer.flip().remaining()];
+            readBuffer.get(received);
+
+            try {
+                channel.configureBlocking(true);
+                InputStream in = new SequenceInputStream(new ByteArrayInputStream(received), channel.socket().getInputStream());
+                server.getTransfers().execute(new PeerTask(channel.socket(), in, server.getPeerRunner()));
+            } catch (IOException e) {
+                closeConnection();
+            }
+        });
+    }
+
+    /**
+     * Writes the queued frames until the channel cannot take more, then waits for it to be writable. Called by the loop.
+     */
+    private void flush() {
+        if (!key.isValid())
+            return;
+
+        try {
+            ByteBuffer frame;
+            while ((frame = writeQueue.peek()) != null) {
+                channel.write(frame);
+                if (frame.hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+
+                writeQueue.poll();
+            }
+
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            closeConnection();
+        }
+    }
+
+    /**
+     * Sends a frame, directly while the connection is in blocking mode, through the loop otherwise.
+     *
+     * @param frame The frame to send.
+     * @throws IOException If the frame cannot be written.
+     */
+    private void send(ByteBuffer frame) throws IOException {
+        if (channel.isBlocking()) {
+            writeFully(frame);
+            return;
+        }
+
+        writeQueue.add(frame);
+        loop.execute(this::flush);
+    }
+
+    /**
+     * Writes a whole frame on the channel in blocking mode.
+     *
+     * @param frame The frame to write.
+     * @throws IOException If the frame cannot be written.
+     */
+    private void writeFully(ByteBuffer frame) throws IOException {
+        while (frame.hasRemaining()) {
+            channel.write(frame);
+        }
+    }
+
+    @Override
+    public void writeReply(String reply) throws IOException {
+        send(FrameCodec.replyFrame(reply));
+    }
+
+    @Override
+    public void writeFileSize(long size) throws IOException {
+        send(FrameCodec.fileSizeFrame(size));
+    }
+
+    @Override
+    public void writeFileSize(long size, BodyEncoding encoding) throws IOException {
+        send(FrameCodec.fileSizeFrame(size, encoding));
+    }
+
+    @Override
+    public boolean supportsBodyEncoding() {
+        return true;
+    }
+
+    @Override
+    public Socket getSocket() {
+        return channel.socket();
+    }
+}
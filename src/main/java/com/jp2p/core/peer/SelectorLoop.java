@@ -0,0 +1,193 @@
+package com.jp2p.core.peer;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An I/O thread of the {@link SelectorServer}, multiplexing its {@link SelectorConnection}s with a {@link Selector}.
+ * The connections are only touched by this thread, the other threads give it tasks with {@link SelectorLoop#execute(Runnable)}.
+ */
+@SuppressWarnings("InfiniteLoopStatement")
+class SelectorLoop implements Runnable {
+    /**
+     * The maximum time in milliseconds spent waiting for the {@link Selector}, so that the idle connections are closed even if nothing happens.
+     */
+    private static final long SELECT_TIMEOUT = 1_000;
+
+    /**
+     * The {@link SelectorServer} this loop belongs to.
+     */
+    private final SelectorServer server;
+
+    /**
+     * The {@link Selector} multiplexing the connections.
+     */
+    private final Selector selector;
+
+    /**
+     * The tasks given by the other threads, executed by this thread before handling the ready connections.
+     */
+    private final Queue<Runnable> tasks;
+
+    /**
+     * The tasks to execute once the keys cancelled during the current iteration are removed from the {@link Selector}, allowing their channel to be switched to blocking mode.
+     */
+    private final List<Runnable> afterDeregistration;
+
+    /**
+     * The connections registered on this loop.
+     */
+    private final Set<SelectorConnection> connections;
+
+    /**
+     * The time in milliseconds at which the idle connections were last looked for.
+     */
+    private long lastIdleCheck;
+
+    /**
+     * Constructs a new {@link SelectorLoop}.
+     *
+     * @param server The {@link SelectorServer} this loop belongs to.
+     * @throws IOException If the {@link Selector} cannot be opened.
+     */
+    SelectorLoop(SelectorServer server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.afterDeregistration = new ArrayList<>();
+        this.connections = new HashSet<>();
+        this.lastIdleCheck = System.currentTimeMillis();
+    }
+
+    /**
+     * Gives a task to this thread and wakes it up.
+     *
+     * @param task The task to execute on this thread.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Registers a newly accepted connection on this loop.
+     *
+     * @param channel The {@link SocketChannel} of the connection.
+     */
+    void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                SelectorConnection connection = new SelectorConnection(server, this, channel);
+                connection.attach(channel.register(selector, SelectionKey.OP_READ, connection));
+                connections.add(connection);
+                server.getPeerRunner().getMetrics().connectionOpened();
+            } catch (IOException e) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+
+    /**
+     * Registers again a connection that was handed over in blocking mode. Must be called from this thread.
+     *
+     * @param channel    The {@link SocketChannel} of the connection, back in non-blocking mode.
+     * @param connection The {@link SelectorConnection}.
+     * @param ops        The operations to wait for.
+     * @return The new {@link SelectionKey} of the connection.
+     * @throws IOException If the channel was closed.
+     */
+    SelectionKey reregister(SocketChannel channel, SelectorConnection connection, int ops) throws IOException {
+        return channel.register(selector, ops, connection);
+    }
+
+    /**
+     * Cancels the key of a connection and executes a task once the channel is no longer registered. Must be called from this thread.
+     *
+     * @param key  The {@link SelectionKey} to cancel.
+     * @param then The task to execute once the channel is no longer registered.
+     */
+    void deregister(SelectionKey key, Runnable then) {
+        key.cancel();
+        afterDeregistration.add(then);
+    }
+
+    /**
+     * Forgets a connection that was closed or handed over for good. Must be called from this thread.
+     *
+     * @param connection The {@link SelectorConnection} to forget.
+     */
+    void remove(SelectorConnection connection) {
+        if (connections.remove(connection))
+            server.getPeerRunner().getMetrics().connectionClosed();
+    }
+
+    /**
+     * Waits for the connections to be ready and handles them, forever.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select(SELECT_TIMEOUT);
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    SelectorConnection connection = (SelectorConnection) key.attachment();
+
+                    if (key.isValid() && key.isWritable())
+                        connection.onWritable();
+                    if (key.isValid() && key.isReadable())
+                        connection.onReadable();
+                }
+
+                if (!afterDeregistration.isEmpty()) {
+                    // Removes the cancelled keys from the selector
+                    selector.selectNow();
+                    List<Runnable> deregistered = new ArrayList<>(afterDeregistration);
+                    afterDeregistration.clear();
+                    deregistered.forEach(Runnable::run);
+                }
+
+                closeIdleConnections();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Closes the connections on which nothing was received for {@link PeerTask#IDLE_TIMEOUT}, at most once per {@link SelectorLoop#SELECT_TIMEOUT}.
+     */
+    private void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+        if (now - lastIdleCheck < SELECT_TIMEOUT)
+            return;
+
+        lastIdleCheck = now;
+        for (SelectorConnection connection : new ArrayList<>(connections)) {
+            if (connection.isIdleSince(now - PeerTask.IDLE_TIMEOUT))
+                connection.closeConnection();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.jp2p.core.peer;
+
+import com.jp2p.core.commands.CommandExecutor;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * The server of a {@link PeerRunner} in the {@link ServerMode#SELECTOR} mode.
+ * The accepted connections are spread over {@link SelectorServer#IO_THREADS} {@link SelectorLoop}s, each multiplexing its connections with a {@link java.nio.channels.Selector},
+ * so that an idle connection holds no thread. The frames of the binary protocol are read and written by the I/O threads, and the commands are executed by the workers.
+ * <p>
+ * The connections that speak the legacy protocol are handed over to a worker in blocking mode. The downloads, which stream the content of a file, are handed over in blocking mode
+ * to a thread of the transfers instead, so that the searches and the other short commands are never queued behind an upload.
+ *
+ * @see SelectorConnection
+ */
+@SuppressWarnings("InfiniteLoopStatement")
+public class SelectorServer implements Runnable {
+    /**
+     * The number of threads multiplexing the connections.
+     */
+    public static final int IO_THREADS = 2;
+
+    /**
+     * The {@link PeerRunner} served by this server.
+     */
+    private final PeerRunner peerRunner;
+
+    /**
+     * The {@link ServerSocketChannel} on which the connections are accepted.
+     */
+    private final ServerSocketChannel serverChannel;
+
+    /**
+     * The {@link ExecutorService} that executes the commands.
+     */
+    private final ExecutorService workers;
+
+    /**
+     * The {@link ExecutorService} that serves the downloads and the connections speaking the legacy protocol in blocking mode.
+     */
+    private final ExecutorService transfers;
+
+    /**
+     * The {@link CommandExecutor} shared by all the connections.
+     */
+    private final CommandExecutor commandExecutor;
+
+    /**
+     * The {@link SelectorLoop}s multiplexing the connections.
+     */
+    private final SelectorLoop[] loops;
+
+    /**
+     * The index of the {@link SelectorLoop} to which the next accepted connection is given.
+     */
+    private int nextLoop;
+
+    /**
+     * Constructs a new {@link SelectorServer}.
+     *
+     * @param peerRunner    The {@link PeerRunner} served by this server.
+     * @param serverChannel The bound {@link ServerSocketChannel} on which the connections are accepted.
+     * @param workers       The {@link ExecutorService} that executes the commands.
+     * @param transfers     The {@link ExecutorService} that serves the downloads and the connections speaking the legacy protocol.
+     * @throws IOException If the selectors cannot be opened.
+     */
+    public SelectorServer(PeerRunner peerRunner, ServerSocketChannel serverChannel, ExecutorService workers, ExecutorService transfers) throws IOException {
+        this.peerRunner = peerRunner;
+        this.serverChannel = serverChannel;
+        this.workers = workers;
+        this.transfers = transfers;
+        this.commandExecutor = peerRunner.getCommandExecutor();
+        this.loops = new SelectorLoop[IO_THREADS];
+
+        for (int i = 0; i < IO_THREADS; i++) {
+            loops[i] = new SelectorLoop(this);
+        }
+    }
+
+    /**
+     * Starts the I/O threads, then accepts the connections and gives them to the {@link SelectorLoop}s in turn.
+     */
+    @Override
+    public void run() {
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "selector-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        try {
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                loops[nextLoop].register(channel);
+                nextLoop = (nextLoop + 1) % loops.length;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the {@link PeerRunner} served by this server.
+     *
+     * @return The {@link PeerRunner} served by this server.
+     */
+    PeerRunner getPeerRunner() {
+        return peerRunner;
+    }
+
+    /**
+     * Returns the {@link ExecutorService} that executes the commands.
+     *
+     * @return The {@link ExecutorService} that executes the commands.
+     */
+    ExecutorService getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Returns the {@link ExecutorService} that serves the downloads and the connections speaking the legacy protocol.
+     *
+     * @return The {@link ExecutorService} that serves the downloads and the connections speaking the legacy protocol.
+     */
+    ExecutorService getTransfers() {
+        return transfers;
+    }
+
+    /**
+     * Returns the {@link CommandExecutor} shared by all the connections.
+     *
+     * @return The {@link CommandExecutor} shared by all the connections.
+     */
+    CommandExecutor getCommandExecutor() {
+        return commandExecutor;
+    }
+}
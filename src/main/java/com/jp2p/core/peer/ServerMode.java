@@ -0,0 +1,35 @@
+package com.jp2p.core.peer;
+
+/**
+ * The ways the server of a {@link PeerRunner} serves the connections it accepts, chosen by the server_mode configuration.
+ */
+public enum ServerMode {
+    /**
+     * Each connection is served by a blocking {@link PeerTask} holding one of the {@link PeerRunner#MAX_THREADS} slaves for as long as the connection is open.
+     */
+    POOL,
+
+    /**
+     * The connections are multiplexed by the {@link SelectorServer} on a few I/O threads, the slaves only execute the commands.
+     */
+    SELECTOR,
+
+    /**
+     * Each connection is served by a blocking {@link PeerTask} on its own virtual thread, and the messages sent to several peers are sent on virtual threads too.
+     * On the JDKs without virtual threads a platform thread is used instead.
+     *
+     * @see VirtualThreads
+     */
+    VIRTUAL;
+
+    /**
+     * Returns the {@link ServerMode} matching a configuration value.
+     *
+     * @param value The value of the server_mode configuration, case insensitive.
+     * @return The matching {@link ServerMode}.
+     * @throws IllegalArgumentException If the value matches no {@link ServerMode}.
+     */
+    public static ServerMode fromConfiguration(String value) throws IllegalArgumentException {
+        return valueOf(value.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,447 @@
+package com.jp2p.core.peer;
+
+import com.jp2p.core.commands.CommandType;
+import com.jp2p.core.exceptions.QueuedException;
+import com.jp2p.core.file.ChunkManifest;
+import com.jp2p.core.file.FolderManger;
+import com.jp2p.core.file.PeerFile;
+import com.jp2p.core.protocol.Message;
+import com.jp2p.core.protocol.ProtocolStream;
+import com.jp2p.database.DownloadsTable.Download;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A download of a single file from several {@link Peer}s at the same time.
+ * The file is split in ranges of {@link SwarmDownload#RANGE_SIZE} bytes that are put in a shared queue, every source has its own connection and takes the next range in the queue as soon as it is done with the previous one.
+ * This way faster sources download more ranges than slower ones. Once the queue is empty, idle sources duplicate a range still being downloaded by a slower source and the first copy to arrive wins.
+ * The ranges of a source that fails are put back in the queue to be downloaded by the remaining sources.
+ * <p>
+ * The ranges are written at their position in a partial file that is given the size of the file before the download starts, so the sources write in any order
+ * without a shared lock or a reassembly buffer. The written ranges are tracked in a {@link RangeBitmap}, and the partial file replaces the downloaded file once every range is written.
+ * <p>
+ * When the {@link ChunkManifest} of the file is known, the ranges are its chunks: each range is hashed as it is received and only written once its hash is verified.
+ * A corrupted range is put back in the queue and the source that sent it is dropped, so only the corrupted chunks are downloaded again.
+ * <p>
+ * The written ranges are reported to the {@link DownloadJournal} of the peer, so that the download resumes from them when the peer restarts.
+ * The ranges recorded by the journal are kept if the partial file is still there, after checking their hash when the manifest is known.
+ *
+ * @see FolderManger#openPartial(String, long)
+ */
+public class SwarmDownload {
+    /**
+     * The size in bytes of the ranges the file is split in.
+     */
+    public static final int RANGE_SIZE = ChunkManifest.CHUNK_SIZE;
+
+    /**
+     * The time in milliseconds after which a source that stopped sending bytes is considered as failed.
+     */
+    public static final int SOURCE_TIMEOUT = 30_000;
+
+    /**
+     * The time in milliseconds an idle source waits before looking for a range to download again.
+     */
+    private static final int IDLE_WAIT = 50;
+
+    /**
+     * The {@link PeerRunner} that downloads the file.
+     */
+    private final PeerRunner peerRunner;
+
+    /**
+     * The name of the file to download.
+     */
+    private final String fileName;
+
+    /**
+     * The size of the file to download in bytes.
+     */
+    private final long fileSize;
+
+    /**
+     * The {@link Peer}s that have the file.
+     */
+    private final List<Peer> sources;
+
+    /**
+     * The {@link ChunkManifest} of the file, or null if the ranges cannot be verified.
+     */
+    private final ChunkManifest manifest;
+
+    /**
+     * The number of ranges of the file.
+     */
+    private final int rangeCount;
+
+    /**
+     * The ranges that are waiting for a source to download them.
+     */
+    private final ConcurrentLinkedQueue<Integer> pendingRanges;
+
+    /**
+     * The ranges that are being downloaded by a source.
+     */
+    private final Set<Integer> inFlightRanges;
+
+    /**
+     * The ranges being downloaded that were also given to a second source at the end of the download.
+     */
+    private final Set<Integer> duplicatedRanges;
+
+    /**
+     * The ranges that were completely downloaded and written.
+     */
+    private final RangeBitmap completedRanges;
+
+    /**
+     * The {@link PeerFile} whose downloaded size follows the completed ranges, or null if the progress is only reported to the {@link DownloadJournal}.
+     */
+    private final PeerFile peerFile;
+
+    /**
+     * Constructs a new {@link SwarmDownload} of a file from the given sources.
+     *
+     * @param peerRunner The {@link PeerRunner} that downloads the file.
+     * @param fileName   The name of the file to download.
+     * @param fileSize   The size of the file to download in bytes.
+     * @param sources    The {@link Peer}s that have the file.
+     */
+    public SwarmDownload(PeerRunner peerRunner, String fileName, long fileSize, List<Peer> sources) {
+        this(peerRunner, fileName, fileSize, sources, null);
+    }
+
+    /**
+     * Constructs a new {@link SwarmDownload} of a file from the given sources, verifying each range with the manifest of the file.
+     *
+     * @param peerRunner The {@link PeerRunner} that downloads the file.
+     * @param fileName   The name of the file to download.
+     * @param fileSize   The size of the file to download in bytes.
+     * @param sources    The {@link Peer}s that have the file.
+     * @param manifest   The {@link ChunkManifest} of the file, or null to write the ranges without verifying them.
+     */
+    public SwarmDownload(PeerRunner peerRunner, String fileName, long fileSize, List<Peer> sources, ChunkManifest manifest) {
+        this(peerRunner, fileName, fileSize, sources, manifest, null);
+    }
+
+    /**
+     * Constructs a new {@link SwarmDownload} of a discovered file from the given sources, keeping its downloaded size up to date as the ranges are completed.
+     *
+     * @param peerRunner The {@link PeerRunner} that downloads the file.
+     * @param peerFile   The discovered file to download.
+     * @param sources    The {@link Peer}s that have the file.
+     * @param manifest   The {@link ChunkManifest} of the file, or null to write the ranges without verifying them.
+     */
+    public SwarmDownload(PeerRunner peerRunner, PeerFile peerFile, List<Peer> sources, ChunkManifest manifest) {
+        this(peerRunner, peerFile.getFileName(), peerFile.getFileSize(), sources, manifest, peerFile);
+    }
+
+    /**
+     * Constructs a new {@link SwarmDownload}.
+     *
+     * @param peerRunner The {@link PeerRunner} that downloads the file.
+     * @param fileName   The name of the file to download.
+     * @param fileSize   The size of the file to download in bytes.
+     * @param sources    The {@link Peer}s that have the file.
+     * @param manifest   The {@link ChunkManifest} of the file, or null to write the ranges without verifying them.
+     * @param peerFile   The {@link PeerFile} whose downloaded size follows the completed ranges, or null.
+     */
+    private SwarmDownload(PeerRunner peerRunner, String fileName, long fileSize, List<Peer> sources, ChunkManifest manifest, PeerFile peerFile) {
+        this.peerRunner = peerRunner;
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        this.sources = sources;
+        this.manifest = manifest;
+        this.rangeCount = (int) ((fileSize + RANGE_SIZE - 1) / RANGE_SIZE);
+        this.pendingRanges = new ConcurrentLinkedQueue<>();
+        this.inFlightRanges = ConcurrentHashMap.newKeySet();
+        this.duplicatedRanges = ConcurrentHashMap.newKeySet();
+        this.completedRanges = new RangeBitmap(rangeCount);
+        this.peerFile = peerFile;
+
+        for (int i = 0; i < rangeCount; i++) {
+            pendingRanges.add(i);
+        }
+    }
+
+    /**
+     * Downloads the file from all the sources at the same time and waits for the download to finish.
+     *
+     * @return true if every range of the file was downloaded, false otherwise.
+     * @throws IOException If the downloaded file cannot be opened or written.
+     */
+    public boolean run() throws IOException {
+        DownloadJournal journal = peerRunner.getDownloadJournal();
+        FolderManger downloads = peerRunner.getDownloadsFolderManager();
+        Download recorded = journal.start(fileName, sources.get(0), fileSize, manifest != null ? manifest.getRootHex() : null);
+        boolean resumed = downloads.hasPartial(fileName);
+        ExecutorService workers = Executors.newFixedThreadPool(sources.size());
+
+        try (FileChannel target = downloads.openPartial(fileName, fileSize)) {
+            if (resumed)
+                keepRecordedRanges(recorded, target);
+            reportProgress();
+
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (Peer source : sources) {
+                tasks.add(() -> {
+                    downloadFrom(source, target);
+                    return null;
+                });
+            }
+
+            workers.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            workers.shutdownNow();
+        }
+
+        if (completedRanges.count() < rangeCount)
+            return false;
+
+        downloads.completePartial(fileName);
+        journal.finish(fileName, fileSize);
+        return true;
+    }
+
+    /**
+     * Marks as completed the ranges recorded by the {@link DownloadJournal} for the partial file, so that a download that was interrupted resumes where it stopped.
+     * When the manifest is known, only the recorded ranges whose hash is verified are kept.
+     *
+     * @param recorded The recorded progress of the download.
+     * @param target   The {@link FileChannel} of the partial file.
+     * @throws IOException If the partial file cannot be read.
+     */
+    private void keepRecordedRanges(Download recorded, FileChannel target) throws IOException {
+        BitSet ranges = recorded.ranges() != null ? BitSet.valueOf(recorded.ranges()) : new BitSet();
+        ByteBuffer buffer = manifest != null ? ByteBuffer.allocate(RANGE_SIZE) : null;
+        MessageDigest digest = manifest != null ? ChunkManifest.newDigest() : null;
+
+        for (int range = 0; range < rangeCount; range++) {
+            // The bytes downloaded from the start of the file were recorded by a download from a single source
+            if (!ranges.get(range) && Math.min((long) (range + 1) * RANGE_SIZE, fileSize) > recorded.downloaded())
+                continue;
+
+            if (manifest == null || manifest.verify(range, ChunkManifest.hashChunk(target, range, fileSize, buffer, digest))) {
+                completedRanges.set(range);
+                pendingRanges.remove(range);
+            }
+        }
+    }
+
+    /**
+     * Reports the completed ranges to the {@link DownloadJournal}, with the number of bytes downloaded from the start of the file without a gap.
+     * A range is only marked as completed once it is written, so the progress reported is never ahead of the partial file.
+     * The {@link PeerFile} of the download, if any, is given the number of bytes of all the completed ranges.
+     */
+    private void reportProgress() {
+        long downloaded = Math.min((long) completedRanges.nextClearBit() * RANGE_SIZE, fileSize);
+        peerRunner.getDownloadJournal().progress(fileName, downloaded, completedRanges.toBitSet());
+
+        if (peerFile != null) {
+            // The last range is shorter than the other ones
+            long completed = (long) completedRanges.count() * RANGE_SIZE;
+            if (rangeCount > 0 && completedRanges.get(rangeCount - 1))
+                completed -= (long) rangeCount * RANGE_SIZE - fileSize;
+            peerFile.setDownloadedSize(completed);
+        }
+    }
+
+    /**
+     * Downloads ranges of the file from a source until there are no ranges left or the source fails.
+     *
+     * @param source The {@link Peer} to download from.
+     * @param target The {@link FileChannel} of the partial file.
+     */
+    private void downloadFrom(Peer source, FileChannel target) {
+        // A verified range is kept whole in memory until its hash is checked
+        byte[] data = new byte[manifest != null ? RANGE_SIZE : PeerRunner.DOWNLOAD_BUFFER_SIZE];
+        ConnectionPool connectionPool = peerRunner.getConnectionPool();
+        PooledConnection connection = null;
+
+        try {
+            Integer range;
+            while ((range = nextRange()) != null) {
+                if (connection == null) {
+                    connection = connectionPool.acquire(source);
+                    connection.getStream().getSocket().setSoTimeout(SOURCE_TIMEOUT);
+                }
+
+                try {
+                    if (!downloadRange(range, source, connection.getStream(), target, data)) {
+                        // A faster source completed the range first, the rest of it is still on its way so the connection is dropped
+                        connectionPool.invalidate(connection);
+                        connection = null;
+                    }
+                } catch (QueuedException e) {
+                    // The range was put back in the queue for the other sources, this source is asked again once they had time to go on.
+                    // The connection goes back to the pool meanwhile, so that it is not held idle while the other downloads from the source need one
+                    connectionPool.release(connection);
+                    connection = null;
+                    Thread.sleep(PeerRunner.QUEUE_RETRY);
+                }
+            }
+
+            if (connection != null) {
+                connectionPool.release(connection);
+                connection = null;
+            }
+        } catch (IOException ignored) {
+            // The ranges of the failed source were put back in the queue for the other sources
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (connection != null) {
+                connectionPool.invalidate(connection);
+            }
+        }
+    }
+
+    /**
+     * Returns the next range to download. When there are no pending ranges left, returns a range still being downloaded by another source if it was not already duplicated.
+     * If every remaining range is already downloaded by two sources, waits until one of them fails or the file is completely downloaded.
+     *
+     * @return The index of the range to download, null if the whole file was downloaded.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    private Integer nextRange() throws InterruptedException {
+        while (completedRanges.count() < rangeCount) {
+            Integer range = pendingRanges.poll();
+            if (range != null) {
+                inFlightRanges.add(range);
+                return range;
+            }
+
+            for (Integer inFlight : inFlightRanges) {
+                if (!completedRanges.get(inFlight) && duplicatedRanges.add(inFlight)) {
+                    return inFlight;
+                }
+            }
+
+            Thread.sleep(IDLE_WAIT);
+        }
+
+        return null;
+    }
+
+    /**
+     * Sends the download message for a single range of the file and writes the received bytes at their position in the partial file.
+     * The message is in this format: download? [file name] [skip bytes] [length] [accepted encoding] [queueing] [peer name]
+     * The range is sent compressed if this peer accepts it and the source can, and decoded as it is read as fast as the {@link BandwidthLimiter} of this peer allows.
+     *
+     * @param range  The index of the range to download.
+     * @param source The {@link Peer} the range is downloaded from.
+     * @param stream The {@link ProtocolStream} of the connection to the source.
+     * @param target The {@link FileChannel} of the partial file.
+     * @param data   The buffer used to read the content of the range, holding a whole range if the range is verified.
+     * @return true if the range was downloaded, false if another source completed it first while the rest of the range is still to be received.
+     * @throws QueuedException If the source has no upload slot free, the range being put back in the queue.
+     * @throws IOException     If the connection to the source fails, the source has a different file or the range is corrupted.
+     */
+    private boolean downloadRange(int range, Peer source, ProtocolStream stream, FileChannel target, byte[] data) throws IOException {
+        long offset = (long) range * RANGE_SIZE;
+        long length = Math.min(RANGE_SIZE, fileSize - offset);
+        boolean downloaded = false;
+
+        try {
+            stream.writeMessage(new Message(CommandType.DOWNLOAD, fileName, offset, length, peerRunner.getAcceptedEncoding(), true, peerRunner.getPeer().getName()));
+            long size = stream.readFileSize();
+            if (ProtocolStream.queuePosition(size) > 0)
+                throw new QueuedException(ProtocolStream.queuePosition(size));
+            if (size != fileSize)
+                throw new IOException("The source does not have the same file.");
+
+            InputStream body = stream.getDecodedBodyInputStream(in -> peerRunner.getBandwidthLimiter().throttleDownload(source.getName(), in));
+            if (manifest != null) {
+                // The whole range is read even when another source completed it first, so the connection stays usable
+                downloadVerifiedRange(range, body, target, data, offset, (int) length);
+                downloaded = true;
+                return true;
+            }
+
+            long received = 0;
+            while (received < length) {
+                int read = body.read(data, 0, (int) Math.min(data.length, length - received));
+                if (read < 0)
+                    throw new EOFException("The source closed the connection.");
+
+                ByteBuffer buffer = ByteBuffer.wrap(data, 0, read);
+                while (buffer.hasRemaining()) {
+                    target.write(buffer, offset + received + buffer.position());
+                }
+
+                received += read;
+                if (completedRanges.get(range))
+                    return false;
+            }
+
+            if (completedRanges.set(range))
+                reportProgress();
+            downloaded = true;
+            return true;
+        } finally {
+            if (downloaded) {
+                peerRunner.getUploadScheduler().recordReceived(source.getName(), length);
+                peerRunner.getMetrics().recordBytesIn(source.getName(), length);
+            }
+            inFlightRanges.remove(range);
+            if (!downloaded && !completedRanges.get(range)) {
+                pendingRanges.add(range);
+            }
+        }
+    }
+
+    /**
+     * Reads a whole range in memory while hashing it, then writes it at its position in the partial file if its hash is verified and no other source completed it first.
+     *
+     * @param range  The index of the range to download.
+     * @param body   The {@link InputStream} of the content of the range.
+     * @param target The {@link FileChannel} of the partial file.
+     * @param data   The buffer holding the content of the range.
+     * @param offset The position of the range in the file.
+     * @param length The length of the range.
+     * @throws IOException If the connection to the source fails or the range is corrupted.
+     */
+    private void downloadVerifiedRange(int range, InputStream body, FileChannel target, byte[] data, long offset, int length) throws IOException {
+        MessageDigest digest = ChunkManifest.newDigest();
+        int received = 0;
+        while (received < length) {
+            int read = body.read(data, received, length - received);
+            if (read < 0)
+                throw new EOFException("The source closed the connection.");
+
+            digest.update(data, received, read);
+            received += read;
+        }
+
+        if (!manifest.verify(range, digest.digest()))
+            throw new IOException("The range " + range + " of " + fileName + " is corrupted.");
+
+        if (completedRanges.get(range))
+            return;
+
+        // A duplicated range may be written by two sources at the same time, with the same verified bytes
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while (buffer.hasRemaining()) {
+            target.write(buffer, offset + buffer.position());
+        }
+
+        if (completedRanges.set(range))
+            reportProgress();
+    }
+}
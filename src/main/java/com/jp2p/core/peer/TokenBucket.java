@@ -0,0 +1,88 @@
+package com.jp2p.core.peer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket limiting a flow of bytes to a rate, with bursts of at most {@link TokenBucket#BURST_MILLIS} of that rate.
+ * <p>
+ * The bytes are reserved before they are sent or after they are received, a reservation that exceeds the tokens available leaves the bucket in debt
+ * and the caller waits until the debt is paid back by the rate. Since every reservation takes its place after the previous ones,
+ * the callers are served in the order in which they asked, and transfers reserving the same amount at a time share the rate equally.
+ */
+public class TokenBucket {
+    /**
+     * The time in milliseconds of the flow that can be sent at once after the bucket was idle.
+     */
+    public static final long BURST_MILLIS = 250;
+
+    /**
+     * The rate in bytes per second.
+     */
+    private final long rate;
+
+    /**
+     * The maximum number of tokens kept while the bucket is idle.
+     */
+    private final double capacity;
+
+    /**
+     * The number of bytes that can be sent without waiting, negative when the bucket is in debt.
+     */
+    private double tokens;
+
+    /**
+     * The time in nanoseconds at which the tokens were last refilled.
+     */
+    private long refilled;
+
+    /**
+     * Constructs a new full {@link TokenBucket}.
+     *
+     * @param rate The rate in bytes per second, greater than 0.
+     */
+    public TokenBucket(long rate) {
+        if (rate <= 0)
+            throw new IllegalArgumentException("The rate of a token bucket must be positive.");
+
+        this.rate = rate;
+        this.capacity = Math.max(1, rate * BURST_MILLIS / 1000.0);
+        this.tokens = capacity;
+        this.refilled = System.nanoTime();
+    }
+
+    /**
+     * Returns the rate of this bucket.
+     *
+     * @return The rate in bytes per second.
+     */
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * Reserves a number of bytes and waits until the bucket has paid them.
+     *
+     * @param bytes The number of bytes to send or received.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        long wait = reserve(bytes);
+        if (wait > 0)
+            TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    /**
+     * Takes the bytes out of the bucket and returns how long the caller has to wait for them.
+     *
+     * @param bytes The number of bytes.
+     * @return The time to wait in nanoseconds, 0 if the bucket held enough tokens.
+     */
+    private synchronized long reserve(long bytes) {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - refilled) * rate / 1e9);
+        refilled = now;
+        tokens -= bytes;
+
+        return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+    }
+}
@@ -0,0 +1,346 @@
+package com.jp2p.core.peer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decides which peers are uploaded to, so that at most a given number of peers download from this peer at the same time and the other ones wait in a queue.
+ * <p>
+ * A peer that is given an upload slot keeps it for all the ranges and connections of its download, until it asked for nothing for {@link UploadScheduler#SLOT_LINGER}.
+ * A peer that held its slot for {@link UploadScheduler#MAX_SLOT_TIME} while other peers are waiting is not given new uploads, and goes back to the queue.
+ * <p>
+ * A peer that finds no free slot is queued and told its position, it asks again later and is forgotten if it did not ask again for {@link UploadScheduler#QUEUE_TTL}.
+ * The free slots go to the waiting peers with the best score, the time they waited multiplied by their credit: the peers that uploaded more to this peer than it uploaded to them
+ * get a credit of up to {@link UploadScheduler#MAX_CREDIT}, the other ones a credit of 1, so the peers that upload back are served first without starving the other ones.
+ * <p>
+ * The peers that cannot be told their position, which speak the legacy protocol or an older version of the binary protocol, wait in the queue with the same ranking
+ * on the thread serving their download.
+ * <p>
+ * A peer is identified by the name it sends in the download message, so that the peers sharing an address don't share a slot, a place in the queue and a credit.
+ * The peers that don't send their name are identified by their address.
+ */
+public class UploadScheduler {
+    /**
+     * The time in milliseconds during which an idle peer keeps its slot, so that the next range of its download does not go through the queue.
+     */
+    public static final long SLOT_LINGER = 1_000;
+
+    /**
+     * The time in milliseconds after which a peer holding a slot gives it up to the waiting peers.
+     */
+    public static final long MAX_SLOT_TIME = 10 * 60_000;
+
+    /**
+     * The time in milliseconds after which a queued peer that did not ask again for its position is forgotten.
+     */
+    public static final long QUEUE_TTL = 60_000;
+
+    /**
+     * The maximum number of queued peers, the peers asking when the queue is full are told the position after the last one and not queued.
+     */
+    public static final int MAX_QUEUE = 1000;
+
+    /**
+     * The maximum number of peers whose exchanged bytes are remembered, the least recently seen ones are forgotten first.
+     */
+    public static final int MAX_CREDITS = 4096;
+
+    /**
+     * The maximum credit of a peer.
+     */
+    public static final double MAX_CREDIT = 10;
+
+    /**
+     * The number of bytes uploaded to a peer under which its credit is only based on the bytes it uploaded, so that a new peer is not favored for a few bytes.
+     */
+    private static final long MIN_CREDIT_BASE = 1024 * 1024;
+
+    /**
+     * The time in milliseconds a peer waiting on the thread serving its download waits before asking again for a slot.
+     */
+    private static final long WAIT_STEP = 1_000;
+
+    /**
+     * An upload slot held by a peer.
+     */
+    private static final class Slot {
+        /**
+         * The time in milliseconds at which the slot was given.
+         */
+        final long granted;
+
+        /**
+         * The number of uploads to the peer in progress.
+         */
+        int uploads;
+
+        /**
+         * The time in milliseconds at which the last upload to the peer started or finished.
+         */
+        long lastActive;
+
+        Slot(long now) {
+            this.granted = now;
+            this.lastActive = now;
+        }
+    }
+
+    /**
+     * A peer waiting for a slot.
+     */
+    private static final class Waiting {
+        /**
+         * The time in milliseconds at which the peer was queued.
+         */
+        final long since;
+
+        /**
+         * The time in milliseconds at which the peer last asked for a slot.
+         */
+        long lastAsked;
+
+        Waiting(long now) {
+            this.since = now;
+            this.lastAsked = now;
+        }
+    }
+
+    /**
+     * The bytes exchanged with a peer.
+     */
+    private static final class Credit {
+        /**
+         * The number of bytes downloaded from the peer.
+         */
+        long received;
+
+        /**
+         * The number of bytes uploaded to the peer.
+         */
+        long sent;
+    }
+
+    /**
+     * The number of upload slots, 0 if the uploads are not limited.
+     */
+    private final int slots;
+
+    /**
+     * The slots by peer.
+     */
+    private final Map<String, Slot> active;
+
+    /**
+     * The waiting peers, the first queued first.
+     */
+    private final LinkedHashMap<String, Waiting> queue;
+
+    /**
+     * The bytes exchanged by peer, the least recently seen first.
+     */
+    private final LinkedHashMap<String, Credit> credits;
+
+    /**
+     * Constructs a new {@link UploadScheduler}.
+     *
+     * @param slots The number of peers uploaded to at the same time, 0 to not limit it.
+     */
+    public UploadScheduler(int slots) {
+        this.slots = Math.max(0, slots);
+        this.active = new LinkedHashMap<>();
+        this.queue = new LinkedHashMap<>();
+        this.credits = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Credit> eldest) {
+                return size() > MAX_CREDITS;
+            }
+        };
+    }
+
+    /**
+     * Returns the number of upload slots.
+     *
+     * @return The number of peers uploaded to at the same time, 0 if it is not limited.
+     */
+    public int getSlots() {
+        return slots;
+    }
+
+    /**
+     * Asks for an upload to a peer. If the peer is given a slot, the upload must be followed by a call to {@link UploadScheduler#release(String, long)}.
+     *
+     * @param peer    The name of the peer, or its address if it did not send its name.
+     * @return 0 if the upload can start, otherwise the position of the peer in the queue starting at 1.
+     */
+    public synchronized int admit(String peer) {
+        if (slots == 0)
+            return 0;
+
+        long now = System.currentTimeMillis();
+        expire(now);
+
+        Slot slot = active.get(peer);
+        if (slot != null) {
+            if (now - slot.granted < MAX_SLOT_TIME || queue.isEmpty()) {
+                slot.uploads++;
+                slot.lastActive = now;
+                return 0;
+            }
+
+            // The slot was held long enough, it goes to the waiting peers once the uploads in progress are done
+            if (slot.uploads == 0) {
+                active.remove(peer);
+                slot = null;
+                notifyAll();
+            }
+        }
+
+        Waiting waiting = queue.get(peer);
+        if (waiting == null) {
+            if (queue.size() >= MAX_QUEUE)
+                return MAX_QUEUE + 1;
+
+            waiting = new Waiting(now);
+            queue.put(peer, waiting);
+        }
+        waiting.lastAsked = now;
+
+        // A peer whose slot expired still holds it until its last upload is done, it is not given a second one
+        int position = rank(peer, waiting, now);
+        if (slot != null || position > slots - active.size())
+            return position;
+
+        queue.remove(peer);
+        slot = new Slot(now);
+        slot.uploads = 1;
+        active.put(peer, slot);
+        return 0;
+    }
+
+    /**
+     * Waits until an upload to a peer can start, on the thread serving the download. Used for the peers that cannot be told their position in the queue.
+     * The upload must be followed by a call to {@link UploadScheduler#release(String, long)}.
+     *
+     * @param peer    The name of the peer, or its address if it did not send its name.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public synchronized void await(String peer) throws InterruptedException {
+        while (admit(peer) != 0) {
+            wait(WAIT_STEP);
+        }
+    }
+
+    /**
+     * Marks an upload to a peer as done.
+     *
+     * @param peer    The name of the peer, or its address if it did not send its name.
+     * @param sent    The number of bytes of the file uploaded.
+     */
+    public synchronized void release(String peer, long sent) {
+        credit(peer).sent += sent;
+        if (slots == 0)
+            return;
+
+        Slot slot = active.get(peer);
+        if (slot == null)
+            return;
+
+        long now = System.currentTimeMillis();
+        slot.uploads = Math.max(0, slot.uploads - 1);
+        slot.lastActive = now;
+        if (slot.uploads == 0 && now - slot.granted >= MAX_SLOT_TIME && !queue.isEmpty()) {
+            active.remove(peer);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Counts the bytes downloaded from a peer, raising its credit.
+     *
+     * @param peer     The name of the peer, or its address if it did not send its name.
+     * @param received The number of bytes of a file downloaded from the peer.
+     */
+    public synchronized void recordReceived(String peer, long received) {
+        credit(peer).received += received;
+    }
+
+    /**
+     * Returns the number of peers holding a slot.
+     *
+     * @return The number of peers uploaded to.
+     */
+    public synchronized int getActiveCount() {
+        expire(System.currentTimeMillis());
+        return active.size();
+    }
+
+    /**
+     * Returns the number of peers waiting for a slot.
+     *
+     * @return The number of queued peers.
+     */
+    public synchronized int getQueueLength() {
+        expire(System.currentTimeMillis());
+        return queue.size();
+    }
+
+    /**
+     * Returns the position of a waiting peer, the number of waiting peers with a better score plus one.
+     *
+     * @param peer    The name of the peer, or its address if it did not send its name.
+     * @param waiting The {@link Waiting} entry of the peer.
+     * @param now     The current time in milliseconds.
+     * @return The position of the peer in the queue starting at 1.
+     */
+    private int rank(String peer, Waiting waiting, long now) {
+        double score = score(peer, waiting, now);
+        int position = 1;
+        for (Map.Entry<String, Waiting> entry : queue.entrySet()) {
+            if (entry.getValue() != waiting && score(entry.getKey(), entry.getValue(), now) > score)
+                position++;
+        }
+
+        return position;
+    }
+
+    /**
+     * Returns the score of a waiting peer, the time it waited multiplied by its credit.
+     *
+     * @param peer    The name of the peer, or its address if it did not send its name.
+     * @param waiting The {@link Waiting} entry of the peer.
+     * @param now     The current time in milliseconds.
+     * @return The score of the peer.
+     */
+    private double score(String peer, Waiting waiting, long now) {
+        Credit credit = credits.get(peer);
+        double modifier = credit == null ? 1 : Math.max(1, Math.min(MAX_CREDIT, 2.0 * credit.received / Math.max(credit.sent, MIN_CREDIT_BASE)));
+        // Adding 1 so that two peers queued in the same millisecond are still told apart by their credit
+        return (now - waiting.since + 1) * modifier;
+    }
+
+    /**
+     * Returns the bytes exchanged with a peer, remembering it if it is not yet.
+     *
+     * @param peer    The name of the peer, or its address if it did not send its name.
+     * @return The {@link Credit} of the peer.
+     */
+    private Credit credit(String peer) {
+        return credits.computeIfAbsent(peer, k -> new Credit());
+    }
+
+    /**
+     * Takes back the slots of the peers that stopped downloading and forgets the queued peers that stopped asking, waking up the peers waiting on a thread if a slot was freed.
+     *
+     * @param now The current time in milliseconds.
+     */
+    private void expire(long now) {
+        int freed = active.size();
+        active.values().removeIf(slot -> slot.uploads == 0 && now - slot.lastActive >= SLOT_LINGER);
+        freed -= active.size();
+
+        queue.values().removeIf(waiting -> now - waiting.lastAsked >= QUEUE_TTL);
+
+        if (freed > 0)
+            notifyAll();
+    }
+}
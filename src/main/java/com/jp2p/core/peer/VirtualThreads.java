@@ -0,0 +1,66 @@
+package com.jp2p.core.peer;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gives access to the virtual threads of the JDKs that have them, while the project is still built for Java 17.
+ * The executor of virtual threads is looked up by reflection, and a thread per task executor of platform threads is used instead on the older JDKs.
+ */
+public final class VirtualThreads {
+    /**
+     * The Executors.newVirtualThreadPerTaskExecutor() method, or null if the JDK has no virtual threads.
+     */
+    private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = lookUp();
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Looks up the Executors.newVirtualThreadPerTaskExecutor() method.
+     *
+     * @return The method, or null if the JDK has no virtual threads.
+     */
+    private static Method lookUp() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if the JDK has virtual threads.
+     * They may still be unusable if they are a preview feature that was not enabled, in which case {@link VirtualThreads#newThreadPerTaskExecutor(String)} falls back to platform threads.
+     *
+     * @return True if the JDK has virtual threads.
+     */
+    public static boolean isAvailable() {
+        return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * Returns an {@link ExecutorService} that runs each task on a new virtual thread, or on a new daemon platform thread if virtual threads are not available.
+     *
+     * @param name The prefix of the name of the platform threads.
+     * @return The new {@link ExecutorService}.
+     */
+    public static ExecutorService newThreadPerTaskExecutor(String name) {
+        if (NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null) {
+            try {
+                return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+            } catch (ReflectiveOperationException ignored) {
+                // The virtual threads are a preview feature that was not enabled
+            }
+        }
+
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
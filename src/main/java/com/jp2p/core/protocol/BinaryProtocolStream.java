@@ -0,0 +1,231 @@
+package com.jp2p.core.protocol;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link ProtocolStream} that exchanges length prefixed binary frames.
+ * The frames are read in and written from buffers that are reused for the whole life of the connection, their content is encoded by the {@link FrameCodec}.
+ *
+ * @see WireProtocol
+ */
+public class BinaryProtocolStream implements ProtocolStream {
+    /**
+     * The initial size of the buffers used to read and write the frames.
+     */
+    private static final int INITIAL_BUFFER_SIZE = 512;
+
+    /**
+     * The {@link Socket} of the connection.
+     */
+    private final Socket socket;
+
+    /**
+     * The buffered {@link DataInputStream} of the connection, also used to read the content of downloaded files.
+     */
+    private final DataInputStream in;
+
+    /**
+     * The buffered {@link OutputStream} of the connection.
+     */
+    private final OutputStream out;
+
+    /**
+     * The buffer in which the frames are read.
+     */
+    private ByteBuffer readBuffer;
+
+    /**
+     * The buffer in which the frames are written.
+     */
+    private ByteBuffer writeBuffer;
+
+    /**
+     * True until the version byte answered by the server is read, it is read before the first frame to avoid waiting for it when the connection is opened.
+     */
+    private boolean awaitingVersion;
+
+    /**
+     * The {@link BodyEncoding} of the content of the file whose size was read last.
+     */
+    private BodyEncoding bodyEncoding = BodyEncoding.RAW;
+
+    /**
+     * Constructs a new {@link BinaryProtocolStream}.
+     *
+     * @param socket          The {@link Socket} of the connection.
+     * @param in              The {@link InputStream} of the connection.
+     * @param awaitingVersion True if the version byte of the server has yet to be read.
+     * @throws IOException If the output stream of the socket cannot be opened.
+     */
+    private BinaryProtocolStream(Socket socket, InputStream in, boolean awaitingVersion) throws IOException {
+        this.socket = socket;
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        this.readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        this.writeBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        this.awaitingVersion = awaitingVersion;
+    }
+
+    /**
+     * Opens a {@link BinaryProtocolStream} on the client side of a connection by sending the {@link WireProtocol#VERSION} byte.
+     *
+     * @param socket The {@link Socket} of the connection.
+     * @return The {@link BinaryProtocolStream} of the connection.
+     * @throws IOException If the version byte cannot be sent.
+     */
+    static BinaryProtocolStream connect(Socket socket) throws IOException {
+        BinaryProtocolStream stream = new BinaryProtocolStream(socket, socket.getInputStream(), true);
+        stream.out.write(WireProtocol.VERSION);
+        return stream;
+    }
+
+    /**
+     * Opens a {@link BinaryProtocolStream} on the server side of a connection, once the version byte of the client was read, by answering with the {@link WireProtocol#VERSION} byte.
+     *
+     * @param socket The {@link Socket} of the connection.
+     * @param in     The {@link InputStream} from which the version byte was read.
+     * @return The {@link BinaryProtocolStream} of the connection.
+     * @throws IOException If the version byte cannot be sent.
+     */
+    static BinaryProtocolStream accept(Socket socket, InputStream in) throws IOException {
+        BinaryProtocolStream stream = new BinaryProtocolStream(socket, in, false);
+        stream.out.write(WireProtocol.VERSION);
+        stream.out.flush();
+        return stream;
+    }
+
+    @Override
+    public Message readMessage() throws IOException {
+        return FrameCodec.decodeMessage(readFrame());
+    }
+
+    @Override
+    public void writeMessage(Message message) throws IOException {
+        while (true) {
+            try {
+                writeBuffer.clear();
+                FrameCodec.encodeMessage(writeBuffer, message);
+                writeFrame();
+                return;
+            } catch (BufferOverflowException e) {
+                writeBuffer = ByteBuffer.allocate(writeBuffer.capacity() * 2);
+            }
+        }
+    }
+
+    @Override
+    public String readReply() throws IOException {
+        return FrameCodec.decodeReply(readFrame());
+    }
+
+    @Override
+    public void writeReply(String reply) throws IOException {
+        while (true) {
+            try {
+                writeBuffer.clear();
+                FrameCodec.encodeReply(writeBuffer, reply);
+                writeFrame();
+                return;
+            } catch (BufferOverflowException e) {
+                writeBuffer = ByteBuffer.allocate(writeBuffer.capacity() * 2);
+            }
+        }
+    }
+
+    @Override
+    public long readFileSize() throws IOException {
+        ByteBuffer frame = readFrame();
+        long size = FrameCodec.decodeFileSize(frame);
+        bodyEncoding = FrameCodec.decodeBodyEncoding(frame);
+        return size;
+    }
+
+    @Override
+    public void writeFileSize(long size) throws IOException {
+        writeBuffer.clear();
+        FrameCodec.encodeFileSize(writeBuffer, size);
+        writeFrame();
+    }
+
+    @Override
+    public void writeFileSize(long size, BodyEncoding encoding) throws IOException {
+        writeBuffer.clear();
+        FrameCodec.encodeFileSize(writeBuffer, size, encoding);
+        writeFrame();
+    }
+
+    @Override
+    public boolean supportsBodyEncoding() {
+        return true;
+    }
+
+    @Override
+    public BodyEncoding getBodyEncoding() {
+        return bodyEncoding;
+    }
+
+    @Override
+    public InputStream getBodyInputStream() {
+        // The content follows the frames on the same buffered stream, part of it may already be buffered
+        return in;
+    }
+
+    @Override
+    public boolean isAlive() {
+        try {
+            int next = WireProtocol.peek(socket, in);
+            return next == WireProtocol.NOTHING_RECEIVED || (awaitingVersion && next == WireProtocol.VERSION);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public Socket getSocket() {
+        return socket;
+    }
+
+    /**
+     * Reads the next frame of the connection in the {@link BinaryProtocolStream#readBuffer}.
+     *
+     * @return The {@link BinaryProtocolStream#readBuffer} positioned on the opcode of the frame.
+     * @throws IOException If the frame cannot be read or is too long.
+     */
+    private ByteBuffer readFrame() throws IOException {
+        if (awaitingVersion) {
+            int version = in.read();
+            if (version != WireProtocol.VERSION)
+                throw new IOException("The peer does not speak the binary protocol version " + WireProtocol.VERSION);
+            awaitingVersion = false;
+        }
+
+        int length = in.readInt();
+        if (length < 1 || length > WireProtocol.MAX_FRAME_LENGTH)
+            throw new IOException("Invalid frame length: " + length);
+
+        if (readBuffer.capacity() < length)
+            readBuffer = ByteBuffer.allocate(Math.max(length, readBuffer.capacity() * 2));
+
+        in.readFully(readBuffer.array(), 0, length);
+        readBuffer.clear().limit(length);
+        return readBuffer;
+    }
+
+    /**
+     * Writes the frame held by the {@link BinaryProtocolStream#writeBuffer} prefixed by its length and flushes it.
+     *
+     * @throws IOException If the frame cannot be written.
+     */
+    private void writeFrame() throws IOException {
+        int length = writeBuffer.position();
+        out.write(length >>> 24);
+        out.write(length >>> 16);
+        out.write(length >>> 8);
+        out.write(length);
+        out.write(writeBuffer.array(), 0, length);
+        out.flush();
+    }
+}
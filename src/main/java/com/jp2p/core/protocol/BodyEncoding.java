@@ -0,0 +1,67 @@
+package com.jp2p.core.protocol;
+
+/**
+ * The encodings of the content of a file sent in the reply to the download message.
+ * The downloading peer sends the encoding it accepts at the end of the download message, and the peer sending the file answers with the encoding it chose after the size of the file.
+ * The peers that don't know the encodings ignore these fields, so the content is sent {@link BodyEncoding#RAW} to them.
+ * <p>
+ * A content encoded with {@link BodyEncoding#DEFLATE} is sent by blocks of at most {@link BodyEncoding#BLOCK_SIZE} bytes of the file, the blocks being aligned on the multiples of the block size
+ * except for the first one. Each block starts with a header of {@link BodyEncoding#BLOCK_HEADER_LENGTH} bytes: the encoding of the block on 1 byte, the number of bytes of the file it holds on 4 bytes
+ * and the number of bytes that follow on 4 bytes. A block that does not shrink once compressed is sent raw, so a compressed block is always smaller than the bytes of the file it holds.
+ *
+ * @see DeflateBlockInputStream
+ */
+public enum BodyEncoding {
+    /**
+     * The content of the file is sent as it is.
+     */
+    RAW(0),
+
+    /**
+     * The content of the file is sent by blocks, each compressed with Deflate or sent raw if it does not shrink.
+     */
+    DEFLATE(1);
+
+    /**
+     * The maximum number of bytes of the file held by a block.
+     */
+    public static final int BLOCK_SIZE = 256 * 1024;
+
+    /**
+     * The length of the header of a block.
+     */
+    public static final int BLOCK_HEADER_LENGTH = 1 + Integer.BYTES + Integer.BYTES;
+
+    /**
+     * The code of the encoding on the wire.
+     */
+    private final byte code;
+
+    /**
+     * Constructs a new {@link BodyEncoding}.
+     *
+     * @param code The code of the encoding on the wire.
+     */
+    BodyEncoding(int code) {
+        this.code = (byte) code;
+    }
+
+    /**
+     * Returns the code of the encoding on the wire.
+     *
+     * @return The code of the encoding.
+     */
+    public byte getCode() {
+        return code;
+    }
+
+    /**
+     * Returns the encoding of a code received, unknown codes being read as {@link BodyEncoding#RAW} so that a newer peer asking for an unknown encoding gets the content raw.
+     *
+     * @param code The code of the encoding.
+     * @return The {@link BodyEncoding} of the code.
+     */
+    public static BodyEncoding fromCode(int code) {
+        return code == DEFLATE.code ? DEFLATE : RAW;
+    }
+}
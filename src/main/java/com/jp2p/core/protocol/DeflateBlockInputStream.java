@@ -0,0 +1,151 @@
+package com.jp2p.core.protocol;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes the content of a file sent with the {@link BodyEncoding#DEFLATE} encoding, block after block as it is read.
+ * The bytes of the raw blocks are read straight from the connection into the buffer of the caller, only the compressed blocks are inflated in an intermediate buffer.
+ * A header is only read when the caller asks for more bytes than the blocks already read hold, so reading exactly the bytes of the file never reads past its content.
+ * <p>
+ * The {@link Inflater} and the buffers are kept per thread, since a new stream is opened for every range downloaded.
+ * Closing this stream does not close the connection.
+ */
+public class DeflateBlockInputStream extends InputStream {
+    /**
+     * The {@link Inflater} of each thread, reset for every block.
+     */
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    /**
+     * The buffer of each thread holding the compressed bytes of a block.
+     */
+    private static final ThreadLocal<byte[]> COMPRESSED_BUFFERS = ThreadLocal.withInitial(() -> new byte[BodyEncoding.BLOCK_SIZE]);
+
+    /**
+     * The buffer of each thread holding the inflated bytes of a block.
+     */
+    private static final ThreadLocal<byte[]> INFLATED_BUFFERS = ThreadLocal.withInitial(() -> new byte[BodyEncoding.BLOCK_SIZE]);
+
+    /**
+     * The {@link InputStream} of the connection.
+     */
+    private final DataInputStream in;
+
+    /**
+     * The inflated bytes of the current block.
+     */
+    private final byte[] inflated;
+
+    /**
+     * The position of the next byte to read in {@link DeflateBlockInputStream#inflated}.
+     */
+    private int position;
+
+    /**
+     * The number of inflated bytes of the current block.
+     */
+    private int limit;
+
+    /**
+     * The number of bytes of the current raw block left to read from the connection.
+     */
+    private int rawRemaining;
+
+    /**
+     * Constructs a new {@link DeflateBlockInputStream}.
+     *
+     * @param in The {@link InputStream} of the connection, positioned on the header of the first block.
+     */
+    public DeflateBlockInputStream(InputStream in) {
+        this.in = new DataInputStream(in);
+        this.inflated = INFLATED_BUFFERS.get();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+
+        while (rawRemaining == 0 && position == limit) {
+            if (!nextBlock())
+                return -1;
+        }
+
+        if (rawRemaining > 0) {
+            int read = in.read(b, off, Math.min(len, rawRemaining));
+            if (read > 0)
+                rawRemaining -= read;
+            return read;
+        }
+
+        int count = Math.min(len, limit - position);
+        System.arraycopy(inflated, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    /**
+     * Reads the header of the next block, and the whole block if it is compressed.
+     *
+     * @return False if the connection was closed before the next block.
+     * @throws IOException If the block cannot be read or is malformed.
+     */
+    private boolean nextBlock() throws IOException {
+        int encoding = in.read();
+        if (encoding < 0)
+            return false;
+
+        int rawLength = in.readInt();
+        int payloadLength = in.readInt();
+        if (rawLength < 0 || rawLength > BodyEncoding.BLOCK_SIZE || payloadLength < 0 || payloadLength > rawLength)
+            throw new IOException("Malformed block of " + rawLength + " bytes sent in " + payloadLength + " bytes.");
+
+        if (BodyEncoding.fromCode(encoding) == BodyEncoding.RAW) {
+            if (payloadLength != rawLength)
+                throw new IOException("Malformed raw block.");
+            rawRemaining = rawLength;
+            return true;
+        }
+
+        byte[] compressed = COMPRESSED_BUFFERS.get();
+        in.readFully(compressed, 0, payloadLength);
+
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(compressed, 0, payloadLength);
+        try {
+            int total = 0;
+            while (total < rawLength && !inflater.finished()) {
+                int count = inflater.inflate(inflated, total, rawLength - total);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new EOFException("Truncated compressed block.");
+                total += count;
+            }
+
+            if (total != rawLength || !inflater.finished())
+                throw new IOException("The compressed block does not hold " + rawLength + " bytes.");
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted compressed block.", e);
+        }
+
+        position = 0;
+        limit = rawLength;
+        return true;
+    }
+
+    @Override
+    public void close() {
+        // The connection is kept open, it is reused for the next messages
+    }
+}
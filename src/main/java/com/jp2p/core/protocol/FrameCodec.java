@@ -0,0 +1,333 @@
+package com.jp2p.core.protocol;
+
+import com.jp2p.core.commands.Arguments;
+import com.jp2p.core.commands.CommandType;
+import com.jp2p.core.file.ChunkManifest;
+import com.jp2p.core.peer.FileQuery;
+import com.jp2p.core.peer.PathCache.CachedFile;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes and decodes the content of the binary frames, without their length prefix.
+ * It is shared by the {@link BinaryProtocolStream}, which reads and writes the frames on a blocking socket, and by the selector server, which frames them itself.
+ *
+ * @see WireProtocol
+ */
+public final class FrameCodec {
+    /**
+     * The size of the length prefix of a frame.
+     */
+    public static final int LENGTH_PREFIX = Integer.BYTES;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Decodes a message frame.
+     *
+     * @param frame The frame, positioned on its opcode and limited to its end. It must be backed by an array.
+     * @return The decoded {@link Message}, or null if the opcode is unknown.
+     * @throws IOException If the frame is malformed.
+     */
+    public static Message decodeMessage(ByteBuffer frame) throws IOException {
+        CommandType type = CommandType.fromOpcode(frame.get());
+
+        if (type == null)
+            return null;
+
+        try {
+            return new Message(type, switch (type) {
+                case NAME, KNOWN_PEERS -> new Object[0];
+                case ITS_ME -> new Object[]{WireProtocol.getString(frame), WireProtocol.getString(frame), WireProtocol.getVarInt(frame)};
+                case FILE -> new Object[]{decodeFile(frame)};
+                case VOILA -> decodeVoila(frame);
+                case DOWNLOAD -> decodeDownload(frame);
+                case BYE -> new Object[]{WireProtocol.getString(frame)};
+                case MANIFEST -> new Object[]{WireProtocol.getString(frame), WireProtocol.getString(frame), WireProtocol.getVarInt(frame), WireProtocol.getVarInt(frame)};
+            });
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Malformed frame for " + type, e);
+        }
+    }
+
+    /**
+     * Reads the fields of a file frame: [file name] [bounces] [origin port] [origin address] [search identifier], the identifier being 0 if it is missing.
+     *
+     * @param frame The frame to read from.
+     * @return The {@link FileQuery} carried by the file message.
+     * @throws IOException If the frame is malformed.
+     */
+    private static FileQuery decodeFile(ByteBuffer frame) throws IOException {
+        String fileName = WireProtocol.getString(frame);
+        int bounces = WireProtocol.getVarInt(frame);
+        int port = WireProtocol.getVarInt(frame);
+        String address = WireProtocol.getString(frame);
+        long id = frame.remaining() >= Long.BYTES ? frame.getLong() : FileQuery.NO_ID;
+        return new FileQuery(id, fileName, bounces, address, port);
+    }
+
+    /**
+     * Reads the fields of a voila frame: [peer name] [number of files found] [file name 1] [file size1] [file name 2] [file size2]... [root 1] [root 2]...
+     * The Merkle roots of the files are only sent by the peers that hash their files, they are read if the frame holds more bytes after the files.
+     * A root is {@link ChunkManifest#NO_ROOT} when the file was not hashed yet by the peer that has it, it is read as null.
+     *
+     * @param frame The frame to read from.
+     * @return The arguments of the voila message: the name of the peer and the {@link List} of the {@link CachedFile}s found on it.
+     * @throws IOException If the frame is malformed.
+     */
+    private static Object[] decodeVoila(ByteBuffer frame) throws IOException {
+        String peerName = WireProtocol.getString(frame);
+        int count = WireProtocol.getVarInt(frame);
+        if (count < 0 || count > frame.remaining())
+            throw new IOException("Malformed voila frame.");
+
+        String[] names = new String[count];
+        long[] sizes = new long[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = WireProtocol.getString(frame);
+            sizes[i] = frame.getLong();
+        }
+
+        boolean withRoots = frame.hasRemaining();
+        List<CachedFile> files = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String root = withRoots ? WireProtocol.getString(frame) : null;
+            files.add(new CachedFile(peerName, names[i], sizes[i], ChunkManifest.NO_ROOT.equals(root) ? null : root));
+        }
+
+        return new Object[]{peerName, files};
+    }
+
+    /**
+     * Reads the fields of a download frame: [file name] [skip bytes] [length] [accepted encoding] [queueing] [peer name], a negative length meaning up to the end of the file.
+     * The accepted {@link BodyEncoding} is only sent by the peers that can decode it, the content is sent raw if it is missing.
+     * The queueing byte is only sent by the peers that can be told their position in the queue of the uploads instead of the file, it is 1 if they can.
+     * The name of the downloading peer is only sent by the peers that know the upload slots, it is read as null if it is missing.
+     *
+     * @param frame The frame to read from.
+     * @return The arguments of the download message.
+     * @throws IOException If the frame is malformed.
+     */
+    private static Object[] decodeDownload(ByteBuffer frame) throws IOException {
+        String fileName = WireProtocol.getString(frame);
+        long skipBytes = frame.getLong();
+        long length = frame.getLong();
+        BodyEncoding accepted = frame.hasRemaining() ? BodyEncoding.fromCode(frame.get()) : BodyEncoding.RAW;
+        boolean queueing = frame.hasRemaining() && frame.get() == 1;
+        String peerName = frame.hasRemaining() ? WireProtocol.getString(frame) : null;
+        return new Object[]{fileName, skipBytes, length < 0 ? null : length, accepted, queueing, peerName};
+    }
+
+    /**
+     * Encodes a message frame at the position of the buffer.
+     *
+     * @param buffer  The buffer to write to.
+     * @param message The {@link Message} to encode.
+     * @throws BufferOverflowException If the buffer is too small for the frame.
+     */
+    public static void encodeMessage(ByteBuffer buffer, Message message) {
+        buffer.put(message.type().getOpcode());
+        Object[] args = message.args();
+
+        switch (message.type()) {
+            case NAME, KNOWN_PEERS -> {
+            }
+            case ITS_ME -> {
+                WireProtocol.putString(buffer, (String) args[0]);
+                WireProtocol.putString(buffer, (String) args[1]);
+                WireProtocol.putVarInt(buffer, Arguments.asInt(args[2]));
+            }
+            case FILE -> {
+                FileQuery query = (FileQuery) args[0];
+                WireProtocol.putString(buffer, query.fileName());
+                WireProtocol.putVarInt(buffer, query.bounces());
+                WireProtocol.putVarInt(buffer, query.originPort());
+                WireProtocol.putString(buffer, query.originAddress());
+                buffer.putLong(query.id());
+            }
+            case VOILA -> {
+                List<CachedFile> files = voilaFiles(message);
+                WireProtocol.putString(buffer, (String) args[0]);
+                WireProtocol.putVarInt(buffer, files.size());
+                for (CachedFile file : files) {
+                    WireProtocol.putString(buffer, file.fileName());
+                    buffer.putLong(file.fileSize());
+                }
+                for (CachedFile file : files) {
+                    WireProtocol.putString(buffer, file.root() != null ? file.root() : ChunkManifest.NO_ROOT);
+                }
+            }
+            case DOWNLOAD -> {
+                WireProtocol.putString(buffer, (String) args[0]);
+                buffer.putLong(Arguments.asLong(args[1]));
+                buffer.putLong(args.length > 2 && args[2] != null ? Arguments.asLong(args[2]) : -1);
+
+                // An optional field is sent with its default value when a field after it is sent
+                Object encoding = args.length > 3 ? args[3] : null;
+                Object queueing = args.length > 4 ? args[4] : null;
+                Object peerName = args.length > 5 ? args[5] : null;
+                if (encoding != null || queueing != null || peerName != null)
+                    buffer.put(encoding != null ? ((BodyEncoding) encoding).getCode() : BodyEncoding.RAW.getCode());
+                if (queueing != null || peerName != null)
+                    buffer.put((byte) (Boolean.TRUE.equals(queueing) ? 1 : 0));
+                if (peerName != null)
+                    WireProtocol.putString(buffer, (String) peerName);
+            }
+            case BYE -> WireProtocol.putString(buffer, (String) args[0]);
+            case MANIFEST -> {
+                WireProtocol.putString(buffer, (String) args[0]);
+                WireProtocol.putString(buffer, (String) args[1]);
+                WireProtocol.putVarInt(buffer, Arguments.asInt(args[2]));
+                WireProtocol.putVarInt(buffer, Arguments.asInt(args[3]));
+            }
+        }
+    }
+
+    /**
+     * Returns the files carried by a voila message.
+     *
+     * @param message The voila {@link Message}, whose second argument is the {@link List} of the {@link CachedFile}s found.
+     * @return The files found.
+     */
+    @SuppressWarnings("unchecked")
+    static List<CachedFile> voilaFiles(Message message) {
+        return (List<CachedFile>) message.args()[1];
+    }
+
+    /**
+     * Decodes a reply frame.
+     *
+     * @param frame The frame, positioned on its opcode and limited to its end. It must be backed by an array.
+     * @return The text of the reply.
+     * @throws IOException If the frame is not a well formed reply frame.
+     */
+    public static String decodeReply(ByteBuffer frame) throws IOException {
+        if (frame.get() != WireProtocol.REPLY)
+            throw new IOException("Expected a reply frame.");
+
+        try {
+            return WireProtocol.getString(frame);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Malformed reply frame.", e);
+        }
+    }
+
+    /**
+     * Encodes a reply frame at the position of the buffer.
+     *
+     * @param buffer The buffer to write to.
+     * @param reply  The text of the reply.
+     * @throws BufferOverflowException If the buffer is too small for the frame.
+     */
+    public static void encodeReply(ByteBuffer buffer, String reply) {
+        buffer.put(WireProtocol.REPLY);
+        WireProtocol.putString(buffer, reply);
+    }
+
+    /**
+     * Decodes a file size frame.
+     *
+     * @param frame The frame, positioned on its opcode and limited to its end.
+     * @return The size of the file, negative if the file was not found.
+     * @throws IOException If the frame is not a well formed file size frame.
+     */
+    public static long decodeFileSize(ByteBuffer frame) throws IOException {
+        if (frame.get() != WireProtocol.FILE_SIZE || frame.remaining() < Long.BYTES)
+            throw new IOException("Expected a file size frame.");
+
+        return frame.getLong();
+    }
+
+    /**
+     * Reads the {@link BodyEncoding} that follows the size in a file size frame, sent by the peers that know the encodings when the download message accepted one.
+     *
+     * @param frame The frame, positioned after the size of the file.
+     * @return The {@link BodyEncoding} of the content of the file, {@link BodyEncoding#RAW} if it is missing.
+     */
+    public static BodyEncoding decodeBodyEncoding(ByteBuffer frame) {
+        return frame.hasRemaining() ? BodyEncoding.fromCode(frame.get()) : BodyEncoding.RAW;
+    }
+
+    /**
+     * Encodes a file size frame at the position of the buffer.
+     *
+     * @param buffer The buffer to write to.
+     * @param size   The size of the file, negative if the file was not found.
+     * @throws BufferOverflowException If the buffer is too small for the frame.
+     */
+    public static void encodeFileSize(ByteBuffer buffer, long size) {
+        buffer.put(WireProtocol.FILE_SIZE);
+        buffer.putLong(size);
+    }
+
+    /**
+     * Encodes a file size frame followed by the {@link BodyEncoding} of the content of the file at the position of the buffer.
+     *
+     * @param buffer   The buffer to write to.
+     * @param size     The size of the file, negative if the file was not found.
+     * @param encoding The {@link BodyEncoding} of the content of the file.
+     * @throws BufferOverflowException If the buffer is too small for the frame.
+     */
+    public static void encodeFileSize(ByteBuffer buffer, long size, BodyEncoding encoding) {
+        encodeFileSize(buffer, size);
+        buffer.put(encoding.getCode());
+    }
+
+    /**
+     * Returns a new buffer holding a whole reply frame with its length prefix, ready to be written on a channel.
+     *
+     * @param reply The text of the reply.
+     * @return The flipped buffer holding the frame.
+     */
+    public static ByteBuffer replyFrame(String reply) {
+        // A UTF-8 character takes at most 3 bytes per char and the length at most 5 bytes
+        ByteBuffer buffer = ByteBuffer.allocate(LENGTH_PREFIX + 1 + 5 + reply.length() * 3);
+        buffer.position(LENGTH_PREFIX);
+        encodeReply(buffer, reply);
+        return prefixLength(buffer);
+    }
+
+    /**
+     * Returns a new buffer holding a whole file size frame with its length prefix, ready to be written on a channel.
+     *
+     * @param size The size of the file, negative if the file was not found.
+     * @return The flipped buffer holding the frame.
+     */
+    public static ByteBuffer fileSizeFrame(long size) {
+        ByteBuffer buffer = ByteBuffer.allocate(LENGTH_PREFIX + 1 + Long.BYTES);
+        buffer.position(LENGTH_PREFIX);
+        encodeFileSize(buffer, size);
+        return prefixLength(buffer);
+    }
+
+    /**
+     * Returns a new buffer holding a whole file size frame followed by the {@link BodyEncoding} of the content, with its length prefix, ready to be written on a channel.
+     *
+     * @param size     The size of the file, negative if the file was not found.
+     * @param encoding The {@link BodyEncoding} of the content of the file.
+     * @return The flipped buffer holding the frame.
+     */
+    public static ByteBuffer fileSizeFrame(long size, BodyEncoding encoding) {
+        ByteBuffer buffer = ByteBuffer.allocate(LENGTH_PREFIX + 1 + Long.BYTES + 1);
+        buffer.position(LENGTH_PREFIX);
+        encodeFileSize(buffer, size, encoding);
+        return prefixLength(buffer);
+    }
+
+    /**
+     * Writes the length of the frame encoded after the room left for its length prefix and flips the buffer.
+     *
+     * @param buffer The buffer holding the frame, positioned at its end.
+     * @return The flipped buffer.
+     */
+    private static ByteBuffer prefixLength(ByteBuffer buffer) {
+        buffer.putInt(0, buffer.position() - LENGTH_PREFIX);
+        return buffer.flip();
+    }
+}
@@ -0,0 +1,456 @@
+package com.jp2p.core.protocol;
+
+import com.jp2p.core.commands.CommandType;
+import com.jp2p.core.file.ChunkManifest;
+import com.jp2p.core.peer.FileQuery;
+import com.jp2p.core.peer.PathCache.CachedFile;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A {@link ProtocolStream} that exchanges the messages as {@link String}s written on an {@link ObjectOutputStream}.
+ * All messages follow the following format: [command](!|?) [arg1] [arg2] [arg3]...
+ * This protocol is kept for the peers that don't speak the binary protocol.
+ * <p>
+ * The messages are parsed in a single pass over the {@link String} received, the numbers being read where they are without cutting them out.
+ * The file and voila messages are read into their {@link FileQuery} and {@link CachedFile}s, the arguments of the other messages are left as {@link String}s.
+ */
+public class LegacyProtocolStream implements ProtocolStream {
+    /**
+     * The {@link CommandType}s, looked up by {@link LegacyProtocolStream#commandType(String, int)}.
+     */
+    private static final CommandType[] COMMAND_TYPES = CommandType.values();
+
+    /**
+     * The names of the commands in the legacy protocol, by the ordinal of their {@link CommandType}.
+     */
+    private static final String[] NAMES = new String[COMMAND_TYPES.length];
+
+    static {
+        NAMES[CommandType.NAME.ordinal()] = "name";
+        NAMES[CommandType.KNOWN_PEERS.ordinal()] = "known peers";
+        NAMES[CommandType.ITS_ME.ordinal()] = "it's me";
+        NAMES[CommandType.FILE.ordinal()] = "file";
+        NAMES[CommandType.VOILA.ordinal()] = "voila";
+        NAMES[CommandType.DOWNLOAD.ordinal()] = "download";
+        NAMES[CommandType.BYE.ordinal()] = "bye";
+        NAMES[CommandType.MANIFEST.ordinal()] = "manifest";
+    }
+
+    /**
+     * The {@link Socket} of the connection.
+     */
+    private final Socket socket;
+
+    /**
+     * The raw {@link InputStream} of the connection, buffered on the client side.
+     */
+    private final InputStream rawIn;
+
+    /**
+     * The {@link ObjectOutputStream} of the connection.
+     */
+    private final ObjectOutputStream out;
+
+    /**
+     * The {@link ObjectInputStream} of the connection, opened on the first read because opening it waits for the header of the other peer.
+     */
+    private ObjectInputStream in;
+
+    /**
+     * The {@link Tokens} the messages received are read with, reused for every message of the connection.
+     */
+    private final Tokens tokens = new Tokens();
+
+    /**
+     * Constructs a new {@link LegacyProtocolStream}.
+     *
+     * @param socket The {@link Socket} of the connection.
+     * @param rawIn  The raw {@link InputStream} of the connection.
+     * @throws IOException If the {@link ObjectOutputStream} cannot be opened.
+     */
+    private LegacyProtocolStream(Socket socket, InputStream rawIn) throws IOException {
+        this.socket = socket;
+        this.rawIn = rawIn;
+        this.out = new ObjectOutputStream(socket.getOutputStream());
+    }
+
+    /**
+     * Opens a {@link LegacyProtocolStream} on the client side of a connection.
+     *
+     * @param socket The {@link Socket} of the connection.
+     * @return The {@link LegacyProtocolStream} of the connection.
+     * @throws IOException If the streams cannot be opened.
+     */
+    static LegacyProtocolStream connect(Socket socket) throws IOException {
+        return new LegacyProtocolStream(socket, new BufferedInputStream(socket.getInputStream()));
+    }
+
+    /**
+     * Opens a {@link LegacyProtocolStream} on the server side of a connection.
+     *
+     * @param socket The {@link Socket} of the connection.
+     * @param rawIn  The {@link InputStream} of the connection, positioned on the header of the {@link ObjectOutputStream} of the client.
+     * @return The {@link LegacyProtocolStream} of the connection.
+     * @throws IOException If the streams cannot be opened.
+     */
+    static LegacyProtocolStream accept(Socket socket, InputStream rawIn) throws IOException {
+        LegacyProtocolStream stream = new LegacyProtocolStream(socket, rawIn);
+        stream.getObjectInputStream();
+        return stream;
+    }
+
+    @Override
+    public Message readMessage() throws IOException {
+        String command = readString();
+        int separator = separatorIndex(command);
+        if (separator < 0)
+            throw new IllegalArgumentException("Provided arguments don't match the format [messageName(?|!) arg1 arg2 ...]");
+
+        CommandType type = commandType(command, separator);
+        if (type == null)
+            return null;
+
+        tokens.reset(command, separator + 1);
+        return switch (type) {
+            case FILE -> new Message(type, readFile(tokens));
+            case VOILA -> new Message(type, readVoila(tokens));
+            default -> new Message(type, (Object[]) tokens.remaining());
+        };
+    }
+
+    @Override
+    public void writeMessage(Message message) throws IOException {
+        StringBuilder builder = new StringBuilder(switch (message.type()) {
+            case NAME -> "name?";
+            case KNOWN_PEERS -> "known peers?";
+            case ITS_ME -> "it's me!";
+            case FILE -> "file?";
+            case VOILA -> "voila!";
+            case DOWNLOAD -> "download?";
+            case BYE -> "bye!";
+            case MANIFEST -> "manifest?";
+        });
+
+        switch (message.type()) {
+            case FILE -> {
+                FileQuery query = (FileQuery) message.args()[0];
+                builder.append(' ').append(query.fileName()).append(' ').append(query.bounces()).append(' ').append(query.originPort())
+                        .append(' ').append(query.originAddress()).append(' ').append(query.id());
+            }
+            case VOILA -> {
+                List<CachedFile> files = FrameCodec.voilaFiles(message);
+                builder.append(' ').append(message.args()[0]).append(' ').append(files.size());
+                for (CachedFile file : files) {
+                    builder.append(' ').append(file.fileName()).append(' ').append(file.fileSize());
+                }
+                for (CachedFile file : files) {
+                    builder.append(' ').append(file.root() != null ? file.root() : ChunkManifest.NO_ROOT);
+                }
+            }
+            default -> {
+                // The legacy protocol cannot tell the encoding of the content of a file, so the encoding accepted by a download message is not sent
+                Object[] args = message.type() == CommandType.DOWNLOAD && message.args().length > 3 ? Arrays.copyOf(message.args(), 3) : message.args();
+                for (Object arg : args) {
+                    if (arg != null) {
+                        builder.append(" ").append(arg);
+                    }
+                }
+            }
+        }
+
+        out.writeObject(builder.toString());
+        out.flush();
+    }
+
+    @Override
+    public String readReply() throws IOException {
+        return readString();
+    }
+
+    @Override
+    public void writeReply(String reply) throws IOException {
+        out.writeObject(reply);
+        out.flush();
+    }
+
+    @Override
+    public long readFileSize() throws IOException {
+        return getObjectInputStream().readLong();
+    }
+
+    @Override
+    public void writeFileSize(long size) throws IOException {
+        out.writeLong(size);
+        out.flush();
+    }
+
+    @Override
+    public InputStream getBodyInputStream() {
+        // The content of a file is sent raw after its size, so it is read from the socket and not from the ObjectInputStream
+        return rawIn;
+    }
+
+    @Override
+    public boolean isAlive() {
+        try {
+            // Until the ObjectInputStream is opened, the header sent by the other peer is expected
+            int next = WireProtocol.peek(socket, rawIn);
+            return next == WireProtocol.NOTHING_RECEIVED || (in == null && (byte) next == WireProtocol.LEGACY_MAGIC);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public Socket getSocket() {
+        return socket;
+    }
+
+    /**
+     * Reads the next {@link String} written on the {@link ObjectOutputStream} of the other peer.
+     *
+     * @return The {@link String} read.
+     * @throws IOException If the {@link String} cannot be read.
+     */
+    private String readString() throws IOException {
+        try {
+            return (String) getObjectInputStream().readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Expected a String message.", e);
+        }
+    }
+
+    /**
+     * Returns the {@link ObjectInputStream} of the connection, opening it if it was not opened yet.
+     *
+     * @return The {@link ObjectInputStream} of the connection.
+     * @throws IOException If the header of the other peer cannot be read.
+     */
+    private ObjectInputStream getObjectInputStream() throws IOException {
+        if (in == null)
+            in = new ObjectInputStream(rawIn);
+
+        return in;
+    }
+
+    /**
+     * Returns the position of the character ending the name of the command, "!" or "?".
+     * All commands received should follow the following format: [command](!|?) [arg1] [arg2] [arg3]...
+     *
+     * @param command The command received from the client.
+     * @return The position of the first "!" or "?", -1 if there is none.
+     */
+    private static int separatorIndex(String command) {
+        for (int i = 0; i < command.length(); i++) {
+            char c = command.charAt(i);
+            if (c == '!' || c == '?')
+                return i;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the {@link CommandType} named before the separator, compared in place.
+     *
+     * @param command   The command received from the client.
+     * @param separator The position of the separator ending the name of the command.
+     * @return The {@link CommandType}, or null if the name is unknown.
+     */
+    private static CommandType commandType(String command, int separator) {
+        for (CommandType type : COMMAND_TYPES) {
+            String name = NAMES[type.ordinal()];
+            if (name.length() == separator && command.regionMatches(0, name, 0, separator))
+                return type;
+        }
+
+        return null;
+    }
+
+    /**
+     * Reads the arguments of a file message: [file name] [bounces] [origin port] [origin address] [search identifier], the identifier being left out by the older peers.
+     *
+     * @param tokens The {@link Tokens} of the message.
+     * @return The {@link FileQuery} carried by the message.
+     * @throws IllegalArgumentException If an argument is missing or a number is malformed.
+     */
+    private static FileQuery readFile(Tokens tokens) throws IllegalArgumentException {
+        String fileName = tokens.next();
+        int bounces = tokens.nextInt();
+        int port = tokens.nextInt();
+        String address = tokens.next();
+        long id = tokens.hasNext() ? tokens.nextLong() : FileQuery.NO_ID;
+        return new FileQuery(id, fileName, bounces, address, port);
+    }
+
+    /**
+     * Reads the arguments of a voila message: [peer name] [number of files found] [file name 1] [file size1] [file name 2] [file size2]... [root 1] [root 2]...
+     * The Merkle roots come after all the names and sizes, they are missing when the message comes from a peer that doesn't know them.
+     *
+     * @param tokens The {@link Tokens} of the message.
+     * @return The arguments of the voila message: the name of the peer and the {@link List} of the {@link CachedFile}s found on it.
+     * @throws IllegalArgumentException If an argument is missing or a number is malformed.
+     */
+    private static Object[] readVoila(Tokens tokens) throws IllegalArgumentException {
+        String peerName = tokens.next();
+        long count = tokens.nextLong();
+        if (count < 0 || count > tokens.text.length())
+            throw new IllegalArgumentException("Malformed voila message.");
+
+        String[] names = new String[(int) count];
+        long[] sizes = new long[(int) count];
+        for (int i = 0; i < count; i++) {
+            names[i] = tokens.next();
+            sizes[i] = tokens.nextLong();
+        }
+
+        boolean withRoots = tokens.hasNext();
+        List<CachedFile> files = new ArrayList<>(names.length);
+        for (int i = 0; i < names.length; i++) {
+            String root = withRoots && tokens.hasNext() ? tokens.next() : null;
+            files.add(new CachedFile(peerName, names[i], sizes[i], ChunkManifest.NO_ROOT.equals(root) ? null : root));
+        }
+
+        return new Object[]{peerName, files};
+    }
+
+    /**
+     * Reads the arguments of a message one after the other, separated by spaces, from the position they start at in the {@link String} received.
+     * The numbers are read in place, only the text arguments are cut out of the {@link String}.
+     */
+    static final class Tokens {
+        /**
+         * The message being read.
+         */
+        private String text;
+
+        /**
+         * The position of the next character to read.
+         */
+        private int position;
+
+        /**
+         * Starts reading a message.
+         *
+         * @param text  The message received.
+         * @param start The position of the first argument, after the name of the command.
+         */
+        void reset(String text, int start) {
+            this.text = text;
+            this.position = start;
+        }
+
+        /**
+         * Returns whether an argument is left, skipping the spaces before it.
+         *
+         * @return true if an argument is left, false otherwise.
+         */
+        boolean hasNext() {
+            while (position < text.length() && text.charAt(position) == ' ') {
+                position++;
+            }
+
+            return position < text.length();
+        }
+
+        /**
+         * Returns the position after the end of the next argument, which starts at the current position.
+         *
+         * @return The position of the space following the argument or the end of the message.
+         */
+        private int end() {
+            int end = text.indexOf(' ', position);
+            return end < 0 ? text.length() : end;
+        }
+
+        /**
+         * Reads the next argument as text.
+         *
+         * @return The argument.
+         * @throws IllegalArgumentException If no argument is left.
+         */
+        String next() throws IllegalArgumentException {
+            if (!hasNext())
+                throw new IllegalArgumentException("Missing argument.");
+
+            int end = end();
+            String token = text.substring(position, end);
+            position = end;
+            return token;
+        }
+
+        /**
+         * Reads the next argument as a number, in place.
+         *
+         * @return The number.
+         * @throws IllegalArgumentException If no argument is left.
+         * @throws NumberFormatException    If the argument is not a number.
+         */
+        long nextLong() throws IllegalArgumentException {
+            if (!hasNext())
+                throw new IllegalArgumentException("Missing argument.");
+
+            int end = end();
+            int i = position;
+            boolean negative = text.charAt(i) == '-';
+            if (negative)
+                i++;
+
+            // Up to 18 digits cannot overflow, the longer numbers are left to Long.parseLong
+            if (i == end || end - i > 18) {
+                long value = Long.parseLong(text.substring(position, end));
+                position = end;
+                return value;
+            }
+
+            long value = 0;
+            for (; i < end; i++) {
+                int digit = text.charAt(i) - '0';
+                if (digit < 0 || digit > 9)
+                    throw new NumberFormatException("For input string: \"" + text.substring(position, end) + "\"");
+                value = value * 10 + digit;
+            }
+
+            position = end;
+            return negative ? -value : value;
+        }
+
+        /**
+         * Reads the next argument as an int, in place.
+         *
+         * @return The number.
+         * @throws IllegalArgumentException If no argument is left.
+         * @throws NumberFormatException    If the argument is not a number or does not fit in an int.
+         */
+        int nextInt() throws IllegalArgumentException {
+            long value = nextLong();
+            if (value != (int) value)
+                throw new NumberFormatException("Value out of range: " + value);
+
+            return (int) value;
+        }
+
+        /**
+         * Reads the arguments left as text.
+         *
+         * @return The arguments left, possibly none.
+         */
+        String[] remaining() {
+            List<String> args = new ArrayList<>();
+            while (hasNext()) {
+                args.add(next());
+            }
+
+            return args.toArray(new String[0]);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.jp2p.core.protocol;
+
+import com.jp2p.core.commands.CommandType;
+
+/**
+ * A message exchanged between two peers, made of the {@link CommandType} of the command to execute and its arguments.
+ * The arguments are typed ({@link String}, {@link Integer} and {@link Long}) when the message was read with the {@link BinaryProtocolStream},
+ * and are all {@link String}s when it was read with the {@link LegacyProtocolStream}.
+ * The file and voila messages, which flood the network, are typed with both protocols: the only argument of a file message is its {@link com.jp2p.core.peer.FileQuery},
+ * the arguments of a voila message are the name of the peer and the {@link java.util.List} of the {@link com.jp2p.core.peer.PathCache.CachedFile}s found on it.
+ *
+ * @param type The {@link CommandType} of the message.
+ * @param args The arguments of the message.
+ */
+public record Message(CommandType type, Object... args) {
+}
@@ -0,0 +1,105 @@
+package com.jp2p.core.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.UnaryOperator;
+
+/**
+ * A connection between two peers that reads and writes {@link Message}s and their replies using a given wire protocol.
+ * Implemented by the {@link BinaryProtocolStream} and by the {@link LegacyProtocolStream} that is kept for the peers that don't speak the binary protocol.
+ * The replies are written through the {@link ReplyStream} side of the connection.
+ *
+ * @see WireProtocol
+ */
+public interface ProtocolStream extends ReplyStream {
+    /**
+     * Reads the next {@link Message} received on the connection.
+     *
+     * @return The {@link Message} received, or null if the message is unknown and was skipped.
+     * @throws IOException If the message cannot be read.
+     */
+    Message readMessage() throws IOException;
+
+    /**
+     * Writes a {@link Message} on the connection.
+     *
+     * @param message The {@link Message} to write.
+     * @throws IOException If the message cannot be written.
+     */
+    void writeMessage(Message message) throws IOException;
+
+    /**
+     * Reads the text reply to a {@link Message} previously written.
+     *
+     * @return The text of the reply.
+     * @throws IOException If the reply cannot be read.
+     */
+    String readReply() throws IOException;
+
+    /**
+     * Reads the size of the file that precedes the content of the file in the reply to the download message.
+     *
+     * @return The size of the file in bytes, {@link ProtocolStream#FILE_NOT_FOUND} if the file was not found, or a size telling a position in the queue.
+     * @throws IOException If the size cannot be read.
+     * @see ProtocolStream#queuePosition(long)
+     */
+    long readFileSize() throws IOException;
+
+    /**
+     * Returns the position in the queue of the uploads told by a size read in the reply to a download message.
+     *
+     * @param size The size read by {@link ProtocolStream#readFileSize()}.
+     * @return The position in the queue starting at 1, or 0 if the size is the one of a file or {@link ProtocolStream#FILE_NOT_FOUND}.
+     */
+    static int queuePosition(long size) {
+        return size <= QUEUED ? (int) Math.min(Integer.MAX_VALUE, QUEUED - size + 1) : 0;
+    }
+
+    /**
+     * Returns the {@link BodyEncoding} of the content of the file whose size was read last by {@link ProtocolStream#readFileSize()}.
+     *
+     * @return The {@link BodyEncoding} of the content to read.
+     */
+    default BodyEncoding getBodyEncoding() {
+        return BodyEncoding.RAW;
+    }
+
+    /**
+     * Returns the {@link InputStream} on which the raw content of a downloaded file is read.
+     *
+     * @return The {@link InputStream} of the connection.
+     * @throws IOException If the stream cannot be returned.
+     */
+    InputStream getBodyInputStream() throws IOException;
+
+    /**
+     * Returns the {@link InputStream} on which the content of a downloaded file is read decoded, as announced by {@link ProtocolStream#getBodyEncoding()}.
+     *
+     * @return The {@link InputStream} of the decoded content of the file.
+     * @throws IOException If the stream cannot be returned.
+     */
+    default InputStream getDecodedBodyInputStream() throws IOException {
+        return getDecodedBodyInputStream(UnaryOperator.identity());
+    }
+
+    /**
+     * Returns the {@link InputStream} on which the content of a downloaded file is read decoded, the bytes received on the connection being read through a wrapper first.
+     * The wrapper sees the bytes as they are sent, compressed or not, so that it can count or limit the bytes received rather than the bytes of the file.
+     *
+     * @param wrapper Wraps the {@link InputStream} of the connection.
+     * @return The {@link InputStream} of the decoded content of the file.
+     * @throws IOException If the stream cannot be returned.
+     */
+    default InputStream getDecodedBodyInputStream(UnaryOperator<InputStream> wrapper) throws IOException {
+        InputStream body = wrapper.apply(getBodyInputStream());
+        return getBodyEncoding() == BodyEncoding.DEFLATE ? new DeflateBlockInputStream(body) : body;
+    }
+
+    /**
+     * Checks, without waiting, that the connection was not closed by the other peer and that it holds no unexpected bytes.
+     * Used to check an idle connection before reusing it.
+     *
+     * @return true if the connection can be used, false otherwise.
+     */
+    boolean isAlive();
+}
@@ -0,0 +1,105 @@
+package com.jp2p.core.protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The server side of a connection between two peers, on which the replies to the {@link Message}s received are written.
+ * The commands only need this side of the connection, so that they can reply on a {@link ProtocolStream} as well as on a connection whose messages are read by the selector server.
+ *
+ * @see ProtocolStream
+ */
+public interface ReplyStream extends Closeable {
+    /**
+     * The size sent in the reply to a download message when the file was not found.
+     */
+    long FILE_NOT_FOUND = -1;
+
+    /**
+     * The size sent in the reply to a download message when the downloading peer is queued first for an upload slot, the position n being sent as {@code QUEUED - n + 1}.
+     * Only the peers that said in the download message that they can wait in the queue are told their position.
+     */
+    long QUEUED = -2;
+
+    /**
+     * Writes the text reply to a {@link Message} previously read.
+     *
+     * @param reply The text of the reply.
+     * @throws IOException If the reply cannot be written.
+     */
+    void writeReply(String reply) throws IOException;
+
+    /**
+     * Writes the size of the file that precedes the content of the file in the reply to the download message.
+     * The size is flushed so that the content of the file can then be written on {@link ReplyStream#getBodyChannel()}.
+     *
+     * @param size The size of the file in bytes, -1 if the file was not found.
+     * @throws IOException If the size cannot be written.
+     */
+    void writeFileSize(long size) throws IOException;
+
+    /**
+     * Writes the size of the file followed by the {@link BodyEncoding} of its content, in the reply to a download message that accepted an encoding.
+     * Only the streams for which {@link ReplyStream#supportsBodyEncoding()} is true can send a content that is not {@link BodyEncoding#RAW}.
+     *
+     * @param size     The size of the file in bytes, -1 if the file was not found.
+     * @param encoding The {@link BodyEncoding} of the content written next.
+     * @throws IOException If the size cannot be written.
+     */
+    default void writeFileSize(long size, BodyEncoding encoding) throws IOException {
+        if (encoding != BodyEncoding.RAW)
+            throw new UnsupportedOperationException("This protocol only sends raw content.");
+
+        writeFileSize(size);
+    }
+
+    /**
+     * Writes the position of the downloading peer in the queue of the uploads in place of the size of the file, no content following it.
+     *
+     * @param position The position of the peer in the queue, starting at 1.
+     * @throws IOException If the position cannot be written.
+     */
+    default void writeQueuePosition(int position) throws IOException {
+        writeFileSize(QUEUED - position + 1);
+    }
+
+    /**
+     * Returns whether the protocol can tell the encoding of the content of a file, which the legacy protocol cannot without breaking the peers that don't know the encodings.
+     *
+     * @return True if the content of a file can be sent in another {@link BodyEncoding} than {@link BodyEncoding#RAW}.
+     */
+    default boolean supportsBodyEncoding() {
+        return false;
+    }
+
+    /**
+     * Returns the {@link Socket} of the connection.
+     *
+     * @return The {@link Socket} of the connection.
+     */
+    Socket getSocket();
+
+    /**
+     * Returns the {@link WritableByteChannel} on which the raw content of a file is written.
+     * This is the channel of the {@link Socket} if it has one, which allows sending a file without copying it in the application.
+     *
+     * @return The {@link WritableByteChannel} of the connection.
+     * @throws IOException If the channel cannot be returned.
+     */
+    default WritableByteChannel getBodyChannel() throws IOException {
+        return getSocket().getChannel() != null ? getSocket().getChannel() : Channels.newChannel(getSocket().getOutputStream());
+    }
+
+    /**
+     * Closes the {@link Socket} of the connection.
+     *
+     * @throws IOException If the socket cannot be closed.
+     */
+    @Override
+    default void close() throws IOException {
+        getSocket().close();
+    }
+}
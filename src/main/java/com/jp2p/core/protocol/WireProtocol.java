@@ -0,0 +1,190 @@
+package com.jp2p.core.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Negotiates the wire protocol of a connection and provides the encoding of the fields of the binary protocol.
+ * A client speaking the binary protocol starts the connection with its {@link WireProtocol#VERSION} byte, to which the server answers with the same byte.
+ * A client speaking the legacy protocol starts the connection with the header of an {@link java.io.ObjectOutputStream}, whose first byte is {@link WireProtocol#LEGACY_MAGIC}.
+ * <p>
+ * A binary frame is made of its length on 4 bytes, the opcode of the frame on 1 byte and the fields of the frame.
+ * Ports, counts and bounces are encoded as variable length integers, offsets and sizes on 8 bytes and names as a variable length integer followed by their UTF-8 bytes.
+ */
+public final class WireProtocol {
+    /**
+     * The version of the binary protocol.
+     */
+    public static final byte VERSION = 0x01;
+
+    /**
+     * The first byte of the header of an {@link java.io.ObjectOutputStream}, sent first by the peers speaking the legacy protocol.
+     */
+    public static final byte LEGACY_MAGIC = (byte) 0xAC;
+
+    /**
+     * The opcode of the frames holding the text reply to a message.
+     */
+    public static final byte REPLY = 0x40;
+
+    /**
+     * The opcode of the frames holding the size of a file, sent before its content in the reply to the download message.
+     */
+    public static final byte FILE_SIZE = 0x41;
+
+    /**
+     * The maximum length of a frame in bytes, longer frames are rejected.
+     */
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    /**
+     * Returned by {@link WireProtocol#peek(Socket, InputStream)} when no byte was received.
+     */
+    public static final int NOTHING_RECEIVED = -2;
+
+    private WireProtocol() {
+    }
+
+    /**
+     * Opens a {@link ProtocolStream} on the client side of a connection.
+     *
+     * @param socket The {@link Socket} of the connection.
+     * @param binary True to speak the binary protocol, false to speak the legacy protocol.
+     * @return The {@link ProtocolStream} of the connection.
+     * @throws IOException If the protocol cannot be negotiated.
+     */
+    public static ProtocolStream connect(Socket socket, boolean binary) throws IOException {
+        return binary ? BinaryProtocolStream.connect(socket) : LegacyProtocolStream.connect(socket);
+    }
+
+    /**
+     * Opens a {@link ProtocolStream} on the server side of a connection, the protocol is chosen by the first byte sent by the client.
+     *
+     * @param socket The {@link Socket} of the connection.
+     * @return The {@link ProtocolStream} of the connection.
+     * @throws IOException If the client speaks an unknown protocol or closed the connection.
+     */
+    public static ProtocolStream accept(Socket socket) throws IOException {
+        return accept(socket, socket.getInputStream());
+    }
+
+    /**
+     * Opens a {@link ProtocolStream} on the server side of a connection of which some bytes may already have been received.
+     *
+     * @param socket The {@link Socket} of the connection.
+     * @param rawIn  The {@link InputStream} of the connection, starting with the bytes already received.
+     * @return The {@link ProtocolStream} of the connection.
+     * @throws IOException If the client speaks an unknown protocol or closed the connection.
+     */
+    public static ProtocolStream accept(Socket socket, InputStream rawIn) throws IOException {
+        PushbackInputStream in = new PushbackInputStream(rawIn);
+        int first = in.read();
+
+        if (first == -1)
+            throw new IOException("Connection closed before the protocol negotiation.");
+
+        if ((byte) first == VERSION)
+            return BinaryProtocolStream.accept(socket, in);
+
+        if ((byte) first == LEGACY_MAGIC) {
+            in.unread(first);
+            return LegacyProtocolStream.accept(socket, in);
+        }
+
+        throw new IOException("Unsupported wire protocol: " + first);
+    }
+
+    /**
+     * Peeks at the next byte of a connection without consuming it and without waiting for it.
+     *
+     * @param socket The {@link Socket} of the connection.
+     * @param in     The {@link InputStream} of the connection, it must support {@link InputStream#mark(int)}.
+     * @return The next byte of the connection, -1 if the connection was closed, {@link WireProtocol#NOTHING_RECEIVED} if no byte was received.
+     * @throws IOException If the connection is broken.
+     */
+    static int peek(Socket socket, InputStream in) throws IOException {
+        int timeout = socket.getSoTimeout();
+        socket.setSoTimeout(1);
+
+        try {
+            in.mark(1);
+            int next = in.read();
+            in.reset();
+            return next;
+        } catch (SocketTimeoutException e) {
+            return NOTHING_RECEIVED;
+        } finally {
+            socket.setSoTimeout(timeout);
+        }
+    }
+
+    /**
+     * Writes a positive integer as a variable length integer, 7 bits per byte.
+     *
+     * @param buffer The {@link ByteBuffer} to write to.
+     * @param value  The integer to write.
+     */
+    public static void putVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Reads a variable length integer.
+     *
+     * @param buffer The {@link ByteBuffer} to read from.
+     * @return The integer read.
+     * @throws IOException If the integer is longer than 5 bytes.
+     */
+    public static int getVarInt(ByteBuffer buffer) throws IOException {
+        int value = 0;
+
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+
+        throw new IOException("Malformed variable length integer.");
+    }
+
+    /**
+     * Writes a {@link String} as its length in bytes followed by its UTF-8 bytes.
+     *
+     * @param buffer The {@link ByteBuffer} to write to.
+     * @param value  The {@link String} to write.
+     */
+    public static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        putVarInt(buffer, bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * Reads a {@link String} written by {@link WireProtocol#putString(ByteBuffer, String)}.
+     * The {@link String} is decoded directly from the array backing the buffer.
+     *
+     * @param buffer The {@link ByteBuffer} to read from, it must be backed by an array.
+     * @return The {@link String} read.
+     * @throws IOException If the length of the {@link String} is malformed.
+     */
+    public static String getString(ByteBuffer buffer) throws IOException {
+        int length = getVarInt(buffer);
+        if (length < 0 || length > buffer.remaining())
+            throw new IOException("Malformed string.");
+
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+}
@@ -5,9 +5,12 @@ import com.jp2p.configuration.JsonReader;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Statement;
 
 /**
  * This class is used to create a connection to the database.
+ * The connection is shared by all the tables, their operations hold the lock of this class so that a statement of one table never runs
+ * inside the transaction of another table, or while another table toggles the auto-commit of the connection.
  */
 public class DatabaseConnection {
     /**
@@ -18,12 +21,29 @@ public class DatabaseConnection {
 
     /**
      * This method is used to create a connection to the database.
+     * The database is switched to write-ahead logging, so that the frequent small writes of the download checkpoints only append to the log
+     * and are synced to the disk when the log is checkpointed rather than on every commit.
      *
      * @return The connection to the database.
      * @throws SQLException If there is an error connecting to the database.
      */
     public static Connection connect() throws SQLException {
-        connection = DriverManager.getConnection(DATABASE_URL);
+        return connect(DATABASE_URL);
+    }
+
+    /**
+     * This method is used to create a connection to another database than the one of the seed file, as described by {@link DatabaseConnection#connect()}.
+     *
+     * @param url The connection string to the database.
+     * @return The connection to the database.
+     * @throws SQLException If there is an error connecting to the database.
+     */
+    public static synchronized Connection connect(String url) throws SQLException {
+        connection = DriverManager.getConnection(url);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA journal_mode = WAL;");
+            statement.execute("PRAGMA synchronous = NORMAL;");
+        }
         System.out.println("Connected to the database...");
         return connection;
     }
@@ -33,7 +53,7 @@ public class DatabaseConnection {
      *
      * @throws SQLException If there is an error closing the connection.
      */
-    public static void close() throws SQLException {
+    public static synchronized void close() throws SQLException {
         connection.close();
         System.out.println("Disconnected from database...");
     }
@@ -44,7 +64,7 @@ public class DatabaseConnection {
      * @return The connection to the database.
      * @throws SQLException If there is an error connecting to the database.
      */
-    public static Connection getConnection() throws SQLException {
+    public static synchronized Connection getConnection() throws SQLException {
         return connection == null ? connect() : connection;
     }
 }
@@ -0,0 +1,171 @@
+package com.jp2p.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * This class allows creating and interacting with the DOWNLOADS table.
+ * The table keeps the progress of the downloads of the peer so that they are resumed when the peer restarts instead of starting over.
+ * A download is identified by the name of the file, its progress is only kept while the size and the Merkle root of the file stay the same.
+ * The progress is made of the number of bytes downloaded from the start of the file and of the bitmap of the ranges downloaded anywhere in the file.
+ * The statements are prepared because the file names are not controlled by the peer and the bitmaps are binary.
+ * Every operation holds the lock of the {@link DatabaseConnection}, the checkpoints toggling the auto-commit of the connection shared with the other tables.
+ */
+public class DownloadsTable {
+    /**
+     * A row of the DOWNLOADS table.
+     *
+     * @param fileName    the name of the downloaded file.
+     * @param peerName    the name of the peer the file is downloaded from.
+     * @param peerAddress the address of the peer the file is downloaded from.
+     * @param peerPort    the port of the peer the file is downloaded from.
+     * @param fileSize    the size of the file in bytes.
+     * @param root        the hexadecimal Merkle root of the file, or null if it is unknown.
+     * @param downloaded  the number of bytes downloaded from the start of the file without a gap.
+     * @param ranges      the bitmap of the ranges downloaded, or null if the file is downloaded from its start only.
+     * @param done        true if the file was completely downloaded.
+     */
+    public record Download(String fileName, String peerName, String peerAddress, int peerPort, long fileSize, String root,
+                           long downloaded, byte[] ranges, boolean done) {
+    }
+
+    /**
+     * This method is used to create the DOWNLOADS table if it does not exist.
+     *
+     * @throws SQLException if the table could not be created.
+     */
+    public static void createTableIfNotExists() throws SQLException {
+        synchronized (DatabaseConnection.class) {
+            String sql = "CREATE TABLE IF NOT EXISTS DOWNLOADS (" +
+                         "FILE_NAME TEXT PRIMARY KEY," +
+                         "PEER_NAME TEXT," +
+                         "PEER_ADDRESS TEXT," +
+                         "PEER_PORT INTEGER," +
+                         "FILE_SIZE INTEGER," +
+                         "ROOT TEXT," +
+                         "DOWNLOADED INTEGER," +
+                         "RANGES BLOB," +
+                         "DONE INTEGER);";
+            Connection connection = DatabaseConnection.getConnection();
+            Statement statement = connection.createStatement();
+            statement.execute(sql);
+        }
+    }
+
+    /**
+     * This method is used to record the start of a download and to get the progress of a previous download of the same file.
+     * The progress is kept if the previous download was not done and was of the same size and Merkle root, it is reset otherwise.
+     *
+     * @param fileName    the name of the downloaded file.
+     * @param peerName    the name of the peer the file is downloaded from.
+     * @param peerAddress the address of the peer the file is downloaded from.
+     * @param peerPort    the port of the peer the file is downloaded from.
+     * @param fileSize    the size of the file in bytes.
+     * @param root        the hexadecimal Merkle root of the file, or null if it is unknown.
+     * @return the recorded download, holding the progress to resume from.
+     * @throws SQLException if the table could not be written.
+     */
+    public static Download startDownload(String fileName, String peerName, String peerAddress, int peerPort, long fileSize, String root) throws SQLException {
+        synchronized (DatabaseConnection.class) {
+            String sql = "INSERT INTO DOWNLOADS (FILE_NAME, PEER_NAME, PEER_ADDRESS, PEER_PORT, FILE_SIZE, ROOT, DOWNLOADED, RANGES, DONE) " +
+                         "VALUES (?, ?, ?, ?, ?, ?, 0, NULL, 0) " +
+                         "ON CONFLICT (FILE_NAME) DO UPDATE SET " +
+                         "PEER_NAME = excluded.PEER_NAME, PEER_ADDRESS = excluded.PEER_ADDRESS, PEER_PORT = excluded.PEER_PORT, " +
+                         "DOWNLOADED = CASE WHEN DONE = 0 AND FILE_SIZE = excluded.FILE_SIZE AND ROOT IS excluded.ROOT THEN DOWNLOADED ELSE 0 END, " +
+                         "RANGES = CASE WHEN DONE = 0 AND FILE_SIZE = excluded.FILE_SIZE AND ROOT IS excluded.ROOT THEN RANGES ELSE NULL END, " +
+                         "FILE_SIZE = excluded.FILE_SIZE, ROOT = excluded.ROOT, DONE = 0;";
+            Connection connection = DatabaseConnection.getConnection();
+
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setString(1, fileName);
+                statement.setString(2, peerName);
+                statement.setString(3, peerAddress);
+                statement.setInt(4, peerPort);
+                statement.setLong(5, fileSize);
+                statement.setString(6, root);
+                statement.executeUpdate();
+            }
+
+            try (PreparedStatement statement = connection.prepareStatement("SELECT * FROM DOWNLOADS WHERE FILE_NAME = ?;")) {
+                statement.setString(1, fileName);
+                ResultSet result = statement.executeQuery();
+                result.next();
+                return toDownload(result);
+            }
+        }
+    }
+
+    /**
+     * This method is used to write the progress of several downloads at once, in a single transaction.
+     *
+     * @param downloads the downloads whose progress is written, only their name, progress and state are read.
+     * @throws SQLException if the progress could not be written, in which case none of it is.
+     */
+    public static void checkpoint(Collection<Download> downloads) throws SQLException {
+        synchronized (DatabaseConnection.class) {
+            String sql = "UPDATE DOWNLOADS SET DOWNLOADED = ?, RANGES = ?, DONE = ? WHERE FILE_NAME = ?;";
+            Connection connection = DatabaseConnection.getConnection();
+            boolean autoCommit = connection.getAutoCommit();
+
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                connection.setAutoCommit(false);
+                for (Download download : downloads) {
+                    statement.setLong(1, download.downloaded());
+                    statement.setBytes(2, download.ranges());
+                    statement.setInt(3, download.done() ? 1 : 0);
+                    statement.setString(4, download.fileName());
+                    statement.addBatch();
+                }
+
+                statement.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        }
+    }
+
+    /**
+     * This method is used to get the downloads that were not done when the peer stopped.
+     *
+     * @return the recorded downloads that are not done.
+     * @throws SQLException if the table could not be read.
+     */
+    public static List<Download> getUnfinishedDownloads() throws SQLException {
+        synchronized (DatabaseConnection.class) {
+            String sql = "SELECT * FROM DOWNLOADS WHERE DONE = 0;";
+            Connection connection = DatabaseConnection.getConnection();
+            List<Download> downloads = new ArrayList<>();
+
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                ResultSet result = statement.executeQuery();
+                while (result.next()) {
+                    downloads.add(toDownload(result));
+                }
+            }
+
+            return downloads;
+        }
+    }
+
+    /**
+     * Reads the current row of a result set of the DOWNLOADS table.
+     *
+     * @param result the result set, positioned on a row.
+     * @return the {@link Download} of the row.
+     * @throws SQLException if the row could not be read.
+     */
+    private static Download toDownload(ResultSet result) throws SQLException {
+        return new Download(result.getString("FILE_NAME"), result.getString("PEER_NAME"), result.getString("PEER_ADDRESS"), result.getInt("PEER_PORT"),
+                result.getLong("FILE_SIZE"), result.getString("ROOT"), result.getLong("DOWNLOADED"), result.getBytes("RANGES"), result.getInt("DONE") != 0);
+    }
+}
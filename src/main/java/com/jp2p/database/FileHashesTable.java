@@ -0,0 +1,82 @@
+package com.jp2p.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * This class allows creating and interacting with the FILE_HASHES table.
+ * The table caches the chunk hashes of the shared files so that they are not hashed again when the peer restarts.
+ * A file is identified by its path, its size and its last modification time, a file that changed has no cached hashes.
+ * The statements are prepared because the paths are not controlled by the peer and the hashes are binary.
+ * Every operation holds the lock of the {@link DatabaseConnection}, the files being hashed on several threads.
+ */
+public class FileHashesTable {
+    /**
+     * This method is used to create the FILE_HASHES table if it does not exist.
+     *
+     * @throws SQLException if the table could not be created.
+     */
+    public static void createTableIfNotExists() throws SQLException {
+        synchronized (DatabaseConnection.class) {
+            String sql = "CREATE TABLE IF NOT EXISTS FILE_HASHES (" +
+                         "PATH TEXT PRIMARY KEY," +
+                         "SIZE INTEGER," +
+                         "MODIFIED INTEGER," +
+                         "HASHES BLOB);";
+            Connection connection = DatabaseConnection.getConnection();
+            Statement statement = connection.createStatement();
+            statement.execute(sql);
+        }
+    }
+
+    /**
+     * This method is used to get the cached chunk hashes of a file.
+     *
+     * @param path     the absolute path of the file.
+     * @param size     the size of the file in bytes.
+     * @param modified the last modification time of the file in milliseconds.
+     * @return the chunk hashes of the file one after the other, or null if they are not cached for this version of the file.
+     * @throws SQLException if the table could not be read.
+     */
+    public static byte[] getHashes(String path, long size, long modified) throws SQLException {
+        synchronized (DatabaseConnection.class) {
+            String sql = "SELECT HASHES FROM FILE_HASHES WHERE PATH = ? AND SIZE = ? AND MODIFIED = ?;";
+            Connection connection = DatabaseConnection.getConnection();
+
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setString(1, path);
+                statement.setLong(2, size);
+                statement.setLong(3, modified);
+                ResultSet result = statement.executeQuery();
+                return result.next() ? result.getBytes(1) : null;
+            }
+        }
+    }
+
+    /**
+     * This method is used to cache the chunk hashes of a file, replacing the hashes of a previous version of the file.
+     *
+     * @param path     the absolute path of the file.
+     * @param size     the size of the file in bytes.
+     * @param modified the last modification time of the file in milliseconds.
+     * @param hashes   the chunk hashes of the file one after the other.
+     * @throws SQLException if the hashes could not be written.
+     */
+    public static void putHashes(String path, long size, long modified, byte[] hashes) throws SQLException {
+        synchronized (DatabaseConnection.class) {
+            String sql = "INSERT OR REPLACE INTO FILE_HASHES (PATH, SIZE, MODIFIED, HASHES) VALUES (?, ?, ?, ?);";
+            Connection connection = DatabaseConnection.getConnection();
+
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setString(1, path);
+                statement.setLong(2, size);
+                statement.setLong(3, modified);
+                statement.setBytes(4, hashes);
+                statement.executeUpdate();
+            }
+        }
+    }
+}
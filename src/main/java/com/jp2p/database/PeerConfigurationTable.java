@@ -9,6 +9,7 @@ import java.sql.Statement;
 /**
  * This class allows creating and interacting with the PEER_CONFIGURATION table.
  * The table is seeded using the seed.json file.
+ * Every operation holds the lock of the {@link DatabaseConnection}.
  */
 public class PeerConfigurationTable {
     /**
@@ -17,35 +18,65 @@ public class PeerConfigurationTable {
      * @throws SQLException if the table could not be created.
      */
     public static void createTableIfNotExists() throws SQLException {
-        String sql = "CREATE TABLE IF NOT EXISTS PEER_CONFIGURATION (" +
-                     "ID INTEGER PRIMARY KEY AUTOINCREMENT," +
-                     "NAME TEXT," +
-                     "VALUE TEXT);";
-        Connection connection = DatabaseConnection.getConnection();
-        Statement statement = connection.createStatement();
-        statement.execute(sql);
+        synchronized (DatabaseConnection.class) {
+            String sql = "CREATE TABLE IF NOT EXISTS PEER_CONFIGURATION (" +
+                         "ID INTEGER PRIMARY KEY AUTOINCREMENT," +
+                         "NAME TEXT," +
+                         "VALUE TEXT);";
+            Connection connection = DatabaseConnection.getConnection();
+            Statement statement = connection.createStatement();
+            statement.execute(sql);
+        }
     }
 
+    /**
+     * The configuration parameters seeded from the seed.json file, as {name, json root, json node}.
+     */
+    private static final String[][] SEEDED_CONFIGURATIONS = {
+            {"default_port", "default_peer", "port"},
+            {"default_name", "default_peer", "name"},
+            {"max_peers", "default_peer", "max_peers"},
+            {"wire_protocol", "default_peer", "wire_protocol"},
+            {"server_mode", "default_peer", "server_mode"},
+            {"path_cache", "default_peer", "path_cache"},
+            {"compression", "default_peer", "compression"},
+            {"upload_limit", "default_peer", "upload_limit"},
+            {"download_limit", "default_peer", "download_limit"},
+            {"peer_upload_limit", "default_peer", "peer_upload_limit"},
+            {"peer_download_limit", "default_peer", "peer_download_limit"},
+            {"upload_slots", "default_peer", "upload_slots"},
+            {"concurrent_downloads", "default_peer", "concurrent_downloads"}
+    };
+
     /**
      * This method is used to seed the PEER_CONFIGURATION table with the seed.json file.
+     * Only the configuration parameters missing from the table are seeded, so that a table seeded by a previous version gets the new parameters without losing its values.
      *
      * @throws SQLException if the table could not be seeded.
      */
     public static void seedConfiguration() throws SQLException {
-        if (!isTableEmpty()) {
-            System.out.println("Configuration table is already seeded, skipping seed...");
-            return;
-        }
+        synchronized (DatabaseConnection.class) {
+            int seeded = 0;
+            Connection connection = DatabaseConnection.getConnection();
 
-        String sql = String.format("INSERT INTO PEER_CONFIGURATION (NAME, VALUE) " +
-                                   "VALUES ('%s', '%s'), ('%s', '%s'), ('%s', '%s');",
-                "default_port", JsonReader.GetNode("default_peer", "port"),
-                "default_name", JsonReader.GetNode("default_peer", "name"),
-                "max_peers", JsonReader.GetNode("default_peer", "max_peers"));
-        Connection connection = DatabaseConnection.getConnection();
-        Statement statement = connection.createStatement();
-        statement.execute(sql);
-        System.out.println("Configuration seeded to the database...");
+            for (String[] configuration : SEEDED_CONFIGURATIONS) {
+                if (hasConfiguration(configuration[0]))
+                    continue;
+
+                String sql = String.format("INSERT INTO PEER_CONFIGURATION (NAME, VALUE) VALUES ('%s', '%s');",
+                        configuration[0], JsonReader.GetNode(configuration[1], configuration[2]));
+                Statement statement = connection.createStatement();
+                statement.execute(sql);
+                seeded++;
+            }
+
+            if (seeded == 0) {
+                System.out.println("Configuration table is already seeded, skipping seed...");
+                return;
+            }
+
+            System.out.println("Configuration seeded to the database...");
+        }
     }
 
     /**
@@ -56,23 +87,44 @@ public class PeerConfigurationTable {
      * @throws SQLException if the value could not be retrieved.
      */
     public static String getConfiguration(String name) throws SQLException {
-        String sql = String.format("SELECT VALUE FROM PEER_CONFIGURATION WHERE NAME = '%s';", name);
-        Connection connection = DatabaseConnection.getConnection();
-        Statement statement = connection.createStatement();
-        return statement.executeQuery(sql).getString(1);
+        synchronized (DatabaseConnection.class) {
+            String sql = String.format("SELECT VALUE FROM PEER_CONFIGURATION WHERE NAME = '%s';", name);
+            Connection connection = DatabaseConnection.getConnection();
+            Statement statement = connection.createStatement();
+            return statement.executeQuery(sql).getString(1);
+        }
     }
 
     /**
-     * This method is used to check if the PEER_CONFIGURATION table is empty.
+     * This method is used to get the value a configuration parameter is seeded with from the seed.json file, without reading the database.
      *
-     * @return true if the table is empty, false otherwise.
+     * @param name the name of the configuration parameter.
+     * @return the value of the configuration parameter in the seed.json file.
+     * @throws IllegalArgumentException if the configuration parameter is not seeded.
+     */
+    public static String getSeededConfiguration(String name) {
+        for (String[] configuration : SEEDED_CONFIGURATIONS) {
+            if (configuration[0].equals(name))
+                return JsonReader.GetNode(configuration[1], configuration[2]);
+        }
+
+        throw new IllegalArgumentException("Unknown configuration parameter " + name);
+    }
+
+    /**
+     * This method is used to check if a configuration parameter is in the PEER_CONFIGURATION table.
+     *
+     * @param name the name of the configuration parameter.
+     * @return true if the configuration parameter is in the table, false otherwise.
      * @throws SQLException if the table could not be checked.
      */
-    private static boolean isTableEmpty() throws SQLException {
-        String sql = "SELECT COUNT(*) FROM PEER_CONFIGURATION;";
-        Connection connection = DatabaseConnection.getConnection();
-        Statement statement = connection.createStatement();
-        int count = statement.executeQuery(sql).getInt(1);
-        return count <= 0;
+    private static boolean hasConfiguration(String name) throws SQLException {
+        synchronized (DatabaseConnection.class) {
+            String sql = String.format("SELECT COUNT(*) FROM PEER_CONFIGURATION WHERE NAME = '%s';", name);
+            Connection connection = DatabaseConnection.getConnection();
+            Statement statement = connection.createStatement();
+            int count = statement.executeQuery(sql).getInt(1);
+            return count > 0;
+        }
     }
 }
@@ -1,17 +1,19 @@
 package com.jp2p.userInterface;
 
 import com.jp2p.core.exceptions.NoKnownPeersException;
-import com.jp2p.core.exceptions.PeerNotFoundException;
 import com.jp2p.core.file.PeerFile;
+import com.jp2p.core.peer.DownloadManager;
+import com.jp2p.core.peer.Peer;
 import com.jp2p.core.peer.PeerRunner;
 import com.jp2p.database.DatabaseConnection;
+import com.jp2p.database.DownloadsTable;
+import com.jp2p.database.FileHashesTable;
 import com.jp2p.database.PeerConfigurationTable;
 
 import java.io.IOException;
 import java.net.ConnectException;
-import java.net.Socket;
 import java.sql.SQLException;
-import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
 /**
@@ -26,9 +28,12 @@ public class CommandLineInterface {
             DatabaseConnection.connect();
             PeerConfigurationTable.createTableIfNotExists();
             PeerConfigurationTable.seedConfiguration();
+            FileHashesTable.createTableIfNotExists();
+            DownloadsTable.createTableIfNotExists();
             peer = PeerRunner.startUp();
             new Thread(peer).start();
             Thread.sleep(500);
+            peer.resumeDownloads();
             runCommandLineInterface();
         } catch (IOException e) {
             e.printStackTrace();
@@ -53,7 +58,7 @@ public class CommandLineInterface {
             String userCommand = new Scanner(System.in).nextLine();
             try {
                 invokeCommand(userCommand);
-            } catch (IOException | ClassNotFoundException e) {
+            } catch (IOException e) {
                 e.printStackTrace();
             }
         }
@@ -63,10 +68,9 @@ public class CommandLineInterface {
      * This method invokes the command specified by the user by calling the relevant method of the {@link PeerRunner}.
      *
      * @param command The command to be invoked.
-     * @throws IOException            If an I/O error occurs.
-     * @throws ClassNotFoundException If the class of a serialized object cannot be found.
+     * @throws IOException If an I/O error occurs.
      */
-    private static void invokeCommand(String command) throws IOException, ClassNotFoundException {
+    private static void invokeCommand(String command) throws IOException {
         String[] args = command.split(" ");
         try {
             switch (args[0]) {
@@ -81,7 +85,7 @@ public class CommandLineInterface {
                     String hostname = args[1];
                     String port = args[2];
 
-                    String res = peer.sendGetName(new Socket(hostname, Integer.parseInt(port)));
+                    String res = peer.sendGetName(toPeer(hostname, port));
                     System.out.println(res);
                 }
 
@@ -89,7 +93,7 @@ public class CommandLineInterface {
                     String hostname = args[1];
                     String port = args[2];
 
-                    String res = peer.sendGetKnownPeers(new Socket(hostname, Integer.parseInt(port)));
+                    String res = peer.sendGetKnownPeers(toPeer(hostname, port));
                     System.out.println(res);
                 }
 
@@ -97,7 +101,7 @@ public class CommandLineInterface {
                     String hostname = args[1];
                     String port = args[2];
 
-                    String res = peer.sendItsMe(new Socket(hostname, Integer.parseInt(port)));
+                    String res = peer.sendItsMe(toPeer(hostname, port));
                     System.out.println(res);
                 }
 
@@ -105,19 +109,21 @@ public class CommandLineInterface {
                     String hostname = args[1];
                     String port = args[2];
 
-                    String res = peer.sendBye(new Socket(hostname, Integer.parseInt(port)));
+                    String res = peer.sendBye(toPeer(hostname, port));
                     System.out.println(res);
                 }
 
                 case "file" -> {
                     String fileName = args[1];
                     String bounces = args[2];
-                    peer.sendFindFile(fileName, Integer.parseInt(bounces));
+                    List<Peer> reached = peer.sendFindFile(fileName, Integer.parseInt(bounces));
                     System.out.printf("Finding file %s in the network with %s bounces...\n", fileName, bounces);
+                    if (reached.size() < peer.getPeerContainer().size())
+                        System.out.printf("Only %s of the known peers could be reached in time.\n", reached.size());
                 }
 
-                case "download" -> {
-                    ArrayList<PeerFile> files = peer.getFilesFoundManager().getFilesFound();
+                case "download", "swarmDownload" -> {
+                    List<PeerFile> files = peer.getFilesFoundManager().getFilesFound();
                     if (files.size() == 0) {
                         System.out.println("No files found yet, use the file command to find files on the network.");
                         return;
@@ -135,36 +141,88 @@ public class CommandLineInterface {
                                 files.get(i).getWasDownloaded() ? "Yes" : "No"));
                     }
                     System.out.println(builder);
-                    System.out.print("Enter the ID of the file you want to download (or -1 to cancel): ");
-                    int index = new Scanner(System.in).nextInt();
+                    System.out.print("Enter the IDs of the files you want to download separated by spaces (or -1 to cancel): ");
+                    String[] ids = new Scanner(System.in).nextLine().trim().split("\\s+");
+                    int priority = args.length > 1 ? Integer.parseInt(args[1]) : 0;
 
-                    if (index == -1) {
+                    if (ids[0].equals("-1")) {
                         System.out.println("Canceling...");
                         return;
                     }
 
-                    System.out.println("Downloading file...");
-                    if (peer.sendDownload(index))
-                        System.out.printf("Downloaded %s bytes and saved them.%n\n", files.get(index).getFileSize());
+                    for (String id : ids) {
+                        int index = Integer.parseInt(id);
+                        if (index < 0 || index >= files.size()) {
+                            System.out.printf("There is no file with the ID %s.\n", id);
+                            continue;
+                        }
+
+                        // The file is picked from the snapshot that was listed, the files found meanwhile don't shift the IDs
+                        PeerFile file = files.get(index);
+                        int transfer = peer.getDownloadManager().submit(file, priority, args[0].equals("swarmDownload"));
+                        if (transfer == -1)
+                            System.out.printf("%s is already being downloaded.\n", file.getFileName());
+                        else
+                            System.out.printf("Queued %s as download %s, type downloads to follow its progress.\n", file.getFileName(), transfer);
+                    }
+                }
+
+                case "downloads" -> {
+                    List<DownloadManager.Status> transfers = peer.getDownloadManager().getTransfers();
+                    if (transfers.isEmpty()) {
+                        System.out.println("No downloads queued yet, use the download command to queue files.");
+                        return;
+                    }
+
+                    StringBuilder builder = new StringBuilder();
+                    builder.append(String.format("%s downloads, %s waiting for a worker:\n", transfers.size(), peer.getDownloadManager().getQueueLength()));
+                    builder.append("\tID\t \tFile Name\t \tProgress\t \tPeer Name\t \tState\t \tAttempts\t \n");
+                    for (DownloadManager.Status transfer : transfers) {
+                        builder.append(String.format("\t%s.\t \t%s\t \t%5.1f%%\t \t%s\t \t%s\t \t%s\t %s\n",
+                                transfer.id(),
+                                transfer.fileName(),
+                                transfer.fileSize() > 0 ? 100.0 * transfer.downloaded() / transfer.fileSize() : 100.0,
+                                transfer.swarm() ? "(swarm)" : transfer.peerName(),
+                                transfer.state(),
+                                transfer.attempts(),
+                                transfer.error() != null && transfer.state() != DownloadManager.State.DONE ? transfer.error() : ""));
+                    }
+                    System.out.println(builder);
+                }
+
+                case "cancel" -> {
+                    if (peer.getDownloadManager().cancel(Integer.parseInt(args[1])))
+                        System.out.println("Download cancelled.");
                     else
-                        System.out.printf("Download failed. Downloaded a total of %s bytes when expecting %s bytes.\n",
-                                files.get(index).getDownloadedSize(),
-                                files.get(index).getFileSize());
+                        System.out.println("There is no queued download with this ID, downloads already started cannot be cancelled.");
                 }
 
+                case "stats" -> System.out.println(peer.getMetrics().format());
+
                 default -> System.out.println("Unknown command. Type help to see the list of commands.");
             }
-        } catch (ArrayIndexOutOfBoundsException e) {
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
             System.out.printf("Wrong arguments for command [%s]\n", command);
         } catch (NoKnownPeersException e) {
             System.out.println("This Peer doesn't know any other peer for now. Add peers first.");
-        } catch (ConnectException | PeerNotFoundException e) {
+        } catch (ConnectException e) {
             System.out.println("You are trying to interact with a peer that is not connected to the network.");
         } catch (IOException e) {
             System.out.println("An error occurred while interacting with the network. Are you sure the peer is still connected?");
         }
     }
 
+    /**
+     * Returns the {@link Peer} at the hostname and port number given by the user, named after its address as its name is not known.
+     *
+     * @param hostname The hostname of the peer.
+     * @param port     The port number of the peer.
+     * @return The {@link Peer} at the given hostname and port number.
+     */
+    private static Peer toPeer(String hostname, String port) {
+        return new Peer(String.format("%s:%s", hostname, port), hostname, Integer.parseInt(port));
+    }
+
     /**
      * Prints the list of commands available to the user.
      */
@@ -175,7 +233,11 @@ public class CommandLineInterface {
                 - knownPeers [hostname] [port number] : Gets the list of known peers of the peer at the specified hostname and port number.
                 - itsMe [hostname] [port number] : Tells the peer at the specified hostname and port number that you are a peer.
                 - file [fileName.ext] [bounces] : Find the file in the network.
-                - download : Choose a file previously found with the file command to download from a peer.
+                - download [priority] : Choose files previously found with the file command to download in the background from a peer, the highest priority first (0 by default).
+                - swarmDownload [priority] : Choose files previously found with the file command to download in the background from all the peers that have them at the same time.
+                - downloads : Shows the progress of the downloads.
+                - cancel [download ID] : Removes a download from the queue.
+                - stats : Shows the metrics of this peer: the time taken by the messages, the bytes exchanged with each peer, the open connections and the fan-outs of the searches.
                 - bye [hostname] [port number] : Tells the peer at the specified hostname and port number that you are leaving the system thus removing you from its known peers.
                 """);
     }
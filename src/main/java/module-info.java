@@ -3,4 +3,7 @@ module com.jp2p.jp2p {
     requires com.google.gson;
     requires org.xerial.sqlitejdbc;
     requires java.sql;
+    requires java.management;
+
+    exports com.jp2p.core.metrics to java.management;
 }
\ No newline at end of file
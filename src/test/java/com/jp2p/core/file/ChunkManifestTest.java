@@ -0,0 +1,153 @@
+package com.jp2p.core.file;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Hashes the chunks of a file, builds their {@link ChunkManifest} and checks the chunks and the Merkle root against hashes computed directly.
+ */
+class ChunkManifestTest {
+    @TempDir
+    Path folder;
+
+    @Test
+    void countsTheChunksOfAFile() {
+        assertEquals(0, ChunkManifest.chunkCount(0));
+        assertEquals(1, ChunkManifest.chunkCount(1));
+        assertEquals(1, ChunkManifest.chunkCount(ChunkManifest.CHUNK_SIZE));
+        assertEquals(2, ChunkManifest.chunkCount(ChunkManifest.CHUNK_SIZE + 1));
+        assertEquals(10240, ChunkManifest.chunkCount(10L << 30));
+    }
+
+    @Test
+    void verifiesTheChunksOfAFile() throws IOException {
+        // Two full chunks and a partial last chunk
+        byte[] content = new byte[2 * ChunkManifest.CHUNK_SIZE + 12345];
+        new Random(1).nextBytes(content);
+        Path file = Files.write(folder.resolve("file.bin"), content);
+
+        ChunkManifest manifest = manifestOf(file, content.length);
+        assertEquals(3, manifest.getChunkCount());
+
+        MessageDigest digest = ChunkManifest.newDigest();
+        for (int chunk = 0; chunk < 3; chunk++) {
+            int from = chunk * ChunkManifest.CHUNK_SIZE;
+            byte[] hash = digest.digest(Arrays.copyOfRange(content, from, Math.min(content.length, from + ChunkManifest.CHUNK_SIZE)));
+            assertTrue(manifest.verify(chunk, hash));
+            assertFalse(manifest.verify(chunk + 1, hash));
+        }
+
+        byte[] tampered = content.clone();
+        tampered[ChunkManifest.CHUNK_SIZE + 7] ^= 1;
+        assertFalse(manifest.verify(1, digest.digest(Arrays.copyOfRange(tampered, ChunkManifest.CHUNK_SIZE, 2 * ChunkManifest.CHUNK_SIZE))));
+        assertFalse(manifest.verify(-1, new byte[ChunkManifest.HASH_LENGTH]));
+    }
+
+    @Test
+    void rejectsAFileShorterThanItsSize() throws IOException {
+        Path file = Files.write(folder.resolve("short.bin"), new byte[100]);
+
+        try (FileChannel channel = FileChannel.open(file)) {
+            assertThrows(EOFException.class, () -> ChunkManifest.hashChunk(channel, 0, 200, ByteBuffer.allocate(ChunkManifest.CHUNK_SIZE), ChunkManifest.newDigest()));
+        }
+    }
+
+    @Test
+    void computesTheMerkleRoot() {
+        MessageDigest digest = ChunkManifest.newDigest();
+        byte[] h0 = digest.digest(new byte[]{0});
+        byte[] h1 = digest.digest(new byte[]{1});
+        byte[] h2 = digest.digest(new byte[]{2});
+
+        assertEquals(hex(digest.digest()), new ChunkManifest(new byte[0]).getRootHex());
+        assertEquals(hex(h0), new ChunkManifest(h0).getRootHex());
+
+        // The odd node of a level is promoted to the next level unchanged
+        byte[] h01 = digest.digest(concat(h0, h1));
+        assertEquals(hex(h01), new ChunkManifest(concat(h0, h1)).getRootHex());
+        assertEquals(hex(digest.digest(concat(h01, h2))), new ChunkManifest(concat(h0, h1, h2)).getRootHex());
+    }
+
+    @Test
+    void returnsRangesOfHashes() {
+        MessageDigest digest = ChunkManifest.newDigest();
+        byte[] h0 = digest.digest(new byte[]{0});
+        byte[] h1 = digest.digest(new byte[]{1});
+        ChunkManifest manifest = new ChunkManifest(concat(h0, h1));
+
+        assertEquals(hex(h0) + hex(h1), manifest.getHashesHex(0, 10));
+        assertEquals(hex(h1), manifest.getHashesHex(1, 1));
+        assertEquals("", manifest.getHashesHex(5, 1));
+        assertEquals(hex(h1), manifest.getHashesHex(1, Integer.MAX_VALUE));
+        assertArrayEquals(concat(h0, h1), manifest.getHashes());
+    }
+
+    @Test
+    void rejectsTruncatedHashes() {
+        assertThrows(IllegalArgumentException.class, () -> new ChunkManifest(new byte[ChunkManifest.HASH_LENGTH + 1]));
+    }
+
+    /**
+     * Hashes every chunk of a file.
+     *
+     * @param file The file.
+     * @param size The size of the file in bytes.
+     * @return The {@link ChunkManifest} of the file.
+     */
+    private static ChunkManifest manifestOf(Path file, long size) throws IOException {
+        int chunks = ChunkManifest.chunkCount(size);
+        byte[] hashes = new byte[chunks * ChunkManifest.HASH_LENGTH];
+        ByteBuffer buffer = ByteBuffer.allocate(ChunkManifest.CHUNK_SIZE);
+        MessageDigest digest = ChunkManifest.newDigest();
+
+        try (FileChannel channel = FileChannel.open(file)) {
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                byte[] hash = ChunkManifest.hashChunk(channel, chunk, size, buffer, digest);
+                System.arraycopy(hash, 0, hashes, chunk * ChunkManifest.HASH_LENGTH, ChunkManifest.HASH_LENGTH);
+            }
+        }
+
+        return new ChunkManifest(hashes);
+    }
+
+    /**
+     * Concatenates byte arrays.
+     *
+     * @param arrays The arrays.
+     * @return The bytes of the arrays one after the other.
+     */
+    private static byte[] concat(byte[]... arrays) {
+        ByteBuffer buffer = ByteBuffer.allocate(Arrays.stream(arrays).mapToInt(a -> a.length).sum());
+        for (byte[] array : arrays) {
+            buffer.put(array);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Formats bytes as an hexadecimal {@link String}.
+     *
+     * @param bytes The bytes.
+     * @return The hexadecimal {@link String}.
+     */
+    private static String hex(byte[] bytes) {
+        return HexFormat.of().formatHex(bytes);
+    }
+}
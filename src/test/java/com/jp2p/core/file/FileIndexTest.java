@@ -0,0 +1,134 @@
+package com.jp2p.core.file;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Searches a {@link FileIndex} by exact name and by substring, before and after changes are applied on top of its trigram index.
+ */
+class FileIndexTest {
+    @Test
+    void searchesBySubstring() {
+        FileIndex index = new FileIndex(files("holiday.jpg", "holidays.zip", "notes.txt", "aaaa.txt"));
+
+        assertEquals(Set.of("holiday.jpg", "holidays.zip"), names(index.search("holiday")));
+        assertEquals(Set.of("holidays.zip"), names(index.search("days")));
+        assertEquals(Set.of("notes.txt", "aaaa.txt"), names(index.search(".txt")));
+        assertEquals(Set.of("aaaa.txt"), names(index.search("aaa")));
+        assertEquals(Set.of(), names(index.search("missing")));
+    }
+
+    @Test
+    void scansTheNamesForShortCriteria() {
+        FileIndex index = new FileIndex(files("ab.txt", "b.bin", "c"));
+
+        assertEquals(Set.of("ab.txt", "b.bin"), names(index.search("b")));
+        assertEquals(Set.of("ab.txt", "b.bin", "c"), names(index.search("")));
+    }
+
+    @Test
+    void looksUpExactNames() {
+        SharedFile[] files = files("a.txt", "b.txt");
+        FileIndex index = new FileIndex(files);
+
+        assertSame(files[1], index.get("b.txt"));
+        assertNull(index.get("b"));
+        assertEquals(0, FileIndex.EMPTY.getFiles().size());
+    }
+
+    @Test
+    void appliesChangesOnTopOfTheIndex() {
+        FileIndex index = new FileIndex(files("report.pdf", "report-old.pdf", "photo.png"));
+
+        SharedFile changed = file("report.pdf", 99);
+        Map<String, SharedFile> changes = new HashMap<>();
+        changes.put("report.pdf", changed);
+        changes.put("report-old.pdf", null);
+        changes.put("report-new.pdf", file("report-new.pdf", 1));
+        FileIndex updated = index.withChanges(changes);
+
+        // The changed file replaces the one of the trigram index, the removed file is gone and the added one is found
+        assertSame(changed, updated.get("report.pdf"));
+        assertNull(updated.get("report-old.pdf"));
+        assertEquals(Set.of("report.pdf", "report-new.pdf"), names(updated.search("report")));
+        assertEquals(1, updated.search("report.pdf").size());
+        assertEquals(Set.of("report.pdf", "report-new.pdf", "photo.png"), names(updated.getFiles()));
+
+        // The index the changes were applied to is left as it was
+        assertEquals(Set.of("report.pdf", "report-old.pdf"), names(index.search("report")));
+        assertEquals(0, index.get("report.pdf").size());
+    }
+
+    @Test
+    void mergesTheChangesOfSeveralUpdates() {
+        FileIndex index = new FileIndex(files("a.bin"))
+                .withChanges(Map.of("b.bin", file("b.bin", 0)))
+                .withChanges(Map.of("c.bin", file("c.bin", 0)));
+
+        assertEquals(Set.of("a.bin", "b.bin", "c.bin"), names(index.search(".bin")));
+
+        Map<String, SharedFile> removed = new HashMap<>();
+        removed.put("b.bin", null);
+        assertEquals(Set.of("a.bin", "c.bin"), names(index.withChanges(removed).getFiles()));
+    }
+
+    @Test
+    void rebuildsTheIndexPastTheMaximumChanges() {
+        FileIndex index = new FileIndex(files("base.bin"));
+
+        // Every change past the minimum is added in one update, after which the trigram index holds all the files
+        Map<String, SharedFile> changes = IntStream.rangeClosed(0, FileIndex.MIN_MAX_CHANGES).boxed()
+                .collect(Collectors.toMap(i -> "file" + i + ".bin", i -> file("file" + i + ".bin", i)));
+        FileIndex rebuilt = index.withChanges(changes);
+
+        assertEquals(FileIndex.MIN_MAX_CHANGES + 2, rebuilt.getFiles().size());
+        assertEquals(Set.of("file102.bin", "file1020.bin", "file1021.bin", "file1022.bin", "file1023.bin", "file1024.bin"), names(rebuilt.search("file102")));
+        assertEquals(1, rebuilt.search("base").size());
+    }
+
+    /**
+     * Creates {@link SharedFile}s with the given names and no content.
+     *
+     * @param names The names of the files.
+     * @return The {@link SharedFile}s.
+     */
+    private static SharedFile[] files(String... names) {
+        SharedFile[] files = new SharedFile[names.length];
+        for (int i = 0; i < names.length; i++) {
+            files[i] = file(names[i], 0);
+        }
+        return files;
+    }
+
+    /**
+     * Creates a {@link SharedFile} that is not on the disk.
+     *
+     * @param name The name of the file.
+     * @param size The size of the file in bytes.
+     * @return The {@link SharedFile}.
+     */
+    private static SharedFile file(String name, long size) {
+        return new SharedFile(name, new File(name), size, 0);
+    }
+
+    /**
+     * Returns the names of {@link SharedFile}s.
+     *
+     * @param files The {@link SharedFile}s.
+     * @return Their names.
+     */
+    private static Set<String> names(List<SharedFile> files) {
+        return files.stream().map(SharedFile::name).collect(Collectors.toSet());
+    }
+}
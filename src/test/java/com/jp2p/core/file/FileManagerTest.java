@@ -0,0 +1,138 @@
+package com.jp2p.core.file;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Adds the files found to a {@link FileManager}, groups the identical files across peers, and bounds the store by age and by size.
+ */
+class FileManagerTest {
+    @Test
+    void keepsOneFilePerNameAndPeer() {
+        FileManager files = new FileManager();
+        PeerFile first = new PeerFile("alice", "song.mp3", 10, "aa");
+        files.addFile(first);
+        files.addFile(new PeerFile("alice", "song.mp3", 10, "aa"));
+        files.addFile(new PeerFile("bob", "song.mp3", 10, "aa"));
+
+        // The same version seen again keeps the file already stored
+        assertEquals(2, files.size());
+        assertSame(first, files.getFilesFound().get(0));
+
+        // Another version replaces it, and is listed as a new file
+        PeerFile changed = new PeerFile("alice", "song.mp3", 11, "bb");
+        files.addFile(changed);
+        assertEquals(2, files.size());
+        assertSame(changed, files.getFilesFound().get(1));
+    }
+
+    @Test
+    void listsTheFilesInTheOrderTheyWereFound() {
+        FileManager files = new FileManager();
+        for (int i = 0; i < 20; i++) {
+            files.addFile(new PeerFile("peer" + i % 3, "file" + i, i));
+        }
+
+        List<PeerFile> found = files.getFilesFound();
+        assertEquals(20, found.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals("file" + i, found.get(i).getFileName());
+        }
+    }
+
+    @Test
+    void groupsTheSourcesOfTheSameFile() {
+        FileManager files = new FileManager();
+        files.addFile(new PeerFile("alice", "song.mp3", 10, "aa"));
+        files.addFile(new PeerFile("bob", "song.mp3", 10, "aa"));
+        files.addFile(new PeerFile("carol", "song.mp3", 10, "cc"));
+        files.addFile(new PeerFile("dave", "song.mp3", 12, "aa"));
+
+        assertEquals(Set.of("alice", "bob"), peers(files.getSources(new PeerFile("anyone", "song.mp3", 10, "aa"))));
+
+        // A peer whose file changed leaves the group of the old version
+        files.addFile(new PeerFile("bob", "song.mp3", 10, "cc"));
+        assertEquals(Set.of("alice"), peers(files.getSources(new PeerFile("anyone", "song.mp3", 10, "aa"))));
+        assertEquals(Set.of("bob", "carol"), peers(files.getSources(new PeerFile("anyone", "song.mp3", 10, "cc"))));
+        assertTrue(files.getSources(new PeerFile("anyone", "other.mp3", 10, "aa")).isEmpty());
+    }
+
+    @Test
+    void expiresTheFilesNotSeenAgain() throws InterruptedException {
+        FileManager files = new FileManager(100, 50);
+        files.addFile(new PeerFile("alice", "old.bin", 1));
+        Thread.sleep(100);
+        files.addFile(new PeerFile("alice", "new.bin", 1));
+
+        assertTrue(files.getSources(new PeerFile("alice", "old.bin", 1)).isEmpty());
+        assertEquals(List.of("new.bin"), files.getFilesFound().stream().map(PeerFile::getFileName).toList());
+        assertEquals(1, files.size());
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedFiles() throws InterruptedException {
+        FileManager files = new FileManager(10, FileManager.TTL);
+        List<PeerFile> added = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            PeerFile file = new PeerFile("alice", "file" + i, i);
+            added.add(file);
+            files.addFile(file);
+            Thread.sleep(2);
+        }
+
+        // Choosing the oldest file as a source makes it the most recently used
+        assertEquals(1, files.getSources(added.get(0)).size());
+        Thread.sleep(2);
+        files.addFile(new PeerFile("alice", "file10", 10));
+
+        // One file over the maximum brings the store back to 90% of it
+        assertEquals(9, files.size());
+        Set<String> names = files.getFilesFound().stream().map(PeerFile::getFileName).collect(Collectors.toSet());
+        assertEquals(Set.of("file0", "file3", "file4", "file5", "file6", "file7", "file8", "file9", "file10"), names);
+    }
+
+    @Test
+    void addsFilesFromSeveralThreads() throws InterruptedException {
+        FileManager files = new FileManager(1000, FileManager.TTL);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            String peer = "peer" + t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    files.addFile(new PeerFile(peer, "file" + i, i));
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // A thread skips the trim while another one trims, so the store may be left over the maximum until the next file is added
+        files.addFile(new PeerFile("main", "last", 0));
+        assertTrue(files.size() <= 1000, "The store grew to " + files.size() + " files");
+        for (PeerFile file : files.getFilesFound()) {
+            assertEquals(1, files.getSources(file).stream().filter(source -> source.getPeerName().equals(file.getPeerName())).count());
+        }
+    }
+
+    /**
+     * Returns the names of the peers that have files.
+     *
+     * @param files The {@link PeerFile}s.
+     * @return The names of their peers.
+     */
+    private static Set<String> peers(List<PeerFile> files) {
+        return files.stream().map(PeerFile::getPeerName).collect(Collectors.toSet());
+    }
+}
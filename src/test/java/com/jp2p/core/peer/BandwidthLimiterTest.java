@@ -0,0 +1,66 @@
+package com.jp2p.core.peer;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static com.jp2p.core.peer.TokenBucketTest.millis;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Limits the uploads and downloads of a {@link BandwidthLimiter} by peer, each peer name getting its own limit whatever the address of its connections.
+ */
+class BandwidthLimiterTest {
+    /**
+     * The rate of the transfers with a single peer in bytes per second.
+     */
+    private static final long PEER_RATE = 100_000;
+
+    /**
+     * The number of bytes a peer can transfer at once.
+     */
+    private static final long BURST = PEER_RATE * TokenBucket.BURST_MILLIS / 1000;
+
+    @Test
+    void limitsNothingByDefault() throws IOException {
+        BandwidthLimiter limiter = new BandwidthLimiter(0, 0, 0, 0);
+        assertFalse(limiter.limitsUploads());
+        assertFalse(limiter.limitsDownloads());
+
+        InputStream in = new ByteArrayInputStream(new byte[10]);
+        assertSame(in, limiter.throttleDownload("alice", in));
+    }
+
+    @Test
+    void givesEachPeerItsOwnUploadLimit() throws IOException, InterruptedException {
+        BandwidthLimiter limiter = new BandwidthLimiter(0, 0, PEER_RATE, 0);
+        assertTrue(limiter.limitsUploads());
+        limiter.acquireUpload("alice", BURST);
+
+        // Another peer behind the same address starts with a full limit
+        long other = millis(() -> limiter.acquireUpload("bob", BURST));
+        assertTrue(other < 100, "The other peer waited " + other + " ms");
+
+        long same = millis(() -> limiter.acquireUpload("alice", PEER_RATE / 2));
+        assertTrue(same >= 450, "The same peer waited only " + same + " ms");
+    }
+
+    @Test
+    void throttlesTheDownloadsOfAPeer() throws IOException {
+        BandwidthLimiter limiter = new BandwidthLimiter(0, 0, 0, PEER_RATE);
+        byte[] content = new byte[(int) (BURST + PEER_RATE / 2)];
+        content[content.length - 1] = 1;
+
+        long start = System.nanoTime();
+        byte[] read = limiter.throttleDownload("alice", new ByteArrayInputStream(content)).readAllBytes();
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+
+        assertArrayEquals(content, read);
+        assertTrue(elapsed >= 450 && elapsed < 1500, "Reading half a second of the rate over the burst took " + elapsed + " ms");
+    }
+}
@@ -0,0 +1,198 @@
+package com.jp2p.core.peer;
+
+import com.jp2p.core.file.ChunkManifest;
+import com.jp2p.core.file.FolderManger;
+import com.jp2p.core.file.PeerFile;
+import com.jp2p.database.DatabaseConnection;
+import com.jp2p.database.FileHashesTable;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Downloads a sparse file of {@link LargeFileTransferTest#SIZE} bytes between two peers over the loopback interface,
+ * so that the sizes and offsets past 2 GiB and 4 GiB stay 64-bit on the sequential and on the verified download paths.
+ * The file is mostly a hole, with markers written around the 32-bit boundaries, and the downloaded copy is compared byte for byte.
+ */
+class LargeFileTransferTest {
+    /**
+     * The size of the shared file, 10 GiB.
+     */
+    private static final long SIZE = 10L << 30;
+
+    /**
+     * The positions of the markers written in the shared file, around the boundaries of the signed and unsigned 32-bit offsets and at its end.
+     */
+    private static final long[] MARKERS = {0, Integer.MAX_VALUE - 3, 1L << 31, (1L << 32) - 3, 1L << 32, SIZE - 8};
+
+    /**
+     * The size of the buffers in which the files are compared.
+     */
+    private static final int COMPARE_BUFFER_SIZE = 8 << 20;
+
+    /**
+     * The name of the shared file.
+     */
+    private static final String FILE_NAME = "large.bin";
+
+    @TempDir
+    Path folder;
+
+    /**
+     * The shared file.
+     */
+    private Path shared;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        // The downloaded copy is written in full, the hole is only on the side of the peer that shares it
+        assumeTrue(folder.toFile().getUsableSpace() > SIZE + (1L << 30), "Not enough disk space for a copy of the large file");
+
+        DatabaseConnection.connect("jdbc:sqlite:" + folder.resolve("test.db"));
+        FileHashesTable.createTableIfNotExists();
+
+        Path files = Files.createDirectories(folder.resolve("sender").resolve("files"));
+        shared = files.resolve(FILE_NAME);
+        try (FileChannel channel = FileChannel.open(shared, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            // The last marker ends the file, the bytes between the markers are left as a hole
+            for (long marker : MARKERS) {
+                channel.write(ByteBuffer.allocate(Long.BYTES).putLong(0, marker ^ 0x5a5a5a5a5a5a5a5aL), marker);
+            }
+        }
+        assertEquals(SIZE, Files.size(shared));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.MINUTES)
+    void downloadsSequentially() throws Exception {
+        PeerRunner sender = startPeer("large-sequential-sender", shared.getParent());
+        PeerRunner receiver = startPeer("large-sequential-receiver", null);
+
+        PeerFile peerFile = new PeerFile(sender.getPeer().getName(), FILE_NAME, SIZE);
+        assertTrue(receiver.download(peerFile, sender.getPeer()), "The download did not complete");
+        assertEquals(SIZE, peerFile.getDownloadedSize());
+        assertSameContent(shared, downloaded(receiver));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.MINUTES)
+    void downloadsVerifiedChunks() throws Exception {
+        PeerRunner sender = startPeer("large-verified-sender", shared.getParent());
+        PeerRunner receiver = startPeer("large-verified-receiver", null);
+
+        ChunkManifest manifest = awaitManifest(sender.getFilesFolderManager());
+        assertEquals(ChunkManifest.chunkCount(SIZE), manifest.getChunkCount());
+
+        PeerFile peerFile = new PeerFile(sender.getPeer().getName(), FILE_NAME, SIZE, manifest.getRootHex());
+        assertTrue(receiver.download(peerFile, sender.getPeer()), "The download did not complete");
+        assertEquals(SIZE, peerFile.getDownloadedSize());
+        assertSameContent(shared, downloaded(receiver));
+    }
+
+    /**
+     * Starts a peer on a free port of the loopback interface, with its own folders and no limits, downloading the files raw.
+     *
+     * @param name   The name of the peer.
+     * @param shared The folder of the files shared by the peer, or null to share an empty folder.
+     * @return The peer.
+     * @throws IOException If the peer cannot be started.
+     */
+    private PeerRunner startPeer(String name, Path shared) throws IOException {
+        String files = (shared != null ? shared : Files.createDirectories(folder.resolve(name).resolve("files"))) + File.separator;
+        String downloads = Files.createDirectories(folder.resolve(name).resolve("downloads")) + File.separator;
+        PeerSettings settings = new PeerSettings(name, InetAddress.getLoopbackAddress().getHostAddress(), 0, 10, true, ServerMode.SELECTOR, false, false,
+                0, 0, 0, 0, 0, 1, files, downloads, false);
+
+        PeerRunner peer = new PeerRunner(settings);
+        Thread thread = new Thread(peer, name);
+        thread.setDaemon(true);
+        thread.start();
+        return peer;
+    }
+
+    /**
+     * Waits for the peer sharing the file to have hashed it.
+     *
+     * @param files The {@link FolderManger} of the shared files.
+     * @return The {@link ChunkManifest} of the file.
+     */
+    private static ChunkManifest awaitManifest(FolderManger files) throws InterruptedException {
+        while (true) {
+            try {
+                ChunkManifest manifest = files.getManifest(files.getFile(FILE_NAME));
+                if (manifest != null)
+                    return manifest;
+            } catch (FileNotFoundException ignored) {
+                // The folder is not looked up yet
+            }
+
+            Thread.sleep(100);
+        }
+    }
+
+    /**
+     * Returns the path of the file downloaded by a peer.
+     *
+     * @param receiver The peer that downloaded the file.
+     * @return The path of the downloaded file.
+     */
+    private Path downloaded(PeerRunner receiver) {
+        Path path = folder.resolve(receiver.getPeer().getName()).resolve("downloads").resolve(FILE_NAME);
+        assertTrue(Files.exists(path), "The partial file was not renamed");
+        return path;
+    }
+
+    /**
+     * Compares two files byte for byte.
+     *
+     * @param expected The original file.
+     * @param actual   The copy.
+     */
+    private static void assertSameContent(Path expected, Path actual) throws IOException {
+        try (FileChannel a = FileChannel.open(expected); FileChannel b = FileChannel.open(actual)) {
+            assertEquals(a.size(), b.size(), "The sizes differ");
+
+            ByteBuffer left = ByteBuffer.allocateDirect(COMPARE_BUFFER_SIZE);
+            ByteBuffer right = ByteBuffer.allocateDirect(COMPARE_BUFFER_SIZE);
+            for (long position = 0; position < a.size(); position += COMPARE_BUFFER_SIZE) {
+                readFully(a, left.clear(), position);
+                readFully(b, right.clear(), position);
+                int mismatch = left.flip().mismatch(right.flip());
+                if (mismatch >= 0)
+                    fail("The files differ at byte " + (position + mismatch));
+            }
+        }
+    }
+
+    /**
+     * Reads a buffer from a position of a file, up to its end.
+     *
+     * @param channel  The {@link FileChannel} of the file.
+     * @param buffer   The buffer to fill.
+     * @param position The position of the first byte to read.
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0)
+                return;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.jp2p.core.peer;
+
+import com.jp2p.core.peer.PathCache.CachedFile;
+import com.jp2p.core.peer.PathCache.Relay;
+import com.jp2p.core.peer.PathCache.Routes;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Routes the files of voila messages through a {@link PathCache} to this peer and to the peers that forwarded the searches, and answers repeated searches from the cache.
+ */
+class PathCacheTest {
+    /**
+     * A peer that forwarded searches to this peer.
+     */
+    private static final Peer ALICE = new Peer("alice", "10.0.0.1", 5000);
+
+    /**
+     * Another peer that forwarded searches to this peer.
+     */
+    private static final Peer BOB = new Peer("bob", "10.0.0.2", 5000);
+
+    @Test
+    void keepsTheFilesOfLocalSearches() {
+        PathCache cache = new PathCache();
+        cache.expect("song", null);
+
+        List<CachedFile> files = List.of(file("song.mp3"));
+        Routes routes = cache.observe(files);
+
+        assertEquals(files, routes.local());
+        assertTrue(routes.relayed().isEmpty());
+        assertEquals(files, cache.lookup("song"));
+    }
+
+    @Test
+    void relaysTheFilesToThePeersWaitingForThem() {
+        PathCache cache = new PathCache();
+        cache.expect("song", ALICE);
+        cache.expect("song", BOB);
+        cache.expect("video", BOB);
+
+        Routes routes = cache.observe(List.of(file("song.mp3"), file("video.mkv"), file("other.txt")));
+
+        // The file that matches no search is kept by this peer rather than dropped
+        assertEquals(List.of(file("other.txt")), routes.local());
+        assertEquals(2, routes.relayed().size());
+
+        Relay alice = relayTo(routes, ALICE);
+        Relay bob = relayTo(routes, BOB);
+        assertEquals(List.of(file("song.mp3")), alice.files());
+        assertEquals(List.of(file("song.mp3"), file("video.mkv")), bob.files());
+    }
+
+    @Test
+    void relaysAFileOnce() {
+        PathCache cache = new PathCache();
+        cache.expect("song", ALICE);
+
+        assertEquals(1, cache.observe(List.of(file("song.mp3"))).relayed().size());
+
+        // The same file coming back from a search crossing this one is not relayed again
+        Routes again = cache.observe(List.of(file("song.mp3")));
+        assertTrue(again.relayed().isEmpty());
+        assertTrue(again.local().isEmpty());
+    }
+
+    @Test
+    void answersUnknownSearchesWithNothing() {
+        PathCache cache = new PathCache();
+        cache.expect("song", ALICE);
+        cache.observe(List.of(file("song.mp3")));
+
+        assertTrue(cache.lookup("video").isEmpty());
+        assertTrue(cache.lookup("so").isEmpty());
+    }
+
+    @Test
+    void boundsTheFilesOfASearch() {
+        PathCache cache = new PathCache();
+        cache.expect("track", ALICE);
+
+        List<CachedFile> files = new ArrayList<>();
+        for (int i = 0; i < PathCache.MAX_FILES_PER_SEARCH + 10; i++) {
+            files.add(file("track" + i + ".mp3"));
+        }
+        cache.observe(files);
+
+        // The oldest files are forgotten first
+        List<CachedFile> cached = cache.lookup("track");
+        assertEquals(PathCache.MAX_FILES_PER_SEARCH, cached.size());
+        assertEquals(file("track10.mp3"), cached.get(0));
+    }
+
+    @Test
+    void forgetsTheLeastRecentlyUsedSearches() {
+        PathCache cache = new PathCache();
+        for (int i = 0; i <= PathCache.MAX_SEARCHES; i++) {
+            cache.expect("search" + i + ".", ALICE);
+            cache.observe(List.of(file("search" + i + ".bin")));
+            if (i == 0)
+                continue;
+
+            // The first search is used again each time, so the second one is the least recently used
+            assertEquals(1, cache.lookup("search0.").size());
+        }
+
+        assertEquals(1, cache.lookup("search0.").size());
+        assertTrue(cache.lookup("search1.").isEmpty());
+        assertEquals(1, cache.lookup("search" + PathCache.MAX_SEARCHES + ".").size());
+    }
+
+    /**
+     * Returns a file of 1 byte found on the peer named "carol", with no Merkle root.
+     *
+     * @param name The name of the file.
+     * @return The {@link CachedFile}.
+     */
+    private static CachedFile file(String name) {
+        return new CachedFile("carol", name, 1, null);
+    }
+
+    /**
+     * Returns the files relayed to a peer.
+     *
+     * @param routes The {@link Routes} of the files of a voila message.
+     * @param origin The {@link Peer} waiting for files.
+     * @return The {@link Relay} to the peer.
+     */
+    private static Relay relayTo(Routes routes, Peer origin) {
+        for (Relay relay : routes.relayed()) {
+            if (relay.origin().getName().equals(origin.getName())) {
+                assertSame(origin, relay.origin());
+                return relay;
+            }
+        }
+
+        throw new AssertionError("Nothing relayed to " + origin.getName());
+    }
+}
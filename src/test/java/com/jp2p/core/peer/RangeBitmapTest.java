@@ -0,0 +1,99 @@
+package com.jp2p.core.peer;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Sets and clears the bits of a {@link RangeBitmap} across the boundaries of its words, and from several threads at once.
+ */
+class RangeBitmapTest {
+    @Test
+    void setsAndClearsBitsOnce() {
+        RangeBitmap bitmap = new RangeBitmap(130);
+
+        assertTrue(bitmap.set(63));
+        assertFalse(bitmap.set(63));
+        assertTrue(bitmap.set(64));
+        assertTrue(bitmap.set(129));
+        assertEquals(3, bitmap.count());
+        assertTrue(bitmap.get(63));
+        assertTrue(bitmap.get(64));
+        assertFalse(bitmap.get(65));
+
+        assertTrue(bitmap.clear(64));
+        assertFalse(bitmap.clear(64));
+        assertFalse(bitmap.get(64));
+        assertEquals(2, bitmap.count());
+    }
+
+    @Test
+    void findsTheFirstRangeNotWritten() {
+        RangeBitmap bitmap = new RangeBitmap(130);
+        assertEquals(0, bitmap.nextClearBit());
+
+        for (int i = 0; i < 70; i++) {
+            bitmap.set(i);
+        }
+        bitmap.set(71);
+        assertEquals(70, bitmap.nextClearBit());
+
+        for (int i = 70; i < 130; i++) {
+            bitmap.set(i);
+        }
+        assertEquals(130, bitmap.nextClearBit());
+    }
+
+    @Test
+    void copiesToBitSet() {
+        RangeBitmap bitmap = new RangeBitmap(200);
+        BitSet expected = new BitSet();
+        for (int i : new int[]{0, 5, 63, 64, 127, 199}) {
+            bitmap.set(i);
+            expected.set(i);
+        }
+
+        assertEquals(expected, bitmap.toBitSet());
+    }
+
+    @Test
+    void countsTheBitsSetConcurrently() throws InterruptedException {
+        int size = 64 * 64;
+        int threads = 8;
+        RangeBitmap bitmap = new RangeBitmap(size);
+
+        // Each thread sets every range, interleaved with the others, so only one of them wins each bit
+        List<Thread> writers = new ArrayList<>();
+        int[] won = new int[threads];
+        for (int t = 0; t < threads; t++) {
+            int writer = t;
+            writers.add(new Thread(() -> {
+                for (int i = 0; i < size; i++) {
+                    if (bitmap.set((i + writer * 7) % size))
+                        won[writer]++;
+                }
+            }));
+        }
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        int total = 0;
+        for (int count : won) {
+            total += count;
+        }
+        assertEquals(size, total);
+        assertEquals(size, bitmap.count());
+        assertEquals(size, bitmap.nextClearBit());
+        assertEquals(size, bitmap.toBitSet().cardinality());
+    }
+}
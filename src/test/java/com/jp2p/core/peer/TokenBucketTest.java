@@ -0,0 +1,98 @@
+package com.jp2p.core.peer;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Reserves bytes from a {@link TokenBucket}, sent at once up to its burst and then at its rate.
+ * The times are checked with a wide margin, the bucket only sleeping at least as long as it has to.
+ */
+class TokenBucketTest {
+    /**
+     * The rate of the buckets in bytes per second.
+     */
+    private static final long RATE = 100_000;
+
+    /**
+     * The number of bytes sent at once by a full bucket.
+     */
+    private static final long BURST = RATE * TokenBucket.BURST_MILLIS / 1000;
+
+    @Test
+    void rejectsRatesThatAreNotPositive() {
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(0));
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(-1));
+        assertEquals(RATE, new TokenBucket(RATE).getRate());
+    }
+
+    @Test
+    void sendsTheBurstWithoutWaiting() throws IOException, InterruptedException {
+        TokenBucket bucket = new TokenBucket(RATE);
+
+        long elapsed = millis(() -> bucket.acquire(BURST));
+        assertTrue(elapsed < 100, "The burst waited " + elapsed + " ms");
+    }
+
+    @Test
+    void waitsForTheBytesOverTheBurst() throws IOException, InterruptedException {
+        TokenBucket bucket = new TokenBucket(RATE);
+        bucket.acquire(BURST);
+
+        // Half a second of the rate once the burst is spent
+        long elapsed = millis(() -> bucket.acquire(RATE / 2));
+        assertTrue(elapsed >= 450 && elapsed < 1500, "Waited " + elapsed + " ms for half a second of the rate");
+    }
+
+    @Test
+    void servesTheCallersInTurn() throws IOException, InterruptedException {
+        TokenBucket bucket = new TokenBucket(RATE);
+        bucket.acquire(BURST);
+
+        // The second reservation takes its place after the first one, so the two of them last as long as their bytes together
+        Thread other = new Thread(() -> {
+            try {
+                bucket.acquire(RATE / 4);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        long elapsed = millis(() -> {
+            other.start();
+            bucket.acquire(RATE / 4);
+            other.join();
+        });
+        assertTrue(elapsed >= 450 && elapsed < 1500, "Two quarters of a second of the rate took " + elapsed + " ms");
+    }
+
+    /**
+     * Measures how long an action takes.
+     *
+     * @param action The action.
+     * @return The time it took in milliseconds.
+     * @throws IOException          If the action failed.
+     * @throws InterruptedException If the action was interrupted.
+     */
+    static long millis(Action action) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        action.run();
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    /**
+     * An action that may wait.
+     */
+    interface Action {
+        /**
+         * Runs the action.
+         *
+         * @throws IOException          If the action failed.
+         * @throws InterruptedException If the action was interrupted.
+         */
+        void run() throws IOException, InterruptedException;
+    }
+}
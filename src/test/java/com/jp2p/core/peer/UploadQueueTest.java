@@ -0,0 +1,130 @@
+package com.jp2p.core.peer;
+
+import com.jp2p.core.file.PeerFile;
+import com.jp2p.database.DatabaseConnection;
+import com.jp2p.database.FileHashesTable;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Downloads a file from a peer with a single upload slot by two peers on the same loopback address at the same time.
+ * The downloading peers are told apart by their name, so one of them holds the slot while the other one waits in the queue, then gets the slot once the first one is done,
+ * and the bytes sent to each of them are counted apart.
+ */
+class UploadQueueTest {
+    /**
+     * The size of the shared file.
+     */
+    private static final int SIZE = 3 << 20;
+
+    /**
+     * The rate of the uploads to a single peer in bytes per second, so that a download lasts a few seconds.
+     */
+    private static final long PEER_UPLOAD_LIMIT = 1 << 20;
+
+    /**
+     * The name of the shared file.
+     */
+    private static final String FILE_NAME = "shared.bin";
+
+    @TempDir
+    Path folder;
+
+    /**
+     * The content of the shared file.
+     */
+    private byte[] content;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        DatabaseConnection.connect("jdbc:sqlite:" + folder.resolve("test.db"));
+        FileHashesTable.createTableIfNotExists();
+
+        content = new byte[SIZE];
+        new Random(7).nextBytes(content);
+        Files.write(Files.createDirectories(folder.resolve("sender").resolve("files")).resolve(FILE_NAME), content);
+    }
+
+    @Test
+    @Timeout(value = 2, unit = TimeUnit.MINUTES)
+    void queuesThePeersOfTheSameAddressSeparately() throws Exception {
+        PeerRunner sender = startPeer("queue-sender", 1);
+        PeerRunner first = startPeer("queue-first", 0);
+        PeerRunner second = startPeer("queue-second", 0);
+
+        CompletableFuture<Boolean> firstDone = download(first, sender);
+        CompletableFuture<Boolean> secondDone = download(second, sender);
+
+        // Both peers connect from the loopback address, only their names keep the second one from sharing the slot of the first one
+        UploadScheduler scheduler = sender.getUploadScheduler();
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (scheduler.getQueueLength() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(1, scheduler.getQueueLength(), "The second peer was not queued");
+        assertEquals(1, scheduler.getActiveCount());
+
+        assertTrue(firstDone.get(), "The first download did not complete");
+        assertTrue(secondDone.get(), "The second download did not complete");
+        assertArrayEquals(content, Files.readAllBytes(folder.resolve("queue-first").resolve("downloads").resolve(FILE_NAME)));
+        assertArrayEquals(content, Files.readAllBytes(folder.resolve("queue-second").resolve("downloads").resolve(FILE_NAME)));
+
+        // The bytes are counted apart for each peer as well, rather than together for the loopback address
+        assertEquals(Map.of("queue-first", (long) SIZE, "queue-second", (long) SIZE), sender.getMetrics().getBytesOutByPeer());
+        assertEquals(Map.of("queue-sender", (long) SIZE), first.getMetrics().getBytesInByPeer());
+    }
+
+    /**
+     * Starts a peer on a free port of the loopback interface, with its own folders.
+     *
+     * @param name        The name of the peer.
+     * @param uploadSlots The number of upload slots of the peer, 0 to not limit them.
+     * @return The peer.
+     * @throws IOException If the peer cannot be started.
+     */
+    private PeerRunner startPeer(String name, int uploadSlots) throws IOException {
+        String files = Files.createDirectories(folder.resolve(uploadSlots > 0 ? "sender" : name).resolve("files")) + File.separator;
+        String downloads = Files.createDirectories(folder.resolve(name).resolve("downloads")) + File.separator;
+        PeerSettings settings = new PeerSettings(name, InetAddress.getLoopbackAddress().getHostAddress(), 0, 10, true, ServerMode.SELECTOR, false, false,
+                0, 0, PEER_UPLOAD_LIMIT, 0, uploadSlots, 1, files, downloads, false);
+
+        PeerRunner peer = new PeerRunner(settings);
+        Thread thread = new Thread(peer, name);
+        thread.setDaemon(true);
+        thread.start();
+        return peer;
+    }
+
+    /**
+     * Downloads the shared file from the sender on another thread.
+     *
+     * @param receiver The peer downloading the file.
+     * @param sender   The peer sharing the file.
+     * @return Completed with true once the file was completely downloaded.
+     */
+    private static CompletableFuture<Boolean> download(PeerRunner receiver, PeerRunner sender) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return receiver.download(new PeerFile(sender.getPeer().getName(), FILE_NAME, SIZE), sender.getPeer());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+}
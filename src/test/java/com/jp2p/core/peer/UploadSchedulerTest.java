@@ -0,0 +1,127 @@
+package com.jp2p.core.peer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Gives the upload slots of an {@link UploadScheduler} to the peers asking for them, ranks the waiting peers by the time they waited and their credit,
+ * and takes back the slots of the peers that stopped downloading.
+ */
+class UploadSchedulerTest {
+    /**
+     * A little more than the time an idle peer keeps its slot.
+     */
+    private static final long PAST_LINGER = UploadScheduler.SLOT_LINGER + 100;
+
+    @Test
+    void admitsEveryPeerWithoutSlots() {
+        UploadScheduler scheduler = new UploadScheduler(0);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, scheduler.admit("peer" + i));
+        }
+
+        assertEquals(0, scheduler.getActiveCount());
+        assertEquals(0, scheduler.getQueueLength());
+    }
+
+    @Test
+    void queuesThePeersPastTheSlots() throws InterruptedException {
+        UploadScheduler scheduler = new UploadScheduler(2);
+        assertEquals(0, scheduler.admit("alice"));
+        assertEquals(0, scheduler.admit("bob"));
+        assertEquals(1, scheduler.admit("carol"));
+        Thread.sleep(5);
+        assertEquals(2, scheduler.admit("dave"));
+
+        // A peer holding a slot starts its other uploads right away
+        assertEquals(0, scheduler.admit("alice"));
+        assertEquals(2, scheduler.getActiveCount());
+        assertEquals(2, scheduler.getQueueLength());
+
+        // Asking again keeps the place in the queue
+        assertEquals(1, scheduler.admit("carol"));
+        assertEquals(2, scheduler.getQueueLength());
+    }
+
+    @Test
+    void keepsTheSlotOfAnIdlePeerForALittleWhile() throws InterruptedException {
+        UploadScheduler scheduler = new UploadScheduler(1);
+        assertEquals(0, scheduler.admit("alice"));
+        scheduler.release("alice", 100);
+
+        // The next range of the download of the peer does not go through the queue
+        assertEquals(1, scheduler.admit("bob"));
+        assertEquals(0, scheduler.admit("alice"));
+        scheduler.release("alice", 100);
+
+        Thread.sleep(PAST_LINGER);
+        assertEquals(0, scheduler.getActiveCount());
+        assertEquals(0, scheduler.admit("bob"));
+        assertEquals(0, scheduler.getQueueLength());
+    }
+
+    @Test
+    void servesThePeersThatUploadedBackFirst() throws InterruptedException {
+        UploadScheduler scheduler = new UploadScheduler(1);
+        assertEquals(0, scheduler.admit("alice"));
+
+        assertEquals(1, scheduler.admit("carol"));
+        Thread.sleep(50);
+        scheduler.recordReceived("dave", 10L << 20);
+        assertEquals(2, scheduler.admit("dave"));
+        Thread.sleep(50);
+
+        // Having waited half as long with the highest credit, dave is ahead of carol
+        assertEquals(1, scheduler.admit("dave"));
+        assertEquals(2, scheduler.admit("carol"));
+
+        scheduler.release("alice", 100);
+        Thread.sleep(PAST_LINGER);
+        assertEquals(2, scheduler.admit("carol"));
+        assertEquals(0, scheduler.admit("dave"));
+        assertEquals(1, scheduler.admit("carol"));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    void wakesUpThePeersWaitingOnTheirThread() throws InterruptedException {
+        UploadScheduler scheduler = new UploadScheduler(1);
+        assertEquals(0, scheduler.admit("alice"));
+
+        Thread waiting = new Thread(() -> {
+            try {
+                scheduler.await("bob");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiting.start();
+        waiting.join(200);
+        assertTrue(waiting.isAlive());
+
+        scheduler.release("alice", 100);
+        // The slot of alice is taken back once it lingered, then given to bob
+        waiting.join();
+        assertEquals(1, scheduler.getActiveCount());
+        assertEquals(1, scheduler.admit("alice"));
+    }
+
+    @Test
+    void boundsTheQueue() {
+        UploadScheduler scheduler = new UploadScheduler(1);
+        assertEquals(0, scheduler.admit("holder"));
+        for (int i = 0; i < UploadScheduler.MAX_QUEUE; i++) {
+            assertFalse(scheduler.admit("peer" + i) > UploadScheduler.MAX_QUEUE);
+        }
+
+        // The peers asking once the queue is full are told they are after the last one, and not queued
+        assertEquals(UploadScheduler.MAX_QUEUE + 1, scheduler.admit("late"));
+        assertEquals(UploadScheduler.MAX_QUEUE, scheduler.getQueueLength());
+    }
+}
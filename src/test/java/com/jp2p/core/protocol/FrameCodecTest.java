@@ -0,0 +1,172 @@
+package com.jp2p.core.protocol;
+
+import com.jp2p.core.commands.CommandType;
+import com.jp2p.core.peer.FileQuery;
+import com.jp2p.core.peer.PathCache.CachedFile;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Encodes the messages, replies and file sizes to frames and decodes them back, including the frames of the peers that don't send the optional trailing fields.
+ */
+class FrameCodecTest {
+    @Test
+    void roundTripsMessagesWithoutArguments() throws IOException {
+        assertEquals(0, roundTrip(new Message(CommandType.NAME)).args().length);
+        assertEquals(0, roundTrip(new Message(CommandType.KNOWN_PEERS)).args().length);
+    }
+
+    @Test
+    void roundTripsTextMessages() throws IOException {
+        assertArrayEquals(new Object[]{"peer", "127.0.0.1", 5000}, roundTrip(new Message(CommandType.ITS_ME, "peer", "127.0.0.1", 5000)).args());
+        assertArrayEquals(new Object[]{"peer"}, roundTrip(new Message(CommandType.BYE, "peer")).args());
+        assertArrayEquals(new Object[]{"peer", "file.bin", 3, 7}, roundTrip(new Message(CommandType.MANIFEST, "peer", "file.bin", 3, 7)).args());
+    }
+
+    @Test
+    void roundTripsFileMessages() throws IOException {
+        FileQuery query = new FileQuery(42, "\u00e9t\u00e9.txt", 3, "10.0.0.1", 5000);
+        Message decoded = roundTrip(query.toMessage());
+
+        assertEquals(CommandType.FILE, decoded.type());
+        assertEquals(query, decoded.args()[0]);
+    }
+
+    @Test
+    void readsFileMessagesWithoutIdentifier() throws IOException {
+        ByteBuffer frame = encode(new FileQuery(42, "file", 3, "10.0.0.1", 5000).toMessage());
+        frame.limit(frame.limit() - Long.BYTES);
+
+        assertEquals(new FileQuery(FileQuery.NO_ID, "file", 3, "10.0.0.1", 5000), FrameCodec.decodeMessage(frame).args()[0]);
+    }
+
+    @Test
+    void roundTripsVoilaMessagesWithRoots() throws IOException {
+        List<CachedFile> files = List.of(new CachedFile("peer", "a.bin", 5_000_000_000L, "ab".repeat(32)), new CachedFile("peer", "b.bin", 0, null));
+        Message decoded = roundTrip(new Message(CommandType.VOILA, "peer", files));
+
+        assertEquals("peer", decoded.args()[0]);
+        assertEquals(files, decoded.args()[1]);
+    }
+
+    @Test
+    void readsVoilaMessagesWithoutRoots() throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(256);
+        frame.put(CommandType.VOILA.getOpcode());
+        WireProtocol.putString(frame, "peer");
+        WireProtocol.putVarInt(frame, 1);
+        WireProtocol.putString(frame, "a.bin");
+        frame.putLong(12);
+        frame.flip();
+
+        assertEquals(List.of(new CachedFile("peer", "a.bin", 12, null)), FrameCodec.decodeMessage(frame).args()[1]);
+    }
+
+    @Test
+    void rejectsVoilaMessagesWithMoreFilesThanBytes() {
+        ByteBuffer frame = ByteBuffer.allocate(256);
+        frame.put(CommandType.VOILA.getOpcode());
+        WireProtocol.putString(frame, "peer");
+        WireProtocol.putVarInt(frame, 100);
+        frame.flip();
+
+        assertThrows(IOException.class, () -> FrameCodec.decodeMessage(frame));
+    }
+
+    @Test
+    void roundTripsDownloadMessages() throws IOException {
+        Message decoded = roundTrip(new Message(CommandType.DOWNLOAD, "file.bin", 5_000_000_000L, 1L << 33, BodyEncoding.DEFLATE, true, "peer"));
+
+        assertArrayEquals(new Object[]{"file.bin", 5_000_000_000L, 1L << 33, BodyEncoding.DEFLATE, true, "peer"}, decoded.args());
+    }
+
+    @Test
+    void readsDownloadMessagesWithoutOptionalFields() throws IOException {
+        // A download up to the end of the file, from a peer that knows neither the encodings nor the queue
+        Message decoded = roundTrip(new Message(CommandType.DOWNLOAD, "file.bin", 10L));
+        assertArrayEquals(new Object[]{"file.bin", 10L, null, BodyEncoding.RAW, false, null}, decoded.args());
+
+        // A peer that can wait in the queue but accepts no encoding still sends the encoding byte before the queueing byte
+        decoded = roundTrip(new Message(CommandType.DOWNLOAD, "file.bin", 0L, null, null, true));
+        assertArrayEquals(new Object[]{"file.bin", 0L, null, BodyEncoding.RAW, true, null}, decoded.args());
+
+        // The name of the peer comes last, after the defaults of the fields before it
+        decoded = roundTrip(new Message(CommandType.DOWNLOAD, "file.bin", 0L, null, null, null, "peer"));
+        assertArrayEquals(new Object[]{"file.bin", 0L, null, BodyEncoding.RAW, false, "peer"}, decoded.args());
+    }
+
+    @Test
+    void ignoresUnknownOpcodes() throws IOException {
+        assertNull(FrameCodec.decodeMessage(ByteBuffer.wrap(new byte[]{(byte) 0x7f})));
+    }
+
+    @Test
+    void rejectsTruncatedFrames() {
+        ByteBuffer frame = encode(new Message(CommandType.ITS_ME, "peer", "127.0.0.1", 5000));
+        frame.limit(frame.limit() - 1);
+
+        assertThrows(IOException.class, () -> FrameCodec.decodeMessage(frame));
+    }
+
+    @Test
+    void roundTripsReplyFrames() throws IOException {
+        ByteBuffer frame = FrameCodec.replyFrame("bonjour \u00e0 tous");
+
+        assertEquals(frame.remaining() - FrameCodec.LENGTH_PREFIX, frame.getInt());
+        assertEquals("bonjour \u00e0 tous", FrameCodec.decodeReply(frame));
+    }
+
+    @Test
+    void rejectsOtherFramesAsReplies() {
+        ByteBuffer frame = FrameCodec.fileSizeFrame(12);
+        frame.position(FrameCodec.LENGTH_PREFIX);
+
+        assertThrows(IOException.class, () -> FrameCodec.decodeReply(frame));
+    }
+
+    @Test
+    void roundTripsFileSizeFrames() throws IOException {
+        ByteBuffer frame = FrameCodec.fileSizeFrame(5_000_000_000L);
+        assertEquals(1 + Long.BYTES, frame.getInt());
+        assertEquals(5_000_000_000L, FrameCodec.decodeFileSize(frame));
+        assertEquals(BodyEncoding.RAW, FrameCodec.decodeBodyEncoding(frame));
+
+        frame = FrameCodec.fileSizeFrame(ReplyStream.FILE_NOT_FOUND, BodyEncoding.DEFLATE);
+        assertEquals(1 + Long.BYTES + 1, frame.getInt());
+        assertEquals(ReplyStream.FILE_NOT_FOUND, FrameCodec.decodeFileSize(frame));
+        assertEquals(BodyEncoding.DEFLATE, FrameCodec.decodeBodyEncoding(frame));
+    }
+
+    /**
+     * Encodes a message to a frame without its length prefix.
+     *
+     * @param message The {@link Message} to encode.
+     * @return The flipped buffer holding the frame.
+     */
+    private static ByteBuffer encode(Message message) {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        FrameCodec.encodeMessage(buffer, message);
+        return buffer.flip();
+    }
+
+    /**
+     * Encodes a message to a frame and decodes it back.
+     *
+     * @param message The {@link Message} to encode.
+     * @return The decoded {@link Message}.
+     * @throws IOException If the frame cannot be decoded.
+     */
+    private static Message roundTrip(Message message) throws IOException {
+        Message decoded = FrameCodec.decodeMessage(encode(message));
+        assertEquals(message.type(), decoded.type());
+        return decoded;
+    }
+}
@@ -0,0 +1,179 @@
+package com.jp2p.core.protocol;
+
+import com.jp2p.core.commands.CommandType;
+import com.jp2p.core.peer.FileQuery;
+import com.jp2p.core.peer.PathCache.CachedFile;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Reads the arguments of legacy messages with the {@link LegacyProtocolStream.Tokens} parser, and sends messages between two peers speaking the legacy protocol over the loopback interface.
+ */
+class LegacyProtocolStreamTest {
+    /**
+     * The client side of the connection.
+     */
+    private ProtocolStream client;
+
+    /**
+     * The server side of the connection.
+     */
+    private ProtocolStream server;
+
+    @BeforeEach
+    void connect() throws IOException {
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Socket socket = new Socket(listener.getInetAddress(), listener.getLocalPort());
+            client = WireProtocol.connect(socket, false);
+            server = WireProtocol.accept(listener.accept());
+        }
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        client.close();
+        server.close();
+    }
+
+    @Test
+    void readsTextAndNumbers() {
+        LegacyProtocolStream.Tokens tokens = tokens("  song.mp3   42 -7 ");
+
+        assertEquals("song.mp3", tokens.next());
+        assertEquals(42, tokens.nextInt());
+        assertEquals(-7, tokens.nextLong());
+        assertFalse(tokens.hasNext());
+        assertThrows(IllegalArgumentException.class, tokens::next);
+    }
+
+    @Test
+    void readsTheLongestNumbers() {
+        LegacyProtocolStream.Tokens tokens = tokens(Long.MAX_VALUE + " " + Long.MIN_VALUE + " 999999999999999999");
+
+        assertEquals(Long.MAX_VALUE, tokens.nextLong());
+        assertEquals(Long.MIN_VALUE, tokens.nextLong());
+        assertEquals(999_999_999_999_999_999L, tokens.nextLong());
+    }
+
+    @Test
+    void rejectsMalformedNumbers() {
+        assertThrows(NumberFormatException.class, () -> tokens("12a").nextLong());
+        assertThrows(NumberFormatException.class, () -> tokens("-").nextLong());
+        assertThrows(NumberFormatException.class, () -> tokens("4294967296").nextInt());
+        assertThrows(NumberFormatException.class, () -> tokens("123456789012345678901").nextLong());
+    }
+
+    @Test
+    void readsTheRemainingArguments() {
+        LegacyProtocolStream.Tokens tokens = tokens("a  b c");
+        tokens.next();
+
+        assertArrayEquals(new String[]{"b", "c"}, tokens.remaining());
+        assertArrayEquals(new String[0], tokens.remaining());
+    }
+
+    @Test
+    void sendsTextMessages() throws IOException {
+        client.writeMessage(new Message(CommandType.ITS_ME, "peer", "127.0.0.1", 5000));
+        Message received = server.readMessage();
+
+        assertEquals(CommandType.ITS_ME, received.type());
+        assertArrayEquals(new Object[]{"peer", "127.0.0.1", "5000"}, received.args());
+
+        server.writeReply("bonjour");
+        assertEquals("bonjour", client.readReply());
+    }
+
+    @Test
+    void sendsFileMessages() throws IOException {
+        FileQuery query = new FileQuery(-42, "song", 3, "10.0.0.1", 5000);
+        client.writeMessage(query.toMessage());
+
+        assertEquals(query, server.readMessage().args()[0]);
+    }
+
+    @Test
+    void readsFileMessagesWithoutIdentifier() throws IOException {
+        writeRaw("file? song 3 5000 10.0.0.1");
+
+        assertEquals(new FileQuery(FileQuery.NO_ID, "song", 3, "10.0.0.1", 5000), server.readMessage().args()[0]);
+    }
+
+    @Test
+    void sendsVoilaMessages() throws IOException {
+        List<CachedFile> files = List.of(new CachedFile("peer", "a.bin", 5_000_000_000L, "ab".repeat(32)), new CachedFile("peer", "b.bin", 3, null));
+        client.writeMessage(new Message(CommandType.VOILA, "peer", files));
+        Message received = server.readMessage();
+
+        assertEquals("peer", received.args()[0]);
+        assertEquals(files, received.args()[1]);
+    }
+
+    @Test
+    void readsVoilaMessagesWithoutRoots() throws IOException {
+        writeRaw("voila! peer 2 a.bin 1 b.bin 2");
+
+        assertEquals(List.of(new CachedFile("peer", "a.bin", 1, null), new CachedFile("peer", "b.bin", 2, null)), server.readMessage().args()[1]);
+    }
+
+    @Test
+    void sendsDownloadMessagesWithoutTheEncoding() throws IOException {
+        client.writeMessage(new Message(CommandType.DOWNLOAD, "file.bin", 5_000_000_000L, 10L, BodyEncoding.DEFLATE, true));
+
+        assertArrayEquals(new Object[]{"file.bin", "5000000000", "10"}, server.readMessage().args());
+    }
+
+    @Test
+    void ignoresUnknownCommands() throws IOException {
+        writeRaw("unknown? a b");
+        assertNull(server.readMessage());
+
+        writeRaw("no separator");
+        assertThrows(IllegalArgumentException.class, server::readMessage);
+        assertTrue(server.isAlive());
+    }
+
+    @Test
+    void sendsFileSizes() throws IOException {
+        server.writeFileSize(5_000_000_000L);
+
+        assertEquals(5_000_000_000L, client.readFileSize());
+    }
+
+    /**
+     * Starts reading the arguments of a message.
+     *
+     * @param text The arguments.
+     * @return The {@link LegacyProtocolStream.Tokens} positioned on the first argument.
+     */
+    private static LegacyProtocolStream.Tokens tokens(String text) {
+        LegacyProtocolStream.Tokens tokens = new LegacyProtocolStream.Tokens();
+        tokens.reset(text, 0);
+        return tokens;
+    }
+
+    /**
+     * Writes a message as sent by the older peers, on the {@link ObjectOutputStream} the client side of the connection already opened.
+     *
+     * @param message The message.
+     */
+    private void writeRaw(String message) throws IOException {
+        // The header of the ObjectOutputStream was sent when the connection was opened, a second one would be read as content
+        client.writeReply(message);
+    }
+}